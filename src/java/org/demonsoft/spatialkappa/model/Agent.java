@@ -65,6 +65,10 @@ public class Agent implements Serializable {
     }
 
     public void updateStateHash() {
+        stateHash = createStateHash();
+    }
+
+    private String createStateHash() {
         StringBuilder builder = new StringBuilder();
         for (String current : orderedSiteNames) {
             AgentSite site = sites.get(current);
@@ -74,7 +78,7 @@ public class Agent implements Serializable {
             }
             builder.append(",");
         }
-        stateHash = builder.toString();
+        return builder.toString();
     }
 
     private void canonicalSortSites() {
@@ -150,6 +154,17 @@ public class Agent implements Serializable {
         return new Agent(name, location, sites.values());
     }
 
+    public void verify() {
+        for (AgentSite site : sites.values()) {
+            if (site.agent != this) {
+                throw new IllegalStateException("Mismatched sites: " + this);
+            }
+        }
+        if (!createStateHash().equals(stateHash)) {
+            throw new IllegalStateException("Stale state hash: " + this);
+        }
+    }
+
     public String getStateHash() {
         return stateHash;
     }
@@ -193,23 +208,31 @@ public class Agent implements Serializable {
 	}
 
     public List<Agent> getLocatedAgents(List<Compartment> compartments) {
+        List<Agent> result = new ArrayList<Agent>();
+        for (Location currentLocation : getLocatedLocations(compartments)) {
+            Agent locatedAgent = clone();
+            locatedAgent.location = currentLocation;
+            result.add(locatedAgent);
+        }
+        return result;
+    }
+
+    /**
+     * The locations of {@link #getLocatedAgents(List)}, without creating the agents.
+     */
+    List<Location> getLocatedLocations(List<Compartment> compartments) {
         if (compartments == null) {
             throw new NullPointerException();
         }
-        List<Agent> result = new ArrayList<Agent>();
+        List<Location> result = new ArrayList<Location>();
         
         if (location == NOT_LOCATED) {
             if (compartments.size() == 0) {
-                result.add(this.clone());
+                result.add(location);
             }
             else {
                 for (Compartment compartment : compartments) {
-                    Location[] locations = compartment.getDistributedCellReferences();
-                    for (Location currentLocation : locations) {
-                        Agent locatedAgent = clone();
-                        locatedAgent.location = currentLocation;
-                        result.add(locatedAgent);
-                    }
+                    Collections.addAll(result, compartment.getDistributedCellReferences());
                 }
             }
         }
@@ -217,26 +240,19 @@ public class Agent implements Serializable {
             Compartment compartment = getCompartment(compartments, location.getName());
             if (location.isVoxel(compartment)) {
                 if (!location.isWildcard()) {
-                    result.add(this.clone());
+                    result.add(location);
                 }
                 else { // using wildcard [1][2][?] syntax
                     Location[] locations = compartment.getDistributedCellReferences();
                     for (Location currentLocation : locations) {
                         if (location.isRefinement(currentLocation)) {
-                            Agent locatedAgent = clone();
-                            locatedAgent.location = currentLocation;
-                            result.add(locatedAgent);
+                            result.add(currentLocation);
                         }
                     }
                 }
             }
             else {
-                Location[] locations = compartment.getDistributedCellReferences();
-                for (Location currentLocation : locations) {
-                    Agent locatedAgent = clone();
-                    locatedAgent.location = currentLocation;
-                    result.add(locatedAgent);
-                }
+                Collections.addAll(result, compartment.getDistributedCellReferences());
             }
         }
         return result;
@@ -1,5 +1,7 @@
 package org.demonsoft.spatialkappa.model;
 
+import java.util.Map;
+import java.util.Set;
 
 public class BooleanExpression {
 
@@ -161,6 +163,34 @@ public class BooleanExpression {
         }
     }
     
+    /**
+     * Add the observable and transition label variables read by this expression to the given set.
+     * 
+     * @return <code>true</code> if the expression may change without any of its variables changing.
+     * @see VariableExpression#addDependencies(Map, Set)
+     */
+    public boolean addDependencies(Map<String, Variable> variables, Set<Variable> dependencies) {
+        if (variables == null || dependencies == null) {
+            throw new NullPointerException();
+        }
+        switch (type) {
+        case VALUE:
+            return false;
+            
+        case NEGATION:
+            return lhsBooleanExpression.addDependencies(variables, dependencies);
+            
+        case BOOLEAN_RELATION:
+            return lhsBooleanExpression.addDependencies(variables, dependencies) | rhsBooleanExpression.addDependencies(variables, dependencies);
+            
+        case VARIABLE_RELATION:
+            return lhsVariableExpression.addDependencies(variables, dependencies) | rhsVariableExpression.addDependencies(variables, dependencies);
+            
+        default:
+            throw new IllegalStateException("Unknown expression");
+        }
+    }
+    
     @Override
     public String toString() {
         switch (type) {
@@ -6,6 +6,7 @@ import static org.demonsoft.spatialkappa.model.Utils.getList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -145,7 +146,8 @@ public class ChannelComponent {
                         }
                         
                         if (targetCompartment == null || targetCompartment.isValidVoxel(targetIndices)) {
-                            Location targetLocation = new Location(templateTargetLocation.getName(), targetIndices);
+                            Location targetLocation = targetCompartment != null ? targetCompartment.getLocation(targetIndices)
+                                    : new Location(templateTargetLocation.getName(), targetIndices);
                             Location targetConstraint = constraint.targetConstraint;
                             if (targetConstraint == null || targetConstraint.equals(targetLocation) || targetConstraint.isRefinement(targetLocation)) {
                                 targetLocations.add(targetLocation);
@@ -372,7 +374,14 @@ public class ChannelComponent {
     
     static abstract class PredefinedChannelComponent extends ChannelComponent {
 
+        private static final int MAX_TABLE_ENTRIES = 1 << 22;
+        private static final NeighbourTable NO_TABLE = new NeighbourTable(null, null);
+
         private final String channelType;
+        
+        // Compartments are matched by instance, as each model holds its own
+        private final Map<Compartment, Map<Compartment, NeighbourTable>> neighbourTables = 
+                new IdentityHashMap<Compartment, Map<Compartment, NeighbourTable>>();
 
         public PredefinedChannelComponent(String channelType, List<Location> sourceLocations, List<Location> targetLocations) {
             super(sourceLocations, targetLocations);
@@ -426,21 +435,19 @@ public class ChannelComponent {
                             Compartment sourceCompartment = getCompartment(compartments, templateSourceLocation.getName());
                             Compartment targetCompartment = getCompartment(compartments, templateTargetLocation.getName());
 
-                            List<int[]> newLocations = null;
-                            if (sourceCompartment.getDimensions().length == 2) {
-                                newLocations = getNewLocations2D(sourceLocation.getFixedIndices(), sourceCompartment);
+                            NeighbourTable table = getNeighbourTable(sourceCompartment, targetCompartment);
+                            int sourceVoxel = sourceCompartment.getVoxelIndex(sourceLocation.getFixedIndices());
+                            if (table != null && sourceVoxel >= 0) {
+                                for (int index = table.offsets[sourceVoxel]; index < table.offsets[sourceVoxel + 1]; index++) {
+                                    Location location = table.locations[index];
+                                    if (targetConstraint == null || targetConstraint.equals(location) || targetConstraint.isRefinement(location)) {
+                                        currentTemplateTargetLocations.add(location);
+                                    }
+                                }
                             }
                             else {
-                                newLocations = getNewLocations3D(sourceLocation.getFixedIndices(), sourceCompartment);
-                            }
-                            
-                            if (isNesting(sourceCompartment, targetCompartment)) {
-                                Compartment.translate(sourceCompartment, targetCompartment, newLocations);
-                            }
-                            
-                            for (int[] voxel : newLocations) {
-                                if (targetCompartment.isValidVoxel(voxel)) {
-                                    Location location = new Location(targetCompartment.name, voxel);
+                                for (int[] voxel : getTargetVoxels(sourceLocation.getFixedIndices(), sourceCompartment, targetCompartment)) {
+                                    Location location = targetCompartment.getLocation(voxel);
                                     if (targetConstraint == null || targetConstraint.equals(location) || targetConstraint.isRefinement(location)) {
                                         currentTemplateTargetLocations.add(location);
                                     }
@@ -481,6 +488,83 @@ public class ChannelComponent {
         }
         
 
+        /**
+         * @return the valid voxels of the target compartment reachable from the given source voxel.
+         */
+        List<int[]> getTargetVoxels(int[] sourceIndices, Compartment sourceCompartment, Compartment targetCompartment) {
+            List<int[]> newLocations = null;
+            if (sourceCompartment.getDimensions().length == 2) {
+                newLocations = getNewLocations2D(sourceIndices, sourceCompartment);
+            }
+            else {
+                newLocations = getNewLocations3D(sourceIndices, sourceCompartment);
+            }
+            
+            if (isNesting(sourceCompartment, targetCompartment)) {
+                Compartment.translate(sourceCompartment, targetCompartment, newLocations);
+            }
+            
+            ListIterator<int[]> iter = newLocations.listIterator();
+            while (iter.hasNext()) {
+                if (!targetCompartment.isValidVoxel(iter.next())) {
+                    iter.remove();
+                }
+            }
+            return newLocations;
+        }
+
+        /**
+         * @return the neighbour table between the given compartments, building it on first use, or
+         * <code>null</code> if the table would be too large to hold.
+         */
+        NeighbourTable getNeighbourTable(Compartment sourceCompartment, Compartment targetCompartment) {
+            synchronized (neighbourTables) {
+                Map<Compartment, NeighbourTable> targetTables = neighbourTables.get(sourceCompartment);
+                if (targetTables == null) {
+                    targetTables = new IdentityHashMap<Compartment, NeighbourTable>();
+                    neighbourTables.put(sourceCompartment, targetTables);
+                }
+                NeighbourTable result = targetTables.get(targetCompartment);
+                if (result == null) {
+                    result = createNeighbourTable(sourceCompartment, targetCompartment);
+                    targetTables.put(targetCompartment, result);
+                }
+                return result == NO_TABLE ? null : result;
+            }
+        }
+
+        private NeighbourTable createNeighbourTable(Compartment sourceCompartment, Compartment targetCompartment) {
+            int[] dimensions = sourceCompartment.getDimensions();
+            long voxelCount = 1;
+            for (int dimension : dimensions) {
+                voxelCount *= dimension;
+            }
+            if (voxelCount > MAX_TABLE_ENTRIES) {
+                return NO_TABLE;
+            }
+            
+            int[] offsets = new int[(int) voxelCount + 1];
+            List<Location> locations = new ArrayList<Location>();
+            int[] indices = new int[dimensions.length];
+            for (int voxel = 0; voxel < voxelCount; voxel++) {
+                int remainder = voxel;
+                for (int index = dimensions.length - 1; index >= 0; index--) {
+                    indices[index] = remainder % dimensions[index];
+                    remainder /= dimensions[index];
+                }
+                if (sourceCompartment.isValidVoxel(indices)) {
+                    for (int[] targetVoxel : getTargetVoxels(indices.clone(), sourceCompartment, targetCompartment)) {
+                        locations.add(targetCompartment.getLocation(targetVoxel));
+                    }
+                    if (locations.size() > MAX_TABLE_ENTRIES) {
+                        return NO_TABLE;
+                    }
+                }
+                offsets[voxel + 1] = locations.size();
+            }
+            return new NeighbourTable(offsets, locations.toArray(new Location[locations.size()]));
+        }
+
         protected abstract List<int[]> getNewLocations2D(int[] inputIndices, Compartment compartment);
         
         protected abstract List<int[]> getNewLocations3D(int[] inputIndices, Compartment compartment);
@@ -620,6 +704,21 @@ public class ChannelComponent {
 
     }
     
+    /**
+     * Target locations reachable from each voxel of a source compartment, in compressed row form.
+     * The locations for the source voxel with row major index <code>i</code> are
+     * <code>locations[offsets[i]]</code> to <code>locations[offsets[i+1] - 1]</code>.
+     */
+    static class NeighbourTable {
+        final int[] offsets;
+        final Location[] locations;
+
+        NeighbourTable(int[] offsets, Location[] locations) {
+            this.offsets = offsets;
+            this.locations = locations;
+        }
+    }
+    
     public static class EdgeNeighbourComponent extends PredefinedChannelComponent {
 
         public static final String NAME = "EdgeNeighbour";
@@ -3,6 +3,7 @@ package org.demonsoft.spatialkappa.model;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 public class Compartment {
@@ -10,6 +11,9 @@ public class Compartment {
     protected final String name;
     protected final int[] dimensions;
     
+    // Canonical location for each voxel, created on first use
+    private volatile AtomicReferenceArray<Location> locations;
+    
     public Compartment(String name, int... dimensions) {
         if (name == null) {
             throw new NullPointerException();
@@ -51,6 +55,51 @@ public class Compartment {
         return result;
     }
 
+    /**
+     * @return the row major index of the voxel, or -1 if it lies outside the compartment bounds.
+     */
+    public int getVoxelIndex(int... indices) {
+        if (indices.length != dimensions.length) {
+            return -1;
+        }
+        int result = 0;
+        for (int index = 0; index < dimensions.length; index++) {
+            if (indices[index] < 0 || indices[index] >= dimensions[index]) {
+                return -1;
+            }
+            result = result * dimensions[index] + indices[index];
+        }
+        return result;
+    }
+
+    /**
+     * Get the shared location instance for a voxel of this compartment, so that voxel locations can be
+     * reused rather than allocated, and compared by reference. Indices outside the compartment bounds
+     * get a new location.
+     */
+    public Location getLocation(int... indices) {
+        int voxelIndex = getVoxelIndex(indices);
+        if (voxelIndex < 0) {
+            return new Location(name, indices);
+        }
+        AtomicReferenceArray<Location> pool = locations;
+        if (pool == null) {
+            synchronized (this) {
+                pool = locations;
+                if (pool == null) {
+                    pool = new AtomicReferenceArray<Location>(getCellCount());
+                    locations = pool;
+                }
+            }
+        }
+        Location result = pool.get(voxelIndex);
+        if (result == null) {
+            pool.compareAndSet(voxelIndex, null, new Location(name, indices.clone()));
+            result = pool.get(voxelIndex);
+        }
+        return result;
+    }
+
     public Location[] getDistributedCellReferences() {
         if (dimensions.length == 0) {
             return new Location[] { new Location(name) };
@@ -69,7 +118,7 @@ public class Compartment {
 
         Location[] result = new Location[indices.length];
         for (int index = 0; index < indices.length; index++) {
-            result[index] = new Location(name, indices[index]);
+            result[index] = getLocation(indices[index]);
         }
         return result;
     }
@@ -120,7 +169,7 @@ public class Compartment {
             for (int x=0; x<dimensions[WIDTH]; x++) {
                 for (int y=0; y<dimensions[HEIGHT]; y++) {
                     if (isValidVoxel(y, x)) {
-                        result.add(new Location(name, y, x));
+                        result.add(getLocation(y, x));
                     }
                 }
             }
@@ -173,7 +222,7 @@ public class Compartment {
             for (int x=0; x<dimensions[1]; x++) {
                 for (int y=0; y<dimensions[0]; y++) {
                     if (isValidVoxel(y, x)) {
-                        result.add(new Location(name, y, x));
+                        result.add(getLocation(y, x));
                     }
                 }
             }
@@ -229,7 +278,7 @@ public class Compartment {
             for (int x=0; x<dimensions[1]; x++) {
                 for (int y=0; y<dimensions[0]; y++) {
                     if (isValidVoxel(y, x)) {
-                        result.add(new Location(name, y, x));
+                        result.add(getLocation(y, x));
                     }
                 }
             }
@@ -303,7 +352,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[HEIGHT]; y++) {
                     for (int z=0; z<dimensions[DEPTH]; z++) {
                         if (isValidVoxel(y, x, z)) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
@@ -357,7 +406,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[0]; y++) {
                     for (int z=0; z<dimensions[2]; z++) {
                         if (isValidVoxel(y, x, z)) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
@@ -415,7 +464,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[0]; y++) {
                     for (int z=0; z<dimensions[2]; z++) {
                         if (isValidVoxel(y, x, z)) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
@@ -472,7 +521,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[0]; y++) {
                     if (isValidVoxel(y, x)) {
                         for (int z=0; z<dimensions[2]; z++) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
@@ -539,7 +588,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[0]; y++) {
                     for (int z=0; z<dimensions[2]; z++) {
                         if (isValidVoxel(y, x, z)) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
@@ -625,7 +674,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[0]; y++) {
                     for (int z=0; z<dimensions[2]; z++) {
                         if (isValidVoxel(y, x, z)) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
@@ -720,7 +769,7 @@ public class Compartment {
                 for (int y=0; y<dimensions[0]; y++) {
                     for (int z=0; z<dimensions[2]; z++) {
                         if (isValidVoxel(y, x, z)) {
-                            result.add(new Location(name, y, x, z));
+                            result.add(getLocation(y, x, z));
                         }
                     }
                 }
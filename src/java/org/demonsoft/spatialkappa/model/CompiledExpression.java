@@ -0,0 +1,136 @@
+package org.demonsoft.spatialkappa.model;
+
+import org.demonsoft.spatialkappa.model.VariableExpression.Operator;
+import org.demonsoft.spatialkappa.model.VariableExpression.SimulationToken;
+import org.demonsoft.spatialkappa.model.VariableExpression.UnaryOperator;
+
+/**
+ * A {@link VariableExpression} compiled against a fixed set of variables, evaluating directly to a float
+ * without the intermediate {@link ObservationElement}s of the expression tree. Variable references are
+ * resolved at compile time and constant subexpressions are folded, so an expression must be recompiled
+ * when its variables change.
+ *
+ * @see VariableExpression#compile(java.util.Map)
+ */
+public abstract class CompiledExpression {
+
+    public abstract float evaluate(SimulationState state, TransitionInstance transitionInstance);
+
+    public boolean isConstant() {
+        return false;
+    }
+
+    static CompiledExpression constant(float value) {
+        return new ConstantExpression(value);
+    }
+
+    static CompiledExpression binary(final Operator operator, final CompiledExpression lhs, final CompiledExpression rhs) {
+        if (lhs.isConstant() && rhs.isConstant()) {
+            return constant(operator.eval(lhs.evaluate(null, null), rhs.evaluate(null, null)));
+        }
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                return operator.eval(lhs.evaluate(state, transitionInstance), rhs.evaluate(state, transitionInstance));
+            }
+        };
+    }
+
+    static CompiledExpression unary(final UnaryOperator operator, final CompiledExpression operand) {
+        if (operand.isConstant()) {
+            return constant(operator.eval(operand.evaluate(null, null)));
+        }
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                return operator.eval(operand.evaluate(state, transitionInstance));
+            }
+        };
+    }
+
+    static CompiledExpression simulationToken(final SimulationToken token) {
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                switch (token) {
+                case EVENTS:
+                    return state.getEventCount();
+                case TIME:
+                    return state.getTime();
+                case MAX_TIME:
+                    return state.getMaximumTime();
+                case MAX_EVENTS:
+                    return state.getMaximumEventCount();
+                case ELAPSED_TIME:
+                    return state.getElapsedTime();
+                }
+                throw new IllegalStateException("Unknown expression");
+            }
+        };
+    }
+
+    static CompiledExpression variable(final Variable variable) {
+        if (variable.type == Variable.Type.TRANSITION_LABEL) {
+            return new CompiledExpression() {
+                @Override
+                public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                    return state.getTransitionFiredCountValue(variable);
+                }
+            };
+        }
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                return state.getComplexQuantityValue(variable);
+            }
+        };
+    }
+
+    static CompiledExpression agentGroup(final VariableExpression expression) {
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                return expression.getAgentGroupCountInTransitionInstance(transitionInstance);
+            }
+        };
+    }
+
+    // Missing variables and infinite constants only fail when evaluated, as in the interpreted expression
+
+    static CompiledExpression missingVariable(final VariableReference reference) {
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                throw new IllegalArgumentException("Missing value: " + reference);
+            }
+        };
+    }
+
+    static CompiledExpression infinity() {
+        return new CompiledExpression() {
+            @Override
+            public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+                throw new IllegalStateException();
+            }
+        };
+    }
+
+    private static class ConstantExpression extends CompiledExpression {
+
+        private final float value;
+
+        ConstantExpression(float value) {
+            this.value = value;
+        }
+
+        @Override
+        public float evaluate(SimulationState state, TransitionInstance transitionInstance) {
+            return value;
+        }
+
+        @Override
+        public boolean isConstant() {
+            return true;
+        }
+    }
+}
@@ -12,6 +12,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -28,7 +30,9 @@ public class Complex implements Serializable {
     public final List<Agent> agents = new ArrayList<Agent>();
     public List<AgentLink> agentLinks = new ArrayList<AgentLink>();
     Map<Agent, List<AgentLink>> linksPerAgent = new HashMap<Agent, List<AgentLink>>();
-    private String matchHash;
+    private long fingerprint;
+    private long[] agentColours;
+    private transient SiteGraph siteGraph;
 
     public Complex(Agent... agents) {
         this(Arrays.asList(agents));
@@ -51,76 +55,120 @@ public class Complex implements Serializable {
     public void update() {
         canonicalSortAgents();
         createAgentLinks();
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
     }
     
-    void updateMatchHash() {
-        StringBuilder builder = new StringBuilder();
-        Agent previous = null;
-        int count = 0;
-        for (Agent current : agents) {
-            if (previous == null) {
-                count = 1;
-            }
-            else if (current.name.equals(previous.name) && Utils.equal(current.location, previous.location)) {
-                count++;
-            }
-            else {
-                builder.append(previous.name).append(previous.location).append(count);
-                count = 1;
-            }
-            previous = current;
-        }
-        if (previous == null) {
-            matchHash = "";
-            return;
+    /**
+     * Compute an isomorphism invariant fingerprint of the site graph by iterated colour refinement.
+     * Each agent starts with a colour from its name, location, states and unbound link sites, and is
+     * then repeatedly recoloured from its bound neighbours until the colour classes are stable. Exactly
+     * matching complexes always share a fingerprint and agent colours; the converse is checked by
+     * {@link ComplexMatcher}.
+     */
+    void updateFingerprint() {
+        siteGraph = null;
+        int agentCount = agents.size();
+        Map<Agent, Integer> agentIndices = new IdentityHashMap<Agent, Integer>(agentCount);
+        for (int index = 0; index < agentCount; index++) {
+            agentIndices.put(agents.get(index), index);
         }
-        builder.append(previous.name).append(previous.location).append(count);
         
-        // Add links
-        Map<String, Integer> linkHashMap = new HashMap<String, Integer>();
-        for (AgentLink link : agentLinks) {
-            if (link.targetSite.agent != null) {
-                String sourceAgent = link.sourceSite.agent.name;
-                String targetAgent = link.targetSite.agent.name;
-            
-                int order = sourceAgent.compareTo(targetAgent);
-                String hash;
-                if (order < 0) {
-                    hash = sourceAgent + link.sourceSite.name + targetAgent + link.targetSite.name;
+        long[] colours = new long[agentCount];
+        for (int index = 0; index < agentCount; index++) {
+            Agent agent = agents.get(index);
+            long colour = combine(combine(agent.name.hashCode(), agent.location.hashCode()), agent.getStateHash().hashCode());
+            long unboundSites = 0;
+            for (AgentLink link : getAgentLinks(agent)) {
+                if (link.targetSite == AgentLink.NONE) {
+                    unboundSites += combine(link.sourceSite.name.hashCode(), 1);
                 }
-                else if (order > 0) {
-                    hash = targetAgent + link.targetSite.name + sourceAgent + link.sourceSite.name;
+                else if (link.targetSite == AgentLink.ANY) {
+                    unboundSites += combine(link.sourceSite.name.hashCode(), 2);
                 }
-                else {
-                    String sourceSite = link.sourceSite.name;
-                    String targetSite = link.targetSite.name;
-                    if (sourceSite.compareTo(targetSite) < 0) {
-                        hash = sourceAgent + sourceSite + targetAgent + targetSite;
+                else if (link.targetSite == AgentLink.OCCUPIED) {
+                    unboundSites += combine(link.sourceSite.name.hashCode(), 3);
+                }
+            }
+            colours[index] = combine(colour, unboundSites);
+        }
+
+        int colourCount = countDistinct(colours);
+        // Always refine at least once so that the links contribute even if all agents are already distinct
+        for (int round = 0; round < agentCount; round++) {
+            long[] newColours = new long[agentCount];
+            for (int index = 0; index < agentCount; index++) {
+                Agent agent = agents.get(index);
+                long neighbours = 0;
+                for (AgentLink link : getAgentLinks(agent)) {
+                    if (link.targetSite.agent == null) {
+                        continue;
                     }
-                    else {
-                        hash = targetAgent + targetSite + sourceAgent + sourceSite;
+                    if (link.sourceSite.agent == agent) {
+                        neighbours += combine(combine(link.sourceSite.name.hashCode(), link.targetSite.name.hashCode()),
+                                colours[agentIndices.get(link.targetSite.agent)]);
+                    }
+                    if (link.targetSite.agent == agent) {
+                        neighbours += combine(combine(link.targetSite.name.hashCode(), link.sourceSite.name.hashCode()),
+                                colours[agentIndices.get(link.sourceSite.agent)]);
                     }
                 }
-                if (linkHashMap.containsKey(hash)) {
-                    linkHashMap.put(hash, linkHashMap.get(hash) + 1);
-                }
-                else {
-                    linkHashMap.put(hash, 1);
-                }
+                newColours[index] = combine(colours[index], neighbours);
+            }
+            colours = newColours;
+            int newColourCount = countDistinct(colours);
+            if (newColourCount == colourCount || newColourCount == agentCount) {
+                break;
             }
+            colourCount = newColourCount;
+        }
+        
+        long result = combine(agentCount, agentLinks.size());
+        long colourSum = 0;
+        for (long colour : colours) {
+            colourSum += mix(colour);
         }
-        List<String> linkHashKeys = new ArrayList<String>(linkHashMap.keySet());
-        Collections.sort(linkHashKeys);
-        for (String key : linkHashKeys) {
-            builder.append(key).append(linkHashMap.get(key));
+        agentColours = colours;
+        fingerprint = combine(result, colourSum);
+    }
+
+    private static int countDistinct(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int result = 0;
+        for (int index = 0; index < sorted.length; index++) {
+            if (index == 0 || sorted[index] != sorted[index - 1]) {
+                result++;
+            }
         }
-        matchHash = builder.toString();
+        return result;
+    }
+
+    private static long combine(long seed, long value) {
+        return mix(seed * 0x9E3779B97F4A7C15L + value);
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
     }
     
-    public String getMatchHash() {
-        return matchHash;
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    long getAgentColour(int agentIndex) {
+        return agentColours[agentIndex];
+    }
+
+    SiteGraph getSiteGraph() {
+        SiteGraph result = siteGraph;
+        if (result == null) {
+            result = new SiteGraph(this);
+            siteGraph = result;
+        }
+        return result;
     }
 
     private Complex(Complex complex) {
@@ -131,8 +179,8 @@ public class Complex implements Serializable {
             agent.setComplex(this);
         }
         createAgentLinks();
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
     }
 
     private void createAgentLinks() {
@@ -194,9 +242,17 @@ public class Complex implements Serializable {
     }
 
     private void canonicalSortAgents() {
+        if (agents.size() < 2) {
+            return;
+        }
+        // Render each agent once rather than twice per comparison
+        final Map<Agent, String> sortKeys = new IdentityHashMap<Agent, String>(agents.size());
+        for (Agent agent : agents) {
+            sortKeys.put(agent, agent.toString());
+        }
         Collections.sort(agents, new Comparator<Agent>() {
             public int compare(Agent o1, Agent o2) {
-                return o1.toString().compareTo(o2.toString());
+                return sortKeys.get(o1).compareTo(sortKeys.get(o2));
             }
         });
     }
@@ -225,8 +281,8 @@ public class Complex implements Serializable {
         agents.add(agent);
         agent.setComplex(this);
         canonicalSortAgents();
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
     }
 
     public void deleteLink(Agent agent, String name) {
@@ -234,8 +290,8 @@ public class Complex implements Serializable {
             if (link.sourceSite.agent == agent && link.sourceSite.name.equals(name) || link.targetSite.agent == agent
                     && link.targetSite.name.equals(name)) {
                 deleteLink(link, true);
-                updateMatchHash();
-                verify();
+                updateFingerprint();
+                verifyIfRequired();
                 return;
             }
         }
@@ -265,7 +321,7 @@ public class Complex implements Serializable {
         Agent firstAgent = agents.get(0);
         Queue<Agent> keepAgents = new LinkedList<Agent>();
         keepAgents.add(firstAgent);
-        Set<Agent> splitAgents = new HashSet<Agent>(agents);
+        Set<Agent> splitAgents = new LinkedHashSet<Agent>(agents);
         splitAgents.remove(firstAgent);
         Set<AgentLink> splitLinks = new HashSet<AgentLink>(agentLinks);
         while (!keepAgents.isEmpty()) {
@@ -288,8 +344,8 @@ public class Complex implements Serializable {
         for (Agent agent : splitAgents) {
             linksPerAgent.remove(agent);
         }
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
 
         if (!splitAgents.isEmpty()) {
             result = new Complex(splitAgents);
@@ -306,11 +362,27 @@ public class Complex implements Serializable {
         }
         agents.remove(agent);
         agent.setComplex(null);
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
+    }
+
+    private void verifyIfRequired() {
+        if (Validation.isCheckRequired()) {
+            verifyStructure();
+        }
     }
 
+    /**
+     * Check the links and agents of the complex, including the site and state hash of each agent.
+     */
     public void verify() {
+        verifyStructure();
+        for (Agent current : agents) {
+            current.verify();
+        }
+    }
+
+    private void verifyStructure() {
         Map<String, AgentSite[]> links = new HashMap<String, AgentSite[]>();
         for (Agent agent : agents) {
             for (AgentSite site : agent.getSites()) {
@@ -364,8 +436,8 @@ public class Complex implements Serializable {
         complex.agentLinks.clear();
         complex.agents.clear();
         complex.linksPerAgent.clear();
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
     }
 
     public void incrementLinkNames(int increment) {
@@ -407,8 +479,8 @@ public class Complex implements Serializable {
             targetSite.setChannel(channelName);
         }
 
-        updateMatchHash();
-        verify();
+        updateFingerprint();
+        verifyIfRequired();
     }
 
     public int renumberLinkNames(int startNumber) {
@@ -446,7 +518,26 @@ public class Complex implements Serializable {
         if (compartments == null || channels == null) {
             throw new NullPointerException();
         }
-        
+        return getMappingInstances(compartments, channels, getSeedLocations(compartments));
+    }
+
+    /**
+     * Get the locations of the first template agent, from which the mappings are expanded. Returns null 
+     * if the complex has fixed agents, which give a single starting mapping.
+     */
+    List<Location> getSeedLocations(List<Compartment> compartments) {
+        if (getFixedAgents(compartments).size() > 0) {
+            return null;
+        }
+        return agents.get(0).getLocatedLocations(compartments);
+    }
+
+    /**
+     * Get the mappings expanded from the given seed locations only. Disjoint ranges of 
+     * {@link #getSeedLocations(List)} can be expanded separately and concatenated in order.
+     */
+    List<MappingInstance> getMappingInstances(List<Compartment> compartments, List<Channel> channels, 
+            List<Location> seedLocations) {
         List<Agent> remainingTemplateAgents = new ArrayList<Agent>(agents);
         List<Agent> fixedTemplateAgents = getFixedAgents(compartments);
         remainingTemplateAgents.removeAll(fixedTemplateAgents);
@@ -467,8 +558,7 @@ public class Complex implements Serializable {
             }
             mappings.add(mappingInstance);
         }
-        
-        if (fixedTemplateAgents.size() == 0) {
+        else {
             Agent templateTargetAgent = remainingTemplateAgents.get(0);
             fixedTemplateAgents.add(templateTargetAgent);
             remainingTemplateAgents.remove(templateTargetAgent);
@@ -479,9 +569,9 @@ public class Complex implements Serializable {
                 return new ArrayList<MappingInstance>();
             }
             
-            List<Agent> locatedTargetAgents = templateTargetAgent.getLocatedAgents(compartments);
-            for (Agent locatedTargetAgent : locatedTargetAgents) {
-
+            for (Location seedLocation : seedLocations) {
+                Agent locatedTargetAgent = templateTargetAgent.clone();
+                locatedTargetAgent.location = seedLocation;
                 MappingInstance mapping = new MappingInstance();
                 mapping.mapping.put(templateTargetAgent, locatedTargetAgent);
                 mappings.add(mapping);
@@ -2,11 +2,25 @@ package org.demonsoft.spatialkappa.model;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class ComplexMatcher {
+
+    private static final Comparator<int[]> MAPPING_ORDER = new Comparator<int[]>() {
+        public int compare(int[] o1, int[] o2) {
+            for (int index = 0; index < o1.length; index++) {
+                if (o1[index] != o2[index]) {
+                    return o1[index] < o2[index] ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+    };
+
     public boolean isExactMatch(Complex template, Complex target) {
 		return getMatches(template, target, true).size() > 0;
     }
@@ -20,192 +34,187 @@ public class ComplexMatcher {
             throw new NullPointerException();
         }
         List<ComplexMapping> result = new ArrayList<ComplexMapping>();
-        if (isFastFail(template, target, exactMatch)) {
+        SiteGraph templateGraph = template.getSiteGraph();
+        SiteGraph targetGraph = target.getSiteGraph();
+        if (isFastFail(template, target, templateGraph, targetGraph, exactMatch)) {
             return result;
         }
-        int[] core1 = new int[template.agents.size()];
-        int[] core2 = new int[target.agents.size()];
+        int[] core1 = new int[templateGraph.agents.length];
+        int[] core2 = new int[targetGraph.agents.length];
         Arrays.fill(core1, -1);
         Arrays.fill(core2, -1);
-        getMatches(result, template, target, core1, core2, 0, exactMatch);
+        List<int[]> matches = new ArrayList<int[]>();
+        getMatches(matches, template, target, templateGraph, targetGraph, core1, core2, 0, exactMatch);
+
+        // Report mappings in template agent order, independent of the visiting order.
+        // Each match is a distinct agent assignment, so no duplicate mappings are produced
+        Collections.sort(matches, MAPPING_ORDER);
+        for (int[] match : matches) {
+            result.add(createMapping(templateGraph, targetGraph, template, target, match));
+        }
         return result;
     }
 
-    private boolean isFastFail(Complex template, Complex target, boolean exactMatch) {
-        if (exactMatch && (!template.getMatchHash().equals(target.getMatchHash()) || template.agentLinks.size() != target.agentLinks.size())) {
-            return true;
-        }
-        List<String> agentNames = new ArrayList<String>();
-        for (Agent agent : target.agents) {
-            agentNames.add(agent.name);
+    private boolean isFastFail(Complex template, Complex target, SiteGraph templateGraph, SiteGraph targetGraph, boolean exactMatch) {
+        if (exactMatch) {
+            // Equal fingerprints are necessary but not sufficient - the full match below verifies
+            return template.getFingerprint() != target.getFingerprint() || template.agentLinks.size() != target.agentLinks.size()
+                    || template.agents.size() != target.agents.size();
         }
-        for (Agent agent : template.agents) {
-            if (!agentNames.remove(agent.name)) {
+        for (Map.Entry<String, int[]> entry : templateGraph.agentsByName.entrySet()) {
+            int[] targetAgents = targetGraph.agentsByName.get(entry.getKey());
+            if (targetAgents == null || targetAgents.length < entry.getValue().length) {
                 return true;
             }
         }
         return false;
     }
     
-    private void getMatches(List<ComplexMapping> result, Complex template, Complex target, int[] core1, int[] core2, int currentTemplateAgent, boolean exactMatch) {
-        if (countUnmappedNodes(core1) == 0) {
-            ComplexMapping newMap = createMapping(template, target, core1);
-            if (!result.contains(newMap)) {
-                result.add(newMap);
+    private void getMatches(List<int[]> result, Complex template, Complex target, SiteGraph templateGraph, SiteGraph targetGraph, 
+            int[] core1, int[] core2, int position, boolean exactMatch) {
+        if (position == templateGraph.order.length) {
+            result.add(core1.clone());
+            return;
+        }
+
+        int templateAgent = templateGraph.order[position];
+        int anchorAgent = templateGraph.anchorPartnerAgents[position];
+        if (anchorAgent != -1) {
+            // Connected to an agent already mapped - the only candidate is at the other end of the mapped link
+            int anchorTargetAgent = core1[anchorAgent];
+            String[] anchorSiteNames = templateGraph.anchorSiteNames[position];
+            int siteIndex = targetGraph.getSiteIndex(anchorTargetAgent, anchorSiteNames[1]);
+            if (siteIndex == -1 || targetGraph.linkTypes[anchorTargetAgent][siteIndex] != SiteGraph.LINK_BOUND) {
+                return;
+            }
+            int candidateTargetAgent = targetGraph.partnerAgents[anchorTargetAgent][siteIndex];
+            if (candidateTargetAgent != -1 && core2[candidateTargetAgent] == -1 
+                    && anchorSiteNames[0].equals(targetGraph.partnerSiteNames[anchorTargetAgent][siteIndex])) {
+                matchCandidate(result, template, target, templateGraph, targetGraph, core1, core2, position, templateAgent, candidateTargetAgent, exactMatch);
             }
             return;
         }
 
-        List<Integer> candidateAgents = getCandidateAgents(template, target, core2, currentTemplateAgent, exactMatch);
+        int[] candidateAgents = targetGraph.agentsByName.get(templateGraph.agents[templateAgent].name);
+        if (candidateAgents == null) {
+            return;
+        }
         for (int candidateTargetAgent : candidateAgents) {
-            if (isLinksMatch(template, target, core1, core2, currentTemplateAgent, candidateTargetAgent, exactMatch)) {
-                core1[currentTemplateAgent] = candidateTargetAgent;
-                core2[candidateTargetAgent] = currentTemplateAgent;
-                getMatches(result, template, target, core1, core2, currentTemplateAgent + 1, exactMatch);
+            if (core2[candidateTargetAgent] == -1) {
+                matchCandidate(result, template, target, templateGraph, targetGraph, core1, core2, position, templateAgent, candidateTargetAgent, exactMatch);
                 if (exactMatch && result.size() > 0) {
                     break;
                 }
             }
-            core1[currentTemplateAgent] = -1;
+        }
+    }
+
+    private void matchCandidate(List<int[]> result, Complex template, Complex target, SiteGraph templateGraph, SiteGraph targetGraph, 
+            int[] core1, int[] core2, int position, int templateAgent, int candidateTargetAgent, boolean exactMatch) {
+        if (exactMatch && template.getAgentColour(templateAgent) != target.getAgentColour(candidateTargetAgent)) {
+            return;
+        }
+        Agent templateCandidateAgent = templateGraph.agents[templateAgent];
+        Agent targetCandidateAgent = targetGraph.agents[candidateTargetAgent];
+        if (!templateCandidateAgent.name.equals(targetCandidateAgent.name) || !isStatesMatch(templateCandidateAgent, targetCandidateAgent, exactMatch)
+                || !isLocationMatch(templateCandidateAgent, targetCandidateAgent, exactMatch)) {
+            return;
+        }
+        if (isLinksMatch(templateGraph, targetGraph, core1, core2, position, templateAgent, candidateTargetAgent, exactMatch)) {
+            core1[templateAgent] = candidateTargetAgent;
+            core2[candidateTargetAgent] = templateAgent;
+            getMatches(result, template, target, templateGraph, targetGraph, core1, core2, position + 1, exactMatch);
+            core1[templateAgent] = -1;
             core2[candidateTargetAgent] = -1;
         }
     }
 
-    private ComplexMapping createMapping(Complex template, Complex target, int[] core1) {
-        Map<Agent, Agent> mapping = new HashMap<Agent, Agent>();
+    private ComplexMapping createMapping(SiteGraph templateGraph, SiteGraph targetGraph, Complex template, Complex target, int[] core1) {
+        Map<Agent, Agent> mapping = new LinkedHashMap<Agent, Agent>();
         for (int index = 0; index < core1.length; index++) {
-            mapping.put(template.agents.get(index), target.agents.get(core1[index]));
+            mapping.put(templateGraph.agents[index], targetGraph.agents[core1[index]]);
         }
         return new ComplexMapping(template, target, mapping);
     }
 
-    private boolean isLinksMatch(Complex template, Complex target, int[] core1, int[] core2, int templateCandidate, int targetCandidate, boolean exactMatch) {
-        Agent templateCandidateAgent = template.agents.get(templateCandidate);
-        Agent targetCandidateAgent = target.agents.get(targetCandidate);
-
-        Map<String, AgentLink> templateLinks = getCandidateLinks(template, core1, templateCandidateAgent, exactMatch);
-        Map<String, AgentLink> targetLinks = getCandidateLinks(target, core2, targetCandidateAgent, exactMatch);
-
-        if (exactMatch && templateLinks.size() != targetLinks.size()) {
+    /**
+     * Compare the sites of a template agent with those of a candidate target agent. Links to agents
+     * not yet mapped are treated as occupied sites in a partial match, and deferred to the mapping of the
+     * partner agent in an exact match.
+     */
+    private boolean isLinksMatch(SiteGraph templateGraph, SiteGraph targetGraph, int[] core1, int[] core2, int position, 
+            int templateAgent, int targetAgent, boolean exactMatch) {
+        String[] templateSiteNames = templateGraph.siteNames[templateAgent];
+        int[] templateLinkTypes = templateGraph.linkTypes[templateAgent];
+
+        if (exactMatch && templateGraph.exactLinkCounts[position] != getExactLinkCount(targetGraph, core2, targetAgent)) {
             return false;
         }
 
-        for (String templateLinkName : templateLinks.keySet()) {
-            AgentLink templateLink = templateLinks.get(templateLinkName);
-            AgentLink targetLink = targetLinks.get(templateLinkName);
+        for (int templateSite = 0; templateSite < templateSiteNames.length; templateSite++) {
+            int templateLinkType = templateLinkTypes[templateSite];
+            if (templateLinkType == SiteGraph.LINK_BOUND && !templateGraph.isPartnerMapped(position, templateSite)) {
+                if (exactMatch) {
+                    continue;
+                }
+                templateLinkType = SiteGraph.LINK_OCCUPIED;
+            }
 
-            if (targetLink == null) {
+            int targetSite = targetGraph.getSiteIndex(targetAgent, templateSiteNames[templateSite]);
+            if (targetSite == -1) {
                 return false;
             }
-
-            if (exactMatch) {
-                if (!isLinkExactMatch(template, target, core1, templateLink.targetSite, targetLink.targetSite)) {
+            int targetLinkType = targetGraph.linkTypes[targetAgent][targetSite];
+            if (targetLinkType == SiteGraph.LINK_BOUND && !isMapped(core2, targetGraph.partnerAgents[targetAgent][targetSite])) {
+                if (exactMatch) {
                     return false;
                 }
+                targetLinkType = SiteGraph.LINK_OCCUPIED;
             }
-            else {
-                if (!isLinkPartialMatch(template, target, core1, templateLink.targetSite, targetLink.targetSite)) {
+
+            if (templateLinkType != SiteGraph.LINK_BOUND) {
+                if (exactMatch) {
+                    if (targetLinkType != templateLinkType) {
+                        return false;
+                    }
+                }
+                else if (!isLinkPartialMatch(templateLinkType, targetLinkType)) {
                     return false;
                 }
             }
-        }
-        return true;
-    }
-
-    private boolean isLinkPartialMatch(Complex template, Complex target, int[] core1, AgentSite templateDest, AgentSite targetDest) {
-        if (templateDest == AgentLink.ANY) {
-            // continue
-        }
-        else if (templateDest == AgentLink.NONE) {
-            if (targetDest != AgentLink.NONE) {
-                return false;
-            }
-        }
-        else if (templateDest == AgentLink.OCCUPIED) {
-            if (targetDest == AgentLink.ANY || targetDest == AgentLink.NONE) {
-                return false;
-            }
-        }
-        else if (targetDest == AgentLink.OCCUPIED || targetDest == AgentLink.ANY || targetDest == AgentLink.NONE) {
-            return false;
-        }
-        else {
-            if (!targetDest.name.equals(templateDest.name)) {
-                return false;
-            }
-            if (core1[template.agents.indexOf(templateDest.agent)] != target.agents.indexOf(targetDest.agent)) {
+            else if (targetLinkType != SiteGraph.LINK_BOUND 
+                    || !templateGraph.partnerSiteNames[templateAgent][templateSite].equals(targetGraph.partnerSiteNames[targetAgent][targetSite])
+                    || core1[templateGraph.partnerAgents[templateAgent][templateSite]] != targetGraph.partnerAgents[targetAgent][targetSite]) {
                 return false;
             }
         }
         return true;
     }
 
-    private boolean isLinkExactMatch(Complex template, Complex target, int[] core1, AgentSite templateDest, AgentSite targetDest) {
-        if (templateDest == AgentLink.ANY || templateDest == AgentLink.NONE || templateDest == AgentLink.OCCUPIED) {
-            return (targetDest == templateDest);
-        }
-        else if (targetDest == AgentLink.OCCUPIED || targetDest == AgentLink.ANY || targetDest == AgentLink.NONE) {
-            return false;
-        }
-        else {
-            if (!targetDest.name.equals(templateDest.name)) {
-                return false;
-            }
-            if (core1[template.agents.indexOf(templateDest.agent)] != target.agents.indexOf(targetDest.agent)) {
-                return false;
-            }
+    private boolean isLinkPartialMatch(int templateLinkType, int targetLinkType) {
+        switch (templateLinkType) {
+        case SiteGraph.LINK_ANY:
+            return true;
+        case SiteGraph.LINK_NONE:
+            return targetLinkType == SiteGraph.LINK_NONE;
+        default:
+            return targetLinkType == SiteGraph.LINK_OCCUPIED || targetLinkType == SiteGraph.LINK_BOUND;
         }
-        return true;
     }
 
-    private Map<String, AgentLink> getCandidateLinks(Complex complex, int[] complexSubmap, Agent candidate, boolean exactMatch) {
-        Map<String, AgentLink> result = new HashMap<String, AgentLink>();
-        for (AgentLink link : complex.getAgentLinks(candidate)) {
-            if (link.targetSite == AgentLink.ANY || link.targetSite == AgentLink.OCCUPIED || link.targetSite == AgentLink.NONE) {
-                result.put(link.sourceSite.name, link);
-            }
-            else {
-                Agent targetAgent;
-                if (link.sourceSite.agent == candidate) {
-                    targetAgent = link.targetSite.agent;
-                    if (isAgentMapped(complex, complexSubmap, targetAgent)) {
-                        result.put(link.sourceSite.name, link);
-                    }
-                    else if (!exactMatch) {
-                        result.put(link.sourceSite.name, AgentLink.getOccupiedLink(link.sourceSite));
-                    }
-                }
-                if (link.targetSite.agent == candidate) {
-                    targetAgent = link.sourceSite.agent;
-                    if (isAgentMapped(complex, complexSubmap, targetAgent)) {
-                        result.put(link.targetSite.name, new AgentLink(link.targetSite, link.sourceSite));
-                    }
-                    else if (!exactMatch) {
-                        result.put(link.targetSite.name, AgentLink.getOccupiedLink(link.targetSite));
-                    }
-                }
+    private int getExactLinkCount(SiteGraph graph, int[] core, int agent) {
+        int result = 0;
+        int[] linkTypes = graph.linkTypes[agent];
+        for (int site = 0; site < linkTypes.length; site++) {
+            if (linkTypes[site] != SiteGraph.LINK_BOUND || isMapped(core, graph.partnerAgents[agent][site])) {
+                result++;
             }
         }
-
         return result;
     }
 
-    private boolean isAgentMapped(Complex complex, int[] complexSubmap, Agent agent) {
-        return complexSubmap[complex.agents.indexOf(agent)] > -1;
-    }
-
-    private List<Integer> getCandidateAgents(Complex template, Complex target, int[] core2, int currentTemplateAgent, boolean exactMatch) {
-        List<Integer> result = new ArrayList<Integer>();
-        Agent templateAgent = template.agents.get(currentTemplateAgent);
-        for (int currentTarget = 0; currentTarget < core2.length; currentTarget++) {
-            if (core2[currentTarget] == -1) {
-                Agent targetAgent = target.agents.get(currentTarget);
-                if (templateAgent.name.equals(targetAgent.name) && isStatesMatch(templateAgent, targetAgent, exactMatch) && isLocationMatch(templateAgent, targetAgent, exactMatch)) {
-                    result.add(currentTarget);
-                }
-            }
-        }
-        return result;
+    private boolean isMapped(int[] core, int agent) {
+        return agent != -1 && core[agent] != -1;
     }
 
     boolean isLocationMatch(Agent templateAgent, Agent targetAgent, boolean exactMatch) {
@@ -235,15 +244,4 @@ public class ComplexMatcher {
         }
         return true;
     }
-
-    private int countUnmappedNodes(int[] nodeMappings) {
-        int result = 0;
-        for (int current : nodeMappings) {
-            if (current == -1) {
-                result++;
-            }
-        }
-        return result;
-    }
-
 }
@@ -4,7 +4,7 @@ import static org.demonsoft.spatialkappa.model.Utils.getFlatString;
 import static org.demonsoft.spatialkappa.model.Utils.propogateLocation;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -57,31 +57,51 @@ public class InitialValue {
     }
 
     public Map<Complex, Integer> getFixedLocatedComplexMap(List<Compartment> compartments, List<Channel> channels) {
-        Map<Complex, Integer> result = new HashMap<Complex, Integer>();
-        
+        return getFixedLocatedComplexMap(quantity, compartments, channels);
+    }
+
+    /**
+     * Distribute the given quantity, such as the evaluated value of a variable reference, without
+     * changing this initial value.
+     */
+    public Map<Complex, Integer> getFixedLocatedComplexMap(int quantity, List<Compartment> compartments, List<Channel> channels) {
+        List<List<Complex>> locatedComplexes = new ArrayList<List<Complex>>();
         for (Complex complex : complexes) {
-            List<Complex> resultComplexes = new ArrayList<Complex>();
+            locatedComplexes.add(getLocatedComplexes(complex.getMappingInstances(compartments, channels)));
+        }
+        return getFixedLocatedComplexMap(quantity, locatedComplexes);
+    }
 
-            List<MappingInstance> mappings = complex.getMappingInstances(compartments, channels);
-            if (mappings.size() == 0) {
-                throw new IllegalStateException("Initial value invalid: " + complex);
-            }
-            
-            for (MappingInstance mapping : mappings) {
-                Complex locatedComplex = new Complex(mapping.locatedAgents);
-                resultComplexes.add(locatedComplex);
+    static List<Complex> getLocatedComplexes(List<MappingInstance> mappings) {
+        List<Complex> result = new ArrayList<Complex>();
+        for (MappingInstance mapping : mappings) {
+            result.add(new Complex(mapping.locatedAgents));
+        }
+        return result;
+    }
+
+    /**
+     * Distribute the quantity evenly over the located complexes of each complex of this initial value.
+     * 
+     * @param locatedComplexes the located complexes of each complex, in complex order.
+     */
+    Map<Complex, Integer> getFixedLocatedComplexMap(int quantity, List<List<Complex>> locatedComplexes) {
+        Map<Complex, Integer> result = new LinkedHashMap<Complex, Integer>();
+        
+        for (int index = 0; index < complexes.size(); index++) {
+            List<Complex> resultComplexes = locatedComplexes.get(index);
+            if (resultComplexes.size() == 0) {
+                throw new IllegalStateException("Initial value invalid: " + complexes.get(index));
             }
             
             int totalComplexes = resultComplexes.size();
-            if (totalComplexes > 0) {
-                int quantityEach = quantity / totalComplexes;
-                int remainder = quantity % totalComplexes;
-                int count = 0;
-                
-                for (Complex resultComplex : resultComplexes) {
-                    result.put(resultComplex, quantityEach + ((count++) < remainder ? 1 : 0));
-                }
-            }        
+            int quantityEach = quantity / totalComplexes;
+            int remainder = quantity % totalComplexes;
+            int count = 0;
+            
+            for (Complex resultComplex : resultComplexes) {
+                result.put(resultComplex, quantityEach + ((count++) < remainder ? 1 : 0));
+            }
         }
         
         return result;
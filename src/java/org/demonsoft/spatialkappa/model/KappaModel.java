@@ -11,9 +11,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.antlr.runtime.ANTLRInputStream;
 import org.antlr.runtime.CommonTokenStream;
@@ -29,6 +36,10 @@ import org.demonsoft.spatialkappa.parser.SpatialKappaWalker;
 public class KappaModel implements IKappaModel {
 
     private static final ComplexMatcher matcher = new ComplexMatcher();
+    // Seed count above which initial values are built in parallel, and the seeds expanded per task
+    static final int PARALLEL_INITIAL_VALUE_THRESHOLD = 1024;
+    // Shared by all models, so that creating simulations does not create new threads each time
+    private static ExecutorService initialValueExecutor;
     
     private final Map<String, AgentDeclaration> agentDeclarationMap = new HashMap<String, AgentDeclaration>();
     private final Map<String, AgentDeclaration> aggregateAgentMap = new HashMap<String, AgentDeclaration>();
@@ -180,35 +191,165 @@ public class KappaModel implements IKappaModel {
         return result.toString();
     }
 
+    /**
+     * Referenced initial quantities are evaluated without being stored, so simulations can be created
+     * concurrently from a shared model.
+     */
     public Map<Complex, Integer> getFixedLocatedInitialValuesMap() {
-        Map<Complex, Integer> result = new HashMap<Complex, Integer>();
-        
-        for (InitialValue initialValue : initialValues) {
+        int[] quantities = new int[initialValues.size()];
+        for (int index = 0; index < quantities.length; index++) {
+            InitialValue initialValue = initialValues.get(index);
+            quantities[index] = initialValue.quantity;
             if (initialValue.reference != null) {
-                initialValue.quantity = variables.get(initialValue.reference.variableName).expression.evaluate(this);
+                quantities[index] = variables.get(initialValue.reference.variableName).expression.evaluate(this);
             }
-
-            Map<Complex, Integer> currentResult = initialValue.getFixedLocatedComplexMap(compartments, channels);
-            
+        }
+        
+        List<Map<Complex, Integer>> locatedValues = getFixedLocatedComplexMaps(quantities);
+        
+        // Merge in initial value order, finding exact matches by fingerprint rather than by scanning all entries
+        Map<Complex, Integer> result = new LinkedHashMap<Complex, Integer>();
+        Map<Long, List<Complex>> fingerprintIndex = new HashMap<Long, List<Complex>>();
+        for (Map<Complex, Integer> currentResult : locatedValues) {
             for (Map.Entry<Complex, Integer> current : currentResult.entrySet()) {
-                addInitialLocatedValue(result, current.getKey(), current.getValue());
+                addInitialLocatedValue(result, fingerprintIndex, current.getKey(), current.getValue());
             }
         }
         return result;
     }
 
-    private void addInitialLocatedValue(Map<Complex, Integer> result, Complex complex, int quantity) {
-        for (Agent agent : complex.agents) {
-            addDefaultAgentSites(agent);
+    /**
+     * Expand each initial value across its voxels and complete the located complexes. The located seeds of
+     * each complex are split into fixed size ranges, which are expanded in parallel for large models.
+     */
+    private List<Map<Complex, Integer>> getFixedLocatedComplexMaps(int[] quantities) {
+        List<Callable<List<Complex>>> tasks = new ArrayList<Callable<List<Complex>>>();
+        int[][] taskCounts = new int[initialValues.size()][];
+        int seedCount = 0;
+        for (int index = 0; index < initialValues.size(); index++) {
+            List<Complex> complexes = initialValues.get(index).complexes;
+            taskCounts[index] = new int[complexes.size()];
+            for (int complexIndex = 0; complexIndex < complexes.size(); complexIndex++) {
+                Complex complex = complexes.get(complexIndex);
+                List<Location> seedLocations = complex.getSeedLocations(compartments);
+                if (seedLocations == null) {
+                    tasks.add(getLocatedComplexesTask(complex, null));
+                    taskCounts[index][complexIndex] = 1;
+                    seedCount++;
+                    continue;
+                }
+                for (int start = 0; start < seedLocations.size() || start == 0; start += PARALLEL_INITIAL_VALUE_THRESHOLD) {
+                    int end = Math.min(start + PARALLEL_INITIAL_VALUE_THRESHOLD, seedLocations.size());
+                    tasks.add(getLocatedComplexesTask(complex, seedLocations.subList(start, end)));
+                    taskCounts[index][complexIndex]++;
+                }
+                seedCount += seedLocations.size();
+            }
         }
-        complex.update();
         
-        for (Map.Entry<Complex, Integer> entry : result.entrySet()) {
-            if (complex.isExactMatch(entry.getKey())) {
-                entry.setValue(entry.getValue() + quantity);
+        List<List<Complex>> taskResults = invokeAll(tasks, seedCount >= PARALLEL_INITIAL_VALUE_THRESHOLD);
+        
+        List<Map<Complex, Integer>> result = new ArrayList<Map<Complex, Integer>>();
+        int taskIndex = 0;
+        for (int index = 0; index < initialValues.size(); index++) {
+            List<List<Complex>> locatedComplexes = new ArrayList<List<Complex>>();
+            for (int taskCount : taskCounts[index]) {
+                List<Complex> complexLocatedComplexes = new ArrayList<Complex>();
+                for (int count = 0; count < taskCount; count++) {
+                    complexLocatedComplexes.addAll(taskResults.get(taskIndex++));
+                }
+                locatedComplexes.add(complexLocatedComplexes);
+            }
+            result.add(initialValues.get(index).getFixedLocatedComplexMap(quantities[index], locatedComplexes));
+        }
+        return result;
+    }
+
+    private Callable<List<Complex>> getLocatedComplexesTask(final Complex complex, final List<Location> seedLocations) {
+        return new Callable<List<Complex>>() {
+            public List<Complex> call() {
+                List<Complex> result = InitialValue.getLocatedComplexes(
+                        complex.getMappingInstances(compartments, channels, seedLocations));
+                for (Complex locatedComplex : result) {
+                    for (Agent agent : locatedComplex.agents) {
+                        addDefaultAgentSites(agent);
+                    }
+                    locatedComplex.update();
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Run the tasks on the shared initial value executor, or in the calling thread if not parallel.
+     * 
+     * @return the task results in task order.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, boolean parallel) {
+        List<T> result = new ArrayList<T>();
+        try {
+            if (!parallel || tasks.size() <= 1) {
+                for (Callable<T> task : tasks) {
+                    result.add(task.call());
+                }
+                return result;
+            }
+            for (Future<T> future : getInitialValueExecutor().invokeAll(tasks)) {
+                result.add(future.get());
+            }
+            return result;
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted creating initial values", ex);
+        }
+        catch (RuntimeException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static synchronized ExecutorService getInitialValueExecutor() {
+        if (initialValueExecutor == null) {
+            initialValueExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread result = new Thread(runnable, "KappaModel initial values");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+        }
+        return initialValueExecutor;
+    }
+
+    private void addInitialLocatedValue(Map<Complex, Integer> result, Map<Long, List<Complex>> fingerprintIndex, 
+            Complex complex, int quantity) {
+        Long fingerprint = complex.getFingerprint();
+        List<Complex> candidates = fingerprintIndex.get(fingerprint);
+        if (candidates == null) {
+            candidates = new ArrayList<Complex>(1);
+            fingerprintIndex.put(fingerprint, candidates);
+        }
+        for (Complex candidate : candidates) {
+            if (complex.isExactMatch(candidate)) {
+                result.put(candidate, result.get(candidate) + quantity);
                 return;
             }
         }
+        candidates.add(complex);
         result.put(complex, quantity);
     }
 
@@ -288,9 +429,8 @@ public class KappaModel implements IKappaModel {
             MappingInstance mapping = mergedMappings.get(0);
             result.add(new Transition(templateTransition.label, 
                     getUnmergedAgents(templateTransition.leftAgents, mapping.mapping, templateMergedMap), 
-                    null,
                     getUnmergedAgents(templateTransition.rightAgents, mapping.mapping, templateMergedMap), 
-                    templateTransition.getRate()));
+                    templateTransition.getRate(), templateTransition));
 
         }
         else if (mergedMappings.size() > 1) {
@@ -300,9 +440,8 @@ public class KappaModel implements IKappaModel {
                         null : templateTransition.label + "-" + (labelSuffix++);
                 result.add(new Transition(label, 
                         getUnmergedAgents(templateTransition.leftAgents, mapping.mapping, templateMergedMap), 
-                        null,
                         getUnmergedAgents(templateTransition.rightAgents, mapping.mapping, templateMergedMap), 
-                        templateTransition.getRate()));
+                        templateTransition.getRate(), templateTransition));
             }
         }
 
@@ -622,6 +761,14 @@ public class KappaModel implements IKappaModel {
             throw new IllegalStateException("Should not be called");
         }
 
+        public float getComplexQuantityValue(Variable variable) {
+            throw new IllegalStateException("Should not be called");
+        }
+
+        public float getTransitionFiredCountValue(Variable variable) {
+            throw new IllegalStateException("Should not be called");
+        }
+
         public Map<String, Variable> getVariables() {
             return variables;
         }
@@ -19,7 +19,7 @@ public class Location implements Serializable {
     private final String name;
     private final CellIndexExpression[] indices;
     private final int[] fixedIndices;
-    private int hashCode;
+    private final int hashCode;
     private final boolean wildcard;
 
     public Location(String name, List<CellIndexExpression> indices) {
@@ -61,7 +61,7 @@ public class Location implements Serializable {
             this.indices = indices;
         }
         this.wildcard = wildcardIndexFound;
-        calculateHashCode();
+        this.hashCode = calculateHashCode();
     }
     
     public Location(String name, int... indices) {
@@ -72,7 +72,7 @@ public class Location implements Serializable {
         this.indices = null;
         this.fixedIndices = indices;
         this.wildcard = false;
-        calculateHashCode();
+        this.hashCode = calculateHashCode();
     }
     
     
@@ -140,13 +140,14 @@ public class Location implements Serializable {
         return new Location(name, newIndices);
     }
     
-    private void calculateHashCode() {
+    private int calculateHashCode() {
         final int prime = 31;
-        hashCode = 1;
-        hashCode = prime * hashCode + Arrays.hashCode(fixedIndices);
-        hashCode = prime * hashCode + hashCode;
-        hashCode = prime * hashCode + Arrays.hashCode(indices);
-        hashCode = prime * hashCode + ((name == null) ? 0 : name.hashCode());
+        int result = 1;
+        result = prime * result + Arrays.hashCode(fixedIndices);
+        result = prime * result + result;
+        result = prime * result + Arrays.hashCode(indices);
+        result = prime * result + ((name == null) ? 0 : name.hashCode());
+        return result;
     }
 
     @Override
@@ -158,10 +159,10 @@ public class Location implements Serializable {
         if (getClass() != obj.getClass())
             return false;
         Location other = (Location) obj;
-        if (!Arrays.equals(fixedIndices, other.fixedIndices))
-            return false;
         if (hashCode != other.hashCode)
             return false;
+        if (!Arrays.equals(fixedIndices, other.fixedIndices))
+            return false;
         if (!Arrays.equals(indices, other.indices))
             return false;
         if (name == null) {
@@ -0,0 +1,25 @@
+package org.demonsoft.spatialkappa.model;
+
+/**
+ * Source of uniform random values for a single simulation. Implementations need not be thread safe -
+ * concurrent simulations should each use their own source, created with split().
+ */
+public interface RandomSource {
+
+    /**
+     * @return uniform random value in the range [0, 1)
+     */
+    double nextDouble();
+
+    /**
+     * @return uniform random value in the range [0, bound)
+     */
+    int nextInt(int bound);
+
+    long nextLong();
+
+    /**
+     * @return a new source, statistically independent of this one, which may be used by another thread
+     */
+    RandomSource split();
+}
@@ -17,6 +17,10 @@ public interface SimulationState {
 
     ObservationElement getComplexQuantity(Variable variable);
     ObservationElement getTransitionFiredCount(Variable variable);
+    
+    // Totals only, without creating observations, for rate evaluation
+    float getComplexQuantityValue(Variable variable);
+    float getTransitionFiredCountValue(Variable variable);
 
     void addComplexInstances(List<Agent> agents, int amount);
     void setTransitionRateOrVariable(String name, VariableExpression rateExpression);
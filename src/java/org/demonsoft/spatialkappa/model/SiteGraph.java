@@ -0,0 +1,206 @@
+package org.demonsoft.spatialkappa.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index based view of the site graph of a complex, used by {@link ComplexMatcher}. As a target it gives
+ * constant time access to the link at a named site. As a template it also fixes a connectivity ordered
+ * visiting order, so every agent after the first of its connected component is reached by following a
+ * link from an already mapped agent.
+ *
+ * Built lazily by {@link Complex#getSiteGraph()} and discarded whenever the complex structure changes.
+ * Agent states and locations are read live from the agents.
+ */
+class SiteGraph {
+
+    static final int LINK_NONE = 0;
+    static final int LINK_ANY = 1;
+    static final int LINK_OCCUPIED = 2;
+    static final int LINK_BOUND = 3;
+
+    private static final int NO_AGENT = -1;
+
+    final Agent[] agents;
+    final Map<String, int[]> agentsByName;
+
+    // Per agent, per site - in the order the matcher would first encounter them
+    final String[][] siteNames;
+    final int[][] linkTypes;
+    final int[][] partnerAgents;
+    final String[][] partnerSiteNames;
+
+    // Template visiting order
+    final int[] order;
+    final int[] anchorPartnerAgents;
+    final String[][] anchorSiteNames;
+    final int[] exactLinkCounts;
+    private final boolean[][] partnerMapped;
+
+    SiteGraph(Complex complex) {
+        int agentCount = complex.agents.size();
+        agents = complex.agents.toArray(new Agent[agentCount]);
+
+        Map<Agent, Integer> agentIndices = new IdentityHashMap<Agent, Integer>(agentCount);
+        for (int index = 0; index < agentCount; index++) {
+            agentIndices.put(agents[index], index);
+        }
+
+        Map<String, List<Integer>> namedAgents = new HashMap<String, List<Integer>>();
+        for (int index = 0; index < agentCount; index++) {
+            List<Integer> indices = namedAgents.get(agents[index].name);
+            if (indices == null) {
+                indices = new ArrayList<Integer>();
+                namedAgents.put(agents[index].name, indices);
+            }
+            indices.add(index);
+        }
+        agentsByName = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : namedAgents.entrySet()) {
+            int[] indices = new int[entry.getValue().size()];
+            for (int index = 0; index < indices.length; index++) {
+                indices[index] = entry.getValue().get(index);
+            }
+            agentsByName.put(entry.getKey(), indices);
+        }
+
+        siteNames = new String[agentCount][];
+        linkTypes = new int[agentCount][];
+        partnerAgents = new int[agentCount][];
+        partnerSiteNames = new String[agentCount][];
+        for (int index = 0; index < agentCount; index++) {
+            indexLinks(complex, index, agentIndices);
+        }
+
+        order = new int[agentCount];
+        anchorPartnerAgents = new int[agentCount];
+        anchorSiteNames = new String[agentCount][];
+        exactLinkCounts = new int[agentCount];
+        partnerMapped = new boolean[agentCount][];
+        createVisitingOrder();
+    }
+
+    private void indexLinks(Complex complex, int agentIndex, Map<Agent, Integer> agentIndices) {
+        Agent agent = agents[agentIndex];
+        // Later links for the same site replace earlier ones, as in the original link maps
+        Map<String, Object[]> sites = new LinkedHashMap<String, Object[]>();
+        for (AgentLink link : complex.getAgentLinks(agent)) {
+            if (link.targetSite == AgentLink.ANY) {
+                sites.put(link.sourceSite.name, new Object[] {LINK_ANY, NO_AGENT, null});
+            }
+            else if (link.targetSite == AgentLink.NONE) {
+                sites.put(link.sourceSite.name, new Object[] {LINK_NONE, NO_AGENT, null});
+            }
+            else if (link.targetSite == AgentLink.OCCUPIED) {
+                sites.put(link.sourceSite.name, new Object[] {LINK_OCCUPIED, NO_AGENT, null});
+            }
+            else {
+                if (link.sourceSite.agent == agent) {
+                    sites.put(link.sourceSite.name, new Object[] {LINK_BOUND, getAgentIndex(agentIndices, link.targetSite.agent), link.targetSite.name});
+                }
+                if (link.targetSite.agent == agent) {
+                    sites.put(link.targetSite.name, new Object[] {LINK_BOUND, getAgentIndex(agentIndices, link.sourceSite.agent), link.sourceSite.name});
+                }
+            }
+        }
+        int siteCount = sites.size();
+        siteNames[agentIndex] = new String[siteCount];
+        linkTypes[agentIndex] = new int[siteCount];
+        partnerAgents[agentIndex] = new int[siteCount];
+        partnerSiteNames[agentIndex] = new String[siteCount];
+        int siteIndex = 0;
+        for (Map.Entry<String, Object[]> entry : sites.entrySet()) {
+            siteNames[agentIndex][siteIndex] = entry.getKey();
+            linkTypes[agentIndex][siteIndex] = (Integer) entry.getValue()[0];
+            partnerAgents[agentIndex][siteIndex] = (Integer) entry.getValue()[1];
+            partnerSiteNames[agentIndex][siteIndex] = (String) entry.getValue()[2];
+            siteIndex++;
+        }
+    }
+
+    private int getAgentIndex(Map<Agent, Integer> agentIndices, Agent agent) {
+        Integer result = agentIndices.get(agent);
+        return result == null ? NO_AGENT : result;
+    }
+
+    private void createVisitingOrder() {
+        int agentCount = agents.length;
+        int[] positions = new int[agentCount];
+        for (int index = 0; index < agentCount; index++) {
+            positions[index] = NO_AGENT;
+        }
+
+        int visited = 0;
+        while (visited < agentCount) {
+            // Start each connected component at its most constrained agent
+            int start = NO_AGENT;
+            for (int index = 0; index < agentCount; index++) {
+                if (positions[index] == NO_AGENT && (start == NO_AGENT || siteNames[index].length > siteNames[start].length)) {
+                    start = index;
+                }
+            }
+            positions[start] = visited;
+            order[visited] = start;
+            anchorPartnerAgents[visited] = NO_AGENT;
+            int next = visited;
+            visited++;
+
+            // Breadth first along bound links
+            while (next < visited) {
+                int current = order[next++];
+                for (int siteIndex = 0; siteIndex < siteNames[current].length; siteIndex++) {
+                    int partner = partnerAgents[current][siteIndex];
+                    if (linkTypes[current][siteIndex] == LINK_BOUND && partner != NO_AGENT && positions[partner] == NO_AGENT) {
+                        positions[partner] = visited;
+                        order[visited] = partner;
+                        anchorPartnerAgents[visited] = current;
+                        anchorSiteNames[visited] = new String[] {partnerSiteNames[current][siteIndex], siteNames[current][siteIndex]};
+                        visited++;
+                    }
+                }
+            }
+        }
+
+        for (int position = 0; position < agentCount; position++) {
+            int agentIndex = order[position];
+            int siteCount = siteNames[agentIndex].length;
+            partnerMapped[position] = new boolean[siteCount];
+            int linkCount = 0;
+            for (int siteIndex = 0; siteIndex < siteCount; siteIndex++) {
+                int partner = partnerAgents[agentIndex][siteIndex];
+                if (linkTypes[agentIndex][siteIndex] == LINK_BOUND) {
+                    partnerMapped[position][siteIndex] = partner != NO_AGENT && positions[partner] < position;
+                    if (partnerMapped[position][siteIndex]) {
+                        linkCount++;
+                    }
+                }
+                else {
+                    linkCount++;
+                }
+            }
+            exactLinkCounts[position] = linkCount;
+        }
+    }
+
+    /**
+     * True if the bound link at the given site of the agent at the given visiting position leads to an
+     * agent visited earlier.
+     */
+    boolean isPartnerMapped(int position, int siteIndex) {
+        return partnerMapped[position][siteIndex];
+    }
+
+    int getSiteIndex(int agentIndex, String siteName) {
+        String[] names = siteNames[agentIndex];
+        for (int index = 0; index < names.length; index++) {
+            if (names[index].equals(siteName)) {
+                return index;
+            }
+        }
+        return NO_AGENT;
+    }
+}
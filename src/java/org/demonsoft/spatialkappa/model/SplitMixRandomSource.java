@@ -0,0 +1,77 @@
+package org.demonsoft.spatialkappa.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-locking SplitMix64 generator, using the same algorithm as java.util.SplittableRandom. Sources
+ * created with the same seed produce the same sequence.
+ */
+public class SplitMixRandomSource implements RandomSource {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private static final AtomicLong defaultSeeds = new AtomicLong(mix64(System.currentTimeMillis()) ^ mix64(System.nanoTime()));
+
+    private long seed;
+    private final long gamma;
+
+    /**
+     * Create a source with a seed and gamma mixed from a shared counter, so that default sources are
+     * independent rather than offsets of one stream.
+     */
+    public SplitMixRandomSource() {
+        long defaultSeed = defaultSeeds.getAndAdd(2 * GOLDEN_GAMMA);
+        this.seed = mix64(defaultSeed);
+        this.gamma = mixGamma(defaultSeed + GOLDEN_GAMMA);
+    }
+
+    public SplitMixRandomSource(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SplitMixRandomSource(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("Invalid bound: " + bound);
+        }
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    public RandomSource split() {
+        return new SplitMixRandomSource(nextLong(), mixGamma(nextSeed()));
+    }
+
+    private long nextSeed() {
+        return seed += gamma;
+    }
+
+    private static long mix64(long value) {
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long mixGamma(long value) {
+        long z = value;
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        // Avoid gammas with too few bit transitions
+        int transitions = Long.bitCount(z ^ (z >>> 1));
+        return (transitions < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
@@ -6,8 +6,11 @@ import static org.demonsoft.spatialkappa.model.Utils.getList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,6 +23,7 @@ public class Transition {
     private static final int AGENT_PENALTY = 100;
     private static final int STATE_CHANGE_PENALTY = 10;
     private static final int LINK_PENALTY = 1;
+    private static final Set<Complex> ALL_COMPLEXES = new HashSet<Complex>();
     
     static final int DELETED = -1;
     static final int UNMAPPED = -2;
@@ -36,6 +40,9 @@ public class Transition {
     public List<TransitionPrimitive> bestPrimitives;
     int bestPrimitivesCost = Integer.MAX_VALUE;
     int[] bestIndexMapLeftRight;
+    // Set only during the search for the lowest cost primitives
+    private MappingSearch mappingSearch;
+    private volatile Set<Complex> modifiedTemplateComplexes;
     public final List<Agent> leftAgents = new ArrayList<Agent>();
     public final List<Agent> rightAgents = new ArrayList<Agent>();
     public final Location leftLocation;
@@ -47,6 +54,19 @@ public class Transition {
     }
 
     public Transition(String label, List<Agent> leftAgents, String channelName, List<Agent> rightAgents, VariableExpression rate) {
+        this(label, leftAgents, channelName, rightAgents, rate, null);
+    }
+
+    /**
+     * Create a transition whose agents differ from those of the template transition only in their
+     * locations, reusing the template's agent correspondence rather than searching for it again.
+     */
+    Transition(String label, List<Agent> leftAgents, List<Agent> rightAgents, VariableExpression rate, Transition template) {
+        this(label, leftAgents, null, rightAgents, rate, template.bestPrimitives != null ? template.bestIndexMapLeftRight : null);
+    }
+
+    private Transition(String label, List<Agent> leftAgents, String channelName, List<Agent> rightAgents, VariableExpression rate,
+            int[] indexMapLeftRight) {
         if (rate == null) {
             throw new NullPointerException();
         }
@@ -74,7 +94,12 @@ public class Transition {
             this.rightAgents.addAll(rightAgents);
         }
 
-        createTransitionMap(this.leftAgents, this.rightAgents);
+        if (indexMapLeftRight != null && indexMapLeftRight.length == this.leftAgents.size()) {
+            createTransitionMap(this.leftAgents, this.rightAgents, indexMapLeftRight);
+        }
+        else {
+            createTransitionMap(this.leftAgents, this.rightAgents);
+        }
     }
 
     // For unit tests
@@ -153,7 +178,23 @@ public class Transition {
         int[] indexMapRightLeft = new int[rightSideAgents.size()];
         Arrays.fill(indexMapLeftRight, UNMAPPED);
         Arrays.fill(indexMapRightLeft, UNMAPPED);
+        bestPrimitives = null;
+        bestPrimitivesCost = Integer.MAX_VALUE;
+        mappingSearch = new MappingSearch(leftSideAgents, rightSideAgents);
         createTransitionMap(leftSideAgents, rightSideAgents, indexMapLeftRight, indexMapRightLeft, deletes);
+        mappingSearch = null;
+    }
+
+    private void createTransitionMap(List<Agent> leftSideAgents, List<Agent> rightSideAgents, int[] indexMapLeftRight) {
+        int[] indexMapRightLeft = new int[rightSideAgents.size()];
+        Arrays.fill(indexMapRightLeft, UNMAPPED);
+        for (int index = 0; index < indexMapLeftRight.length; index++) {
+            if (indexMapLeftRight[index] != DELETED) {
+                indexMapRightLeft[indexMapLeftRight[index]] = index;
+            }
+        }
+        chooseLowerCostPrimitives(createPrimitives(leftSideAgents, rightSideAgents, indexMapLeftRight, indexMapRightLeft), 
+                indexMapLeftRight);
     }
 
     @SuppressWarnings("hiding")
@@ -173,117 +214,81 @@ public class Transition {
     }
 
     private int getPrimitivesCost(List<TransitionPrimitive> primitives) {
-        Map<String, Integer> deleteAgents = new HashMap<String, Integer>();
-        Map<String, Integer> createAgents = new HashMap<String, Integer>();
-        Map<String, Integer> deleteLinks = new HashMap<String, Integer>();
-        Map<String, Integer> createLinks = new HashMap<String, Integer>();
-        
-        Map<String, Object[]> stateChange = new HashMap<String, Object[]>();
-        
-        int cost = 0;
-        
+        CostKeys keys = mappingSearch != null ? mappingSearch.costKeys : new CostKeys();
+        // Room for any keys first seen in these primitives
+        int keyCount = keys.size() + 2 * primitives.size();
+        int[] deleteAgents = new int[keyCount];
+        int[] createAgents = new int[keyCount];
+        int[] deleteLinks = new int[keyCount];
+        int[] createLinks = new int[keyCount];
+        int[] stateChangeSites = new int[primitives.size()];
+        String[] stateChangeFrom = new String[primitives.size()];
+        String[] stateChangeTo = new String[primitives.size()];
+        int stateChangeCount = 0;
         
         for (TransitionPrimitive primitive : primitives) {
             if (primitive.type == Type.DELETE_AGENT) {
-                if (deleteAgents.containsKey(primitive.sourceAgent.name)) {
-                    deleteAgents.put(primitive.sourceAgent.name, deleteAgents.get(primitive.sourceAgent.name) + 1);
-                }
-                else {
-                    deleteAgents.put(primitive.sourceAgent.name, 1);
-                }
+                deleteAgents[keys.getKey(primitive.sourceAgent.name)]++;
             }
             if (primitive.type == Type.CREATE_AGENT) {
-                if (createAgents.containsKey(primitive.sourceAgent.name)) {
-                    createAgents.put(primitive.sourceAgent.name, createAgents.get(primitive.sourceAgent.name) + 1);
-                }
-                else {
-                    createAgents.put(primitive.sourceAgent.name, 1);
-                }
+                createAgents[keys.getKey(primitive.sourceAgent.name)]++;
             }
             if (primitive.type == Type.CHANGE_STATE) {
-                String key = primitive.sourceAgent.name + "@" + primitive.sourceSite.name + "@" + primitive.sourceSite.getState() + "@" + primitive.state;
-                String invertedKey = primitive.sourceAgent.name + "@" + primitive.sourceSite.name + "@" + primitive.state + "@" + primitive.sourceSite.getState();
-                if (stateChange.containsKey(key)) {
-                    Object[] previousValue = stateChange.get(key);
-                    stateChange.put(key, new Object[] {invertedKey, (Integer) previousValue[1] + 1});
-                }
-                else {
-                    stateChange.put(key, new Object[] {invertedKey, 1});
-                }
+                stateChangeSites[stateChangeCount] = keys.getSiteKey(primitive.sourceSite);
+                stateChangeFrom[stateChangeCount] = primitive.sourceSite.getState();
+                stateChangeTo[stateChangeCount] = primitive.state;
+                stateChangeCount++;
             }
             if (primitive.type == Type.DELETE_LINK) {
-                String key = primitive.agentLink.sourceSite.agent.name + "@" + primitive.agentLink.sourceSite.name;
-                if (deleteLinks.containsKey(key)) {
-                    deleteLinks.put(key, deleteLinks.get(key) + 1);
-                }
-                else {
-                    deleteLinks.put(key, 1);
-                }
-                if (primitive.agentLink.targetSite.agent != null) {
-                    key = primitive.agentLink.targetSite.agent.name + "@" + primitive.agentLink.targetSite.name;
-                }
-                else {
-                    key = "[none]@" + primitive.agentLink.targetSite.name;
-                }
-                if (deleteLinks.containsKey(key)) {
-                    deleteLinks.put(key, deleteLinks.get(key) + 1);
-                }
-                else {
-                    deleteLinks.put(key, 1);
-                }
+                deleteLinks[keys.getSiteKey(primitive.agentLink.sourceSite)]++;
+                deleteLinks[keys.getSiteKey(primitive.agentLink.targetSite)]++;
             }
             if (primitive.type == Type.CREATE_LINK) {
-                String key = primitive.sourceSite.agent.name + "@" + primitive.sourceSite.name;
-                if (createLinks.containsKey(key)) {
-                    createLinks.put(key, createLinks.get(key) + 1);
-                }
-                else {
-                    deleteLinks.put(key, 1);
-                }
-                key = primitive.targetSite.agent.name + "@" + primitive.targetSite.name;
-                if (createLinks.containsKey(key)) {
-                    createLinks.put(key, createLinks.get(key) + 1);
-                }
-                else {
-                    createLinks.put(key, 1);
-                }
+                createLinks[keys.getSiteKey(primitive.sourceSite)]++;
+                createLinks[keys.getSiteKey(primitive.targetSite)]++;
             }
         }
         
-        for (Map.Entry<String, Integer> deleteEntry : deleteAgents.entrySet()) {
-            String agentName = deleteEntry.getKey();
-            if (createAgents.containsKey(agentName)) {
-                cost += AGENT_PENALTY * (Math.min(deleteEntry.getValue(), createAgents.get(agentName)));
-            }
+        int cost = 0;
+        for (int key = 0; key < keyCount; key++) {
+            cost += AGENT_PENALTY * Math.min(deleteAgents[key], createAgents[key]);
+            // doubled
+            cost += LINK_PENALTY * Math.min(deleteLinks[key], createLinks[key]);
         }
         
-        // doubled
-        for (Map.Entry<String, Object[]> stateChangeEntry : stateChange.entrySet()) {
-            String invertedKey = (String) stateChangeEntry.getValue()[0];
-            int count = (Integer) stateChangeEntry.getValue()[1];
-            if (stateChange.containsKey(invertedKey)) {
-                cost += STATE_CHANGE_PENALTY * (Math.min(count, (Integer) stateChange.get(invertedKey)[1]));
+        // doubled - each distinct state change is counted against its reverse
+        for (int index = 0; index < stateChangeCount; index++) {
+            int count = 0;
+            int reverseCount = 0;
+            boolean first = true;
+            for (int other = 0; other < stateChangeCount; other++) {
+                if (stateChangeSites[other] != stateChangeSites[index]) {
+                    continue;
+                }
+                if (equal(stateChangeFrom[other], stateChangeFrom[index]) && equal(stateChangeTo[other], stateChangeTo[index])) {
+                    first &= other >= index;
+                    count++;
+                }
+                else if (equal(stateChangeFrom[other], stateChangeTo[index]) && equal(stateChangeTo[other], stateChangeFrom[index])) {
+                    reverseCount++;
+                }
             }
-        }
-        
-        // doubled
-        for (Map.Entry<String, Integer> deleteLinksEntry : deleteLinks.entrySet()) {
-            String key = deleteLinksEntry.getKey();
-            if (createLinks.containsKey(key)) {
-                int deleteCount = deleteLinksEntry.getValue();
-                int createCount = createLinks.get(key);
-                cost += LINK_PENALTY * (Math.min(deleteCount, createCount));
+            if (first) {
+                cost += STATE_CHANGE_PENALTY * Math.min(count, reverseCount);
             }
         }
-        
-        
-
         return cost;
     }
 
     private void createTransitionMap(List<Agent> leftSideAgents, List<Agent> rightSideAgents,
             int[] indexMapLeftRight, int[] indexMapRightLeft, Map<String, Integer> deletes) {
 
+        // No mapping completed from here costs less than the bound, and only a lower cost replaces the
+        // best mapping found so far
+        if (mappingSearch.getLowerBound(indexMapLeftRight, indexMapRightLeft) >= bestPrimitivesCost) {
+            return;
+        }
+        
         if (countUnmappedNodes(indexMapLeftRight) == 0) {
             chooseLowerCostPrimitives(
                     createPrimitives(leftSideAgents, rightSideAgents, indexMapLeftRight, indexMapRightLeft), 
@@ -291,7 +296,7 @@ public class Transition {
             return;
         }
 
-        List<int[]> candidatePairs = getCandidatePairs(leftSideAgents, rightSideAgents, indexMapLeftRight, indexMapRightLeft, deletes);
+        List<int[]> candidatePairs = getCandidatePairs(leftSideAgents, indexMapLeftRight, indexMapRightLeft, deletes);
         for (int[] candidatePair : candidatePairs) {
             indexMapLeftRight[candidatePair[0]] = candidatePair[1];
             String deletedAgentName = null;
@@ -486,23 +491,25 @@ public class Transition {
             List<TransitionPrimitive> primitives) {
         for (int index = 0; index < indexMapLeftRight.length; index++) {
             if (indexMapLeftRight[index] != DELETED) {
-                Agent leftAgent = leftSideAgents.get(index);
-                Agent rightAgent = rightSideAgents.get(indexMapLeftRight[index]);
-                for (AgentSite leftSite : leftAgent.getSites()) {
-                    AgentSite rightSite = rightAgent.getSite(leftSite.name);
-                    if (leftSite.getState() == null) {
-                        if (rightSite != null && rightSite.getState() != null) {
-                            primitives.add(TransitionPrimitive.getChangeState(leftAgent, leftSite, rightSite.getState()));
-                        }
-                    }
-                    else {
-                        if (rightSite != null && !leftSite.getState().equals(rightSite.getState())) {
-                            primitives.add(TransitionPrimitive.getChangeState(leftAgent, leftSite, rightSite.getState()));
-                        }
-                        else if (rightSite == null) {
-                            primitives.add(TransitionPrimitive.getChangeState(leftAgent, leftSite, null));
-                        }
-                    }
+                createPrimitivesChangeSiteStates(leftSideAgents.get(index), rightSideAgents.get(indexMapLeftRight[index]), primitives);
+            }
+        }
+    }
+
+    static void createPrimitivesChangeSiteStates(Agent leftAgent, Agent rightAgent, List<TransitionPrimitive> primitives) {
+        for (AgentSite leftSite : leftAgent.getSites()) {
+            AgentSite rightSite = rightAgent.getSite(leftSite.name);
+            if (leftSite.getState() == null) {
+                if (rightSite != null && rightSite.getState() != null) {
+                    primitives.add(TransitionPrimitive.getChangeState(leftAgent, leftSite, rightSite.getState()));
+                }
+            }
+            else {
+                if (rightSite != null && !leftSite.getState().equals(rightSite.getState())) {
+                    primitives.add(TransitionPrimitive.getChangeState(leftAgent, leftSite, rightSite.getState()));
+                }
+                else if (rightSite == null) {
+                    primitives.add(TransitionPrimitive.getChangeState(leftAgent, leftSite, null));
                 }
             }
         }
@@ -566,19 +573,34 @@ public class Transition {
         }
     }
 
-    private List<int[]> getCandidatePairs(List<Agent> leftSideAgents, List<Agent> rightSideAgents, int[] core1, int[] core2, Map<String, Integer> deletes) {
+    /**
+     * Get the possible mappings of the first unmapped left agent. Mappings which only exchange
+     * interchangeable complexes give the same cost, so only one of them is generated: the first agent of 
+     * an interchangeable left complex is mapped to no earlier target than the first agent of the previous 
+     * complex of its class, and an agent of a free right complex is only a target if no interchangeable 
+     * free complex has an earlier agent in the same position.
+     */
+    private List<int[]> getCandidatePairs(List<Agent> leftSideAgents, int[] core1, int[] core2, Map<String, Integer> deletes) {
         List<int[]> result = new ArrayList<int[]>();
+        int[] leftAgentClasses = mappingSearch.leftAgentClasses;
         for (int currentTemplate = 0; currentTemplate < core1.length; currentTemplate++) {
             if (core1[currentTemplate] == UNMAPPED) {
                 Agent templateAgent = leftSideAgents.get(currentTemplate);
-                for (int currentTarget = 0; currentTarget < core2.length; currentTarget++) {
-                    if (core2[currentTarget] == UNMAPPED) {
-                        Agent targetAgent = rightSideAgents.get(currentTarget);
-                        if (isCandidatePair(templateAgent, targetAgent)) {
-                            result.add(new int[] { currentTemplate, currentTarget });
+                int firstTarget = 0;
+                if (leftAgentClasses[currentTemplate] >= 0) {
+                    for (int previous = currentTemplate - 1; previous >= 0; previous--) {
+                        if (leftAgentClasses[previous] == leftAgentClasses[currentTemplate]) {
+                            firstTarget = core1[previous] == DELETED ? core2.length : core1[previous];
+                            break;
                         }
                     }
                 }
+                for (int currentTarget = firstTarget; currentTarget < core2.length; currentTarget++) {
+                    if (core2[currentTarget] == UNMAPPED && mappingSearch.candidatePairs[currentTemplate][currentTarget]
+                            && !mappingSearch.hasEarlierEquivalentTarget(currentTarget, firstTarget, core2)) {
+                        result.add(new int[] { currentTemplate, currentTarget });
+                    }
+                }
                 if (deletes.get(templateAgent.name) > 0) {
                     result.add(new int[] { currentTemplate, DELETED });
                 }
@@ -588,7 +610,7 @@ public class Transition {
         return result;
     }
 
-    private boolean isCandidatePair(Agent templateAgent, Agent targetAgent) {
+    static boolean isCandidatePair(Agent templateAgent, Agent targetAgent) {
         if (!templateAgent.name.equals(targetAgent.name)) {
             return false;
         }
@@ -656,13 +678,25 @@ public class Transition {
 
 
 
-    public List<Complex> apply(TransitionInstance transitionInstance, List<Channel> channels, List<Compartment> compartments) {
+    /**
+     * Apply the transition to copies of the complexes of the transition instance. Only complexes changed
+     * by the transition are copied - source complexes it leaves untouched, such as catalysts, are
+     * returned as they are, after the new complexes.
+     */
+    public List<Complex> apply(TransitionInstance transitionInstance, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
         boolean transportComplexesOnly = false;
         List<Complex> complexes = new ArrayList<Complex>();
-        Map<Agent, Agent> transformMap = new HashMap<Agent, Agent>();
+        List<Complex> unchangedComplexes = new ArrayList<Complex>();
+        Set<Complex> modifiedComplexes = getModifiedTemplateComplexes();
+        Map<Agent, Agent> transformMap = new LinkedHashMap<Agent, Agent>();
         for (ComplexMapping complexMapping : transitionInstance.sourceMapping) {
             if (complexMapping.template != ComplexMapping.UNSPECIFIED_COMPLEX) {
-                transformMap.putAll(complexMapping.mapping);
+                if (modifiedComplexes == null || modifiedComplexes.contains(complexMapping.template)) {
+                    transformMap.putAll(complexMapping.mapping);
+                }
+                else {
+                    unchangedComplexes.add(complexMapping.target);
+                }
             }
             else {
                 transportComplexesOnly = true;
@@ -681,14 +715,62 @@ public class Transition {
         }
         
         for (TransitionPrimitive primitive : bestPrimitives) {
-            primitive.apply(transformMap, complexes, channels, compartments);
+            primitive.apply(transformMap, complexes, channels, compartments, random);
         }
 
         populateEmptyLinks(complexes);
         splitAllComplexes(complexes);
+        complexes.addAll(unchangedComplexes);
         return complexes;
     }
 
+    /**
+     * @return the source complexes with agents referenced by the primitives, or <code>null</code> if
+     * the primitives may change any complex.
+     */
+    private Set<Complex> getModifiedTemplateComplexes() {
+        Set<Complex> result = modifiedTemplateComplexes;
+        if (result == null) {
+            result = new HashSet<Complex>();
+            for (TransitionPrimitive primitive : bestPrimitives) {
+                if (primitive.type == Type.MOVE_COMPLEX) {
+                    result = ALL_COMPLEXES;
+                    break;
+                }
+                List<Agent> agents = new ArrayList<Agent>();
+                agents.add(primitive.sourceAgent);
+                agents.add(primitive.targetAgent);
+                if (primitive.agentLink != null) {
+                    agents.add(primitive.agentLink.sourceSite.agent);
+                    agents.add(primitive.agentLink.targetSite.agent);
+                }
+                if (primitive.sourceSite != null) {
+                    agents.add(primitive.sourceSite.agent);
+                }
+                if (primitive.targetSite != null) {
+                    agents.add(primitive.targetSite.agent);
+                }
+                if (primitive.sourceAgents != null) {
+                    agents.addAll(primitive.sourceAgents);
+                }
+                for (Agent agent : agents) {
+                    if (agent != null) {
+                        if (!sourceComplexes.contains(agent.getComplex())) {
+                            result = ALL_COMPLEXES;
+                            break;
+                        }
+                        result.add(agent.getComplex());
+                    }
+                }
+                if (result == ALL_COMPLEXES) {
+                    break;
+                }
+            }
+            modifiedTemplateComplexes = result;
+        }
+        return result == ALL_COMPLEXES ? null : result;
+    }
+
     private void splitAllComplexes(List<Complex> complexes) {
         int complexCount = complexes.size();
         for (int index = 0; index < complexCount; index++) {
@@ -734,13 +816,12 @@ public class Transition {
             }
             else {
                 transportComplexesOnly = true;
-                complexes.add(complexMapping.target.clone());
+                complexes.add(complexMapping.target);
             }
         }
 
+        // Counting leaves the complexes unchanged, so they need not be copied
         if (!transportComplexesOnly) {
-            transformMap = Utils.createCloneAgentMap(transformMap);
-    
             for (Agent agent : transformMap.values()) {
                 if (!complexes.contains(agent.getComplex())) {
                     complexes.add(agent.getComplex());
@@ -759,4 +840,354 @@ public class Transition {
         return applicationCount;
     }
 
+
+    /**
+     * Integer keys for the agent names and sites counted by the primitive cost, so that costing a 
+     * mapping does not build strings. Sites are keyed by agent name and site name.
+     */
+    private static class CostKeys {
+
+        private final Map<String, Integer> keys = new HashMap<String, Integer>();
+        private final Map<AgentSite, Integer> siteKeys = new IdentityHashMap<AgentSite, Integer>();
+
+        int size() {
+            return keys.size();
+        }
+
+        int getKey(String name) {
+            Integer result = keys.get(name);
+            if (result == null) {
+                result = keys.size();
+                keys.put(name, result);
+            }
+            return result;
+        }
+
+        int getSiteKey(AgentSite site) {
+            Integer result = siteKeys.get(site);
+            if (result == null) {
+                result = getKey((site.agent != null ? site.agent.name : "[none]") + "@" + site.name);
+                siteKeys.put(site, result);
+            }
+            return result;
+        }
+
+        void addAgents(List<Agent> agents) {
+            for (Agent agent : agents) {
+                getKey(agent.name);
+                for (AgentSite site : agent.getSites()) {
+                    getSiteKey(site);
+                }
+                if (agent.getComplex() != null) {
+                    for (AgentLink link : agent.getLinks()) {
+                        getSiteKey(link.sourceSite);
+                        getSiteKey(link.targetSite);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tables for one search over agent mappings: the candidate pairs, the keys for a lower bound on the
+     * cost of any completion of a partial mapping, and the interchangeable complexes on each side.
+     */
+    private static class MappingSearch {
+
+        final CostKeys costKeys = new CostKeys();
+        final boolean[][] candidatePairs;
+        // Class of the first agent of each interchangeable left complex, otherwise -1
+        final int[] leftAgentClasses;
+        // Agents in the same position of the interchangeable complexes of each right agent, or null
+        private final int[][] rightEquivalentAgents;
+        private final int[][] rightComplexAgents;
+        private final int[] leftNameKeys;
+        private final int[] rightNameKeys;
+        // State change keys of each candidate pair, and the key of the reverse of each state change
+        private final int[][][] pairStateChanges;
+        private final int[] reverseStateChanges;
+        private final int[] deleteCounts;
+        private final int[] createCounts;
+        private final int[] stateChangeCounts;
+
+        MappingSearch(List<Agent> leftSideAgents, List<Agent> rightSideAgents) {
+            costKeys.addAgents(leftSideAgents);
+            costKeys.addAgents(rightSideAgents);
+            leftNameKeys = getNameKeys(leftSideAgents);
+            rightNameKeys = getNameKeys(rightSideAgents);
+            
+            candidatePairs = new boolean[leftSideAgents.size()][rightSideAgents.size()];
+            pairStateChanges = new int[leftSideAgents.size()][rightSideAgents.size()][];
+            Map<String, Integer> stateChangeKeys = new HashMap<String, Integer>();
+            List<Integer> reverseKeys = new ArrayList<Integer>();
+            for (int left = 0; left < leftSideAgents.size(); left++) {
+                for (int right = 0; right < rightSideAgents.size(); right++) {
+                    Agent leftAgent = leftSideAgents.get(left);
+                    Agent rightAgent = rightSideAgents.get(right);
+                    if (isCandidatePair(leftAgent, rightAgent)) {
+                        candidatePairs[left][right] = true;
+                        List<TransitionPrimitive> primitives = new ArrayList<TransitionPrimitive>();
+                        createPrimitivesChangeSiteStates(leftAgent, rightAgent, primitives);
+                        pairStateChanges[left][right] = new int[primitives.size()];
+                        for (int index = 0; index < primitives.size(); index++) {
+                            TransitionPrimitive primitive = primitives.get(index);
+                            pairStateChanges[left][right][index] = getStateChangeKey(stateChangeKeys, reverseKeys,
+                                    costKeys.getSiteKey(primitive.sourceSite), primitive.sourceSite.getState(), primitive.state);
+                        }
+                    }
+                }
+            }
+            reverseStateChanges = new int[reverseKeys.size()];
+            for (int index = 0; index < reverseStateChanges.length; index++) {
+                reverseStateChanges[index] = reverseKeys.get(index);
+            }
+            
+            int[][] leftComplexAgents = getComplexAgents(leftSideAgents);
+            int[] leftComplexClasses = getComplexClasses(leftSideAgents, leftComplexAgents);
+            leftAgentClasses = new int[leftSideAgents.size()];
+            for (int left = 0; left < leftAgentClasses.length; left++) {
+                leftAgentClasses[left] = leftComplexAgents[left][0] == left ? leftComplexClasses[left] : -1;
+            }
+            
+            rightComplexAgents = getComplexAgents(rightSideAgents);
+            int[] rightComplexClasses = getComplexClasses(rightSideAgents, rightComplexAgents);
+            rightEquivalentAgents = new int[rightSideAgents.size()][];
+            for (int right = 0; right < rightSideAgents.size(); right++) {
+                if (rightComplexClasses[right] >= 0) {
+                    int position = getPosition(rightComplexAgents[right], right);
+                    List<Integer> equivalents = new ArrayList<Integer>();
+                    for (int other = 0; other < rightSideAgents.size(); other++) {
+                        if (other != right && rightComplexClasses[other] == rightComplexClasses[right] 
+                                && getPosition(rightComplexAgents[other], other) == position) {
+                            equivalents.add(other);
+                        }
+                    }
+                    rightEquivalentAgents[right] = new int[equivalents.size()];
+                    for (int index = 0; index < equivalents.size(); index++) {
+                        rightEquivalentAgents[right][index] = equivalents.get(index);
+                    }
+                }
+            }
+            
+            deleteCounts = new int[costKeys.size()];
+            createCounts = new int[costKeys.size()];
+            stateChangeCounts = new int[reverseStateChanges.length];
+        }
+
+        /**
+         * Get a lower bound on the cost of every complete mapping extending the given partial mapping. It
+         * counts deleted agents against created agents of the same name, where the created agent can no 
+         * longer be mapped and shares a complex with a mapped agent, and reversed state changes between 
+         * mapped agents. Assigning more agents can only raise the bound.
+         */
+        int getLowerBound(int[] indexMapLeftRight, int[] indexMapRightLeft) {
+            Arrays.fill(deleteCounts, 0);
+            Arrays.fill(createCounts, 0);
+            Arrays.fill(stateChangeCounts, 0);
+            for (int left = 0; left < indexMapLeftRight.length; left++) {
+                int right = indexMapLeftRight[left];
+                if (right == DELETED) {
+                    deleteCounts[leftNameKeys[left]]++;
+                }
+                else if (right != UNMAPPED) {
+                    for (int stateChange : pairStateChanges[left][right]) {
+                        stateChangeCounts[stateChange]++;
+                    }
+                }
+            }
+            for (int right = 0; right < indexMapRightLeft.length; right++) {
+                if (indexMapRightLeft[right] == UNMAPPED && !hasCandidate(right, indexMapLeftRight) 
+                        && !isComplexUnmapped(right, indexMapRightLeft)) {
+                    createCounts[rightNameKeys[right]]++;
+                }
+            }
+            
+            int result = 0;
+            for (int key = 0; key < deleteCounts.length; key++) {
+                result += AGENT_PENALTY * Math.min(deleteCounts[key], createCounts[key]);
+            }
+            for (int key = 0; key < stateChangeCounts.length; key++) {
+                result += STATE_CHANGE_PENALTY * Math.min(stateChangeCounts[key], stateChangeCounts[reverseStateChanges[key]]);
+            }
+            return result;
+        }
+
+        /**
+         * @return true if the target is in an unmapped complex, and an agent in the same position of an 
+         * interchangeable unmapped complex lies between the first allowed target and the target.
+         */
+        boolean hasEarlierEquivalentTarget(int target, int firstTarget, int[] indexMapRightLeft) {
+            if (rightEquivalentAgents[target] == null || !isComplexUnmapped(target, indexMapRightLeft)) {
+                return false;
+            }
+            for (int other : rightEquivalentAgents[target]) {
+                if (other >= firstTarget && other < target && isComplexUnmapped(other, indexMapRightLeft)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasCandidate(int right, int[] indexMapLeftRight) {
+            for (int left = 0; left < indexMapLeftRight.length; left++) {
+                if (indexMapLeftRight[left] == UNMAPPED && candidatePairs[left][right]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isComplexUnmapped(int right, int[] indexMapRightLeft) {
+            for (int agent : rightComplexAgents[right]) {
+                if (indexMapRightLeft[agent] != UNMAPPED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int[] getNameKeys(List<Agent> agents) {
+            int[] result = new int[agents.size()];
+            for (int index = 0; index < result.length; index++) {
+                result[index] = costKeys.getKey(agents.get(index).name);
+            }
+            return result;
+        }
+
+        private static int getStateChangeKey(Map<String, Integer> stateChangeKeys, List<Integer> reverseKeys, 
+                int siteKey, String fromState, String toState) {
+            String key = siteKey + "@" + fromState + "@" + toState;
+            Integer result = stateChangeKeys.get(key);
+            if (result == null) {
+                result = stateChangeKeys.size();
+                stateChangeKeys.put(key, result);
+                String reverseKey = siteKey + "@" + toState + "@" + fromState;
+                Integer reverseResult = stateChangeKeys.get(reverseKey);
+                if (reverseResult == null) {
+                    reverseResult = stateChangeKeys.size();
+                    stateChangeKeys.put(reverseKey, reverseResult);
+                }
+                while (reverseKeys.size() < stateChangeKeys.size()) {
+                    reverseKeys.add(null);
+                }
+                reverseKeys.set(result, reverseResult);
+                reverseKeys.set(reverseResult, result);
+            }
+            return result;
+        }
+
+        /**
+         * @return the indices of the agents in the complex of each agent, in list order.
+         */
+        private static int[][] getComplexAgents(List<Agent> agents) {
+            int[][] result = new int[agents.size()][];
+            for (int index = 0; index < agents.size(); index++) {
+                if (result[index] != null) {
+                    continue;
+                }
+                Complex complex = agents.get(index).getComplex();
+                List<Integer> indices = new ArrayList<Integer>();
+                for (int other = index; other < agents.size(); other++) {
+                    if (other == index || complex != null && agents.get(other).getComplex() == complex) {
+                        indices.add(other);
+                    }
+                }
+                int[] complexAgents = new int[indices.size()];
+                for (int position = 0; position < complexAgents.length; position++) {
+                    complexAgents[position] = indices.get(position);
+                    result[complexAgents[position]] = complexAgents;
+                }
+            }
+            return result;
+        }
+
+        private static int getPosition(int[] complexAgents, int index) {
+            for (int position = 0; position < complexAgents.length; position++) {
+                if (complexAgents[position] == index) {
+                    return position;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        /**
+         * Group complexes which can be exchanged without changing the transition primitives, other than in
+         * agent identity: complexes whose agents, taken in list order, have the same names, locations, 
+         * site states and links.
+         * 
+         * @return the class of the complex of each agent, or -1 for complexes not interchangeable with any other.
+         */
+        private static int[] getComplexClasses(List<Agent> agents, int[][] complexAgents) {
+            int[] result = new int[agents.size()];
+            Arrays.fill(result, -1);
+            Map<String, List<Integer>> firstAgentsBySignature = new LinkedHashMap<String, List<Integer>>();
+            for (int index = 0; index < agents.size(); index++) {
+                if (complexAgents[index][0] == index) {
+                    String signature = getComplexSignature(agents, complexAgents[index]);
+                    if (signature != null) {
+                        List<Integer> firstAgents = firstAgentsBySignature.get(signature);
+                        if (firstAgents == null) {
+                            firstAgents = new ArrayList<Integer>();
+                            firstAgentsBySignature.put(signature, firstAgents);
+                        }
+                        firstAgents.add(index);
+                    }
+                }
+            }
+            int complexClass = 0;
+            for (List<Integer> firstAgents : firstAgentsBySignature.values()) {
+                if (firstAgents.size() > 1) {
+                    for (int firstAgent : firstAgents) {
+                        for (int agent : complexAgents[firstAgent]) {
+                            result[agent] = complexClass;
+                        }
+                    }
+                    complexClass++;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return a description of the complex with links given by agent position, or null if the complex
+         * has agents missing from the list.
+         */
+        private static String getComplexSignature(List<Agent> agents, int[] complexAgents) {
+            Complex complex = agents.get(complexAgents[0]).getComplex();
+            if (complex == null) {
+                return agents.get(complexAgents[0]).toString();
+            }
+            if (complex.agents.size() != complexAgents.length) {
+                return null;
+            }
+            Map<Agent, Integer> positions = new IdentityHashMap<Agent, Integer>();
+            for (int position = 0; position < complexAgents.length; position++) {
+                positions.put(agents.get(complexAgents[position]), position);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (int index : complexAgents) {
+                Agent agent = agents.get(index);
+                builder.append(agent.name).append(":").append(agent.location).append("(");
+                List<String> sites = new ArrayList<String>();
+                for (AgentSite site : agent.getSites()) {
+                    StringBuilder siteBuilder = new StringBuilder(site.name);
+                    siteBuilder.append("~").append(site.getState()).append(":").append(site.getChannel());
+                    AgentLink link = agent.getLink(site.name);
+                    if (link != null) {
+                        boolean isSource = link.sourceSite.agent == agent && link.sourceSite.name.equals(site.name);
+                        AgentSite linkedSite = isSource ? link.targetSite : link.sourceSite;
+                        siteBuilder.append("!").append(link.getChannel());
+                        if (linkedSite.agent != null) {
+                            siteBuilder.append(":").append(positions.get(linkedSite.agent));
+                        }
+                        siteBuilder.append(".").append(linkedSite.name);
+                    }
+                    sites.add(siteBuilder.toString());
+                }
+                Collections.sort(sites);
+                builder.append(sites).append(")");
+            }
+            return builder.toString();
+        }
+    }
 }
@@ -1,15 +1,17 @@
 package org.demonsoft.spatialkappa.model;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class TransitionInstance {
 
     public final List<ComplexMapping> sourceMapping;
     public final int targetLocationCount;
-    public final Map<Complex, Integer> requiredComplexCounts = new HashMap<Complex, Integer>();
-    public int activity;
+    // Distinct source complexes and the number of each required
+    public final Complex[] requiredComplexes;
+    public final int[] requiredCounts;
+    // Simulation species ids of the required complexes, or null until assigned
+    public int[] requiredSpeciesIds;
+    public long activity;
     public boolean isActivitySet = false;
     public float totalRate;
     
@@ -17,14 +19,38 @@ public class TransitionInstance {
         this.sourceMapping = sourceMapping;
         this.targetLocationCount = targetLocationCount;
         
+        Complex[] complexes = new Complex[sourceMapping.size()];
+        int[] counts = new int[sourceMapping.size()];
+        int distinctCount = 0;
         for (ComplexMapping mapping : sourceMapping) {
-            if (requiredComplexCounts.containsKey(mapping.target)) {
-                requiredComplexCounts.put(mapping.target, requiredComplexCounts.get(mapping.target) + 1);
+            int index = 0;
+            while (index < distinctCount && complexes[index] != mapping.target) {
+                index++;
             }
-            else {
-                requiredComplexCounts.put(mapping.target, 1);
+            if (index == distinctCount) {
+                complexes[distinctCount++] = mapping.target;
             }
+            counts[index]++;
         }
+        if (distinctCount < complexes.length) {
+            Complex[] trimmedComplexes = new Complex[distinctCount];
+            int[] trimmedCounts = new int[distinctCount];
+            System.arraycopy(complexes, 0, trimmedComplexes, 0, distinctCount);
+            System.arraycopy(counts, 0, trimmedCounts, 0, distinctCount);
+            complexes = trimmedComplexes;
+            counts = trimmedCounts;
+        }
+        requiredComplexes = complexes;
+        requiredCounts = counts;
+    }
+
+    public boolean isComplexRequired(Complex complex) {
+        for (Complex current : requiredComplexes) {
+            if (current == complex) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -5,6 +5,7 @@ import static org.demonsoft.spatialkappa.model.Utils.getFlatString;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -164,7 +165,7 @@ public abstract class TransitionPrimitive {
         return true;
     }
 
-    public abstract boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments);
+    public abstract boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random);
 
     protected String getNewLinkId(List<Complex> targetComplexes) {
         Set<Integer> foundLinks = new HashSet<Integer>();
@@ -196,7 +197,7 @@ public abstract class TransitionPrimitive {
     public static TransitionPrimitive getDeleteLink(AgentLink agentLink) {
         return new TransitionPrimitive(Type.DELETE_LINK, agentLink, null, null, null, null, null, null, null, null, null) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Agent mappedSourceAgent = transformMap.get(agentLink.sourceSite.agent);
                 mappedSourceAgent.getComplex().deleteLink(mappedSourceAgent, agentLink.sourceSite.name);
                 return true;
@@ -210,7 +211,7 @@ public abstract class TransitionPrimitive {
         }
         return new TransitionPrimitive(Type.CREATE_LINK, null, null, null, null, sourceSite, targetSite, null, null, null, channelName) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
 
                 Agent mappedSourceAgent = transformMap.get(sourceSite.agent);
                 AgentSite mappedSourceSite = mappedSourceAgent.getSite(sourceSite.name);
@@ -248,7 +249,7 @@ public abstract class TransitionPrimitive {
     public static TransitionPrimitive getDeleteAgent(Agent agent) {
         return new TransitionPrimitive(Type.DELETE_AGENT, null, agent, null, null, null, null, null, null, null, null) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Agent mappedSourceAgent = transformMap.get(sourceAgent);
                 @SuppressWarnings("hiding")
                 Complex complex = mappedSourceAgent.getComplex();
@@ -264,7 +265,7 @@ public abstract class TransitionPrimitive {
     public static TransitionPrimitive getCreateComplex(Complex complex) {
         return new TransitionPrimitive(Type.CREATE_COMPLEX, null, null, null, complex, null, null, null, null, null, null) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Complex cloneComplex = complex.clone();
                 targetComplexes.add(cloneComplex);
                 return true;
@@ -275,7 +276,7 @@ public abstract class TransitionPrimitive {
     public static TransitionPrimitive getCreateAgent(Agent sourceAgent, Agent targetAgent) {
         return new TransitionPrimitive(Type.CREATE_AGENT, null, sourceAgent, targetAgent, null, null, null, null, null, null, null) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Agent cloneAgent = sourceAgent.clone();
                 for (AgentSite site1 : cloneAgent.getSites()) {
                     site1.setLinkName(null);
@@ -291,7 +292,7 @@ public abstract class TransitionPrimitive {
     public static TransitionPrimitive getChangeState(Agent agent, AgentSite agentSite, String state) {
         return new TransitionPrimitive(Type.CHANGE_STATE, null, agent, null, null, agentSite, null, state, null, null, null) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Agent target = transformMap.get(sourceAgent);
                 AgentSite site = target.getSite(sourceSite.name);
                 site.setState(state);
@@ -303,7 +304,7 @@ public abstract class TransitionPrimitive {
     public static TransitionPrimitive getMergeComplexes(Agent sourceAgent, Agent targetAgent) {
         return new TransitionPrimitive(Type.MERGE_COMPLEXES, null, sourceAgent, targetAgent, null, null, null, null, null, null, null) {
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Agent mappedSourceAgent = transformMap.get(sourceAgent);
                 Agent mappedTargetAgent = transformMap.get(targetAgent);
 
@@ -362,7 +363,7 @@ public abstract class TransitionPrimitive {
             }
             
             @Override
-            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments) {
+            public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels, List<Compartment> compartments, RandomSource random) {
                 Complex targetComplex = targetComplexes.get(0);
                 Location oldLocation = targetComplex.agents.get(0).location;
                 
@@ -374,7 +375,7 @@ public abstract class TransitionPrimitive {
                     newLocation = newLocations.get(0);
                 }
                 else {
-                    int item = (int) (newLocations.size() * Math.random());
+                    int item = random.nextInt(newLocations.size());
                     newLocation =  newLocations.get(item);
                 }
                 
@@ -399,7 +400,7 @@ public abstract class TransitionPrimitive {
             
             @Override
             public boolean apply(Map<Agent, Agent> transformMap, List<Complex> targetComplexes, List<Channel> channels,
-                    List<Compartment> compartments) {
+                    List<Compartment> compartments, RandomSource random) {
 
                 List<ChannelConstraint> channelConstraints = getChannelConstraints(transformMap);
                 List<List<Location>> newLocationLists = getPossibleChannelApplications(channelConstraints, channels, compartments);
@@ -413,44 +414,36 @@ public abstract class TransitionPrimitive {
                         newLocations = newLocationLists.get(0);
                     }
                     else {
-                        int item = (int) (newLocationLists.size() * Math.random());
+                        int item = random.nextInt(newLocationLists.size());
                         newLocations =  newLocationLists.get(item);
                     }
     
-                    Map<Agent, Agent> cloneTransformMap = Utils.createCloneAgentMap(transformMap);
-                    Set<Agent> movedAgents = new HashSet<Agent>();
+                    // Move the agents in place, restoring their locations if the result is not valid
+                    Map<Agent, Location> oldLocations = new LinkedHashMap<Agent, Location>();
                     for (int index=0; index<sourceAgents.size(); index++) {
                         @SuppressWarnings("hiding")
                         Agent sourceAgent = sourceAgents.get(index);
                         Location targetConstraint = targetLocations.get(index);
-                        Agent realAgent = cloneTransformMap.get(sourceAgent);
-                        if (!movedAgents.contains(realAgent)) {
+                        Agent realAgent = transformMap.get(sourceAgent);
+                        if (!oldLocations.containsKey(realAgent)) {
                             Location oldLocation = realAgent.location;
                             ChannelConstraint channelConstraint = new ChannelConstraint(oldLocation, targetConstraint);
                             
                             Location newLocation = newLocations.get(channelConstraints.indexOf(channelConstraint));
                             for (Agent agent : Utils.getLinkedColocatedAgents(realAgent)) {
-                                if (!movedAgents.contains(agent)) {
+                                if (!oldLocations.containsKey(agent)) {
+                                    oldLocations.put(agent, agent.location);
                                     agent.setLocation(newLocation);
-                                    movedAgents.add(agent);
                                 }
                             }
                         }
                     }
-                    if (Utils.isValidComplexes(cloneTransformMap.values(), channels, compartments)) {
-                        for (Agent key : transformMap.keySet()) {
-                            Complex cloneComplex = cloneTransformMap.get(key).getComplex();
-                            Complex originalComplex = transformMap.get(key).getComplex();
-                            for (int index=0; index < cloneComplex.agents.size(); index++) {
-                                Agent cloneAgent = cloneComplex.agents.get(index);
-                                Agent originalAgent = originalComplex.agents.get(index);
-                                
-                                originalAgent.setLocation(cloneAgent.location);
-                                // TODO performance improvement - hit each complex only once
-                            }
-                        }
+                    if (Utils.isValidComplexes(transformMap.values(), channels, compartments)) {
                         return true;
                     }
+                    for (Map.Entry<Agent, Location> entry : oldLocations.entrySet()) {
+                        entry.getKey().setLocation(entry.getValue());
+                    }
                     newLocationLists.remove(newLocations);
                 }
             }
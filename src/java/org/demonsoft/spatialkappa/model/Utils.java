@@ -8,7 +8,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -200,7 +200,7 @@ public class Utils {
     }
 
     public static Map<Agent, Agent> createCloneAgentMap(Map<Agent, Agent> originalMap) {
-        Map<Agent, Agent> result = new HashMap<Agent, Agent>();
+        Map<Agent, Agent> result = new LinkedHashMap<Agent, Agent>();
         List<Agent> templateAgents = new ArrayList<Agent>(originalMap.keySet());
         while (!templateAgents.isEmpty()) {
             Agent agent = templateAgents.get(0);
@@ -222,7 +222,7 @@ public class Utils {
     }
 
     private static Map<Agent, Agent> getLinkedMapEntries(Map<Agent, Agent> originalMap, Agent agent) {
-        Map<Agent, Agent> result = new HashMap<Agent, Agent>();
+        Map<Agent, Agent> result = new LinkedHashMap<Agent, Agent>();
         for (Map.Entry<Agent, Agent> entry : originalMap.entrySet()) {
             if (entry.getKey() == agent || entry.getKey().getComplex() == agent.getComplex()) {
                 result.put(entry.getKey(), entry.getValue());
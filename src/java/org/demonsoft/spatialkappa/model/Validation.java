@@ -0,0 +1,161 @@
+package org.demonsoft.spatialkappa.model;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Controls the structural integrity checks run after each change to a {@link Complex}, such as
+ * {@link Complex#verify()}. Full checking suits tests and model development, while throughput runs
+ * can sample the checks or turn them off. Counters record, for the full and sampled levels, how many
+ * checks were performed and how many were skipped. Checks are not counted when off, so that level
+ * adds no shared state to the simulation loop.
+ * <p>
+ * Counters and the sampling sequence are kept per thread, so parallel simulations do not contend on
+ * them. Counts from other threads are read without synchronisation and may lag slightly. Once a thread
+ * has finished its counts are folded into a shared total, so pool threads do not accumulate.
+ * <p>
+ * Explicit calls to {@link Complex#verify()} are always performed.
+ */
+public class Validation {
+
+    public enum Level {
+        /** Run every check. */
+        FULL,
+        /** Run one check in every {@link Validation#SAMPLE_INTERVAL}. */
+        SAMPLED,
+        /** Skip all checks. */
+        OFF
+    }
+
+    public static final int SAMPLE_INTERVAL = 64;
+
+    private static volatile Level level = Level.FULL;
+
+    // Counters of live threads, and the totals of finished ones. Guarded by allCounters
+    private static final List<Counters> allCounters = new ArrayList<Counters>();
+    private static final Counters finishedCounters = new Counters(null);
+    private static final ThreadLocal<Counters> threadCounters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            Counters result = new Counters(Thread.currentThread());
+            synchronized (allCounters) {
+                removeFinishedThreads();
+                allCounters.add(result);
+            }
+            return result;
+        }
+    };
+
+    private Validation() {
+        // Static methods only
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level level) {
+        if (level == null) {
+            throw new NullPointerException();
+        }
+        Validation.level = level;
+    }
+
+    /**
+     * @return true if a check should be run at the current level, counting the check as performed or
+     * skipped unless checks are off.
+     */
+    public static boolean isCheckRequired() {
+        Level current = level;
+        if (current == Level.OFF) {
+            return false;
+        }
+        Counters counters = threadCounters.get();
+        boolean result = current == Level.FULL || counters.sampleCount++ % SAMPLE_INTERVAL == 0;
+        if (result) {
+            counters.performedCounts[current.ordinal()]++;
+        }
+        else {
+            counters.skippedCounts[current.ordinal()]++;
+        }
+        return result;
+    }
+
+    public static long getPerformedCount(Level level) {
+        synchronized (allCounters) {
+            removeFinishedThreads();
+            long result = finishedCounters.performedCounts[level.ordinal()];
+            for (Counters counters : allCounters) {
+                result += counters.performedCounts[level.ordinal()];
+            }
+            return result;
+        }
+    }
+
+    public static long getSkippedCount(Level level) {
+        synchronized (allCounters) {
+            removeFinishedThreads();
+            long result = finishedCounters.skippedCounts[level.ordinal()];
+            for (Counters counters : allCounters) {
+                result += counters.skippedCounts[level.ordinal()];
+            }
+            return result;
+        }
+    }
+
+    public static void resetCounts() {
+        synchronized (allCounters) {
+            removeFinishedThreads();
+            finishedCounters.reset();
+            for (Counters counters : allCounters) {
+                counters.reset();
+            }
+        }
+    }
+
+    static int getThreadCount() {
+        synchronized (allCounters) {
+            removeFinishedThreads();
+            return allCounters.size();
+        }
+    }
+
+    /**
+     * Fold the counts of finished threads into the shared total. Finished threads make no further
+     * changes to their counters, so they can be read safely once the thread has ended.
+     */
+    private static void removeFinishedThreads() {
+        Iterator<Counters> iter = allCounters.iterator();
+        while (iter.hasNext()) {
+            Counters counters = iter.next();
+            Thread thread = counters.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                for (int index = 0; index < finishedCounters.performedCounts.length; index++) {
+                    finishedCounters.performedCounts[index] += counters.performedCounts[index];
+                    finishedCounters.skippedCounts[index] += counters.skippedCounts[index];
+                }
+                iter.remove();
+            }
+        }
+    }
+
+    private static class Counters {
+        final WeakReference<Thread> thread;
+        long sampleCount;
+        final long[] performedCounts = new long[Level.values().length];
+        final long[] skippedCounts = new long[Level.values().length];
+
+        Counters(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+
+        void reset() {
+            sampleCount = 0;
+            Arrays.fill(performedCounts, 0);
+            Arrays.fill(skippedCounts, 0);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.demonsoft.spatialkappa.model;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class VariableExpression implements Serializable {
 
@@ -581,7 +582,7 @@ public class VariableExpression implements Serializable {
     }
     
 
-    private int getAgentGroupCountInTransitionInstance(TransitionInstance transitionInstance) {
+    int getAgentGroupCountInTransitionInstance(TransitionInstance transitionInstance) {
         int result = 0;
         for (Complex complex : complexes) {
             for (ComplexMapping complexMapping : transitionInstance.sourceMapping) {
@@ -688,4 +689,90 @@ public class VariableExpression implements Serializable {
         throw new IllegalStateException("Unknown expression");
     }
 
+    /**
+     * Compile this expression for repeated evaluation against the given variables, as if by
+     * {@link #evaluate(SimulationState, TransitionInstance)}. The result must be discarded when the
+     * variables change.
+     */
+    public CompiledExpression compile(Map<String, Variable> variables) {
+        if (variables == null) {
+            throw new NullPointerException();
+        }
+        switch (type) {
+        case BINARY_EXPRESSION:
+            return CompiledExpression.binary(operator, lhsExpression.compile(variables), rhsExpression.compile(variables));
+            
+        case CONSTANT:
+            if (constant == Constant.INFINITY) {
+                return CompiledExpression.infinity();
+            }
+            return CompiledExpression.constant(constant.value);
+            
+        case NUMBER:
+            return CompiledExpression.constant(value);
+            
+        case SIMULATION_TOKEN:
+            return CompiledExpression.simulationToken(simulationToken);
+            
+        case UNARY_EXPRESSION:
+            return CompiledExpression.unary(unaryOperator, lhsExpression.compile(variables));
+            
+        case VARIABLE_REFERENCE:
+            Variable target = variables.get(reference.variableName);
+            if (target == null) {
+                return CompiledExpression.missingVariable(reference);
+            }
+            if (target.type == Variable.Type.VARIABLE_EXPRESSION) {
+                return target.expression.compile(variables);
+            }
+            return CompiledExpression.variable(target);
+            
+        case AGENT_GROUP:
+            return CompiledExpression.agentGroup(this);
+            
+        }
+        throw new IllegalStateException("Unknown expression");
+    }
+
+    /**
+     * Add the observable and transition label variables read by this expression to the given set.
+     * 
+     * @return <code>true</code> if the expression also reads the time, event count or elapsed time, or a
+     *     variable that cannot be resolved, and so may change without any of its variables changing.
+     */
+    public boolean addDependencies(Map<String, Variable> variables, Set<Variable> dependencies) {
+        if (variables == null || dependencies == null) {
+            throw new NullPointerException();
+        }
+        switch (type) {
+        case BINARY_EXPRESSION:
+            return lhsExpression.addDependencies(variables, dependencies) | rhsExpression.addDependencies(variables, dependencies);
+            
+        case CONSTANT:
+        case NUMBER:
+        case AGENT_GROUP:
+            return false;
+            
+        case SIMULATION_TOKEN:
+            // Maximum time and events only change when a run starts
+            return simulationToken != SimulationToken.MAX_TIME && simulationToken != SimulationToken.MAX_EVENTS;
+            
+        case UNARY_EXPRESSION:
+            return lhsExpression.addDependencies(variables, dependencies);
+            
+        case VARIABLE_REFERENCE:
+            Variable target = variables.get(reference.variableName);
+            if (target == null) {
+                return true;
+            }
+            if (target.type == Variable.Type.VARIABLE_EXPRESSION) {
+                return target.expression.addDependencies(variables, dependencies);
+            }
+            dependencies.add(target);
+            return false;
+            
+        }
+        throw new IllegalStateException("Unknown expression");
+    }
+
 }
@@ -0,0 +1,1449 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.demonsoft.spatialkappa.model.Location.NOT_LOCATED;
+import static org.demonsoft.spatialkappa.model.Utils.getCompartment;
+import static org.demonsoft.spatialkappa.model.Utils.getComplexes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.demonsoft.spatialkappa.model.Agent;
+import org.demonsoft.spatialkappa.model.AgentSite;
+import org.demonsoft.spatialkappa.model.Compartment;
+import org.demonsoft.spatialkappa.model.Complex;
+import org.demonsoft.spatialkappa.model.ComplexMapping;
+import org.demonsoft.spatialkappa.model.ComplexMatcher;
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.Location;
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationElement;
+import org.demonsoft.spatialkappa.model.ObservationListener;
+import org.demonsoft.spatialkappa.model.Perturbation;
+import org.demonsoft.spatialkappa.model.RandomSource;
+import org.demonsoft.spatialkappa.model.SimulationState;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
+import org.demonsoft.spatialkappa.model.Transition;
+import org.demonsoft.spatialkappa.model.TransitionPrimitive;
+import org.demonsoft.spatialkappa.model.Variable;
+import org.demonsoft.spatialkappa.model.Variable.Type;
+import org.demonsoft.spatialkappa.model.VariableExpression;
+
+/**
+ * Network free simulation. Individual agents are kept in a mutable site graph, and the embeddings of each
+ * transition source component and observable are tracked against the agent they are rooted at. Memory and
+ * per event cost scale with the number of agents and the size of the patterns, not with the number of
+ * distinct species.
+ *
+ * Kinetics follow {@link TransitionMatchingSimulation}: the source components of a transition must match
+ * distinct complexes, and links created between components require co-located agents. Candidate events
+ * breaking these constraints are rejected as null events. When every remaining candidate would be rejected
+ * no transition is possible, and the simulation stops at the time of the last event. Observables with
+ * several components count the ways all components embed into a single complex.
+ *
+ * Agents may be located in compartments and voxels, but every transition must act within the locations of
+ * its agents. Transitions using channels, which move agents or complexes between locations, are not
+ * supported, and models containing them are rejected when the simulation is created. Use
+ * {@link TransitionMatchingSimulation} for such models.
+ */
+public class AgentBasedSimulation implements Simulation, SimulationState {
+
+    private static final int LINK_NONE = 0;
+    private static final int LINK_ANY = 1;
+    private static final int LINK_OCCUPIED = 2;
+    private static final int LINK_BOUND = 3;
+
+    private static final Pattern[] NO_PATTERNS = new Pattern[0];
+
+    private final IKappaModel kappaModel;
+    private final Map<String, Variable> variables;
+    private final TransitionRates transitionRates;
+    private final RandomSource random;
+    private final List<Transition> transitions = new ArrayList<Transition>();
+    private final Map<Transition, TransitionPlan> transitionPlans = new HashMap<Transition, TransitionPlan>();
+    private final List<Transition> variableRateTransitions = new ArrayList<Transition>();
+    private final List<Transition> infiniteRateTransitions = new ArrayList<Transition>();
+    private final PropensityTree<Transition> finiteRateTransitionPropensities = new PropensityTree<Transition>();
+    private final List<Perturbation> perturbations = new ArrayList<Perturbation>();
+
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final Map<String, List<Pattern>> patternsByRootName = new HashMap<String, List<Pattern>>();
+    private final Map<Variable, Pattern[]> observablePatterns = new HashMap<Variable, Pattern[]>();
+    private final Set<Pattern> changedPatterns = new LinkedHashSet<Pattern>();
+    private int maximumPatternDepth;
+
+    private final List<AgentNode> agents = new ArrayList<AgentNode>();
+    private int visitStamp;
+
+    private final Map<Variable, Integer> transitionsFiredMap = new HashMap<Variable, Integer>();
+    private final List<ObservationListener> observationListeners = new ArrayList<ObservationListener>();
+    private final ComplexMatcher matcher = new ComplexMatcher();
+
+    private boolean noTransitionsPossible = false;
+    private float time;
+    private float lastEventTime;
+    private int eventCount = 0;
+    private long startTime;
+    private boolean stop = false;
+    private float maximumTime;
+    private int maximumEventCount;
+
+
+    public AgentBasedSimulation(IKappaModel kappaModel) {
+        this(kappaModel, new SplitMixRandomSource());
+    }
+
+    public AgentBasedSimulation(IKappaModel kappaModel, RandomSource random) {
+        if (kappaModel == null || random == null) {
+            throw new NullPointerException();
+        }
+        List<Transition> channelTransitions = getChannelTransitions(kappaModel);
+        if (channelTransitions.size() > 0) {
+            throw new IllegalArgumentException("Agent based simulation does not support channel transitions, " +
+                    "use the transition matching simulation instead: " + channelTransitions);
+        }
+        this.kappaModel = kappaModel;
+        this.random = random;
+        this.variables = new HashMap<String, Variable>(kappaModel.getVariables());
+        this.transitionRates = new TransitionRates(variables);
+
+        for (Variable variable : variables.values()) {
+            if (variable.type == Type.KAPPA_EXPRESSION) {
+                // Split a copy, leaving the model complex untouched
+                List<Complex> components = getComplexes(variable.complex.clone().agents);
+                Pattern[] componentPatterns = new Pattern[components.size()];
+                for (int index = 0; index < componentPatterns.length; index++) {
+                    componentPatterns[index] = getPattern(components.get(index)).pattern;
+                }
+                observablePatterns.put(variable, componentPatterns);
+            }
+        }
+
+        for (Transition transition : kappaModel.getTransitions()) {
+            transitions.add(transition);
+            transitionPlans.put(transition, new TransitionPlan(transition));
+            if (transition.label != null) {
+                Variable variable = getVariable(transition.label);
+                if (variable != null && Variable.Type.TRANSITION_LABEL == variable.type) {
+                    transitionsFiredMap.put(variable, 0);
+                }
+            }
+        }
+        perturbations.addAll(kappaModel.getPerturbations());
+
+        List<AgentNode> newAgents = new ArrayList<AgentNode>();
+        for (Map.Entry<Complex, Integer> entry : kappaModel.getFixedLocatedInitialValuesMap().entrySet()) {
+            for (int count = 0; count < entry.getValue(); count++) {
+                newAgents.addAll(createAgents(entry.getKey().agents));
+            }
+        }
+        for (AgentNode agent : newAgents) {
+            updateEmbeddings(agent);
+        }
+        changedPatterns.clear();
+
+        for (Transition transition : transitions) {
+            updateTransitionRateType(transition);
+            updateTransitionActivity(transition);
+        }
+    }
+
+    /**
+     * @return the transitions of the model which use channels, and so cannot be run by this simulation.
+     */
+    public static List<Transition> getChannelTransitions(IKappaModel kappaModel) {
+        if (kappaModel == null) {
+            throw new NullPointerException();
+        }
+        List<Transition> result = new ArrayList<Transition>();
+        for (Transition transition : kappaModel.getTransitions()) {
+            boolean channel = transition.channelName != null;
+            for (TransitionPrimitive primitive : transition.bestPrimitives) {
+                channel |= primitive.channelName != null || primitive.type == TransitionPrimitive.Type.MOVE_AGENTS
+                        || primitive.type == TransitionPrimitive.Type.MOVE_COMPLEX;
+            }
+            if (channel) {
+                result.add(transition);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return kappaModel.toString();
+    }
+
+    public IKappaModel getModel() {
+        return kappaModel;
+    }
+
+    public void stop() {
+        stop = true;
+    }
+
+    public void runByEvent(int steps, int eventsPerStep) {
+        startTime = Calendar.getInstance().getTimeInMillis();
+        stop = false;
+        maximumTime = Float.POSITIVE_INFINITY;
+        maximumEventCount = steps * eventsPerStep;
+
+        for (int stepCount = 0; stepCount < steps && !noTransitionsPossible && !stop; stepCount++) {
+            resetTransitionsFiredCount();
+            for (int count = 0; count < eventsPerStep && !noTransitionsPossible && !stop; count++) {
+                runEvent();
+            }
+            notifyObservationListeners(false, (float) (stepCount + 1) / (float) steps);
+        }
+        notifyObservationListeners(true, 1);
+    }
+
+    public void runByTime(float totalTime, float timePerStep) {
+        startTime = Calendar.getInstance().getTimeInMillis();
+        stop = false;
+        maximumTime = totalTime;
+        maximumEventCount = 0;
+
+        do {
+            resetTransitionsFiredCount();
+            float stepEndTime = timePerStep * (Math.round(time / timePerStep) + 1);
+            while (time < stepEndTime && !noTransitionsPossible && !stop) {
+                runEvent();
+            }
+            notifyObservationListeners(false, time / totalTime);
+        }
+        while (!noTransitionsPossible && !stop && time < totalTime);
+        notifyObservationListeners(true, 1);
+    }
+
+    public void addObservationListener(ObservationListener listener) {
+        observationListeners.add(listener);
+    }
+
+    public void removeObservationListener(ObservationListener listener) {
+        observationListeners.remove(listener);
+    }
+
+    private void notifyObservationListeners(boolean finalEvent, float progress) {
+        Observation observation = getCurrentObservation(finalEvent, progress);
+        for (ObservationListener listener : observationListeners) {
+            listener.observation(observation);
+        }
+    }
+
+    public Observation getCurrentObservation() {
+        return getCurrentObservation(false, 1);
+    }
+
+    private Observation getCurrentObservation(boolean finalEvent, float progress) {
+        Map<String, ObservationElement> result = new HashMap<String, ObservationElement>();
+        for (String variableName : kappaModel.getPlottedVariables()) {
+            Variable variable = variables.get(variableName);
+            result.put(variableName, variable.evaluate(this));
+        }
+        long elapsedTime = Calendar.getInstance().getTimeInMillis() - startTime;
+        long estimatedRemainingTime = ((long) (elapsedTime / progress)) - elapsedTime;
+        return new Observation(time, eventCount, kappaModel.getPlottedVariables(), result, finalEvent, elapsedTime, estimatedRemainingTime);
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public float getTime() {
+        return time;
+    }
+
+    public float getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (Calendar.getInstance().getTimeInMillis() - startTime) / 1000f;
+    }
+
+    public float getMaximumTime() {
+        return maximumTime;
+    }
+
+    public int getMaximumEventCount() {
+        return maximumEventCount;
+    }
+
+    public Map<String, Variable> getVariables() {
+        return variables;
+    }
+
+    public Variable getVariable(String name) {
+        return variables.get(name);
+    }
+
+    int getAgentCount() {
+        return agents.size();
+    }
+
+    public ObservationElement getComplexQuantity(Variable variable) {
+        if (variable == null) {
+            throw new NullPointerException();
+        }
+        Pattern[] components = observablePatterns.get(variable);
+        if (components == null) {
+            return new ObservationElement(0);
+        }
+        if (variable.location != NOT_LOCATED && variable.recordVoxels) {
+            Compartment compartment = getCompartment(kappaModel.getCompartments(), variable.location.getName());
+            if (compartment.getDimensions().length != variable.location.getDimensionCount()) {
+                Serializable[] voxelValues = compartment.createVoxelArray();
+                int value = getEmbeddingCount(components, voxelValues);
+                return new ObservationElement(value, compartment.getDimensions(), compartment.getName(), voxelValues);
+            }
+        }
+        return new ObservationElement(getEmbeddingCount(components, null));
+    }
+
+    public float getComplexQuantityValue(Variable variable) {
+        if (variable == null) {
+            throw new NullPointerException();
+        }
+        Pattern[] components = observablePatterns.get(variable);
+        return components == null ? 0 : getEmbeddingCount(components, null);
+    }
+
+    /**
+     * Count the embeddings of the components of an observable into single complexes, each component matching
+     * distinct agents, as species based simulation does.
+     */
+    private int getEmbeddingCount(Pattern[] components, Serializable[] voxelValues) {
+        if (components.length == 1 && voxelValues == null) {
+            return components[0].embeddings.size();
+        }
+        AgentNode[][] componentAgents = new AgentNode[components.length][];
+        int result = 0;
+        for (Embedding embedding : components[0].embeddings) {
+            componentAgents[0] = embedding.agents;
+            List<AgentNode> complexAgents = components.length == 1 ? null : getComplexAgents(embedding.agents[0]);
+            result += getEmbeddingCount(components, 1, complexAgents, componentAgents, voxelValues);
+        }
+        return result;
+    }
+
+    private int getEmbeddingCount(Pattern[] components, int component, List<AgentNode> complexAgents,
+            AgentNode[][] componentAgents, Serializable[] voxelValues) {
+        if (component == components.length) {
+            if (voxelValues != null) {
+                addVoxelValue(voxelValues, componentAgents);
+            }
+            return 1;
+        }
+        int result = 0;
+        for (AgentNode root : complexAgents) {
+            Embedding embedding = root.embeddings[components[component].id];
+            if (embedding != null && !isMatched(embedding.agents, componentAgents, component)) {
+                componentAgents[component] = embedding.agents;
+                result += getEmbeddingCount(components, component + 1, complexAgents, componentAgents, voxelValues);
+            }
+        }
+        return result;
+    }
+
+    private boolean isMatched(AgentNode[] agents, AgentNode[][] componentAgents, int componentCount) {
+        for (int component = 0; component < componentCount; component++) {
+            for (AgentNode matchedAgent : componentAgents[component]) {
+                for (AgentNode agent : agents) {
+                    if (agent == matchedAgent) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addVoxelValue(Serializable[] voxelValues, AgentNode[][] componentAgents) {
+        Location location = componentAgents[0][0].location;
+        for (AgentNode[] agents : componentAgents) {
+            for (AgentNode agent : agents) {
+                if (!agent.location.equals(location)) {
+                    return;
+                }
+            }
+        }
+        int[] indices = location.getFixedIndices();
+        Object slice = voxelValues;
+        for (int index = 0; index < indices.length - 1; index++) {
+            slice = ((Object[]) slice)[indices[index]];
+        }
+        int index = indices[indices.length - 1];
+        ((Serializable[]) slice)[index] = ((Integer) ((Serializable[]) slice)[index]) + 1;
+    }
+
+    public ObservationElement getTransitionFiredCount(Variable variable) {
+        if (variable == null) {
+            throw new NullPointerException();
+        }
+        if (variable.type != Variable.Type.TRANSITION_LABEL) {
+            throw new IllegalArgumentException();
+        }
+        if (transitionsFiredMap.containsKey(variable)) {
+            return new ObservationElement(transitionsFiredMap.get(variable));
+        }
+        return ObservationElement.ZERO;
+    }
+
+    public float getTransitionFiredCountValue(Variable variable) {
+        if (variable == null) {
+            throw new NullPointerException();
+        }
+        if (variable.type != Variable.Type.TRANSITION_LABEL) {
+            throw new IllegalArgumentException();
+        }
+        Integer count = transitionsFiredMap.get(variable);
+        return count == null ? 0 : count;
+    }
+
+    private void resetTransitionsFiredCount() {
+        for (Map.Entry<Variable, Integer> entry : transitionsFiredMap.entrySet()) {
+            entry.setValue(0);
+        }
+    }
+
+    private void incrementTransitionsFired(Transition transition) {
+        if (transition.label != null) {
+            Variable variable = getVariable(transition.label);
+            if (variable != null && Variable.Type.TRANSITION_LABEL == variable.type) {
+                transitionsFiredMap.put(variable, transitionsFiredMap.get(variable) + 1);
+            }
+        }
+        eventCount++;
+    }
+
+    public void addComplexInstances(List<Agent> complexAgents, int amount) {
+        if (complexAgents == null) {
+            throw new NullPointerException();
+        }
+        if (amount == 0) {
+            return;
+        }
+        for (Complex complex : getComplexes(complexAgents)) {
+            if (amount > 0) {
+                List<AgentNode> newAgents = new ArrayList<AgentNode>();
+                for (int count = 0; count < amount; count++) {
+                    newAgents.addAll(createAgents(complex.agents));
+                }
+                for (AgentNode agent : newAgents) {
+                    updateEmbeddings(agent);
+                }
+            }
+            else {
+                removeComplexInstances(complex, -amount);
+            }
+        }
+        updateChangedTransitionActivities();
+    }
+
+    private void removeComplexInstances(Complex complex, int amount) {
+        String agentName = complex.agents.get(0).name;
+        int removed = 0;
+        for (AgentNode agent : new ArrayList<AgentNode>(agents)) {
+            if (removed == amount) {
+                break;
+            }
+            if (agent.index == -1 || !agentName.equals(agent.name)) {
+                continue;
+            }
+            List<AgentNode> complexAgents = getComplexAgents(agent);
+            if (complexAgents.size() == complex.agents.size() && matcher.isExactMatch(complex, createComplex(complexAgents))) {
+                // Whole complexes are removed, so no other embeddings are affected
+                for (AgentNode current : complexAgents) {
+                    deleteAgent(current);
+                    updateEmbeddings(current);
+                }
+                removed++;
+            }
+        }
+    }
+
+    public void setTransitionRateOrVariable(String name, VariableExpression rateExpression) {
+        if (name == null || rateExpression == null) {
+            throw new NullPointerException();
+        }
+        for (Transition transition : transitions) {
+            if (name.equals(transition.label)) {
+                transitionRates.setRate(transition, rateExpression);
+                updateTransitionRateType(transition);
+                updateTransitionActivity(transition);
+                return;
+            }
+        }
+        Variable variable = getVariable(name);
+        if (variable != null) {
+            variables.put(name, new Variable(rateExpression, name));
+            transitionRates.applyVariables();
+            for (Transition transition : transitions) {
+                updateTransitionRateType(transition);
+                updateTransitionActivity(transition);
+            }
+            return;
+        }
+        throw new IllegalArgumentException("Label not found: " + name);
+    }
+
+    public void snapshot() {
+        String output = getCurrentModelInitSection();
+        String filePrefix = "snap_" + eventCount;
+        File file = new File(filePrefix + ".ka");
+        for (int counter = 2; file.exists(); counter++) {
+            file = new File(filePrefix + "_" + counter + ".ka");
+        }
+        try {
+            FileUtils.writeStringToFile(file, output);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Problem creating snapshot", ex);
+        }
+    }
+
+    public String getDebugOutput() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Runtime (s): " + (time / 1000) + "\n");
+        builder.append("Agents: " + agents.size() + "\n");
+        builder.append("Final counts: " + getCurrentObservation(true, 1f) + "\n");
+        builder.append("\nKappa Init Section Format:\n");
+        builder.append(getCurrentModelInitSection());
+        return builder.toString();
+    }
+
+    private String getCurrentModelInitSection() {
+        Map<Long, List<Complex>> complexesByFingerprint = new HashMap<Long, List<Complex>>();
+        final Map<Complex, Integer> complexCounts = new HashMap<Complex, Integer>();
+        visitStamp++;
+        for (AgentNode agent : agents) {
+            if (agent.stamp == visitStamp) {
+                continue;
+            }
+            Complex complex = createComplex(getComplexAgents(agent));
+            for (AgentNode current : getComplexAgents(agent)) {
+                current.stamp = visitStamp;
+            }
+            List<Complex> bucket = complexesByFingerprint.get(complex.getFingerprint());
+            if (bucket == null) {
+                bucket = new ArrayList<Complex>();
+                complexesByFingerprint.put(complex.getFingerprint(), bucket);
+            }
+            Complex canonicalComplex = null;
+            for (Complex current : bucket) {
+                if (matcher.isExactMatch(current, complex)) {
+                    canonicalComplex = current;
+                    break;
+                }
+            }
+            if (canonicalComplex == null) {
+                bucket.add(complex);
+                complexCounts.put(complex, 1);
+            }
+            else {
+                complexCounts.put(canonicalComplex, complexCounts.get(canonicalComplex) + 1);
+            }
+        }
+
+        List<Complex> complexes = new ArrayList<Complex>(complexCounts.keySet());
+        Collections.sort(complexes, new Comparator<Complex>() {
+            public int compare(Complex o1, Complex o2) {
+                return o1.toString().compareTo(o2.toString());
+            }
+        });
+        StringBuilder builder = new StringBuilder();
+        for (Complex complex : complexes) {
+            builder.append("%init: " + complexCounts.get(complex) + " ");
+            builder.append(complex.agents.get(0).toString());
+            for (int index = 1; index < complex.agents.size(); index++) {
+                builder.append(",").append(complex.agents.get(index).toString());
+            }
+            builder.append("\n");
+        }
+        return builder.toString();
+    }
+
+
+    // Event loop
+
+    private void runEvent() {
+        int clashes = 0;
+        while (!runSingleEvent() && !noTransitionsPossible && !stop) {
+            if (++clashes == 1000) {
+                if (!isEventPossible()) {
+                    // Only clashing candidates remain - stop as if no transition was active
+                    noTransitionsPossible = true;
+                    time = lastEventTime;
+                    return;
+                }
+                clashes = 0;
+            }
+        }
+    }
+
+    private boolean runSingleEvent() {
+        applyPerturbations();
+        applyInfiniteRateTransitions();
+
+        for (Transition transition : variableRateTransitions) {
+            updateTransitionActivity(transition);
+        }
+        Transition transition = finiteRateTransitionPropensities.pick(random.nextDouble());
+        if (transition == null) {
+            noTransitionsPossible = true;
+            return false;
+        }
+        // Null events still consume time, so rejected candidates leave the kinetics exact
+        time += (float) -Math.log(random.nextDouble()) / finiteRateTransitionPropensities.getTotal();
+        if (!applyTransition(transition)) {
+            return false;
+        }
+        lastEventTime = time;
+        return true;
+    }
+
+    /**
+     * Exhaustive search for a finite rate candidate event which would not be rejected. Only used once many
+     * candidates in a row have been rejected.
+     */
+    private boolean isEventPossible() {
+        labelComplexes();
+        for (Transition transition : transitions) {
+            if (finiteRateTransitionPropensities.get(transition) > 0) {
+                TransitionPlan plan = transitionPlans.get(transition);
+                if (isEventPossible(plan, 0, new AgentNode[plan.patterns.length][])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isEventPossible(TransitionPlan plan, int component, AgentNode[][] componentAgents) {
+        if (component == plan.patterns.length) {
+            return true;
+        }
+        for (Embedding embedding : plan.patterns[component].embeddings) {
+            componentAgents[component] = embedding.agents;
+            if (isCompatible(plan, component, componentAgents) && isEventPossible(plan, component + 1, componentAgents)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if the agents chosen for a component satisfy the constraints against those
+     * of the earlier components.
+     */
+    private boolean isCompatible(TransitionPlan plan, int component, AgentNode[][] componentAgents) {
+        int complex = componentAgents[component][0].complex;
+        for (int previous = 0; previous < component; previous++) {
+            if (componentAgents[previous][0].complex == complex) {
+                return false;
+            }
+        }
+        for (LinkAction action : plan.createLinks) {
+            if (action.betweenComponents) {
+                int agentComponent = plan.leftComponents[action.agent];
+                int targetComponent = plan.leftComponents[action.targetAgent];
+                if (Math.max(agentComponent, targetComponent) == component) {
+                    AgentNode agent = componentAgents[agentComponent][plan.leftPatternIndices[action.agent]];
+                    AgentNode targetAgent = componentAgents[targetComponent][plan.leftPatternIndices[action.targetAgent]];
+                    if (!agent.location.equals(targetAgent.location)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void labelComplexes() {
+        int stamp = ++visitStamp;
+        int complex = 0;
+        List<AgentNode> queue = new ArrayList<AgentNode>();
+        for (AgentNode agent : agents) {
+            if (agent.stamp == stamp) {
+                continue;
+            }
+            complex++;
+            agent.stamp = stamp;
+            queue.clear();
+            queue.add(agent);
+            for (int index = 0; index < queue.size(); index++) {
+                AgentNode current = queue.get(index);
+                current.complex = complex;
+                for (AgentNode partner : current.partners) {
+                    if (partner != null && partner.stamp != stamp) {
+                        partner.stamp = stamp;
+                        queue.add(partner);
+                    }
+                }
+            }
+        }
+    }
+
+    private void applyPerturbations() {
+        ListIterator<Perturbation> iter = perturbations.listIterator();
+        while (iter.hasNext()) {
+            Perturbation perturbation = iter.next();
+            if (perturbation.isConditionMet(this)) {
+                perturbation.apply(this);
+                if (perturbation.isUntilConditionMet(this)) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private void applyInfiniteRateTransitions() {
+        int clashes = 0;
+        while (clashes < 1000 && !stop) {
+            List<Transition> activeTransitions = new ArrayList<Transition>();
+            for (Transition transition : infiniteRateTransitions) {
+                if (getActivity(transitionPlans.get(transition)) > 0) {
+                    activeTransitions.add(transition);
+                }
+            }
+            if (activeTransitions.size() == 0) {
+                return;
+            }
+            Transition transition = activeTransitions.get(random.nextInt(activeTransitions.size()));
+            if (applyTransition(transition)) {
+                clashes = 0;
+            }
+            else {
+                clashes++;
+            }
+        }
+    }
+
+    private void updateTransitionRateType(Transition transition) {
+        variableRateTransitions.remove(transition);
+        infiniteRateTransitions.remove(transition);
+        finiteRateTransitionPropensities.remove(transition);
+        if (transitionRates.isInfiniteRate(transition)) {
+            infiniteRateTransitions.add(transition);
+        }
+        else if (!transitionRates.hasSimpleRate(transition)) {
+            variableRateTransitions.add(transition);
+        }
+    }
+
+    private void updateTransitionActivity(Transition transition) {
+        if (infiniteRateTransitions.contains(transition)) {
+            return;
+        }
+        float rate = transitionRates.hasSimpleRate(transition) ? transitionRates.getSimpleRate(transition) : transitionRates.getRate(transition).evaluate(this).value;
+        finiteRateTransitionPropensities.set(transition, rate * getActivity(transitionPlans.get(transition)));
+    }
+
+    private float getActivity(TransitionPlan plan) {
+        float result = 1;
+        for (Pattern pattern : plan.patterns) {
+            result *= pattern.embeddings.size();
+        }
+        return result;
+    }
+
+    private void updateChangedTransitionActivities() {
+        for (Pattern pattern : changedPatterns) {
+            for (Transition transition : pattern.transitions) {
+                updateTransitionActivity(transition);
+            }
+        }
+        changedPatterns.clear();
+    }
+
+    private boolean applyTransition(Transition transition) {
+        TransitionPlan plan = transitionPlans.get(transition);
+        int componentCount = plan.patterns.length;
+        AgentNode[][] componentAgents = new AgentNode[componentCount][];
+        for (int component = 0; component < componentCount; component++) {
+            List<Embedding> embeddings = plan.patterns[component].embeddings;
+            if (embeddings.size() == 0) {
+                return false;
+            }
+            componentAgents[component] = embeddings.get(random.nextInt(embeddings.size())).agents;
+        }
+
+        AgentNode[] leftAgents = new AgentNode[plan.leftComponents.length];
+        for (int index = 0; index < leftAgents.length; index++) {
+            leftAgents[index] = componentAgents[plan.leftComponents[index]][plan.leftPatternIndices[index]];
+        }
+        if (!isDistinctComplexes(componentAgents)) {
+            return false;
+        }
+        for (LinkAction action : plan.createLinks) {
+            if (action.betweenComponents && !leftAgents[action.agent].location.equals(leftAgents[action.targetAgent].location)) {
+                return false;
+            }
+        }
+
+        Set<AgentNode> affectedAgents = new LinkedHashSet<AgentNode>();
+        addNeighbourhood(leftAgents, affectedAgents);
+
+        AgentNode[] actionAgents = new AgentNode[leftAgents.length + plan.createdAgents.size()];
+        System.arraycopy(leftAgents, 0, actionAgents, 0, leftAgents.length);
+        List<AgentNode> createdAgents = createAgents(plan.createdAgents);
+        for (int index = 0; index < createdAgents.size(); index++) {
+            actionAgents[leftAgents.length + index] = createdAgents.get(index);
+        }
+        for (LinkAction action : plan.deleteLinks) {
+            AgentNode agent = actionAgents[action.agent];
+            unlink(agent, agent.getSiteIndex(action.site));
+        }
+        for (LinkAction action : plan.createLinks) {
+            AgentNode agent = actionAgents[action.agent];
+            AgentNode targetAgent = actionAgents[action.targetAgent];
+            link(agent, agent.getSiteIndex(action.site), targetAgent, targetAgent.getSiteIndex(action.targetSite));
+        }
+        for (StateAction action : plan.changeStates) {
+            AgentNode agent = actionAgents[action.agent];
+            int site = agent.getSiteIndex(action.site);
+            if (site != -1) {
+                agent.states[site] = action.state;
+            }
+        }
+        for (int index : plan.deletedAgents) {
+            deleteAgent(leftAgents[index]);
+        }
+
+        addNeighbourhood(actionAgents, affectedAgents);
+        for (AgentNode agent : affectedAgents) {
+            updateEmbeddings(agent);
+        }
+        incrementTransitionsFired(transition);
+        updateChangedTransitionActivities();
+        return true;
+    }
+
+    /**
+     * Source components must match distinct complexes, as for species based simulation.
+     */
+    private boolean isDistinctComplexes(AgentNode[][] componentAgents) {
+        for (int component = 0; component < componentAgents.length - 1; component++) {
+            visitStamp++;
+            List<AgentNode> queue = new ArrayList<AgentNode>();
+            componentAgents[component][0].stamp = visitStamp;
+            queue.add(componentAgents[component][0]);
+            for (int index = 0; index < queue.size(); index++) {
+                for (AgentNode partner : queue.get(index).partners) {
+                    if (partner != null && partner.stamp != visitStamp) {
+                        partner.stamp = visitStamp;
+                        queue.add(partner);
+                    }
+                }
+            }
+            for (int other = component + 1; other < componentAgents.length; other++) {
+                if (componentAgents[other][0].stamp == visitStamp) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the agents close enough to the given agents for the embeddings rooted at them to be affected by
+     * changes to the given agents or their links.
+     */
+    private void addNeighbourhood(AgentNode[] changedAgents, Set<AgentNode> result) {
+        visitStamp++;
+        List<AgentNode> queue = new ArrayList<AgentNode>();
+        for (AgentNode agent : changedAgents) {
+            result.add(agent);
+            if (agent.index != -1 && agent.stamp != visitStamp) {
+                agent.stamp = visitStamp;
+                agent.distance = 0;
+                queue.add(agent);
+            }
+        }
+        // Partners of changed agents have changed links, so search one step beyond the deepest pattern
+        for (int index = 0; index < queue.size(); index++) {
+            AgentNode agent = queue.get(index);
+            if (agent.distance > maximumPatternDepth) {
+                continue;
+            }
+            for (AgentNode partner : agent.partners) {
+                if (partner != null && partner.stamp != visitStamp) {
+                    partner.stamp = visitStamp;
+                    partner.distance = agent.distance + 1;
+                    queue.add(partner);
+                    result.add(partner);
+                }
+            }
+        }
+    }
+
+
+    // Site graph
+
+    private List<AgentNode> createAgents(List<Agent> templateAgents) {
+        List<AgentNode> result = new ArrayList<AgentNode>(templateAgents.size());
+        Map<String, Object[]> openLinks = new HashMap<String, Object[]>();
+        for (Agent templateAgent : templateAgents) {
+            AgentNode agent = new AgentNode(templateAgent, patterns.size());
+            agent.index = agents.size();
+            agents.add(agent);
+            result.add(agent);
+            for (int site = 0; site < agent.siteNames.length; site++) {
+                String linkName = templateAgent.getSite(agent.siteNames[site]).getLinkName();
+                if (linkName != null && !"?".equals(linkName) && !"_".equals(linkName)) {
+                    Object[] openLink = openLinks.remove(linkName);
+                    if (openLink == null) {
+                        openLinks.put(linkName, new Object[] {agent, site});
+                    }
+                    else {
+                        link(agent, site, (AgentNode) openLink[0], (Integer) openLink[1]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void deleteAgent(AgentNode agent) {
+        for (int site = 0; site < agent.partners.length; site++) {
+            unlink(agent, site);
+        }
+        AgentNode last = agents.remove(agents.size() - 1);
+        if (last != agent) {
+            agents.set(agent.index, last);
+            last.index = agent.index;
+        }
+        agent.index = -1;
+    }
+
+    private void link(AgentNode agent, int site, AgentNode targetAgent, int targetSite) {
+        if (site == -1 || targetSite == -1) {
+            return;
+        }
+        unlink(agent, site);
+        unlink(targetAgent, targetSite);
+        agent.partners[site] = targetAgent;
+        agent.partnerSites[site] = targetSite;
+        targetAgent.partners[targetSite] = agent;
+        targetAgent.partnerSites[targetSite] = site;
+    }
+
+    private void unlink(AgentNode agent, int site) {
+        if (site == -1) {
+            return;
+        }
+        AgentNode partner = agent.partners[site];
+        if (partner != null) {
+            partner.partners[agent.partnerSites[site]] = null;
+            agent.partners[site] = null;
+        }
+    }
+
+    private List<AgentNode> getComplexAgents(AgentNode agent) {
+        int stamp = ++visitStamp;
+        List<AgentNode> result = new ArrayList<AgentNode>();
+        agent.stamp = stamp;
+        result.add(agent);
+        for (int index = 0; index < result.size(); index++) {
+            for (AgentNode partner : result.get(index).partners) {
+                if (partner != null && partner.stamp != stamp) {
+                    partner.stamp = stamp;
+                    result.add(partner);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Complex createComplex(List<AgentNode> complexAgents) {
+        Map<AgentNode, Integer> indices = new IdentityHashMap<AgentNode, Integer>();
+        for (int index = 0; index < complexAgents.size(); index++) {
+            indices.put(complexAgents.get(index), index);
+        }
+        List<Agent> result = new ArrayList<Agent>();
+        int linkCount = 0;
+        Map<String, String> linkNames = new HashMap<String, String>();
+        for (int index = 0; index < complexAgents.size(); index++) {
+            AgentNode agent = complexAgents.get(index);
+            List<AgentSite> sites = new ArrayList<AgentSite>();
+            for (int site = 0; site < agent.siteNames.length; site++) {
+                String linkName = null;
+                AgentNode partner = agent.partners[site];
+                if (partner != null) {
+                    linkName = linkNames.remove(indices.get(partner) + ":" + agent.partnerSites[site]);
+                    if (linkName == null) {
+                        linkName = "" + (++linkCount);
+                        linkNames.put(index + ":" + site, linkName);
+                    }
+                }
+                sites.add(new AgentSite(agent.siteNames[site], agent.states[site], linkName));
+            }
+            result.add(new Agent(agent.name, agent.location, sites));
+        }
+        return new Complex(result);
+    }
+
+
+    // Embeddings
+
+    private void updateEmbeddings(AgentNode agent) {
+        List<Pattern> rootedPatterns = patternsByRootName.get(agent.name);
+        if (rootedPatterns == null) {
+            return;
+        }
+        for (Pattern pattern : rootedPatterns) {
+            Embedding oldEmbedding = agent.embeddings[pattern.id];
+            AgentNode[] matchedAgents = agent.index == -1 ? null : pattern.match(agent);
+            if (matchedAgents == null) {
+                if (oldEmbedding != null) {
+                    pattern.remove(oldEmbedding);
+                    agent.embeddings[pattern.id] = null;
+                    changedPatterns.add(pattern);
+                }
+            }
+            else if (oldEmbedding != null) {
+                oldEmbedding.agents = matchedAgents;
+            }
+            else {
+                agent.embeddings[pattern.id] = pattern.add(matchedAgents);
+                changedPatterns.add(pattern);
+            }
+        }
+    }
+
+    private PatternMapping getPattern(Complex complex) {
+        for (Pattern pattern : patterns) {
+            if (matcher.isExactMatch(pattern.complex, complex)) {
+                ComplexMapping mapping = matcher.getPartialMatches(pattern.complex, complex).get(0);
+                Map<Agent, Integer> patternIndices = new IdentityHashMap<Agent, Integer>();
+                for (int index = 0; index < pattern.templateAgents.length; index++) {
+                    patternIndices.put(mapping.mapping.get(pattern.templateAgents[index]), index);
+                }
+                return new PatternMapping(pattern, patternIndices);
+            }
+        }
+        Pattern pattern = new Pattern(patterns.size(), complex);
+        patterns.add(pattern);
+        String rootName = pattern.templateAgents[0].name;
+        List<Pattern> rootedPatterns = patternsByRootName.get(rootName);
+        if (rootedPatterns == null) {
+            rootedPatterns = new ArrayList<Pattern>();
+            patternsByRootName.put(rootName, rootedPatterns);
+        }
+        rootedPatterns.add(pattern);
+        maximumPatternDepth = Math.max(maximumPatternDepth, pattern.depth);
+
+        Map<Agent, Integer> patternIndices = new IdentityHashMap<Agent, Integer>();
+        for (int index = 0; index < pattern.templateAgents.length; index++) {
+            patternIndices.put(pattern.templateAgents[index], index);
+        }
+        return new PatternMapping(pattern, patternIndices);
+    }
+
+    private static class PatternMapping {
+        final Pattern pattern;
+        final Map<Agent, Integer> patternIndices;
+
+        PatternMapping(Pattern pattern, Map<Agent, Integer> patternIndices) {
+            this.pattern = pattern;
+            this.patternIndices = patternIndices;
+        }
+    }
+
+    static class AgentNode {
+        final String name;
+        final Location location;
+        final String[] siteNames;
+        final String[] states;
+        final AgentNode[] partners;
+        final int[] partnerSites;
+        final Embedding[] embeddings;
+        int index;
+        int stamp;
+        int distance;
+        int complex;
+
+        AgentNode(Agent templateAgent, int patternCount) {
+            name = templateAgent.name;
+            location = templateAgent.location;
+            int siteCount = templateAgent.getSites().size();
+            siteNames = new String[siteCount];
+            states = new String[siteCount];
+            partners = new AgentNode[siteCount];
+            partnerSites = new int[siteCount];
+            embeddings = new Embedding[patternCount];
+            int site = 0;
+            for (AgentSite templateSite : templateAgent.getSites()) {
+                siteNames[site] = templateSite.name;
+                states[site] = templateSite.getState();
+                site++;
+            }
+        }
+
+        int getSiteIndex(String siteName) {
+            for (int site = 0; site < siteNames.length; site++) {
+                if (siteNames[site].equals(siteName)) {
+                    return site;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return name + Arrays.asList(states);
+        }
+    }
+
+    static class Embedding {
+        AgentNode[] agents;
+        int position;
+
+        Embedding(AgentNode[] agents) {
+            this.agents = agents;
+        }
+    }
+
+    /**
+     * Connected pattern compiled into a traversal from its root agent. Every other agent is reached by a
+     * link from an agent earlier in the traversal, so there is at most one embedding per root agent.
+     */
+    private static class Pattern {
+        final int id;
+        final Complex complex;
+        final Agent[] templateAgents;
+        final int[] parents;
+        final String[] parentSiteNames;
+        final String[] siteNamesFromParent;
+        final String[][] siteNames;
+        final String[][] states;
+        final int[][] linkTypes;
+        final int[][] linkPartners;
+        final String[][] linkPartnerSites;
+        final int depth;
+        final List<Embedding> embeddings = new ArrayList<Embedding>();
+        final List<Transition> transitions = new ArrayList<Transition>();
+
+        Pattern(int id, Complex complex) {
+            this.id = id;
+            this.complex = complex;
+            int agentCount = complex.agents.size();
+            templateAgents = new Agent[agentCount];
+            parents = new int[agentCount];
+            parentSiteNames = new String[agentCount];
+            siteNamesFromParent = new String[agentCount];
+            int[] depths = new int[agentCount];
+
+            // Breadth first traversal along named links
+            Map<Agent, Integer> indices = new IdentityHashMap<Agent, Integer>();
+            templateAgents[0] = complex.agents.get(0);
+            indices.put(templateAgents[0], 0);
+            parents[0] = -1;
+            int count = 1;
+            int maxDepth = 0;
+            for (int index = 0; index < count; index++) {
+                for (AgentSite site : templateAgents[index].getSites()) {
+                    AgentSite partnerSite = getPartnerSite(complex.agents, site);
+                    if (partnerSite != null && !indices.containsKey(partnerSite.agent)) {
+                        templateAgents[count] = partnerSite.agent;
+                        indices.put(partnerSite.agent, count);
+                        parents[count] = index;
+                        parentSiteNames[count] = site.name;
+                        siteNamesFromParent[count] = partnerSite.name;
+                        depths[count] = depths[index] + 1;
+                        maxDepth = Math.max(maxDepth, depths[count]);
+                        count++;
+                    }
+                }
+            }
+            if (count != agentCount) {
+                throw new IllegalArgumentException("Pattern not connected: " + complex);
+            }
+            depth = maxDepth;
+
+            siteNames = new String[agentCount][];
+            states = new String[agentCount][];
+            linkTypes = new int[agentCount][];
+            linkPartners = new int[agentCount][];
+            linkPartnerSites = new String[agentCount][];
+            for (int index = 0; index < agentCount; index++) {
+                int siteCount = templateAgents[index].getSites().size();
+                siteNames[index] = new String[siteCount];
+                states[index] = new String[siteCount];
+                linkTypes[index] = new int[siteCount];
+                linkPartners[index] = new int[siteCount];
+                linkPartnerSites[index] = new String[siteCount];
+                int siteIndex = 0;
+                for (AgentSite site : templateAgents[index].getSites()) {
+                    siteNames[index][siteIndex] = site.name;
+                    states[index][siteIndex] = site.getState();
+                    linkPartners[index][siteIndex] = -1;
+                    AgentSite partnerSite = getPartnerSite(complex.agents, site);
+                    if (site.getLinkName() == null) {
+                        linkTypes[index][siteIndex] = LINK_NONE;
+                    }
+                    else if ("?".equals(site.getLinkName())) {
+                        linkTypes[index][siteIndex] = LINK_ANY;
+                    }
+                    else if (partnerSite == null) {
+                        linkTypes[index][siteIndex] = LINK_OCCUPIED;
+                    }
+                    else {
+                        linkTypes[index][siteIndex] = LINK_BOUND;
+                        linkPartners[index][siteIndex] = indices.get(partnerSite.agent);
+                        linkPartnerSites[index][siteIndex] = partnerSite.name;
+                    }
+                    siteIndex++;
+                }
+            }
+        }
+
+        static AgentSite getPartnerSite(List<Agent> agents, AgentSite site) {
+            if (!site.isNamedLink()) {
+                return null;
+            }
+            for (Agent agent : agents) {
+                for (AgentSite current : agent.getSites()) {
+                    if (current != site && site.getLinkName().equals(current.getLinkName())) {
+                        return current;
+                    }
+                }
+            }
+            return null;
+        }
+
+        AgentNode[] match(AgentNode root) {
+            AgentNode[] result = new AgentNode[templateAgents.length];
+            for (int index = 0; index < templateAgents.length; index++) {
+                AgentNode agent;
+                if (index == 0) {
+                    agent = root;
+                }
+                else {
+                    AgentNode parent = result[parents[index]];
+                    int parentSite = parent.getSiteIndex(parentSiteNames[index]);
+                    agent = parent.partners[parentSite];
+                    if (agent == null || !agent.siteNames[parent.partnerSites[parentSite]].equals(siteNamesFromParent[index])) {
+                        return null;
+                    }
+                    for (int previous = 0; previous < index; previous++) {
+                        if (result[previous] == agent) {
+                            return null;
+                        }
+                    }
+                }
+                result[index] = agent;
+                if (!isAgentMatch(index, agent, result)) {
+                    return null;
+                }
+            }
+            return result;
+        }
+
+        private boolean isAgentMatch(int index, AgentNode agent, AgentNode[] matchedAgents) {
+            Agent templateAgent = templateAgents[index];
+            if (!templateAgent.name.equals(agent.name)) {
+                return false;
+            }
+            if (!templateAgent.location.equals(agent.location) && !templateAgent.location.isRefinement(agent.location)) {
+                return false;
+            }
+            for (int templateSite = 0; templateSite < siteNames[index].length; templateSite++) {
+                int site = agent.getSiteIndex(siteNames[index][templateSite]);
+                if (site == -1) {
+                    return false;
+                }
+                String state = states[index][templateSite];
+                if (state != null && !state.equals(agent.states[site])) {
+                    return false;
+                }
+                AgentNode partner = agent.partners[site];
+                switch (linkTypes[index][templateSite]) {
+                case LINK_NONE:
+                    if (partner != null) {
+                        return false;
+                    }
+                    break;
+
+                case LINK_OCCUPIED:
+                    if (partner == null) {
+                        return false;
+                    }
+                    break;
+
+                case LINK_BOUND:
+                    if (partner == null) {
+                        return false;
+                    }
+                    int templatePartner = linkPartners[index][templateSite];
+                    if (templatePartner <= index && (partner != matchedAgents[templatePartner]
+                            || !partner.siteNames[agent.partnerSites[site]].equals(linkPartnerSites[index][templateSite]))) {
+                        return false;
+                    }
+                    break;
+
+                default:
+                    break;
+                }
+            }
+            return true;
+        }
+
+        Embedding add(AgentNode[] matchedAgents) {
+            Embedding result = new Embedding(matchedAgents);
+            result.position = embeddings.size();
+            embeddings.add(result);
+            return result;
+        }
+
+        void remove(Embedding embedding) {
+            Embedding last = embeddings.remove(embeddings.size() - 1);
+            if (last != embedding) {
+                embeddings.set(embedding.position, last);
+                last.position = embedding.position;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return complex.toString();
+        }
+    }
+
+    private static class LinkAction {
+        final int agent;
+        final String site;
+        final int targetAgent;
+        final String targetSite;
+        final boolean betweenComponents;
+
+        LinkAction(int agent, String site, int targetAgent, String targetSite, boolean betweenComponents) {
+            this.agent = agent;
+            this.site = site;
+            this.targetAgent = targetAgent;
+            this.targetSite = targetSite;
+            this.betweenComponents = betweenComponents;
+        }
+    }
+
+    private static class StateAction {
+        final int agent;
+        final String site;
+        final String state;
+
+        StateAction(int agent, String site, String state) {
+            this.agent = agent;
+            this.site = site;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Site graph rewrite derived from the left and right agents of a transition. Agents are referred to by
+     * index - left agents first, followed by created agents.
+     */
+    private class TransitionPlan {
+        final Pattern[] patterns;
+        final int[] leftComponents;
+        final int[] leftPatternIndices;
+        final List<Integer> deletedAgents = new ArrayList<Integer>();
+        final List<Agent> createdAgents = new ArrayList<Agent>();
+        final List<LinkAction> deleteLinks = new ArrayList<LinkAction>();
+        final List<LinkAction> createLinks = new ArrayList<LinkAction>();
+        final List<StateAction> changeStates = new ArrayList<StateAction>();
+
+        TransitionPlan(Transition transition) {
+            List<Agent> leftAgents = transition.leftAgents;
+            List<Agent> rightAgents = transition.rightAgents;
+            patterns = transition.sourceComplexes.size() == 0 ? NO_PATTERNS : new Pattern[transition.sourceComplexes.size()];
+            leftComponents = new int[leftAgents.size()];
+            leftPatternIndices = new int[leftAgents.size()];
+            Map<Agent, Integer> agentIndices = new IdentityHashMap<Agent, Integer>();
+            for (int index = 0; index < leftAgents.size(); index++) {
+                agentIndices.put(leftAgents.get(index), index);
+            }
+            for (int component = 0; component < patterns.length; component++) {
+                PatternMapping mapping = getPattern(transition.sourceComplexes.get(component));
+                patterns[component] = mapping.pattern;
+                if (!mapping.pattern.transitions.contains(transition)) {
+                    mapping.pattern.transitions.add(transition);
+                }
+                for (Agent agent : transition.sourceComplexes.get(component).agents) {
+                    int index = agentIndices.get(agent);
+                    leftComponents[index] = component;
+                    leftPatternIndices[index] = mapping.patternIndices.get(agent);
+                }
+            }
+
+            Map<Agent, Agent> leftRightMap = transition.getLeftRightAgentMap();
+            Map<Agent, Integer> rightIndices = new IdentityHashMap<Agent, Integer>();
+            for (Agent leftAgent : leftAgents) {
+                Agent rightAgent = leftRightMap.get(leftAgent);
+                if (rightAgent == null) {
+                    deletedAgents.add(agentIndices.get(leftAgent));
+                }
+                else {
+                    rightIndices.put(rightAgent, agentIndices.get(leftAgent));
+                }
+            }
+            for (Agent rightAgent : rightAgents) {
+                if (!rightIndices.containsKey(rightAgent)) {
+                    rightIndices.put(rightAgent, leftAgents.size() + createdAgents.size());
+                    createdAgents.add(rightAgent);
+                }
+            }
+            Set<String> processedLinks = new HashSet<String>();
+            for (Agent rightAgent : rightAgents) {
+                int index = rightIndices.get(rightAgent);
+                Agent leftAgent = index < leftAgents.size() ? leftAgents.get(index) : null;
+                for (AgentSite rightSite : rightAgent.getSites()) {
+                    AgentSite leftSite = leftAgent == null ? null : leftAgent.getSite(rightSite.name);
+                    String leftLink = leftAgent == null ? null : (leftSite == null ? "?" : leftSite.getLinkName());
+                    if (leftAgent != null && rightSite.getState() != null && (leftSite == null || !rightSite.getState().equals(leftSite.getState()))) {
+                        changeStates.add(new StateAction(index, rightSite.name, rightSite.getState()));
+                    }
+
+                    String rightLink = rightSite.getLinkName();
+                    if (rightLink == null) {
+                        if (leftLink != null) {
+                            deleteLinks.add(new LinkAction(index, rightSite.name, -1, null, false));
+                        }
+                    }
+                    else if (rightSite.isNamedLink() && !processedLinks.contains(rightLink)) {
+                        AgentSite rightPartnerSite = Pattern.getPartnerSite(rightAgents, rightSite);
+                        if (rightPartnerSite == null) {
+                            continue;
+                        }
+                        processedLinks.add(rightLink);
+                        int partnerIndex = rightIndices.get(rightPartnerSite.agent);
+                        if (leftSite != null && leftSite.isNamedLink() && partnerIndex < leftAgents.size()) {
+                            AgentSite leftPartnerSite = Pattern.getPartnerSite(leftAgents, leftSite);
+                            if (leftPartnerSite != null && leftPartnerSite.agent == leftAgents.get(partnerIndex)
+                                    && leftPartnerSite.name.equals(rightPartnerSite.name)) {
+                                // Unchanged link
+                                continue;
+                            }
+                        }
+                        boolean betweenComponents = index < leftAgents.size() && partnerIndex < leftAgents.size()
+                                && leftComponents[index] != leftComponents[partnerIndex];
+                        createLinks.add(new LinkAction(index, rightSite.name, partnerIndex, rightPartnerSite.name, betweenComponents));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationElement;
+
+/**
+ * Observable layout of a binary trajectory, shared by the sequential and indexed readers. Frames are
+ * fixed width, so any frame can be decoded, or its time and event read, directly from its offset.
+ */
+class BinaryTrajectoryHeader {
+
+    static final int MAGIC = 0x534b5452; // "SKTR"
+    static final int VERSION = 1;
+
+    // Frame count, raw length, stored length, first frame time and event
+    static final int BLOCK_HEADER_SIZE = 20;
+
+    private static final int FRAME_TIME_OFFSET = 0;
+    private static final int FRAME_EVENT_OFFSET = 4;
+    private static final int FRAME_FINAL_OFFSET = 8;
+    private static final int FRAME_VALUES_OFFSET = 9;
+
+    final boolean compressed;
+    final List<String> orderedObservables;
+    final int frameSize;
+    private final String[] compartmentNames;
+    private final int[][] dimensions;
+
+    private BinaryTrajectoryHeader(boolean compressed, List<String> orderedObservables, String[] compartmentNames, int[][] dimensions) {
+        this.compressed = compressed;
+        this.orderedObservables = orderedObservables;
+        this.compartmentNames = compartmentNames;
+        this.dimensions = dimensions;
+
+        int size = FRAME_VALUES_OFFSET;
+        for (int[] current : dimensions) {
+            size += 4;
+            if (current != null) {
+                size += 4 * getCellCount(current);
+            }
+        }
+        this.frameSize = size;
+    }
+
+    static BinaryTrajectoryHeader read(DataInput input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary trajectory");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary trajectory version: " + version);
+        }
+        boolean compressed = input.readBoolean();
+        int observableCount = input.readInt();
+        List<String> names = new ArrayList<String>();
+        String[] compartmentNames = new String[observableCount];
+        int[][] dimensions = new int[observableCount][];
+        for (int index = 0; index < observableCount; index++) {
+            names.add(input.readUTF());
+            if (input.readBoolean()) {
+                compartmentNames[index] = input.readUTF();
+                dimensions[index] = new int[input.readInt()];
+                for (int dimension = 0; dimension < dimensions[index].length; dimension++) {
+                    dimensions[index][dimension] = input.readInt();
+                }
+            }
+        }
+        return new BinaryTrajectoryHeader(compressed, Collections.unmodifiableList(names), compartmentNames, dimensions);
+    }
+
+    float readTime(ByteBuffer frames, int frameOffset) {
+        return frames.getFloat(frameOffset + FRAME_TIME_OFFSET);
+    }
+
+    int readEvent(ByteBuffer frames, int frameOffset) {
+        return frames.getInt(frameOffset + FRAME_EVENT_OFFSET);
+    }
+
+    Observation readFrame(ByteBuffer frames, int frameOffset) {
+        float time = frames.getFloat(frameOffset + FRAME_TIME_OFFSET);
+        int event = frames.getInt(frameOffset + FRAME_EVENT_OFFSET);
+        boolean finalObservation = frames.get(frameOffset + FRAME_FINAL_OFFSET) != 0;
+        int position = frameOffset + FRAME_VALUES_OFFSET;
+        Map<String, ObservationElement> observables = new HashMap<String, ObservationElement>();
+        for (int index = 0; index < orderedObservables.size(); index++) {
+            float value = frames.getFloat(position);
+            position += 4;
+            ObservationElement element;
+            if (dimensions[index] == null) {
+                element = new ObservationElement(value);
+            }
+            else {
+                Serializable[] cellValues = new Serializable[dimensions[index][0]];
+                position = readCellValues(frames, position, cellValues, 0, dimensions[index]);
+                element = new ObservationElement((int) value, dimensions[index], compartmentNames[index], cellValues);
+            }
+            observables.put(orderedObservables.get(index), element);
+        }
+        return new Observation(time, event, orderedObservables, observables, finalObservation, 0, 0);
+    }
+
+    private int readCellValues(ByteBuffer frames, int position, Serializable[] result, int dimension, int[] cellDimensions) {
+        for (int index = 0; index < result.length; index++) {
+            if (dimension == cellDimensions.length - 1) {
+                result[index] = frames.getInt(position);
+                position += 4;
+            }
+            else {
+                Serializable[] slice = new Serializable[cellDimensions[dimension + 1]];
+                position = readCellValues(frames, position, slice, dimension + 1, cellDimensions);
+                result[index] = slice;
+            }
+        }
+        return position;
+    }
+
+    private static int getCellCount(int[] cellDimensions) {
+        int result = 1;
+        for (int dimension : cellDimensions) {
+            result *= dimension;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,112 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.demonsoft.spatialkappa.model.Observation;
+
+/**
+ * Reads observations in order from a binary trajectory written by {@link BinaryTrajectoryWriter}. The
+ * last observation read is always marked as final, even if the recording was cut short.
+ */
+public class BinaryTrajectoryReader {
+
+    private final DataInputStream input;
+    private final BinaryTrajectoryHeader header;
+
+    private ByteBuffer block;
+    private int blockFramesRemaining = 0;
+    private Observation nextObservation;
+
+    public BinaryTrajectoryReader(InputStream input) throws IOException {
+        if (input == null) {
+            throw new NullPointerException();
+        }
+        this.input = new DataInputStream(new BufferedInputStream(input));
+        header = BinaryTrajectoryHeader.read(this.input);
+        nextObservation = readFrame();
+    }
+
+    public static boolean isBinaryTrajectory(File file) throws IOException {
+        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        try {
+            return stream.readInt() == BinaryTrajectoryHeader.MAGIC;
+        }
+        catch (EOFException ex) {
+            return false;
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    public List<String> getOrderedObservables() {
+        return header.orderedObservables;
+    }
+
+    /**
+     * @return the next observation, or <code>null</code> at the end of the trajectory.
+     */
+    public Observation readObservation() throws IOException {
+        Observation result = nextObservation;
+        if (result == null) {
+            return null;
+        }
+        nextObservation = readFrame();
+        if (nextObservation == null && !result.finalObservation) {
+            result = new Observation(result.time, result.event, result.orderedObservables, result.observables, true,
+                    result.elapsedTime, result.estimatedRemainingTime);
+        }
+        return result;
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private Observation readFrame() throws IOException {
+        if (blockFramesRemaining == 0 && !readBlock()) {
+            return null;
+        }
+        Observation result = header.readFrame(block, block.position());
+        block.position(block.position() + header.frameSize);
+        blockFramesRemaining--;
+        return result;
+    }
+
+    private boolean readBlock() throws IOException {
+        int frameCount;
+        try {
+            frameCount = input.readInt();
+        }
+        catch (EOFException ex) {
+            return false;
+        }
+        byte[] frames = new byte[input.readInt()];
+        byte[] stored = new byte[input.readInt()];
+        // First frame time and event are only needed for indexing
+        input.readFloat();
+        input.readInt();
+        input.readFully(stored);
+        if (header.compressed) {
+            DataInputStream inflater = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(stored)));
+            inflater.readFully(frames);
+            inflater.close();
+        }
+        else {
+            frames = stored;
+        }
+        block = ByteBuffer.wrap(frames);
+        blockFramesRemaining = frameCount;
+        return frameCount > 0 || readBlock();
+    }
+}
@@ -0,0 +1,227 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationElement;
+
+/**
+ * Writes observations as a compact binary trajectory, read back by {@link BinaryTrajectoryReader}.
+ * <p>
+ * The header holds the observable names, and for compartment observables the compartment name and
+ * dimensions. It is followed by blocks of fixed width frames, each frame holding the time, event count,
+ * final observation flag, observable values as floats and voxel values as ints in row major order.
+ * Blocks are optionally deflated, and each block header holds the time and event of its first frame
+ * so that {@link IndexedTrajectory} can index a trajectory without decoding it. Frames are encoded on the calling thread, while compression and
+ * output happen on a background thread so the simulation is not held up by the output stream.
+ */
+public class BinaryTrajectoryWriter implements TrajectoryWriter {
+
+    public static final int DEFAULT_FRAMES_PER_BLOCK = 256;
+
+    private static final int MAX_PENDING_BLOCKS = 4;
+
+    private final DataOutputStream output;
+    private final boolean compressed;
+    private final int framesPerBlock;
+    private final ExecutorService executor;
+    private final LinkedList<Future<Object>> pendingBlocks = new LinkedList<Future<Object>>();
+
+    private List<String> orderedObservables;
+    private ObservationElement[] layout;
+    private ByteArrayOutputStream blockBytes;
+    private DataOutputStream block;
+    private int blockFrameCount;
+    private float blockFirstTime;
+    private int blockFirstEvent;
+    private boolean closed = false;
+
+    public BinaryTrajectoryWriter(OutputStream output, boolean compressed) {
+        this(output, compressed, DEFAULT_FRAMES_PER_BLOCK);
+    }
+
+    public BinaryTrajectoryWriter(OutputStream output, boolean compressed, int framesPerBlock) {
+        if (output == null) {
+            throw new NullPointerException();
+        }
+        if (framesPerBlock < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+        this.compressed = compressed;
+        this.framesPerBlock = framesPerBlock;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread result = new Thread(runnable, "BinaryTrajectoryWriter");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+
+    public void writeObservation(Observation observation) throws IOException {
+        if (observation == null) {
+            throw new NullPointerException();
+        }
+        if (closed) {
+            throw new IllegalStateException("Writer closed");
+        }
+        if (layout == null) {
+            writeHeader(observation);
+        }
+        if (block == null) {
+            blockBytes = new ByteArrayOutputStream();
+            block = new DataOutputStream(blockBytes);
+            blockFrameCount = 0;
+            blockFirstTime = observation.time;
+            blockFirstEvent = observation.event;
+        }
+        block.writeFloat(observation.time);
+        block.writeInt(observation.event);
+        block.writeBoolean(observation.finalObservation);
+        for (int index = 0; index < layout.length; index++) {
+            ObservationElement element = observation.observables.get(orderedObservables.get(index));
+            if (element == null || element.isCompartment != layout[index].isCompartment
+                    || (element.isCompartment && !element.matchesDimensions(layout[index]))) {
+                throw new IllegalArgumentException("Observable does not match trajectory header: " + orderedObservables.get(index));
+            }
+            block.writeFloat(element.value);
+            if (element.isCompartment) {
+                writeCellValues(block, element.cellValues);
+            }
+        }
+        blockFrameCount++;
+        if (blockFrameCount == framesPerBlock) {
+            flushBlock();
+        }
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (layout != null) {
+                flushBlock();
+                while (!pendingBlocks.isEmpty()) {
+                    waitForBlock(pendingBlocks.removeFirst());
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+            output.close();
+        }
+    }
+
+    private void writeHeader(Observation observation) throws IOException {
+        orderedObservables = observation.orderedObservables;
+        layout = new ObservationElement[orderedObservables.size()];
+        output.writeInt(BinaryTrajectoryHeader.MAGIC);
+        output.writeInt(BinaryTrajectoryHeader.VERSION);
+        output.writeBoolean(compressed);
+        output.writeInt(layout.length);
+        for (int index = 0; index < layout.length; index++) {
+            String observableName = orderedObservables.get(index);
+            ObservationElement element = observation.observables.get(observableName);
+            if (element == null) {
+                throw new IllegalArgumentException("Missing observable: " + observableName);
+            }
+            layout[index] = element;
+            output.writeUTF(observableName);
+            output.writeBoolean(element.isCompartment);
+            if (element.isCompartment) {
+                output.writeUTF(element.compartmentName);
+                output.writeInt(element.dimensions.length);
+                for (int dimension : element.dimensions) {
+                    output.writeInt(dimension);
+                }
+            }
+        }
+    }
+
+    private void writeCellValues(DataOutputStream stream, Serializable[] cells) throws IOException {
+        for (Serializable cell : cells) {
+            if (cell instanceof Integer) {
+                stream.writeInt((Integer) cell);
+            }
+            else {
+                writeCellValues(stream, (Serializable[]) cell);
+            }
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (block == null) {
+            return;
+        }
+        block.flush();
+        final byte[] frames = blockBytes.toByteArray();
+        final int frameCount = blockFrameCount;
+        final float firstTime = blockFirstTime;
+        final int firstEvent = blockFirstEvent;
+        block = null;
+        blockBytes = null;
+
+        while (!pendingBlocks.isEmpty() && (pendingBlocks.getFirst().isDone() || pendingBlocks.size() >= MAX_PENDING_BLOCKS)) {
+            waitForBlock(pendingBlocks.removeFirst());
+        }
+        pendingBlocks.add(executor.submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                writeBlock(frameCount, firstTime, firstEvent, frames);
+                return null;
+            }
+        }));
+    }
+
+    private void writeBlock(int frameCount, float firstTime, int firstEvent, byte[] frames) throws IOException {
+        byte[] stored = frames;
+        if (compressed) {
+            ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(frames.length / 2);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressedBytes, deflater);
+            deflaterStream.write(frames);
+            deflaterStream.close();
+            deflater.end();
+            stored = compressedBytes.toByteArray();
+        }
+        output.writeInt(frameCount);
+        output.writeInt(frames.length);
+        output.writeInt(stored.length);
+        output.writeFloat(firstTime);
+        output.writeInt(firstEvent);
+        output.write(stored);
+    }
+
+    private void waitForBlock(Future<Object> future) throws IOException {
+        try {
+            future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing trajectory");
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException("Problem writing trajectory", ex.getCause());
+        }
+    }
+}
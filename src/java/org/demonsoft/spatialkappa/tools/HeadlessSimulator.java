@@ -0,0 +1,178 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
+import org.demonsoft.spatialkappa.model.Utils;
+import org.demonsoft.spatialkappa.model.Validation;
+
+/**
+ * Command line simulation runner. Observations are streamed to the output in KaSim format, or to a
+ * compressed binary trajectory, as the simulation runs, without loading any of the user interface classes.
+ */
+public class HeadlessSimulator {
+
+    public enum Engine {
+        /** {@link TransitionMatchingSimulation}, supports all models. */
+        MATCHING,
+        /** {@link AgentBasedSimulation}, does not support channel transitions. */
+        AGENT
+    }
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final Simulation simulation;
+    private final TrajectoryWriter writer;
+
+    public HeadlessSimulator(IKappaModel kappaModel, Long seed, Writer writer) {
+        this(kappaModel, seed, new KaSimTrajectoryWriter(writer));
+    }
+
+    public HeadlessSimulator(IKappaModel kappaModel, Long seed, TrajectoryWriter writer) {
+        this(kappaModel, seed, Engine.MATCHING, writer);
+    }
+
+    public HeadlessSimulator(IKappaModel kappaModel, Long seed, Engine engine, TrajectoryWriter writer) {
+        if (kappaModel == null || engine == null || writer == null) {
+            throw new NullPointerException();
+        }
+        Simulation baseSimulation;
+        if (engine == Engine.AGENT) {
+            baseSimulation = seed == null ? new AgentBasedSimulation(kappaModel) 
+                    : new AgentBasedSimulation(kappaModel, new SplitMixRandomSource(seed));
+        }
+        else {
+            baseSimulation = seed == null ? new TransitionMatchingSimulation(kappaModel) 
+                    : new TransitionMatchingSimulation(kappaModel, new SplitMixRandomSource(seed));
+        }
+        this.writer = writer;
+        this.simulation = new RecordSimulation(baseSimulation, writer, true);
+    }
+
+    public void runByEvent(int steps, int eventsPerStep) throws IOException {
+        try {
+            simulation.runByEvent(steps, eventsPerStep);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    public void runByTime(float totalTime, float timePerStep) throws IOException {
+        try {
+            simulation.runByTime(totalTime, timePerStep);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("HeadlessSimulator version " + Version.VERSION);
+        System.err.println("Usage: HeadlessSimulator <input file path> (-e <steps> <events per step> | -t <total time> <time per step>) [-seed <seed>] [-o <output file path> [-binary]] [-validation (full|sampled|off)] [-engine (matching|agent)]");
+        System.err.println("Output is written to standard output if no output file is given");
+        System.err.println("-binary writes a compressed binary trajectory, which can be replayed but is not KaSim compatible");
+        System.err.println("-validation sets how often complexes are checked for consistency after each change, default full");
+        System.err.println("-engine sets the simulation engine, default matching. The agent engine does not support channel transitions");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            printUsage();
+            return;
+        }
+        File inputFile = new File(args[0]);
+        boolean eventModelling;
+        if ("-e".equals(args[1])) {
+            eventModelling = true;
+        }
+        else if ("-t".equals(args[1])) {
+            eventModelling = false;
+        }
+        else {
+            printUsage();
+            return;
+        }
+        String steps = args[2];
+        String stepSize = args[3];
+        Long seed = null;
+        File outputFile = null;
+        boolean binary = false;
+        Engine engine = Engine.MATCHING;
+        int index = 4;
+        while (index < args.length) {
+            String option = args[index++];
+            if ("-binary".equals(option)) {
+                binary = true;
+            }
+            else if (index == args.length) {
+                printUsage();
+                return;
+            }
+            else if ("-seed".equals(option)) {
+                seed = Long.valueOf(args[index++]);
+            }
+            else if ("-o".equals(option)) {
+                outputFile = new File(args[index++]);
+            }
+            else if ("-validation".equals(option)) {
+                try {
+                    Validation.setLevel(Validation.Level.valueOf(args[index++].toUpperCase()));
+                }
+                catch (IllegalArgumentException ex) {
+                    printUsage();
+                    return;
+                }
+            }
+            else if ("-engine".equals(option)) {
+                try {
+                    engine = Engine.valueOf(args[index++].toUpperCase());
+                }
+                catch (IllegalArgumentException ex) {
+                    printUsage();
+                    return;
+                }
+            }
+            else {
+                printUsage();
+                return;
+            }
+        }
+        if (binary && outputFile == null) {
+            printUsage();
+            return;
+        }
+
+        IKappaModel kappaModel = Utils.createKappaModel(inputFile);
+        TrajectoryWriter writer;
+        if (binary) {
+            writer = new BinaryTrajectoryWriter(new FileOutputStream(outputFile), true);
+        }
+        else {
+            writer = new KaSimTrajectoryWriter(new BufferedWriter(outputFile != null ? new FileWriter(outputFile) 
+                    : new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE));
+        }
+        HeadlessSimulator simulator;
+        try {
+            simulator = new HeadlessSimulator(kappaModel, seed, engine, writer);
+        }
+        catch (IllegalArgumentException ex) {
+            writer.close();
+            System.err.println(ex.getMessage());
+            return;
+        }
+        if (eventModelling) {
+            simulator.runByEvent(Integer.parseInt(steps), Integer.parseInt(stepSize));
+        }
+        else {
+            simulator.runByTime(Float.parseFloat(steps), Float.parseFloat(stepSize));
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.demonsoft.spatialkappa.model.Observation;
+
+/**
+ * Random access to the frames of a binary trajectory file. The file is memory mapped, and an index of
+ * block offsets, first frame numbers, times and events is built from the block headers alone. Frames
+ * can then be located by number, time or event without decoding any other frames. Compressed blocks are
+ * inflated on demand, with the most recently used block cached.
+ * <p>
+ * A partial block at the end of the file, left by an interrupted recording, is ignored.
+ */
+public class IndexedTrajectory {
+
+    // Single mappings are limited to 2GB, so larger files are mapped as several segments
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final BinaryTrajectoryHeader header;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    private int blockCount = 0;
+    private int[] blockSegments = new int[16];
+    private int[] blockOffsets = new int[16];
+    private int[] blockStoredLengths = new int[16];
+    private int[] blockFirstFrames = new int[16];
+    private float[] blockFirstTimes = new float[16];
+    private int[] blockFirstEvents = new int[16];
+    private int frameCount = 0;
+
+    private int cachedBlock = -1;
+    private ByteBuffer cachedFrames;
+
+    public IndexedTrajectory(File file) throws IOException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            header = BinaryTrajectoryHeader.read(new DataInputStream(Channels.newInputStream(channel)));
+            indexBlocks(channel, channel.position());
+        }
+        finally {
+            // Mappings remain valid once the file is closed
+            input.close();
+        }
+    }
+
+    private void indexBlocks(FileChannel channel, long position) throws IOException {
+        long fileSize = channel.size();
+        long segmentStart = position;
+        long segmentEnd = position;
+        ByteBuffer blockHeader = ByteBuffer.allocate(BinaryTrajectoryHeader.BLOCK_HEADER_SIZE);
+        while (position + BinaryTrajectoryHeader.BLOCK_HEADER_SIZE <= fileSize) {
+            blockHeader.clear();
+            while (blockHeader.hasRemaining()) {
+                channel.read(blockHeader, position + blockHeader.position());
+            }
+            int blockFrameCount = blockHeader.getInt(0);
+            int rawLength = blockHeader.getInt(4);
+            int storedLength = blockHeader.getInt(8);
+            long dataStart = position + BinaryTrajectoryHeader.BLOCK_HEADER_SIZE;
+            if (dataStart + storedLength > fileSize) {
+                break;
+            }
+            if (rawLength != blockFrameCount * header.frameSize || (!header.compressed && storedLength != rawLength)) {
+                throw new IllegalArgumentException("Corrupt trajectory block at offset " + position);
+            }
+            if (dataStart + storedLength - segmentStart > MAX_SEGMENT_SIZE) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart));
+                segmentStart = dataStart;
+            }
+            if (blockFrameCount > 0) {
+                addBlock((int) (dataStart - segmentStart), storedLength, blockFrameCount, blockHeader.getFloat(12), blockHeader.getInt(16));
+            }
+            position = dataStart + storedLength;
+            segmentEnd = position;
+        }
+        segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart));
+    }
+
+    private void addBlock(int offset, int storedLength, int blockFrameCount, float firstTime, int firstEvent) {
+        if (blockCount == blockOffsets.length) {
+            int capacity = blockCount * 2;
+            blockSegments = copyOf(blockSegments, capacity);
+            blockOffsets = copyOf(blockOffsets, capacity);
+            blockStoredLengths = copyOf(blockStoredLengths, capacity);
+            blockFirstFrames = copyOf(blockFirstFrames, capacity);
+            blockFirstEvents = copyOf(blockFirstEvents, capacity);
+            float[] times = new float[capacity];
+            System.arraycopy(blockFirstTimes, 0, times, 0, blockCount);
+            blockFirstTimes = times;
+        }
+        blockSegments[blockCount] = segments.size();
+        blockOffsets[blockCount] = offset;
+        blockStoredLengths[blockCount] = storedLength;
+        blockFirstFrames[blockCount] = frameCount;
+        blockFirstTimes[blockCount] = firstTime;
+        blockFirstEvents[blockCount] = firstEvent;
+        blockCount++;
+        frameCount += blockFrameCount;
+    }
+
+    private static int[] copyOf(int[] values, int capacity) {
+        int[] result = new int[capacity];
+        System.arraycopy(values, 0, result, 0, Math.min(values.length, capacity));
+        return result;
+    }
+
+    public List<String> getOrderedObservables() {
+        return header.orderedObservables;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the observation at the given frame. The last frame is always marked as final.
+     */
+    public synchronized Observation getObservation(int frame) {
+        int offset = locateFrame(frame);
+        Observation result = header.readFrame(cachedFrames, offset);
+        if (frame == frameCount - 1 && !result.finalObservation) {
+            result = new Observation(result.time, result.event, result.orderedObservables, result.observables, true,
+                    result.elapsedTime, result.estimatedRemainingTime);
+        }
+        return result;
+    }
+
+    public synchronized float getTime(int frame) {
+        int offset = locateFrame(frame);
+        return header.readTime(cachedFrames, offset);
+    }
+
+    public synchronized int getEvent(int frame) {
+        int offset = locateFrame(frame);
+        return header.readEvent(cachedFrames, offset);
+    }
+
+    /**
+     * @return the last frame at or before the given time, or the first frame if there is none.
+     */
+    public synchronized int findFrameAtTime(float time) {
+        checkNotEmpty();
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockFirstTimes[middle] <= time) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        int frameLow = blockFirstFrames[low];
+        int frameHigh = getBlockEndFrame(low) - 1;
+        while (frameLow < frameHigh) {
+            int middle = (frameLow + frameHigh + 1) >>> 1;
+            if (getTime(middle) <= time) {
+                frameLow = middle;
+            }
+            else {
+                frameHigh = middle - 1;
+            }
+        }
+        return frameLow;
+    }
+
+    /**
+     * @return the last frame at or before the given event, or the first frame if there is none.
+     */
+    public synchronized int findFrameAtEvent(int event) {
+        checkNotEmpty();
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockFirstEvents[middle] <= event) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        int frameLow = blockFirstFrames[low];
+        int frameHigh = getBlockEndFrame(low) - 1;
+        while (frameLow < frameHigh) {
+            int middle = (frameLow + frameHigh + 1) >>> 1;
+            if (getEvent(middle) <= event) {
+                frameLow = middle;
+            }
+            else {
+                frameHigh = middle - 1;
+            }
+        }
+        return frameLow;
+    }
+
+    private void checkNotEmpty() {
+        if (frameCount == 0) {
+            throw new IllegalStateException("Empty trajectory");
+        }
+    }
+
+    private int getBlockEndFrame(int block) {
+        return block == blockCount - 1 ? frameCount : blockFirstFrames[block + 1];
+    }
+
+    /**
+     * Make the frame's block current, returning the frame offset within the current frame buffer.
+     */
+    private int locateFrame(int frame) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IllegalArgumentException("Invalid frame: " + frame);
+        }
+        int block = cachedBlock;
+        if (block < 0 || frame < blockFirstFrames[block] || frame >= getBlockEndFrame(block)) {
+            block = findBlock(frame);
+            loadBlock(block);
+        }
+        int blockStart = header.compressed ? 0 : blockOffsets[block];
+        return blockStart + (frame - blockFirstFrames[block]) * header.frameSize;
+    }
+
+    private int findBlock(int frame) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockFirstFrames[middle] <= frame) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void loadBlock(int block) {
+        ByteBuffer segment = segments.get(blockSegments[block]);
+        if (!header.compressed) {
+            cachedFrames = segment;
+            cachedBlock = block;
+            return;
+        }
+        byte[] stored = new byte[blockStoredLengths[block]];
+        ByteBuffer storedBuffer = segment.duplicate();
+        storedBuffer.position(blockOffsets[block]);
+        storedBuffer.get(stored);
+
+        byte[] frames = new byte[(getBlockEndFrame(block) - blockFirstFrames[block]) * header.frameSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            int length = 0;
+            while (length < frames.length && !inflater.finished()) {
+                int inflated = inflater.inflate(frames, length, frames.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != frames.length) {
+                throw new IllegalArgumentException("Corrupt trajectory block: " + block);
+            }
+        }
+        catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt trajectory block: " + block, ex);
+        }
+        finally {
+            inflater.end();
+        }
+        cachedFrames = ByteBuffer.wrap(frames);
+        cachedBlock = block;
+    }
+}
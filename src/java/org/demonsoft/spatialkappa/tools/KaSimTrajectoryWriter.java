@@ -0,0 +1,34 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.demonsoft.spatialkappa.model.Observation;
+
+/**
+ * Writes observations as KaSim format text, one line per observation after a header line.
+ */
+public class KaSimTrajectoryWriter implements TrajectoryWriter {
+
+    private final Writer writer;
+    private boolean firstObservation = true;
+
+    public KaSimTrajectoryWriter(Writer writer) {
+        if (writer == null) {
+            throw new NullPointerException();
+        }
+        this.writer = writer;
+    }
+
+    public void writeObservation(Observation observation) throws IOException {
+        if (firstObservation) {
+            writer.write(observation.toKaSimHeaderString());
+            firstObservation = false;
+        }
+        writer.write(observation.toKaSimString());
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,163 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.util.LinkedList;
+
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationListener;
+
+/**
+ * Delivers observations to a listener on a separate thread, so slow listeners such as chart updates or
+ * trajectory output do not hold up the simulation. Observations wait in a bounded queue, and the
+ * backpressure policy decides what happens when the queue is full. Final observations are never
+ * dropped or coalesced.
+ */
+public class ObservationDispatcher implements ObservationListener {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    public enum Backpressure {
+        /** Wait for space in the queue. Nothing is lost, but a slow listener can slow the simulation. */
+        BLOCK,
+        /** Discard the oldest queued observation. */
+        DROP_OLDEST,
+        /** Replace the most recently queued observation, so the listener always sees the latest state. */
+        COALESCE
+    }
+
+    private final ObservationListener listener;
+    private final Backpressure backpressure;
+    private final int capacity;
+    private final LinkedList<Observation> queue = new LinkedList<Observation>();
+    private boolean delivering = false;
+    private boolean closed = false;
+    private boolean finished = false;
+    private long droppedCount = 0;
+
+    public ObservationDispatcher(ObservationListener listener, Backpressure backpressure) {
+        this(listener, backpressure, DEFAULT_CAPACITY);
+    }
+
+    public ObservationDispatcher(ObservationListener listener, Backpressure backpressure, int capacity) {
+        if (listener == null || backpressure == null) {
+            throw new NullPointerException();
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.listener = listener;
+        this.backpressure = backpressure;
+        this.capacity = capacity;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                deliverObservations();
+            }
+        }, "ObservationDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public ObservationListener getListener() {
+        return listener;
+    }
+
+    public synchronized void observation(Observation observation) {
+        if (observation == null) {
+            throw new NullPointerException();
+        }
+        if (closed) {
+            throw new IllegalStateException("Dispatcher closed");
+        }
+        if (queue.size() >= capacity) {
+            switch (backpressure) {
+            case BLOCK:
+                while (queue.size() >= capacity && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                break;
+
+            case DROP_OLDEST:
+                if (!queue.getFirst().finalObservation) {
+                    queue.removeFirst();
+                    droppedCount++;
+                }
+                break;
+
+            case COALESCE:
+                if (!queue.getLast().finalObservation) {
+                    queue.removeLast();
+                    droppedCount++;
+                }
+                break;
+            }
+        }
+        queue.add(observation);
+        notifyAll();
+    }
+
+    /**
+     * @return the number of observations discarded by the backpressure policy.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Wait until every queued observation has been delivered.
+     */
+    public synchronized void awaitDelivery() throws InterruptedException {
+        while ((!queue.isEmpty() || delivering) && !finished) {
+            wait();
+        }
+    }
+
+    /**
+     * Stop accepting observations. Those already queued are still delivered.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void deliverObservations() {
+        try {
+            while (true) {
+                Observation observation;
+                synchronized (this) {
+                    delivering = false;
+                    notifyAll();
+                    while (queue.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    observation = queue.removeFirst();
+                    delivering = true;
+                    notifyAll();
+                }
+                try {
+                    listener.observation(observation);
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            // Finish without delivering the remaining observations
+        }
+        finally {
+            synchronized (this) {
+                finished = true;
+                delivering = false;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary partial-sums tree of non-negative propensities. Updates and weighted selection are O(log n),
+ * the total is O(1). Internal nodes are recomputed from their children rather than adjusted by
+ * deltas, so rounding errors do not accumulate over a long simulation.
+ * Items are compared by identity, as distinct transition instances may be equal.
+ */
+public class PropensityTree<T> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<T, Integer> itemIndices = new IdentityHashMap<T, Integer>();
+    private final List<T> items = new ArrayList<T>();
+    private int capacity = INITIAL_CAPACITY;
+    // Node 1 is the root, leaves start at index capacity
+    private double[] tree = new double[2 * INITIAL_CAPACITY];
+
+    public int size() {
+        return items.size();
+    }
+
+    public boolean contains(T item) {
+        return itemIndices.containsKey(item);
+    }
+
+    public float get(T item) {
+        Integer index = itemIndices.get(item);
+        if (index == null) {
+            return 0;
+        }
+        return (float) tree[capacity + index];
+    }
+
+    public float getTotal() {
+        double total = tree[1];
+        return total > 0 ? (float) total : 0;
+    }
+
+    public void set(T item, float value) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        if (value < 0 || Float.isNaN(value)) {
+            throw new IllegalArgumentException("Invalid propensity: " + value);
+        }
+        Integer index = itemIndices.get(item);
+        if (index == null) {
+            if (items.size() == capacity) {
+                grow();
+            }
+            index = items.size();
+            items.add(item);
+            itemIndices.put(item, index);
+        }
+        setLeaf(index, value);
+    }
+
+    public void remove(T item) {
+        Integer index = itemIndices.remove(item);
+        if (index == null) {
+            return;
+        }
+        int lastIndex = items.size() - 1;
+        T lastItem = items.remove(lastIndex);
+        if (index != lastIndex) {
+            items.set(index, lastItem);
+            itemIndices.put(lastItem, index);
+            setLeaf(index, tree[capacity + lastIndex]);
+        }
+        setLeaf(lastIndex, 0);
+    }
+
+    public void clear() {
+        itemIndices.clear();
+        items.clear();
+        capacity = INITIAL_CAPACITY;
+        tree = new double[2 * INITIAL_CAPACITY];
+    }
+
+    /**
+     * Choose an item with probability proportional to its propensity.
+     *
+     * @param randomValue uniform random value in the range [0, 1)
+     * @return the chosen item, or <code>null</code> if the total propensity is zero
+     */
+    public T pick(double randomValue) {
+        if (tree[1] <= 0) {
+            return null;
+        }
+        double remaining = randomValue * tree[1];
+        int node = 1;
+        while (node < capacity) {
+            int left = 2 * node;
+            // Rounding may leave remaining just past the left sum - never descend into an empty subtree
+            if (tree[left + 1] <= 0 || (remaining < tree[left] && tree[left] > 0)) {
+                node = left;
+            }
+            else {
+                remaining -= tree[left];
+                node = left + 1;
+            }
+        }
+        return items.get(node - capacity);
+    }
+
+    private void setLeaf(int index, double value) {
+        int node = capacity + index;
+        tree[node] = value;
+        node /= 2;
+        while (node > 0) {
+            tree[node] = tree[2 * node] + tree[2 * node + 1];
+            node /= 2;
+        }
+    }
+
+    private void grow() {
+        int newCapacity = capacity * 2;
+        double[] newTree = new double[2 * newCapacity];
+        System.arraycopy(tree, capacity, newTree, newCapacity, capacity);
+        for (int node = newCapacity - 1; node > 0; node--) {
+            newTree[node] = newTree[2 * node] + newTree[2 * node + 1];
+        }
+        capacity = newCapacity;
+        tree = newTree;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int index = 0; index < items.size(); index++) {
+            if (index > 0) {
+                builder.append(", ");
+            }
+            builder.append(items.get(index)).append("=").append(tree[capacity + index]);
+        }
+        return builder.append("]").toString();
+    }
+}
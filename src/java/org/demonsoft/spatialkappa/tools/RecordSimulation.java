@@ -1,5 +1,6 @@
 package org.demonsoft.spatialkappa.tools;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -11,18 +12,36 @@ import org.demonsoft.spatialkappa.model.ObservationListener;
 public class RecordSimulation implements Simulation, ObservationListener {
 
     private Simulation simulation;
-    private Writer writer;
-    private boolean firstObservation;
+    private TrajectoryWriter writer;
+    private final ObservationDispatcher dispatcher;
     
     public RecordSimulation(Simulation simulation, File recordFile) throws IOException {
-        this(simulation, new FileWriter(recordFile));
+        this(simulation, new BufferedWriter(new FileWriter(recordFile)));
     }
     
     public RecordSimulation(Simulation simulation, Writer writer) {
+        this(simulation, new KaSimTrajectoryWriter(writer));
+    }
+    
+    public RecordSimulation(Simulation simulation, TrajectoryWriter writer) {
+        this(simulation, writer, false);
+    }
+    
+    /**
+     * @param asynchronous if true, observations are written on a separate thread. Runs still wait 
+     *         for all their observations to be written before returning.
+     */
+    public RecordSimulation(Simulation simulation, TrajectoryWriter writer, boolean asynchronous) {
         this.simulation = simulation;
         this.writer = writer;
-        firstObservation = true;
-        simulation.addObservationListener(this);
+        if (asynchronous) {
+            dispatcher = new ObservationDispatcher(this, ObservationDispatcher.Backpressure.BLOCK);
+            simulation.addObservationListener(dispatcher);
+        }
+        else {
+            dispatcher = null;
+            simulation.addObservationListener(this);
+        }
     }
 
     public Observation getCurrentObservation() {
@@ -40,10 +59,23 @@ public class RecordSimulation implements Simulation, ObservationListener {
 
     public void runByEvent(int steps, int stepSize) {
         simulation.runByEvent(steps, stepSize);
+        awaitDelivery();
     }
 
     public void runByTime(float steps, float stepSize) {
         simulation.runByTime(steps, stepSize);
+        awaitDelivery();
+    }
+
+    private void awaitDelivery() {
+        if (dispatcher != null) {
+            try {
+                dispatcher.awaitDelivery();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     public void stop() {
@@ -82,17 +114,16 @@ public class RecordSimulation implements Simulation, ObservationListener {
     private synchronized void writeObservation(Observation observation) {
         
         try {
-            if (firstObservation) {
-                writer.write(observation.toKaSimHeaderString());
-                firstObservation = false;
-            }
-            writer.write(observation.toKaSimString());
+            writer.writeObservation(observation);
         }
         catch (IOException e) {
             e.printStackTrace();
         }
         if (observation.finalObservation) {
             stopWriter();
+            if (dispatcher != null) {
+                dispatcher.close();
+            }
         }
     }
 
@@ -31,6 +31,10 @@ public class ReplaySimulation implements Simulation {
     Observation currentObservation;
     boolean stopped;
     private BufferedReader reader;
+    private BinaryTrajectoryReader binaryReader;
+    private IndexedTrajectory indexedTrajectory;
+    int frameIndex;
+    int stride = 1;
     List<String> observableNames = new ArrayList<String>();
     List<String> outputObservableNames = new ArrayList<String>();
     String nextLine;
@@ -47,6 +51,115 @@ public class ReplaySimulation implements Simulation {
 
     }
 
+    public ReplaySimulation(BinaryTrajectoryReader binaryReader, int interval) {
+        if (binaryReader == null) {
+            throw new NullPointerException();
+        }
+        this.binaryReader = binaryReader;
+        this.interval = interval;
+        outputObservableNames = binaryReader.getOrderedObservables();
+        currentObservation = readObservation();
+    }
+
+    /**
+     * Replay from an indexed trajectory, which also allows seeking, reverse and subsampled playback.
+     */
+    public ReplaySimulation(IndexedTrajectory indexedTrajectory, int interval) {
+        if (indexedTrajectory == null) {
+            throw new NullPointerException();
+        }
+        if (indexedTrajectory.getFrameCount() == 0) {
+            throw new IllegalArgumentException("Empty trajectory");
+        }
+        this.indexedTrajectory = indexedTrajectory;
+        this.interval = interval;
+        outputObservableNames = indexedTrajectory.getOrderedObservables();
+        frameIndex = 0;
+        currentObservation = getIndexedObservation(0);
+    }
+
+    public boolean isIndexed() {
+        return indexedTrajectory != null;
+    }
+
+    public int getFrameCount() {
+        checkIndexed();
+        return indexedTrajectory.getFrameCount();
+    }
+
+    public synchronized int getFrameIndex() {
+        checkIndexed();
+        return frameIndex;
+    }
+
+    /**
+     * Set the number of frames advanced by each playback step. Negative values play backwards.
+     */
+    public synchronized void setStride(int stride) {
+        checkIndexed();
+        if (stride == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.stride = stride;
+    }
+
+    public Observation seekToFrame(int frame) {
+        checkIndexed();
+        Observation observation;
+        synchronized (this) {
+            frameIndex = Math.max(0, Math.min(indexedTrajectory.getFrameCount() - 1, frame));
+            observation = getIndexedObservation(frameIndex);
+            currentObservation = observation;
+        }
+        notifyListeners(observation);
+        return observation;
+    }
+
+    public Observation seekToTime(float time) {
+        checkIndexed();
+        return seekToFrame(indexedTrajectory.findFrameAtTime(time));
+    }
+
+    public Observation seekToEvent(int event) {
+        checkIndexed();
+        return seekToFrame(indexedTrajectory.findFrameAtEvent(event));
+    }
+
+    public Observation stepForward() {
+        checkIndexed();
+        return seekToFrame(getFrameIndex() + Math.abs(stride));
+    }
+
+    public Observation stepBackward() {
+        checkIndexed();
+        return seekToFrame(getFrameIndex() - Math.abs(stride));
+    }
+
+    private void checkIndexed() {
+        if (indexedTrajectory == null) {
+            throw new IllegalStateException("Not an indexed replay");
+        }
+    }
+
+    private void notifyListeners(Observation observation) {
+        for (ObservationListener listener : listeners) {
+            listener.observation(observation);
+        }
+    }
+
+    /**
+     * Observations are final at the end of the trajectory in the current playback direction.
+     */
+    private Observation getIndexedObservation(int frame) {
+        Observation result = indexedTrajectory.getObservation(frame);
+        boolean finalObservation = stride > 0 ? frame == indexedTrajectory.getFrameCount() - 1 : frame == 0;
+        if (result.finalObservation != finalObservation) {
+            result = new Observation(result.time, result.event, result.orderedObservables, result.observables, finalObservation,
+                    result.elapsedTime, result.estimatedRemainingTime);
+        }
+        return result;
+    }
+
     public void reset() {
 //        stopReader();
     }
@@ -123,9 +236,30 @@ public class ReplaySimulation implements Simulation {
             }
             reader = null;
         }
+        if (binaryReader != null) {
+            try {
+                binaryReader.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            binaryReader = null;
+        }
     }
     
     Observation readObservation() {
+        if (indexedTrajectory != null) {
+            return readIndexedObservation();
+        }
+        if (binaryReader != null) {
+            try {
+                return binaryReader.readObservation();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
         try {
             String line = nextLine;
             nextLine = reader.readLine();
@@ -162,6 +296,21 @@ public class ReplaySimulation implements Simulation {
         return null;
     }
     
+    /**
+     * Advance by the stride, stopping at the end of the trajectory so the final frame is always played.
+     */
+    private synchronized Observation readIndexedObservation() {
+        int lastFrame = stride > 0 ? indexedTrajectory.getFrameCount() - 1 : 0;
+        if (frameIndex == lastFrame) {
+            return null;
+        }
+        frameIndex += stride;
+        if (stride > 0 ? frameIndex > lastFrame : frameIndex < lastFrame) {
+            frameIndex = lastFrame;
+        }
+        return getIndexedObservation(frameIndex);
+    }
+
     private void constructCompartmentObservations(Map<String, ObservationElement> elements) {
         for (CompartmentElementDefinition definition : definitions) {
             Serializable[] voxelValues = constructSlice(definition.elementNames, elements);
@@ -0,0 +1,94 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of the plotted observables across all replicates at a single timepoint.
+ */
+public class ReplicateObservation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final int timepoint;
+    public final float time;
+    public final int replicateCount;
+    public final float[] quantileLevels;
+    public final List<String> orderedObservables;
+    public final Map<String, ObservableStatistics> observables;
+    public final boolean finalObservation;
+
+    public ReplicateObservation(int timepoint, float time, int replicateCount, float[] quantileLevels, List<String> orderedObservables,
+            Map<String, ObservableStatistics> observables, boolean finalObservation) {
+        this.timepoint = timepoint;
+        this.time = time;
+        this.replicateCount = replicateCount;
+        this.quantileLevels = quantileLevels;
+        this.orderedObservables = orderedObservables;
+        this.observables = observables;
+        this.finalObservation = finalObservation;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder().append("Time ").append(time).append(", Replicates ").append(replicateCount).append("\n");
+        for (String observableName : orderedObservables) {
+            result.append(observables.get(observableName)).append("\t").append(observableName).append("\n");
+        }
+        return result.toString();
+    }
+
+
+    public static class ObservableStatistics implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final float mean;
+        public final float variance;
+        public final float[] quantiles;
+
+        public ObservableStatistics(float mean, float variance, float[] quantiles) {
+            this.mean = mean;
+            this.variance = variance;
+            this.quantiles = quantiles;
+        }
+
+        /**
+         * Calculate the statistics of a set of replicate values. The values array is sorted in place.
+         * Variance is the unbiased sample variance, quantiles are linearly interpolated between values.
+         */
+        public static ObservableStatistics create(float[] values, float[] quantileLevels) {
+            if (values == null || quantileLevels == null) {
+                throw new NullPointerException();
+            }
+            if (values.length == 0) {
+                throw new IllegalArgumentException("No values");
+            }
+            double mean = 0;
+            double sumSquares = 0;
+            for (int index = 0; index < values.length; index++) {
+                double delta = values[index] - mean;
+                mean += delta / (index + 1);
+                sumSquares += delta * (values[index] - mean);
+            }
+            float variance = values.length > 1 ? (float) (sumSquares / (values.length - 1)) : 0;
+
+            Arrays.sort(values);
+            float[] quantiles = new float[quantileLevels.length];
+            for (int index = 0; index < quantileLevels.length; index++) {
+                double position = quantileLevels[index] * (values.length - 1);
+                int lower = (int) Math.floor(position);
+                int upper = Math.min(lower + 1, values.length - 1);
+                quantiles[index] = (float) (values[lower] + (position - lower) * (values[upper] - values[lower]));
+            }
+            return new ObservableStatistics((float) mean, variance, quantiles);
+        }
+
+        @Override
+        public String toString() {
+            return mean + " (" + variance + ") " + Arrays.toString(quantiles);
+        }
+    }
+}
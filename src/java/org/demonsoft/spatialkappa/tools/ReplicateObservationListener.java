@@ -0,0 +1,5 @@
+package org.demonsoft.spatialkappa.tools;
+
+public interface ReplicateObservationListener {
+    public void observation(ReplicateObservation observation);
+}
@@ -0,0 +1,249 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationListener;
+import org.demonsoft.spatialkappa.model.RandomSource;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
+import org.demonsoft.spatialkappa.tools.ReplicateObservation.ObservableStatistics;
+
+/**
+ * Runs independent replicates of a single model concurrently. Each replicate has its own simulation
+ * and random source, split from a source seeded with the runner seed. Statistics of the plotted
+ * observables across replicates are passed to listeners as each timepoint completes, in timepoint order.
+ */
+public class ReplicateRunner {
+
+    public static final float[] DEFAULT_QUANTILE_LEVELS = { 0.05f, 0.5f, 0.95f };
+
+    private final IKappaModel kappaModel;
+    private final int replicateCount;
+    private final long seed;
+    private final int threadCount;
+    private final float[] quantileLevels;
+    private final List<ReplicateObservationListener> observationListeners = new ArrayList<ReplicateObservationListener>();
+    private final List<TransitionMatchingSimulation> simulations = new ArrayList<TransitionMatchingSimulation>();
+    private boolean stop = false;
+
+    public ReplicateRunner(IKappaModel kappaModel, int replicateCount, long seed) {
+        this(kappaModel, replicateCount, seed, Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTILE_LEVELS);
+    }
+
+    public ReplicateRunner(IKappaModel kappaModel, int replicateCount, long seed, int threadCount, float[] quantileLevels) {
+        if (kappaModel == null || quantileLevels == null) {
+            throw new NullPointerException();
+        }
+        if (replicateCount < 1 || threadCount < 1) {
+            throw new IllegalArgumentException();
+        }
+        for (float level : quantileLevels) {
+            if (level < 0 || level > 1) {
+                throw new IllegalArgumentException("Invalid quantile: " + level);
+            }
+        }
+        this.kappaModel = kappaModel;
+        this.replicateCount = replicateCount;
+        this.seed = seed;
+        this.threadCount = threadCount;
+        this.quantileLevels = quantileLevels.clone();
+    }
+
+    public void addObservationListener(ReplicateObservationListener listener) {
+        observationListeners.add(listener);
+    }
+
+    public void removeObservationListener(ReplicateObservationListener listener) {
+        observationListeners.remove(listener);
+    }
+
+    public void runByEvent(final int steps, final int eventsPerStep) throws InterruptedException {
+        run(new TimepointAggregator(steps, null), new ReplicateTask() {
+            public void run(TransitionMatchingSimulation simulation) {
+                simulation.runByEvent(steps, eventsPerStep);
+            }
+        });
+    }
+
+    public void runByTime(final float totalTime, final float timePerStep) throws InterruptedException {
+        if (timePerStep <= 0) {
+            throw new IllegalArgumentException();
+        }
+        // Allow for rounding of the final step end time
+        int steps = Math.max(1, (int) Math.ceil(totalTime / timePerStep - 0.0001f));
+        float[] times = new float[steps + 1];
+        for (int timepoint = 0; timepoint <= steps; timepoint++) {
+            times[timepoint] = Math.min(totalTime, timepoint * timePerStep);
+        }
+        run(new TimepointAggregator(steps, times), new ReplicateTask() {
+            public void run(TransitionMatchingSimulation simulation) {
+                simulation.runByTime(totalTime, timePerStep);
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        stop = true;
+        for (TransitionMatchingSimulation simulation : simulations) {
+            simulation.stop();
+        }
+    }
+
+    private void run(final TimepointAggregator aggregator, final ReplicateTask task) throws InterruptedException {
+        synchronized (this) {
+            stop = false;
+            simulations.clear();
+        }
+        RandomSource seedGenerator = new SplitMixRandomSource(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, replicateCount));
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (int replicate = 0; replicate < replicateCount; replicate++) {
+                final int replicateIndex = replicate;
+                final RandomSource random = seedGenerator.split();
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        TransitionMatchingSimulation simulation = new TransitionMatchingSimulation(kappaModel, random);
+                        if (!addSimulation(simulation)) {
+                            return null;
+                        }
+                        simulation.addObservationListener(aggregator.createReplicateListener(replicateIndex));
+                        aggregator.record(0, replicateIndex, simulation.getCurrentObservation());
+                        task.run(simulation);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException ex) {
+            stop();
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized boolean addSimulation(TransitionMatchingSimulation simulation) {
+        if (stop) {
+            return false;
+        }
+        simulations.add(simulation);
+        return true;
+    }
+
+    private void notifyObservationListeners(ReplicateObservation observation) {
+        for (ReplicateObservationListener listener : observationListeners) {
+            listener.observation(observation);
+        }
+    }
+
+
+    private interface ReplicateTask {
+        void run(TransitionMatchingSimulation simulation);
+    }
+
+    /**
+     * Collects replicate observations per timepoint, releasing each timepoint once every replicate has
+     * reached it. Replicates that finish early hold their final values for the remaining timepoints.
+     */
+    private class TimepointAggregator {
+
+        private final int steps;
+        private final float[] nominalTimes;
+        private final List<String> orderedObservables = kappaModel.getPlottedVariables();
+        private final float[][][] values;
+        private final float[][] times;
+        private final int[] counts;
+        private int nextTimepoint = 0;
+
+        TimepointAggregator(int steps, float[] nominalTimes) {
+            this.steps = steps;
+            this.nominalTimes = nominalTimes;
+            this.values = new float[steps + 1][][];
+            this.times = new float[steps + 1][];
+            this.counts = new int[steps + 1];
+        }
+
+        ObservationListener createReplicateListener(final int replicate) {
+            return new ObservationListener() {
+                private int nextReplicateTimepoint = 1;
+
+                public void observation(Observation observation) {
+                    int timepoint;
+                    if (observation.finalObservation) {
+                        timepoint = steps;
+                    }
+                    else if (nominalTimes == null) {
+                        timepoint = nextReplicateTimepoint;
+                    }
+                    else {
+                        // A single event may span several time steps
+                        int elapsedSteps = (int) Math.floor(observation.time / nominalTimes[1]);
+                        timepoint = Math.max(nextReplicateTimepoint, Math.min(steps, elapsedSteps));
+                    }
+                    for (; nextReplicateTimepoint <= timepoint; nextReplicateTimepoint++) {
+                        record(nextReplicateTimepoint, replicate, observation);
+                    }
+                }
+            };
+        }
+
+        synchronized void record(int timepoint, int replicate, Observation observation) {
+            if (values[timepoint] == null) {
+                values[timepoint] = new float[orderedObservables.size()][replicateCount];
+                times[timepoint] = new float[replicateCount];
+            }
+            for (int index = 0; index < orderedObservables.size(); index++) {
+                values[timepoint][index][replicate] = observation.observables.get(orderedObservables.get(index)).value;
+            }
+            times[timepoint][replicate] = observation.time;
+            counts[timepoint]++;
+
+            while (nextTimepoint <= steps && counts[nextTimepoint] == replicateCount) {
+                notifyObservationListeners(createObservation(nextTimepoint));
+                values[nextTimepoint] = null;
+                times[nextTimepoint] = null;
+                nextTimepoint++;
+            }
+        }
+
+        private ReplicateObservation createObservation(int timepoint) {
+            Map<String, ObservableStatistics> observables = new HashMap<String, ObservableStatistics>();
+            for (int index = 0; index < orderedObservables.size(); index++) {
+                observables.put(orderedObservables.get(index), ObservableStatistics.create(values[timepoint][index], quantileLevels));
+            }
+            float time;
+            if (nominalTimes != null) {
+                time = nominalTimes[timepoint];
+            }
+            else {
+                double totalTime = 0;
+                for (float current : times[timepoint]) {
+                    totalTime += current;
+                }
+                time = (float) (totalTime / replicateCount);
+            }
+            return new ReplicateObservation(timepoint, time, replicateCount, quantileLevels, orderedObservables, observables, timepoint == steps);
+        }
+    }
+}
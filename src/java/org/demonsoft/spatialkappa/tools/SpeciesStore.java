@@ -0,0 +1,196 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.demonsoft.spatialkappa.model.Complex;
+
+/**
+ * Counts of the distinct complexes (species) present in a simulation. Each species is interned to an
+ * integer id on entry, and counts are held in a primitive array indexed by id, so the simulation inner
+ * loop can read and update counts without boxing or hashing. Ids of removed species are reused.
+ * <p>
+ * Species are identified by instance, using an open addressing table on identity hash codes.
+ */
+class SpeciesStore {
+
+    public static final int NO_SPECIES = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Complex[] species = new Complex[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int highestId = 0;
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeIdCount = 0;
+    private int size = 0;
+
+    // Open addressing table from species instance to id
+    private Complex[] tableKeys = new Complex[INITIAL_CAPACITY * 2];
+    private int[] tableIds = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * @return the id of the species, or {@link #NO_SPECIES} if it is not present.
+     */
+    public int getId(Complex complex) {
+        if (complex == null) {
+            throw new NullPointerException();
+        }
+        int mask = tableKeys.length - 1;
+        for (int slot = getSlot(complex, mask); tableKeys[slot] != null; slot = (slot + 1) & mask) {
+            if (tableKeys[slot] == complex) {
+                return tableIds[slot];
+            }
+        }
+        return NO_SPECIES;
+    }
+
+    /**
+     * @return the id of the species, adding it with a count of zero if it is not present.
+     */
+    public int intern(Complex complex) {
+        int id = getId(complex);
+        if (id != NO_SPECIES) {
+            return id;
+        }
+        if (freeIdCount > 0) {
+            id = freeIds[--freeIdCount];
+        }
+        else {
+            if (highestId == species.length) {
+                int capacity = species.length * 2;
+                Complex[] newSpecies = new Complex[capacity];
+                System.arraycopy(species, 0, newSpecies, 0, highestId);
+                species = newSpecies;
+                counts = copyOf(counts, capacity);
+            }
+            id = highestId++;
+        }
+        species[id] = complex;
+        counts[id] = 0;
+        size++;
+        if (size * 2 > tableKeys.length) {
+            rehash(tableKeys.length * 2);
+        }
+        insert(complex, id);
+        return id;
+    }
+
+    public Complex getComplex(int id) {
+        return species[id];
+    }
+
+    public int getCount(int id) {
+        return counts[id];
+    }
+
+    /**
+     * @return the previous count.
+     */
+    public int setCount(int id, int count) {
+        int result = counts[id];
+        counts[id] = count;
+        return result;
+    }
+
+    /**
+     * @return the count of the species, or zero if it is not present.
+     */
+    public int get(Complex complex) {
+        int id = getId(complex);
+        return id == NO_SPECIES ? 0 : counts[id];
+    }
+
+    /**
+     * Set the count of a species, adding it if not present.
+     *
+     * @return the previous count, zero for a new species.
+     */
+    public int put(Complex complex, int count) {
+        return setCount(intern(complex), count);
+    }
+
+    public boolean contains(Complex complex) {
+        return getId(complex) != NO_SPECIES;
+    }
+
+    public void remove(Complex complex) {
+        int mask = tableKeys.length - 1;
+        int slot = getSlot(complex, mask);
+        while (tableKeys[slot] != complex) {
+            if (tableKeys[slot] == null) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = tableIds[slot];
+        species[id] = null;
+        counts[id] = 0;
+        if (freeIdCount == freeIds.length) {
+            freeIds = copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeIdCount++] = id;
+        size--;
+
+        // Shift back later entries of the probe sequence into the gap
+        tableKeys[slot] = null;
+        int next = (slot + 1) & mask;
+        while (tableKeys[next] != null) {
+            Complex key = tableKeys[next];
+            int keyId = tableIds[next];
+            tableKeys[next] = null;
+            insert(key, keyId);
+            next = (next + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the species present, in id order.
+     */
+    public List<Complex> getComplexes() {
+        List<Complex> result = new ArrayList<Complex>(size);
+        for (int id = 0; id < highestId; id++) {
+            if (species[id] != null) {
+                result.add(species[id]);
+            }
+        }
+        return result;
+    }
+
+    private void insert(Complex complex, int id) {
+        int mask = tableKeys.length - 1;
+        int slot = getSlot(complex, mask);
+        while (tableKeys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        tableKeys[slot] = complex;
+        tableIds[slot] = id;
+    }
+
+    private void rehash(int capacity) {
+        Complex[] oldKeys = tableKeys;
+        int[] oldIds = tableIds;
+        tableKeys = new Complex[capacity];
+        tableIds = new int[capacity];
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != null) {
+                insert(oldKeys[slot], oldIds[slot]);
+            }
+        }
+    }
+
+    private static int getSlot(Complex complex, int mask) {
+        int hash = System.identityHashCode(complex);
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static int[] copyOf(int[] values, int capacity) {
+        int[] result = new int[capacity];
+        System.arraycopy(values, 0, result, 0, Math.min(values.length, capacity));
+        return result;
+    }
+}
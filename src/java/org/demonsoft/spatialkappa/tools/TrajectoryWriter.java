@@ -0,0 +1,12 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.IOException;
+
+import org.demonsoft.spatialkappa.model.Observation;
+
+public interface TrajectoryWriter {
+
+    public void writeObservation(Observation observation) throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,160 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.demonsoft.spatialkappa.model.Agent;
+import org.demonsoft.spatialkappa.model.AgentLink;
+import org.demonsoft.spatialkappa.model.AgentSite;
+import org.demonsoft.spatialkappa.model.Complex;
+import org.demonsoft.spatialkappa.model.Transition;
+
+/**
+ * Index of the agent types and sites each transition source component depends on. Used to limit
+ * matching of a new complex to the transitions whose components could possibly match it.
+ */
+public class TransitionDependencyIndex {
+
+    private final Map<String, List<ComponentEntry>> componentsByAgentName = new HashMap<String, List<ComponentEntry>>();
+    private final List<ComponentEntry> anyComplexEntries = new ArrayList<ComponentEntry>();
+
+    public TransitionDependencyIndex(List<Transition> transitions) {
+        if (transitions == null) {
+            throw new NullPointerException();
+        }
+        for (int transitionIndex = 0; transitionIndex < transitions.size(); transitionIndex++) {
+            Transition transition = transitions.get(transitionIndex);
+            if (transition.sourceComplexes.size() == 0) {
+                if (transition.channelName != null) {
+                    // Moves any complex - cannot be narrowed by agent type
+                    anyComplexEntries.add(new ComponentEntry(transition, transitionIndex, null, 0));
+                }
+                continue;
+            }
+            for (int componentIndex = 0; componentIndex < transition.sourceComplexes.size(); componentIndex++) {
+                Complex component = transition.sourceComplexes.get(componentIndex);
+                ComponentEntry entry = new ComponentEntry(transition, transitionIndex, component, componentIndex);
+                String agentName = component.agents.get(0).name;
+                List<ComponentEntry> entries = componentsByAgentName.get(agentName);
+                if (entries == null) {
+                    entries = new ArrayList<ComponentEntry>();
+                    componentsByAgentName.put(agentName, entries);
+                }
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Get the transitions which may have instances involving the given complex, in the order given to the
+     * index. Each is mapped to those of its source components which may match the complex, in source order.
+     * Transitions acting on unspecified complexes are mapped to an empty list.
+     */
+    public Map<Transition, List<Complex>> getAffectedTransitions(Complex complex) {
+        if (complex == null) {
+            throw new NullPointerException();
+        }
+        Map<String, Integer> agentCounts = new HashMap<String, Integer>();
+        Set<String> siteKeys = new HashSet<String>();
+        for (Agent agent : complex.agents) {
+            Integer count = agentCounts.get(agent.name);
+            agentCounts.put(agent.name, count == null ? 1 : count + 1);
+            for (AgentSite site : agent.getSites()) {
+                siteKeys.add(getSiteKey(agent.name, site.name));
+            }
+        }
+
+        List<ComponentEntry> entries = new ArrayList<ComponentEntry>(anyComplexEntries);
+        for (String agentName : agentCounts.keySet()) {
+            List<ComponentEntry> candidates = componentsByAgentName.get(agentName);
+            if (candidates != null) {
+                for (ComponentEntry entry : candidates) {
+                    if (entry.isSatisfiedBy(agentCounts, siteKeys)) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        Collections.sort(entries, ComponentEntry.ORDER);
+
+        Map<Transition, List<Complex>> result = new LinkedHashMap<Transition, List<Complex>>();
+        for (ComponentEntry entry : entries) {
+            List<Complex> components = result.get(entry.transition);
+            if (components == null) {
+                components = new ArrayList<Complex>();
+                result.put(entry.transition, components);
+            }
+            if (entry.component != null) {
+                components.add(entry.component);
+            }
+        }
+        return result;
+    }
+
+    static String getSiteKey(String agentName, String siteName) {
+        return agentName + "(" + siteName;
+    }
+
+    private static class ComponentEntry {
+
+        static final Comparator<ComponentEntry> ORDER = new Comparator<ComponentEntry>() {
+            public int compare(ComponentEntry o1, ComponentEntry o2) {
+                if (o1.transitionIndex != o2.transitionIndex) {
+                    return o1.transitionIndex < o2.transitionIndex ? -1 : 1;
+                }
+                return o1.componentIndex < o2.componentIndex ? -1 : (o1.componentIndex == o2.componentIndex ? 0 : 1);
+            }
+        };
+
+        final Transition transition;
+        final int transitionIndex;
+        final Complex component;
+        final int componentIndex;
+        final Map<String, Integer> agentCounts = new HashMap<String, Integer>();
+        final Set<String> siteKeys = new HashSet<String>();
+
+        ComponentEntry(Transition transition, int transitionIndex, Complex component, int componentIndex) {
+            this.transition = transition;
+            this.transitionIndex = transitionIndex;
+            this.component = component;
+            this.componentIndex = componentIndex;
+            if (component != null) {
+                for (Agent agent : component.agents) {
+                    Integer count = agentCounts.get(agent.name);
+                    agentCounts.put(agent.name, count == null ? 1 : count + 1);
+                    // A matching agent must have every site carrying a state or link constraint
+                    for (AgentSite site : agent.getSites()) {
+                        if (site.getState() != null) {
+                            siteKeys.add(getSiteKey(agent.name, site.name));
+                        }
+                    }
+                    for (AgentLink link : component.getAgentLinks(agent)) {
+                        if (link.sourceSite.agent == agent) {
+                            siteKeys.add(getSiteKey(agent.name, link.sourceSite.name));
+                        }
+                        if (link.targetSite.agent == agent) {
+                            siteKeys.add(getSiteKey(agent.name, link.targetSite.name));
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean isSatisfiedBy(Map<String, Integer> complexAgentCounts, Set<String> complexSiteKeys) {
+            for (Map.Entry<String, Integer> entry : agentCounts.entrySet()) {
+                Integer count = complexAgentCounts.get(entry.getKey());
+                if (count == null || count < entry.getValue()) {
+                    return false;
+                }
+            }
+            return complexSiteKeys.containsAll(siteKeys);
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -34,6 +36,8 @@ import org.demonsoft.spatialkappa.model.Observation;
 import org.demonsoft.spatialkappa.model.ObservationElement;
 import org.demonsoft.spatialkappa.model.ObservationListener;
 import org.demonsoft.spatialkappa.model.Perturbation;
+import org.demonsoft.spatialkappa.model.RandomSource;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
 import org.demonsoft.spatialkappa.model.SimulationState;
 import org.demonsoft.spatialkappa.model.Transition;
 import org.demonsoft.spatialkappa.model.TransitionInstance;
@@ -50,20 +54,31 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
     private static final List<ComplexMapping> NO_COMPLEX_MAPPINGS = new ArrayList<ComplexMapping>();
     private static final List<TransitionInstance> NO_TRANSITION_INSTANCES = new ArrayList<TransitionInstance>();
     private static final TransitionInstance EMPTY_TRANSITION_INSTANCE = new TransitionInstance(NO_COMPLEX_MAPPINGS, 1);
+    private static final int[] NO_VOXEL_OFFSETS = new int[0];
     
     private List<Transition> finiteRateTransitions = new ArrayList<Transition>();
     private List<Transition> infiniteRateTransitions = new ArrayList<Transition>();
-    private final List<Perturbation> perturbations = new ArrayList<Perturbation>();
-    final Map<Transition, Boolean> infiniteRateTransitionActivityMap = new HashMap<Transition, Boolean>();
-    final Map<Transition, Float> finiteRateTransitionActivityMap = new HashMap<Transition, Float>();
+    private final List<Transition> allTransitions = new ArrayList<Transition>();
+    private final TransitionDependencyIndex transitionDependencyIndex;
+    private final List<PerturbationCondition> perturbations = new ArrayList<PerturbationCondition>();
+    // Perturbations whose conditions read each transition label count
+    private final Map<Variable, List<PerturbationCondition>> transitionLabelPerturbations = new HashMap<Variable, List<PerturbationCondition>>();
+    final Map<Transition, Boolean> infiniteRateTransitionActivityMap = new LinkedHashMap<Transition, Boolean>();
+    final Map<Transition, Float> finiteRateTransitionActivityMap = new LinkedHashMap<Transition, Float>();
+    private final PropensityTree<Transition> finiteRateTransitionPropensities = new PropensityTree<Transition>();
     final Map<Variable, Integer> transitionsFiredMap = new HashMap<Variable, Integer>();
-    private final Map<Complex, List<Complex>> complexComponentMap = new HashMap<Complex, List<Complex>>();
-    private final Map<Complex, List<Transition>> complexTransitionMap = new HashMap<Complex, List<Transition>>();
-    private final Map<Complex, List<TransitionInstance>> complexTransitionInstanceMap = new HashMap<Complex, List<TransitionInstance>>();
-    private final Map<Complex, List<ComplexMapping>> componentComplexMappingMap = new HashMap<Complex, List<ComplexMapping>>();
-    final Map<Transition, List<TransitionInstance>> transitionInstanceMap = new HashMap<Transition, List<TransitionInstance>>();
-    final Map<Complex, Integer> complexStore = new HashMap<Complex, Integer>();
-    private final Map<Variable, List<ObservableMapValue>> observableComplexMap = new HashMap<Variable, List<ObservableMapValue>>();
+    private final Map<Complex, List<Complex>> complexComponentMap = new LinkedHashMap<Complex, List<Complex>>();
+    private final Map<Complex, Map<Transition, List<TransitionInstance>>> complexTransitionInstanceMap = new LinkedHashMap<Complex, Map<Transition, List<TransitionInstance>>>();
+    private final Map<Complex, List<ComplexMapping>> componentComplexMappingMap = new LinkedHashMap<Complex, List<ComplexMapping>>();
+    final Map<Transition, List<TransitionInstance>> transitionInstanceMap = new LinkedHashMap<Transition, List<TransitionInstance>>();
+    private final Map<Transition, PropensityTree<TransitionInstance>> transitionInstancePropensities = new LinkedHashMap<Transition, PropensityTree<TransitionInstance>>();
+    // Aggregated instances of channel transitions without source complexes, one per source voxel
+    private final Map<Transition, Map<Location, VoxelMoveInstance>> voxelMoveInstances = new HashMap<Transition, Map<Location, VoxelMoveInstance>>();
+    final SpeciesStore complexStore = new SpeciesStore();
+    private final Map<Long, List<Complex>> complexStoreIndex = new HashMap<Long, List<Complex>>();
+    // Observable totals and voxel counts are updated as complex counts change, rather than recalculated per observation
+    private final Map<Variable, ObservableCount> observableCounts = new HashMap<Variable, ObservableCount>();
+    private final Map<Complex, List<ObservableMatch>> complexObservableMatches = new HashMap<Complex, List<ObservableMatch>>();
     
     private boolean stop = false;
     private boolean noTransitionsPossible = false;
@@ -72,6 +87,10 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
     int eventCount = 0;
     
     private final IKappaModel kappaModel;
+    // Copied so variable perturbations do not leak into the shared model
+    private final Map<String, Variable> variables;
+    final TransitionRates transitionRates;
+    private final RandomSource random;
     private final List<ObservationListener> observationListeners = new ArrayList<ObservationListener>();
     private final ComplexMatcher matcher = new ComplexMatcher();
     private float maximumTime;
@@ -79,29 +98,44 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
 
     
     public TransitionMatchingSimulation(IKappaModel kappaModel) {
+        this(kappaModel, new SplitMixRandomSource());
+    }
+
+    public TransitionMatchingSimulation(IKappaModel kappaModel, RandomSource random) {
+        if (random == null) {
+            throw new NullPointerException();
+        }
         this.kappaModel = kappaModel;
+        this.random = random;
+        this.variables = new HashMap<String, Variable>(kappaModel.getVariables());
+        this.transitionRates = new TransitionRates(variables);
         
         for (Map.Entry<Complex, Integer> entry : kappaModel.getFixedLocatedInitialValuesMap().entrySet()) {
             complexStore.put(entry.getKey(), entry.getValue());
+            addToComplexStoreIndex(entry.getKey());
         }
 
-        for (Variable variable : kappaModel.getVariables().values()) {
+        for (Variable variable : variables.values()) {
             if (variable.type == Type.KAPPA_EXPRESSION) {
-                observableComplexMap.put(variable, new ArrayList<ObservableMapValue>());
+                observableCounts.put(variable, new ObservableCount(variable, getVoxelCompartment(variable)));
             }
         }
 
         for (Transition transition : kappaModel.getTransitions()) {
-            transition.applyVariables(kappaModel.getVariables());
-            if (transition.isInfiniteRate(kappaModel.getVariables())) {
+            if (transitionRates.isInfiniteRate(transition)) {
                 infiniteRateTransitions.add(transition);
             }
             else {
                 finiteRateTransitions.add(transition);
             }
+            allTransitions.add(transition);
         }
+        transitionDependencyIndex = new TransitionDependencyIndex(allTransitions);
         
-        perturbations.addAll(kappaModel.getPerturbations());
+        for (Perturbation perturbation : kappaModel.getPerturbations()) {
+            perturbations.add(new PerturbationCondition(perturbation));
+        }
+        updatePerturbationDependencies();
 
         updateTransitionsFiredMap();
         initialiseActivityMaps();
@@ -157,6 +191,7 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         stop = false;
         maximumTime = Float.POSITIVE_INFINITY;
         maximumEventCount = steps * eventsPerStep;
+        markAllPerturbationsChanged();
 
         for (int stepCount = 0; stepCount < steps && !noTransitionsPossible && !stop; stepCount++) {
             resetTransitionsFiredCount();
@@ -181,6 +216,7 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         stop = false;
         maximumTime = totalTime;
         maximumEventCount = 0;
+        markAllPerturbationsChanged();
 
         do {
             resetTransitionsFiredCount();
@@ -252,14 +288,17 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
 
     private void resetTransitionsFiredCount() {
         for (Map.Entry<Variable, Integer> entry : transitionsFiredMap.entrySet()) {
-            entry.setValue(0);
+            if (entry.getValue() != 0) {
+                entry.setValue(0);
+                markPerturbationsChanged(transitionLabelPerturbations.get(entry.getKey()));
+            }
         }
     }
 
     private Observation getCurrentObservation(boolean finalEvent, float progress) {
         Map<String, ObservationElement> result = new HashMap<String, ObservationElement>();
         for (String variableName : kappaModel.getPlottedVariables()) {
-            Variable variable = kappaModel.getVariables().get(variableName);
+            Variable variable = variables.get(variableName);
             result.put(variableName, variable.evaluate(this));
         }
         long elapsedTime = Calendar.getInstance().getTimeInMillis() - startTime;
@@ -302,10 +341,17 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
     }
 
     private void applyPerturbations() {
-        ListIterator<Perturbation> iter = perturbations.listIterator();
+        ListIterator<PerturbationCondition> iter = perturbations.listIterator();
         while (iter.hasNext()) {
-            Perturbation perturbation = iter.next();
+            PerturbationCondition current = iter.next();
+            if (!current.changed) {
+                continue;
+            }
+            Perturbation perturbation = current.perturbation;
+            // A condition that is met stays marked, so the perturbation is reapplied each event until removed
+            current.changed = current.alwaysEvaluate;
             if (perturbation.isConditionMet(this)) {
+                current.changed = true;
                 perturbation.apply(this);
                 if (perturbation.isUntilConditionMet(this)) {
                     iter.remove();
@@ -314,36 +360,60 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         }
     }
 
-    private float getTimeDelta() {
-        float totalQuantity = 0;
-        for (Float current : finiteRateTransitionActivityMap.values()) {
-            totalQuantity += current;
+    /**
+     * Find the observables and transition labels read by each perturbation condition, so a condition is only
+     * evaluated when something it reads has changed. Conditions reading time or event count are evaluated at
+     * every event.
+     */
+    private void updatePerturbationDependencies() {
+        transitionLabelPerturbations.clear();
+        for (ObservableCount observableCount : observableCounts.values()) {
+            observableCount.dependentPerturbations = null;
+        }
+        for (PerturbationCondition current : perturbations) {
+            Set<Variable> dependencies = new HashSet<Variable>();
+            current.alwaysEvaluate = current.perturbation.condition.addDependencies(variables, dependencies);
+            current.changed = true;
+            for (Variable variable : dependencies) {
+                if (variable.type == Type.KAPPA_EXPRESSION) {
+                    ObservableCount observableCount = observableCounts.get(variable);
+                    if (observableCount != null) {
+                        if (observableCount.dependentPerturbations == null) {
+                            observableCount.dependentPerturbations = new ArrayList<PerturbationCondition>();
+                        }
+                        observableCount.dependentPerturbations.add(current);
+                    }
+                }
+                else {
+                    List<PerturbationCondition> dependents = transitionLabelPerturbations.get(variable);
+                    if (dependents == null) {
+                        dependents = new ArrayList<PerturbationCondition>();
+                        transitionLabelPerturbations.put(variable, dependents);
+                    }
+                    dependents.add(current);
+                }
+            }
         }
-        return (float) -Math.log(Math.random()) / totalQuantity;
     }
 
-    private Transition pickFiniteRateTransition() {
-        float totalQuantity = 0;
-        if (finiteRateTransitionActivityMap.size() == 0) {
-            return null;
-        }
-        for (Map.Entry<Transition, Float> entry : finiteRateTransitionActivityMap.entrySet()) {
-            totalQuantity += entry.getValue();
-        }
-        Transition lastTransition = null;
-        float item = (float) (totalQuantity * Math.random());
-        for (Map.Entry<Transition, Float> entry : finiteRateTransitionActivityMap.entrySet()) {
-            if (entry.getValue() > 0) {
-                lastTransition = entry.getKey();
-                if (item <= entry.getValue()) {
-                    return entry.getKey();
-                }
-                item -= entry.getValue();
+    private void markPerturbationsChanged(List<PerturbationCondition> dependents) {
+        if (dependents != null) {
+            for (PerturbationCondition current : dependents) {
+                current.changed = true;
             }
         }
-        
-        // To handle rounding errors, the last non-zero rate transition, if any, is returned by default
-        return lastTransition;
+    }
+
+    private void markAllPerturbationsChanged() {
+        markPerturbationsChanged(perturbations);
+    }
+
+    private float getTimeDelta() {
+        return (float) -Math.log(random.nextDouble()) / finiteRateTransitionPropensities.getTotal();
+    }
+
+    private Transition pickFiniteRateTransition() {
+        return finiteRateTransitionPropensities.pick(random.nextDouble());
     }
 
     private Transition pickInfiniteRateTransition() {
@@ -356,7 +426,7 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
                 totalCount++;
             }
         }
-        float item = (float) (totalCount * Math.random());
+        float item = (float) (totalCount * random.nextDouble());
         for (Map.Entry<Transition, Boolean> entry : infiniteRateTransitionActivityMap.entrySet()) {
             if (entry.getValue() && item <= 1) {
                 return entry.getKey();
@@ -371,8 +441,9 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
 
     void updateTransitionActivity(Transition transition, boolean rateChanged) {
         if (rateChanged) {
-            if (transition.isInfiniteRate(kappaModel.getVariables())) {
+            if (transitionRates.isInfiniteRate(transition)) {
                 finiteRateTransitionActivityMap.remove(transition);
+                finiteRateTransitionPropensities.remove(transition);
                 if (!infiniteRateTransitions.contains(transition)) {
                     infiniteRateTransitions.add(transition);
                     finiteRateTransitions.remove(transition);
@@ -387,42 +458,90 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
             }
         }
 
-        if (transition.isInfiniteRate(kappaModel.getVariables())) {
+        if (transitionRates.isInfiniteRate(transition)) {
+            if (transition.sourceComplexes.size() > 0 || transition.channelName != null) {
+                PropensityTree<TransitionInstance> propensities = createTransitionInstancePropensities(transition);
+                for (TransitionInstance transitionInstance : transitionInstanceMap.get(transition)) {
+                    propensities.set(transitionInstance, getTransitionInstanceActivity(transitionInstance));
+                }
+            }
             infiniteRateTransitionActivityMap.put(transition, isTransitionActive(transition));
         }
         else {
             float totalTransitionRate = 0;
             if (transition.sourceComplexes.size() == 0 && transition.channelName == null) {
-                if (transition.hasSimpleRate) {
-                    totalTransitionRate = transition.simpleRate;
+                if (transitionRates.hasSimpleRate(transition)) {
+                    totalTransitionRate = transitionRates.getSimpleRate(transition);
                 }
                 else {
-                    totalTransitionRate = transition.getRate().evaluate(this).value;
+                    totalTransitionRate = transitionRates.getRate(transition).evaluate(this).value;
                 }
                 // TODO invalid transition if using content based rate with no content defined
             }
             else {
+                PropensityTree<TransitionInstance> propensities = createTransitionInstancePropensities(transition);
                 List<TransitionInstance> transitionInstances = transitionInstanceMap.get(transition);
                 for (TransitionInstance transitionInstance : transitionInstances) {
-                    int instanceActivity = getTransitionInstanceActivity(transitionInstance);
+                    long instanceActivity = getTransitionInstanceActivity(transitionInstance);
                     float instanceRate = getTransitionInstanceRate(transitionInstance, transition);
                     transitionInstance.totalRate = instanceActivity * instanceRate;
                     totalTransitionRate += transitionInstance.totalRate;
+                    propensities.set(transitionInstance, transitionInstance.totalRate);
                 }
             }
             finiteRateTransitionActivityMap.put(transition, totalTransitionRate);
+            finiteRateTransitionPropensities.set(transition, totalTransitionRate);
         }
     }
 
 
+    private void updateTransitionActivity(Transition transition, List<TransitionInstance> changedTransitionInstances) {
+        PropensityTree<TransitionInstance> propensities = transitionInstancePropensities.get(transition);
+        boolean infiniteRate = transitionRates.isInfiniteRate(transition);
+        if (propensities == null || (!infiniteRate && !transitionRates.hasSimpleRate(transition))) {
+            // Instance rates may depend on the simulation state - recalculate them all
+            updateTransitionActivity(transition, false);
+            return;
+        }
+
+        for (TransitionInstance transitionInstance : changedTransitionInstances) {
+            if (!propensities.contains(transitionInstance)) {
+                // Instance already removed along with one of its other complexes
+                continue;
+            }
+            if (infiniteRate) {
+                propensities.set(transitionInstance, getTransitionInstanceActivity(transitionInstance));
+            }
+            else {
+                transitionInstance.totalRate = getTransitionInstanceActivity(transitionInstance) * transitionRates.getSimpleRate(transition);
+                propensities.set(transitionInstance, transitionInstance.totalRate);
+            }
+        }
+
+        float totalTransitionRate = propensities.getTotal();
+        if (infiniteRate) {
+            infiniteRateTransitionActivityMap.put(transition, totalTransitionRate > 0);
+        }
+        else {
+            finiteRateTransitionActivityMap.put(transition, totalTransitionRate);
+            finiteRateTransitionPropensities.set(transition, totalTransitionRate);
+        }
+    }
+
+    private PropensityTree<TransitionInstance> createTransitionInstancePropensities(Transition transition) {
+        PropensityTree<TransitionInstance> result = new PropensityTree<TransitionInstance>();
+        transitionInstancePropensities.put(transition, result);
+        return result;
+    }
+
     float getTransitionInstanceRate(TransitionInstance transitionInstance, Transition transition) {
         if (transitionInstance == null || transition == null) {
             throw new NullPointerException();
         }
-        if (transition.hasSimpleRate) {
-            return transition.simpleRate;
+        if (transitionRates.hasSimpleRate(transition)) {
+            return transitionRates.getSimpleRate(transition);
         }
-        return transition.getRate().evaluate(this, transitionInstance).value;
+        return transitionRates.getCompiledRate(transition).evaluate(this, transitionInstance);
     }
 
     boolean isTransitionActive(Transition transition) {
@@ -439,23 +558,39 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
     }
 
 
-    int getTransitionInstanceActivity(TransitionInstance transitionInstance) {
+    long getTransitionInstanceActivity(TransitionInstance transitionInstance) {
         if (!transitionInstance.isActivitySet) {
             throw new IllegalStateException();
         }
         return transitionInstance.activity;
     }
 
+    private void updateTransitionInstanceActivity(TransitionInstance transitionInstance, Complex changedComplex) {
+        if (transitionInstance instanceof VoxelMoveInstance) {
+            ((VoxelMoveInstance) transitionInstance).setCount(changedComplex, complexStore.get(changedComplex));
+        }
+        updateTransitionInstanceActivity(transitionInstance);
+    }
+
     void updateTransitionInstanceActivity(TransitionInstance transitionInstance) {
-        int result = 1;
-        for (Map.Entry<Complex, Integer> countEntry : transitionInstance.requiredComplexCounts.entrySet()) {
-            Integer availableCount = complexStore.get(countEntry.getKey());
-            if (availableCount == null || countEntry.getValue() > availableCount) {
+        if (transitionInstance instanceof VoxelMoveInstance) {
+            VoxelMoveInstance voxelInstance = (VoxelMoveInstance) transitionInstance;
+            voxelInstance.activity = voxelInstance.getActivity();
+            voxelInstance.isActivitySet = true;
+            return;
+        }
+        int[] speciesIds = getRequiredSpeciesIds(transitionInstance);
+        int[] requiredCounts = transitionInstance.requiredCounts;
+        // Products of large counts overflow an int
+        long result = 1;
+        for (int species = 0; species < speciesIds.length; species++) {
+            int availableCount = speciesIds[species] == SpeciesStore.NO_SPECIES ? 0 : complexStore.getCount(speciesIds[species]);
+            if (requiredCounts[species] > availableCount) {
                 transitionInstance.activity = 0;
                 transitionInstance.isActivitySet = true;
                 return;
             }
-            for (int index=0; index < countEntry.getValue(); index++) {
+            for (int index=0; index < requiredCounts[species]; index++) {
                 result *= (availableCount--);
             }
         }
@@ -465,12 +600,31 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         transitionInstance.isActivitySet = true;
     }
 
-    private Set<Transition> getAllTransitions() {
-        Set<Transition> result = new HashSet<Transition>(finiteRateTransitions);
-        result.addAll(infiniteRateTransitions);
+    /**
+     * Species ids are assigned on first use. Instances are discarded when any of their complexes leave the
+     * store, so the ids remain valid while the instance is in use.
+     */
+    private int[] getRequiredSpeciesIds(TransitionInstance transitionInstance) {
+        int[] result = transitionInstance.requiredSpeciesIds;
+        if (result == null) {
+            Complex[] complexes = transitionInstance.requiredComplexes;
+            result = new int[complexes.length];
+            boolean complete = true;
+            for (int index = 0; index < complexes.length; index++) {
+                result[index] = complexStore.getId(complexes[index]);
+                complete &= result[index] != SpeciesStore.NO_SPECIES;
+            }
+            if (complete) {
+                transitionInstance.requiredSpeciesIds = result;
+            }
+        }
         return result;
     }
 
+    private List<Transition> getAllTransitions() {
+        return allTransitions;
+    }
+
     private void updateTransitionsFiredMap() {
         for (Transition transition : getAllTransitions()) {
             if (transition.label != null) {
@@ -482,32 +636,62 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         }
     }
 
-    private void addComplexToObservables(Complex complex) {
-        for (Map.Entry<Variable, List<ObservableMapValue>> entry : observableComplexMap.entrySet()) {
-            int matchCount = matcher.getPartialMatches(entry.getKey().complex, complex).size();
-            if (matchCount > 0) {
-                entry.getValue().add(new ObservableMapValue(complex, matchCount));
+    private Compartment getVoxelCompartment(Variable variable) {
+        // TODO simplify check into single boolean in variable including user choice
+        if (variable.location != NOT_LOCATED && variable.recordVoxels) {
+            Compartment compartment = getCompartment(kappaModel.getCompartments(), variable.location.getName());
+            if (compartment != null && compartment.getDimensions().length != variable.location.getDimensionCount()) {
+                return compartment;
             }
         }
+        return null;
     }
 
-    private void removeComplexFromObservables(Complex complex) {
-        for (Map.Entry<Variable, List<ObservableMapValue>> entry : observableComplexMap.entrySet()) {
-            ObservableMapValue found = null;
-            for (ObservableMapValue current : entry.getValue()) {
-                if (complex == current.complex) {
-                    found = current;
-                    break;
+    private void addComplexToObservables(Complex complex) {
+        List<ObservableMatch> observableMatches = null;
+        for (ObservableCount observableCount : observableCounts.values()) {
+            List<ComplexMapping> mappings = matcher.getPartialMatches(observableCount.variable.complex, complex);
+            if (mappings.size() > 0) {
+                if (observableMatches == null) {
+                    observableMatches = new ArrayList<ObservableMatch>();
                 }
+                observableMatches.add(new ObservableMatch(observableCount, mappings.size(), observableCount.getVoxelOffsets(mappings)));
             }
-            if (found != null) {
-                entry.getValue().remove(found);
+        }
+        if (observableMatches != null) {
+            complexObservableMatches.put(complex, observableMatches);
+            updateObservableCounts(observableMatches, complexStore.get(complex));
+        }
+    }
+
+    private void removeComplexFromObservables(Complex complex) {
+        List<ObservableMatch> observableMatches = complexObservableMatches.remove(complex);
+        if (observableMatches != null) {
+            updateObservableCounts(observableMatches, -complexStore.get(complex));
+        }
+    }
+
+    private void setComplexCount(Complex complex, int quantity) {
+        int delta = quantity - complexStore.put(complex, quantity);
+        List<ObservableMatch> observableMatches = complexObservableMatches.get(complex);
+        if (observableMatches != null && delta != 0) {
+            updateObservableCounts(observableMatches, delta);
+        }
+    }
+
+    private void updateObservableCounts(List<ObservableMatch> observableMatches, int delta) {
+        for (ObservableMatch observableMatch : observableMatches) {
+            ObservableCount observableCount = observableMatch.observableCount;
+            observableCount.total += observableMatch.matchCount * delta;
+            markPerturbationsChanged(observableCount.dependentPerturbations);
+            for (int offset : observableMatch.voxelOffsets) {
+                observableCount.voxelCounts[offset] += delta;
             }
         }
     }
     
     public Variable getVariable(String name) {
-        return kappaModel.getVariables().get(name);
+        return variables.get(name);
     }
 
     private Map<String, Integer> getCountsPerAgent() {
@@ -515,7 +699,7 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
 
         for (String agentName : kappaModel.getAgentDeclarationMap().keySet()) {
             int count = 0;
-            for (Complex complex : complexStore.keySet()) {
+            for (Complex complex : complexStore.getComplexes()) {
                 int instanceCount = 0;
                 for (Agent currentAgent : complex.agents) {
                     if (agentName.equals(currentAgent.name)) {
@@ -545,13 +729,14 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
             Variable variable = getVariable(transition.label);
             if (variable != null && Variable.Type.TRANSITION_LABEL == variable.type) {
                 transitionsFiredMap.put(variable, transitionsFiredMap.get(variable) + 1);
+                markPerturbationsChanged(transitionLabelPerturbations.get(variable));
             }
         }
         eventCount++;
     }
 
     public Map<String, Variable> getVariables() {
-        return kappaModel.getVariables();
+        return variables;
     }
 
     public ObservationElement getTransitionFiredCount(Variable variable) {
@@ -567,6 +752,17 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         return ObservationElement.ZERO;
     }
 
+    public float getTransitionFiredCountValue(Variable variable) {
+        if (variable == null) {
+            throw new NullPointerException();
+        }
+        if (variable.type != Variable.Type.TRANSITION_LABEL) {
+            throw new IllegalArgumentException();
+        }
+        Integer count = transitionsFiredMap.get(variable);
+        return count == null ? 0 : count;
+    }
+
     public void addComplexInstances(List<Agent> agents, int amount) {
         if (agents == null) {
             throw new NullPointerException();
@@ -582,12 +778,13 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
             if (canonicalComplex == null) {
                 if (amount > 0) {
                     complexStore.put(complex, amount);
+                    addToComplexStoreIndex(complex);
                     increaseTransitionActivities(complex, true);
                 }
             }
             else {
                 int quantity = Math.max(0, complexStore.get(canonicalComplex) + amount);
-                complexStore.put(canonicalComplex, quantity);
+                setComplexCount(canonicalComplex, quantity);
                 if (amount > 0) {
                     increaseTransitionActivities(canonicalComplex, false);
                 }
@@ -604,14 +801,15 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         }
         Transition transition = getTransition(name);
         if (transition != null) {
-            transition.setRate(rateExpression, kappaModel.getVariables());
+            transitionRates.setRate(transition, rateExpression);
             updateTransitionActivity(transition, true);
             return;
         }
         Variable variable = getVariable(name);
         if (variable != null) {
-            kappaModel.addVariable(rateExpression, name);
+            variables.put(name, new Variable(rateExpression, name));
             updateVariableEffectsOnTransitions();
+            updatePerturbationDependencies();
             return;
         }
         
@@ -619,28 +817,183 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
     }
 
     private void updateVariableEffectsOnTransitions() {
+        transitionRates.applyVariables();
         for (Transition transition : getAllTransitions()) {
-            if (transition.applyVariables(kappaModel.getVariables())) {
-                updateTransitionActivity(transition, true);
+            updateTransitionActivity(transition, true);
+        }
+    }
+
+    private static class ObservableCount {
+
+        final Variable variable;
+        final Compartment compartment;
+        final int[] voxelCounts;
+        int total;
+        List<PerturbationCondition> dependentPerturbations;
+
+        ObservableCount(Variable variable, Compartment compartment) {
+            this.variable = variable;
+            this.compartment = compartment;
+            if (compartment == null) {
+                this.voxelCounts = null;
+            }
+            else {
+                int voxelCount = 1;
+                for (int dimension : compartment.getDimensions()) {
+                    voxelCount *= dimension;
+                }
+                this.voxelCounts = new int[voxelCount];
+            }
+        }
+
+        /**
+         * Row major voxel offsets of the mappings whose agents all share a single location.
+         */
+        int[] getVoxelOffsets(List<ComplexMapping> mappings) {
+            if (compartment == null) {
+                return NO_VOXEL_OFFSETS;
+            }
+            int[] dimensions = compartment.getDimensions();
+            int[] result = new int[mappings.size()];
+            int resultCount = 0;
+            for (ComplexMapping mapping : mappings) {
+                Location location = null;
+                boolean locationMatch = true;
+                for (Agent agent : mapping.mapping.values()) {
+                    if (location == null) {
+                        location = agent.location;
+                    }
+                    else if (!agent.location.equals(location)) {
+                        locationMatch = false;
+                        break;
+                    }
+                }
+                if (locationMatch && location != null) {
+                    int[] indices = location.getFixedIndices();
+                    int offset = 0;
+                    for (int index = 0; index < indices.length; index++) {
+                        offset = offset * dimensions[index] + indices[index];
+                    }
+                    result[resultCount++] = offset;
+                }
+            }
+            if (resultCount < result.length) {
+                int[] trimmed = new int[resultCount];
+                System.arraycopy(result, 0, trimmed, 0, resultCount);
+                result = trimmed;
+            }
+            return result;
+        }
+
+        ObservationElement getObservationElement() {
+            if (compartment == null) {
+                return new ObservationElement(total);
             }
+            Serializable[] voxelValues = compartment.createVoxelArray();
+            fillVoxelValues(voxelValues, 0, 0);
+            return new ObservationElement(total, compartment.getDimensions(), compartment.getName(), voxelValues);
+        }
+
+        private int fillVoxelValues(Serializable[] voxelValues, int dimension, int offset) {
+            for (int index = 0; index < voxelValues.length; index++) {
+                if (dimension == compartment.getDimensions().length - 1) {
+                    voxelValues[index] = voxelCounts[offset++];
+                }
+                else {
+                    offset = fillVoxelValues((Serializable[]) voxelValues[index], dimension + 1, offset);
+                }
+            }
+            return offset;
+        }
+    }
+
+    private static class PerturbationCondition {
+
+        final Perturbation perturbation;
+        boolean alwaysEvaluate;
+        // Whether the condition may have changed since it was last found to be unmet
+        boolean changed = true;
+
+        PerturbationCondition(Perturbation perturbation) {
+            this.perturbation = perturbation;
         }
     }
 
-    public static class ObservableMapValue {
+    private static class ObservableMatch {
 
-        public final Complex complex;
-        public final int count;
+        final ObservableCount observableCount;
+        final int matchCount;
+        final int[] voxelOffsets;
+
+        ObservableMatch(ObservableCount observableCount, int matchCount, int[] voxelOffsets) {
+            this.observableCount = observableCount;
+            this.matchCount = matchCount;
+            this.voxelOffsets = voxelOffsets;
+        }
+    }
 
-        public ObservableMapValue(Complex complex, int count) {
-            this.complex = complex;
-            this.count = count;
+    /**
+     * All complexes in one source voxel of a channel transition without source complexes. The activity is
+     * the total complex count times the number of channel targets from the voxel, and the complex to move
+     * is only chosen when the transition fires.
+     */
+    static class VoxelMoveInstance extends TransitionInstance {
+
+        final Location location;
+        // Single complex instances, reused each time one is picked. Their activity holds the exact complex 
+        // count, and the tree holds it as a weight for picking.
+        private final Map<Complex, TransitionInstance> complexInstances = new IdentityHashMap<Complex, TransitionInstance>();
+        private final PropensityTree<TransitionInstance> complexCounts = new PropensityTree<TransitionInstance>();
+        long totalCount;
+
+        VoxelMoveInstance(Location location, int targetLocationCount) {
+            super(NO_COMPLEX_MAPPINGS, targetLocationCount);
+            this.location = location;
+        }
+
+        int size() {
+            return complexInstances.size();
+        }
+
+        void add(Complex complex) {
+            if (!complexInstances.containsKey(complex)) {
+                TransitionInstance complexInstance = new TransitionInstance(getList(new ComplexMapping(complex)), targetLocationCount);
+                complexInstances.put(complex, complexInstance);
+                complexCounts.set(complexInstance, 0);
+            }
+        }
+
+        void setCount(Complex complex, int count) {
+            TransitionInstance complexInstance = complexInstances.get(complex);
+            if (complexInstance != null) {
+                totalCount += count - complexInstance.activity;
+                complexInstance.activity = count;
+                complexCounts.set(complexInstance, count);
+            }
+        }
+
+        void remove(Complex complex) {
+            TransitionInstance complexInstance = complexInstances.remove(complex);
+            if (complexInstance != null) {
+                totalCount -= complexInstance.activity;
+                complexCounts.remove(complexInstance);
+            }
         }
 
-        @Override
-        public String toString() {
-            return complex.toString();
+        /**
+         * @return the instance for a single complex, chosen in proportion to the complex counts, or 
+         * <code>null</code> if the voxel is empty.
+         */
+        TransitionInstance pickComplexInstance(double randomValue) {
+            return complexCounts.pick(randomValue);
         }
 
+        /**
+         * @return the activity.
+         */
+        long getActivity() {
+            return totalCount * targetLocationCount;
+        }
     }
 
     private void initialiseActivityMaps() {
@@ -656,7 +1009,7 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
             }
         }
 
-        for (Complex complex : complexStore.keySet()) {
+        for (Complex complex : complexStore.getComplexes()) {
             increaseTransitionActivities(complex, true);
         }
     }
@@ -705,7 +1058,7 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
     }
 
     private List<Complex> getActiveComplexes() {
-        List<Complex> complexes = new ArrayList<Complex>(complexStore.keySet());
+        List<Complex> complexes = complexStore.getComplexes();
         ListIterator<Complex> iter = complexes.listIterator();
         while (iter.hasNext()) {
             Complex complex = iter.next();
@@ -731,32 +1084,45 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
             if (concreteInstance == null) {
                 return false;
             }
+            if (concreteInstance instanceof VoxelMoveInstance) {
+                concreteInstance = ((VoxelMoveInstance) concreteInstance).pickComplexInstance(random.nextDouble());
+                if (concreteInstance == null) {
+                    return false;
+                }
+            }
         }
         
         if (incrementTime) {
             time += getTimeDelta();
         }
 
+        List<Complex> resultComplexes = transition.apply(concreteInstance, kappaModel.getChannels(), kappaModel.getCompartments(), random);
+        
         if (transition.sourceComplexes.size() > 0 || transition.channelName != null) {
-            for (ComplexMapping complexMapping : concreteInstance.sourceMapping) {
-                int quantity = complexStore.get(complexMapping.target) - 1;
-                complexStore.put(complexMapping.target, quantity);
-                reduceTransitionActivities(complexMapping.target);
+            int[] speciesIds = getRequiredSpeciesIds(concreteInstance);
+            for (int index = 0; index < speciesIds.length; index++) {
+                Complex complex = concreteInstance.requiredComplexes[index];
+                // Complexes returned unchanged by the transition keep their count
+                int consumed = concreteInstance.requiredCounts[index] 
+                        - removeUnchangedComplexes(resultComplexes, complex, concreteInstance.requiredCounts[index]);
+                if (consumed > 0) {
+                    setComplexCount(complex, complexStore.getCount(speciesIds[index]) - consumed);
+                    reduceTransitionActivities(complex);
+                }
             }
         }
         
         incrementTransitionsFired(transition);
 
-        List<Complex> resultComplexes = transition.apply(concreteInstance, kappaModel.getChannels(), kappaModel.getCompartments());
-        
         for (Complex complex : resultComplexes) {
             Complex canonicalComplex = getCanonicalComplex(complex);
             if (canonicalComplex == null) {
                 complexStore.put(complex, 1);
+                addToComplexStoreIndex(complex);
                 increaseTransitionActivities(complex, true);
             }
             else {
-                complexStore.put(canonicalComplex, complexStore.get(canonicalComplex) + 1);
+                setComplexCount(canonicalComplex, complexStore.get(canonicalComplex) + 1);
                 increaseTransitionActivities(canonicalComplex, false);
             }
         }
@@ -764,65 +1130,81 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         return true;
     }
 
+    /**
+     * Remove up to maxCount occurrences of the given complex instance from the transition results.
+     * 
+     * @return the number removed.
+     */
+    private int removeUnchangedComplexes(List<Complex> resultComplexes, Complex complex, int maxCount) {
+        int result = 0;
+        for (int index = resultComplexes.size() - 1; index >= 0 && result < maxCount; index--) {
+            if (resultComplexes.get(index) == complex) {
+                resultComplexes.remove(index);
+                result++;
+            }
+        }
+        return result;
+    }
+
     private Complex getCanonicalComplex(Complex complex) {
-        for (Complex current : complexStore.keySet()) {
-            if (matcher.isExactMatch(complex, current)) {
-                return current;
+        List<Complex> candidates = complexStoreIndex.get(complex.getFingerprint());
+        if (candidates != null) {
+            for (Complex current : candidates) {
+                if (matcher.isExactMatch(complex, current)) {
+                    return current;
+                }
             }
         }
         return null;
     }
 
-    TransitionInstance pickTransitionInstance(Transition transition) {
-        
-        List<TransitionInstance> transitionInstances = transitionInstanceMap.get(transition);
-        if (transitionInstances.size() == 0) {
-            return null;
+    private void addToComplexStoreIndex(Complex complex) {
+        Long key = complex.getFingerprint();
+        List<Complex> complexes = complexStoreIndex.get(key);
+        if (complexes == null) {
+            complexes = new ArrayList<Complex>(1);
+            complexStoreIndex.put(key, complexes);
         }
+        complexes.add(complex);
+    }
 
-        boolean infiniteRate = transition.isInfiniteRate(getVariables());
-        float totalTransitionRate = 0;
-        if (infiniteRate) {
-            // TODO - worth caching this ?
-            for (TransitionInstance transitionInstance : transitionInstances) {
-                totalTransitionRate += transitionInstance.activity;
+    private void removeFromComplexStoreIndex(Complex complex) {
+        Long key = complex.getFingerprint();
+        List<Complex> complexes = complexStoreIndex.get(key);
+        if (complexes != null) {
+            complexes.remove(complex);
+            if (complexes.size() == 0) {
+                complexStoreIndex.remove(key);
             }
         }
-        else {
-            totalTransitionRate = finiteRateTransitionActivityMap.get(transition);
-        }
+    }
 
-        TransitionInstance lastInstance = null;
-        float randomValue = (float) (totalTransitionRate * Math.random());
-        for (TransitionInstance transitionInstance : transitionInstances) {
-            float rate = infiniteRate ? transitionInstance.activity : transitionInstance.totalRate;
-            if (rate > 0) {
-                lastInstance = transitionInstance;
-                if (randomValue < rate) {
-                    break;
-                }
-                randomValue -= rate;
-            }
+    TransitionInstance pickTransitionInstance(Transition transition) {
+        if (transition == null) {
+            throw new NullPointerException();
+        }
+        PropensityTree<TransitionInstance> propensities = transitionInstancePropensities.get(transition);
+        if (propensities == null) {
+            return null;
         }
-        return lastInstance;
+        return propensities.pick(random.nextDouble());
     }
 
     private void increaseTransitionActivities(Complex complex, boolean isNewComplex) {
-        List<TransitionInstance> affectedTransitionInstances;
-        List<Transition> affectedTransitions;
+        Map<Transition, List<TransitionInstance>> affectedTransitionInstances;
         
         if (isNewComplex) {
             List<Complex> affectedTransitionComponents = new ArrayList<Complex>();
-            affectedTransitions = new ArrayList<Transition>();
-            affectedTransitionInstances = new ArrayList<TransitionInstance>();
+            affectedTransitionInstances = new LinkedHashMap<Transition, List<TransitionInstance>>();
             complexComponentMap.put(complex, affectedTransitionComponents);
-            complexTransitionMap.put(complex, affectedTransitions);
             complexTransitionInstanceMap.put(complex, affectedTransitionInstances);
     
-            for (Transition transition : getAllTransitions()) {
+            // Only transitions with components able to match the agent types and sites of the complex
+            for (Map.Entry<Transition, List<Complex>> affected : transitionDependencyIndex.getAffectedTransitions(complex).entrySet()) {
+                Transition transition = affected.getKey();
                 boolean found = false;
                 List<TransitionInstance> newTransitionInstances = new ArrayList<TransitionInstance>();
-                for (Complex component : transition.sourceComplexes) {
+                for (Complex component : affected.getValue()) {
                     List<ComplexMapping> mappings = matcher.getPartialMatches(component, complex);
                     if (mappings.size() > 0) {
                         affectedTransitionComponents.add(component);
@@ -834,23 +1216,31 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
                 }
                 // TODO replace below with transition type enum for clarity ?
                 if (transition.sourceComplexes.size() == 0 && transition.channelName != null) {
-                    // Unspecified source complex
+                    // Unspecified source complex - all complexes in a voxel share one instance
                     Location complexLocation = complex.getSingleLocation();
                     if (complexLocation != null && transition.leftLocation.isRefinement(complexLocation)) {
-                        Channel channel = kappaModel.getChannel(transition.channelName);
-                        List<Location> targetLocations = channel.applyChannel(complexLocation, transition.rightLocation, kappaModel.getCompartments());
-                        if (targetLocations.size() > 0) {
+                        VoxelMoveInstance voxelInstance = getVoxelMoveInstance(transition, complexLocation);
+                        if (voxelInstance != null) {
                             // TODO - check move can actually be applied
-                            newTransitionInstances.add(new TransitionInstance(
-                                    getList(new ComplexMapping(complex)), targetLocations.size()));
+                            voxelInstance.add(complex);
+                            newTransitionInstances.add(voxelInstance);
                             found = true;
                         }
                     }
                 }
                 if (found) {
-                    affectedTransitions.add(transition);
-                    affectedTransitionInstances.addAll(newTransitionInstances);
-                    transitionInstanceMap.get(transition).addAll(newTransitionInstances);
+                    affectedTransitionInstances.put(transition, newTransitionInstances);
+                    for (TransitionInstance transitionInstance : newTransitionInstances) {
+                        if (!(transitionInstance instanceof VoxelMoveInstance) || ((VoxelMoveInstance) transitionInstance).size() == 1) {
+                            transitionInstanceMap.get(transition).add(transitionInstance);
+                        }
+                    }
+                    PropensityTree<TransitionInstance> propensities = transitionInstancePropensities.get(transition);
+                    if (propensities != null) {
+                        for (TransitionInstance transitionInstance : newTransitionInstances) {
+                            propensities.set(transitionInstance, 0);
+                        }
+                    }
                 }
             }
     
@@ -858,21 +1248,65 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         }
         else {
             affectedTransitionInstances = complexTransitionInstanceMap.get(complex);
-            affectedTransitions = complexTransitionMap.get(complex);
         }
         
-        for (TransitionInstance transitionInstance : affectedTransitionInstances) {
-            updateTransitionInstanceActivity(transitionInstance);
+        for (List<TransitionInstance> transitionInstances : affectedTransitionInstances.values()) {
+            for (TransitionInstance transitionInstance : transitionInstances) {
+                updateTransitionInstanceActivity(transitionInstance, complex);
+            }
         }
-        for (Transition transition : affectedTransitions) {
-            updateTransitionActivity(transition, false);
+        for (Map.Entry<Transition, List<TransitionInstance>> entry : affectedTransitionInstances.entrySet()) {
+            updateTransitionActivity(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the aggregated instance of a channel transition without source complexes for the given
+     * voxel, creating it if needed, or null if the channel has no targets from the voxel.
+     */
+    private VoxelMoveInstance getVoxelMoveInstance(Transition transition, Location location) {
+        Map<Location, VoxelMoveInstance> instances = voxelMoveInstances.get(transition);
+        if (instances == null) {
+            instances = new HashMap<Location, VoxelMoveInstance>();
+            voxelMoveInstances.put(transition, instances);
+        }
+        VoxelMoveInstance result = instances.get(location);
+        if (result == null) {
+            Channel channel = kappaModel.getChannel(transition.channelName);
+            int targetLocationCount = channel.applyChannel(location, transition.rightLocation, kappaModel.getCompartments()).size();
+            if (targetLocationCount == 0) {
+                return null;
+            }
+            result = new VoxelMoveInstance(location, targetLocationCount);
+            instances.put(location, result);
+        }
+        return result;
+    }
+
+    private void removeFromVoxelMoveInstance(Transition transition, VoxelMoveInstance voxelInstance, Complex complex) {
+        voxelInstance.remove(complex);
+        if (voxelInstance.size() > 0) {
+            updateTransitionInstanceActivity(voxelInstance);
+            return;
+        }
+        voxelMoveInstances.get(transition).remove(voxelInstance.location);
+        List<TransitionInstance> transitionInstances = transitionInstanceMap.get(transition);
+        for (int index = 0; index < transitionInstances.size(); index++) {
+            if (transitionInstances.get(index) == voxelInstance) {
+                transitionInstances.remove(index);
+                break;
+            }
+        }
+        PropensityTree<TransitionInstance> propensities = transitionInstancePropensities.get(transition);
+        if (propensities != null) {
+            propensities.remove(voxelInstance);
         }
     }
 
     List<TransitionInstance> getNewTransitionInstances(Transition transition, 
             List<ComplexMapping> newComponentComplexMappings, 
             Map<Complex, List<ComplexMapping>> allComponentComplexMappings,
-            Map<Complex, Integer> complexCounts, List<Channel> channels, List<Compartment> compartments) {
+            SpeciesStore complexCounts, List<Channel> channels, List<Compartment> compartments) {
         
         if (transition == null || newComponentComplexMappings == null || allComponentComplexMappings == null
                 || complexCounts == null || channels == null || compartments == null) {
@@ -994,26 +1428,33 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
 
     // TODO on the list to be removed...
     void removeTransitionInstances(List<TransitionInstance> transitionInstances, Complex complex) {
+        removeTransitionInstances(transitionInstances, complex, null);
+    }
+
+    private void removeTransitionInstances(List<TransitionInstance> transitionInstances, Complex complex,
+            PropensityTree<TransitionInstance> propensities) {
         if (transitionInstances == null || complex == null) {
             throw new NullPointerException();
         }
         ListIterator<TransitionInstance> iter = transitionInstances.listIterator();
         while (iter.hasNext()) {
             TransitionInstance transitionInstance = iter.next();
-            if (transitionInstance.requiredComplexCounts.containsKey(complex)) {
+            if (transitionInstance.isComplexRequired(complex)) {
                 iter.remove();
+                if (propensities != null) {
+                    propensities.remove(transitionInstance);
+                }
             }
         }
     }
 
     private void reduceTransitionActivities(Complex complex) {
-        List<Transition> affectedTransitions = complexTransitionMap.get(complex);
+        Map<Transition, List<TransitionInstance>> affectedTransitionInstances = complexTransitionInstanceMap.get(complex);
         int quantity = complexStore.get(complex);
 
         if (quantity == 0) {
             List<Complex> affectedTransitionComponents = complexComponentMap.get(complex);
             complexComponentMap.remove(complex);
-            complexTransitionMap.remove(complex);
             complexTransitionInstanceMap.remove(complex);
     
             for (Complex transitionComponent : affectedTransitionComponents) {
@@ -1026,22 +1467,35 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
                 }
             }
             
-            for (Transition transition : affectedTransitions) {
-                removeTransitionInstances(transitionInstanceMap.get(transition), complex);
+            for (Map.Entry<Transition, List<TransitionInstance>> entry : affectedTransitionInstances.entrySet()) {
+                Transition transition = entry.getKey();
+                removeTransitionInstances(transitionInstanceMap.get(transition), complex, transitionInstancePropensities.get(transition));
+                for (TransitionInstance transitionInstance : entry.getValue()) {
+                    if (transitionInstance instanceof VoxelMoveInstance) {
+                        removeFromVoxelMoveInstance(transition, (VoxelMoveInstance) transitionInstance, complex);
+                    }
+                }
             }
             
             removeComplexFromObservables(complex);
             
             complexStore.remove(complex);
+            removeFromComplexStoreIndex(complex);
+
+            // Only surviving voxel instances still need their propensities updated
+            for (Map.Entry<Transition, List<TransitionInstance>> entry : affectedTransitionInstances.entrySet()) {
+                updateTransitionActivity(entry.getKey(), entry.getValue());
+            }
         }
         else {
-            List<TransitionInstance> affectedTransitionInstances = complexTransitionInstanceMap.get(complex);
-            for (TransitionInstance transitionInstance : affectedTransitionInstances) {
-                updateTransitionInstanceActivity(transitionInstance);
+            for (List<TransitionInstance> transitionInstances : affectedTransitionInstances.values()) {
+                for (TransitionInstance transitionInstance : transitionInstances) {
+                    updateTransitionInstanceActivity(transitionInstance, complex);
+                }
+            }
+            for (Map.Entry<Transition, List<TransitionInstance>> entry : affectedTransitionInstances.entrySet()) {
+                updateTransitionActivity(entry.getKey(), entry.getValue());
             }
-        }
-        for (Transition transition : affectedTransitions) {
-            updateTransitionActivity(transition, false);
         }
     }
 
@@ -1050,63 +1504,19 @@ public class TransitionMatchingSimulation implements Simulation, SimulationState
         if (variable == null) {
             throw new NullPointerException();
         }
-        int value = 0;
-        int[] dimensions = null;
-        Serializable[] voxelValues = null;
-        List<ObservableMapValue> complexes = observableComplexMap.get(variable);
-        if (complexes != null) {
-
-            for (ObservableMapValue current : complexes) {
-                value += current.count * complexStore.get(current.complex);
-            }
-            
-            // TODO simplify check into single boolean in variable including user choice
-            if (variable.location != NOT_LOCATED && variable.recordVoxels) {
-                Compartment compartment = getCompartment(kappaModel.getCompartments(), variable.location.getName());
-                if (compartment.getDimensions().length != variable.location.getDimensionCount()) {
-                    dimensions = compartment.getDimensions();
-                    voxelValues = compartment.createVoxelArray();
-                    Set<Complex> processedComplexes = new HashSet<Complex>();
-                    
-                    for (ObservableMapValue current : complexes) {
-                        if (!processedComplexes.contains(current.complex)) {
-                            int quantity = complexStore.get(current.complex);
-                            addVoxelValues(voxelValues, quantity, variable.complex, current.complex);
-                            processedComplexes.add(current.complex);
-                        }
-                    }
-                    return new ObservationElement(value, dimensions, compartment.getName(), voxelValues);
-                }
-            }
+        ObservableCount observableCount = observableCounts.get(variable);
+        if (observableCount == null) {
+            return new ObservationElement(0);
         }
-        return new ObservationElement(value);
+        return observableCount.getObservationElement();
     }
 
-    private void addVoxelValues(Object voxelValues, int quantity, Complex template, Complex complex) {
-        List<ComplexMapping> matches = matcher.getPartialMatches(template, complex);
-        for (ComplexMapping match : matches) {
-            Location location = null;
-            boolean locationMatch = true;
-            for (Agent agent : match.mapping.values()) {
-                if (location == null) {
-                    location = agent.location;
-                }
-                else if (!agent.location.equals(location)) {
-                    locationMatch = false;
-                    break;
-                }
-            }
-            if (locationMatch) {
-                @SuppressWarnings("null")
-                int[] indices = location.getFixedIndices();
-                Object slice = voxelValues;
-                for (int index = 0; index < indices.length - 1; index++) {
-                    slice = ((Object[]) slice)[indices[index]];
-                }
-                int index = indices[indices.length - 1];
-                ((Serializable[]) slice)[index] = ((Integer) ((Serializable[]) slice)[index]) + quantity;
-            }
+    public float getComplexQuantityValue(Variable variable) {
+        if (variable == null) {
+            throw new NullPointerException();
         }
+        ObservableCount observableCount = observableCounts.get(variable);
+        return observableCount == null ? 0 : observableCount.total;
     }
 
 
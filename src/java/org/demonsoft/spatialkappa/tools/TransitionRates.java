@@ -0,0 +1,108 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.demonsoft.spatialkappa.model.CompiledExpression;
+import org.demonsoft.spatialkappa.model.Transition;
+import org.demonsoft.spatialkappa.model.Variable;
+import org.demonsoft.spatialkappa.model.VariableExpression;
+
+/**
+ * Rates of transitions as seen by a single simulation. Transitions are shared model objects, so rate
+ * changes and pre-evaluated rates are held here rather than on the transitions themselves.
+ */
+class TransitionRates {
+
+    private final Map<Transition, Rate> rates = new IdentityHashMap<Transition, Rate>();
+    private final Map<String, Variable> variables;
+
+    public TransitionRates(Map<String, Variable> variables) {
+        if (variables == null) {
+            throw new NullPointerException();
+        }
+        this.variables = variables;
+    }
+
+    public VariableExpression getRate(Transition transition) {
+        return getEntry(transition).rate;
+    }
+
+    /**
+     * @return the rate compiled against the current variables, for rates that are not simple.
+     */
+    public CompiledExpression getCompiledRate(Transition transition) {
+        Rate entry = getEntry(transition);
+        if (entry.compiledRate == null) {
+            entry.compiledRate = entry.rate.compile(variables);
+        }
+        return entry.compiledRate;
+    }
+
+    public void setRate(Transition transition, VariableExpression rate) {
+        if (rate == null) {
+            throw new NullPointerException();
+        }
+        Rate entry = getEntry(transition);
+        entry.rate = rate;
+        entry.applyVariables(variables);
+    }
+
+    /**
+     * Re-evaluate the cached rates after a variable change.
+     */
+    public void applyVariables() {
+        for (Rate rate : rates.values()) {
+            rate.applyVariables(variables);
+        }
+    }
+
+    public boolean hasSimpleRate(Transition transition) {
+        return getEntry(transition).hasSimpleRate;
+    }
+
+    public float getSimpleRate(Transition transition) {
+        return getEntry(transition).simpleRate;
+    }
+
+    public boolean isInfiniteRate(Transition transition) {
+        Rate entry = getEntry(transition);
+        if (entry.hasSimpleRate) {
+            return Float.POSITIVE_INFINITY == entry.simpleRate;
+        }
+        return entry.rate.isInfinite(variables);
+    }
+
+    private Rate getEntry(Transition transition) {
+        if (transition == null) {
+            throw new NullPointerException();
+        }
+        Rate result = rates.get(transition);
+        if (result == null) {
+            result = new Rate(transition.getRate());
+            result.applyVariables(variables);
+            rates.put(transition, result);
+        }
+        return result;
+    }
+
+    private static class Rate {
+
+        VariableExpression rate;
+        boolean hasSimpleRate;
+        float simpleRate;
+        CompiledExpression compiledRate;
+
+        Rate(VariableExpression rate) {
+            this.rate = rate;
+        }
+
+        void applyVariables(Map<String, Variable> variables) {
+            compiledRate = null;
+            hasSimpleRate = rate.isFixed(variables);
+            if (hasSimpleRate) {
+                simpleRate = rate.evaluate(variables);
+            }
+        }
+    }
+}
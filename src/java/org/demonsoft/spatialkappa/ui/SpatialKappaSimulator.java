@@ -6,10 +6,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -40,9 +41,15 @@ import org.demonsoft.spatialkappa.model.Observation;
 import org.demonsoft.spatialkappa.model.ObservationElement;
 import org.demonsoft.spatialkappa.model.ObservationListener;
 import org.demonsoft.spatialkappa.model.Utils;
+import org.demonsoft.spatialkappa.tools.BinaryTrajectoryReader;
+import org.demonsoft.spatialkappa.tools.IndexedTrajectory;
+import org.demonsoft.spatialkappa.tools.KaSimTrajectoryWriter;
+import org.demonsoft.spatialkappa.tools.ObservationDispatcher;
+import org.demonsoft.spatialkappa.tools.ObservationDispatcher.Backpressure;
 import org.demonsoft.spatialkappa.tools.RecordSimulation;
 import org.demonsoft.spatialkappa.tools.ReplaySimulation;
 import org.demonsoft.spatialkappa.tools.Simulation;
+import org.demonsoft.spatialkappa.tools.TrajectoryWriter;
 import org.demonsoft.spatialkappa.tools.TransitionMatchingSimulation;
 import org.demonsoft.spatialkappa.tools.Version;
 import org.jfree.chart.ChartFactory;
@@ -82,6 +89,7 @@ public class SpatialKappaSimulator implements ActionListener, ObservationListene
 
     private IKappaModel model;
     protected Simulation simulation;
+    private ObservationDispatcher observationDispatcher;
     protected File kappaFile;
     protected File replayFile;
     JFrame frame;
@@ -317,14 +325,17 @@ public class SpatialKappaSimulator implements ActionListener, ObservationListene
 
     private void removeSimulation() {
         if (simulation != null) {
-            simulation.removeObservationListener(this);
+            simulation.removeObservationListener(observationDispatcher);
+            observationDispatcher.close();
+            observationDispatcher = null;
             simulation = null;
         }
     }
 
     private Simulation createRecordSimulation() throws Exception {
         replayFile = createRecordFile(kappaFile);
-        return new RecordSimulation(createSimulation(model), replayFile);
+        TrajectoryWriter writer = new KaSimTrajectoryWriter(new BufferedWriter(new FileWriter(replayFile)));
+        return new RecordSimulation(createSimulation(model), writer, true);
     }
 
     private File createRecordFile(File inputFile) throws Exception {
@@ -370,8 +381,12 @@ public class SpatialKappaSimulator implements ActionListener, ObservationListene
     
     
 
-    private Simulation createReplaySimulation() throws FileNotFoundException {
-        return new ReplaySimulation(new FileReader(replayFile), (Integer) toolbarSpinnerModelReplayInterval.getValue());
+    private Simulation createReplaySimulation() throws IOException {
+        int interval = (Integer) toolbarSpinnerModelReplayInterval.getValue();
+        if (BinaryTrajectoryReader.isBinaryTrajectory(replayFile)) {
+            return new ReplaySimulation(new IndexedTrajectory(replayFile), interval);
+        }
+        return new ReplaySimulation(new FileReader(replayFile), interval);
     }
 
     private Simulation createSimulation(IKappaModel kappaModel) throws Exception {
@@ -405,7 +420,10 @@ public class SpatialKappaSimulator implements ActionListener, ObservationListene
             else {
                 simulation = createRecordSimulation();
             }
-            simulation.addObservationListener(this);
+            // Chart updates wait for the event dispatch thread, so keep them off the simulation thread.
+            // Live runs only need the latest state when the chart falls behind, replays show every point
+            observationDispatcher = new ObservationDispatcher(this, replay ? Backpressure.BLOCK : Backpressure.COALESCE);
+            simulation.addObservationListener(observationDispatcher);
 
             String simulationName = replay ? replayFile.getName() : kappaFile.getName();
             Observation observation = simulation.getCurrentObservation();
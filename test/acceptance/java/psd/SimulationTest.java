@@ -250,6 +250,14 @@ public class SimulationTest {
                  });
     }
 
+    @Test
+    public void testTest1_9_largeInitialCounts() throws Exception {
+        // Instance activities of these counts exceed the int range
+        simulation = createSimulation("test-1-9-output.ka");
+        simulation.runByEvent(10, 500);
+        assertEquals(5000, currentObservation.event);
+    }
+
     private void checkEventSimulation(String inputModelFilename, String[] observableNames, int eventsPerStep, float accuracy, float[][] expectedObservableValues) throws Exception {
         simulation = createSimulation(inputModelFilename);
         
@@ -0,0 +1,56 @@
+package org.demonsoft.spatialkappa.model;
+
+import static org.demonsoft.spatialkappa.model.Location.NOT_LOCATED;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Target voxel calculation for each predefined channel type, from the centre voxel of a compartment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+
+    @Param({ "EdgeNeighbour", "Neighbour", "Hexagonal", "FaceNeighbour", "Radial", "RadialOut", "RadialIn", "Lateral" })
+    public String channelType;
+
+    private List<Compartment> compartments;
+    private Channel channel;
+    private Location sourceLocation;
+
+    @Setup
+    public void setup() throws Exception {
+        // Face neighbours are only defined for 3D compartments
+        boolean is3D = ChannelComponent.FaceNeighbourComponent.NAME.equals(channelType);
+        String model = 
+                "%compartment: space " + (is3D ? "[20][20][20]" : "[20][20]") + "\n" +
+                "%channel: channel " + channelType + " :space -> :space\n";
+        IKappaModel kappaModel = Utils.createKappaModel(new ByteArrayInputStream(model.getBytes()));
+        compartments = kappaModel.getCompartments();
+        channel = kappaModel.getChannel("channel");
+        sourceLocation = is3D ? new Location("space", 10, 10, 10) : new Location("space", 10, 10);
+    }
+
+    @Benchmark
+    public List<Location> applyChannel() {
+        return channel.applyChannel(sourceLocation, NOT_LOCATED, compartments);
+    }
+}
@@ -0,0 +1,65 @@
+package org.demonsoft.spatialkappa.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Partial and exact matching of a three agent chain template against rings of linked agents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComplexMatcherBenchmark {
+
+    @Param({ "3", "12", "100" })
+    public int complexSize;
+
+    private final ComplexMatcher matcher = new ComplexMatcher();
+    private Complex template;
+    private Complex target;
+    private Complex targetCopy;
+
+    @Setup
+    public void setup() {
+        template = new Complex(new Agent("A", new AgentSite("r", null, "1")), 
+                new Agent("A", new AgentSite("l", null, "1"), new AgentSite("r", null, "2")), 
+                new Agent("A", new AgentSite("l", null, "2")));
+        target = createRing(complexSize);
+        targetCopy = target.clone();
+    }
+
+    @Benchmark
+    public List<ComplexMapping> getPartialMatches() {
+        return matcher.getPartialMatches(template, target);
+    }
+
+    @Benchmark
+    public boolean isExactMatch() {
+        return matcher.isExactMatch(target, targetCopy);
+    }
+
+    private Complex createRing(int size) {
+        List<Agent> agents = new ArrayList<Agent>();
+        for (int index = 0; index < size; index++) {
+            agents.add(new Agent("A", new AgentSite("l", null, "" + index), new AgentSite("r", null, "" + ((index + 1) % size)),
+                    new AgentSite("s", index % 2 == 0 ? "u" : "p", null)));
+        }
+        return new Complex(agents);
+    }
+}
@@ -0,0 +1,46 @@
+package org.demonsoft.spatialkappa.model;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Expansion of initial values into located complexes for the acceptance test models.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KappaModelBenchmark {
+
+    private static final String TEST_DATA_DIRECTORY = "test/acceptance/data/";
+
+    @Param({ "test-2-4-input.ka", "test-2-5-input.ka", "test-2-6-input.ka", "test-3-2-input.ka", "test-4-2-input.ka" })
+    public String modelFilename;
+
+    private IKappaModel kappaModel;
+
+    @Setup
+    public void setup() throws Exception {
+        kappaModel = Utils.createKappaModel(new File(TEST_DATA_DIRECTORY, modelFilename));
+    }
+
+    @Benchmark
+    public Map<Complex, Integer> getFixedLocatedInitialValuesMap() {
+        return kappaModel.getFixedLocatedInitialValuesMap();
+    }
+}
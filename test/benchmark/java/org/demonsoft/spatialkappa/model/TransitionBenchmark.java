@@ -0,0 +1,79 @@
+package org.demonsoft.spatialkappa.model;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Application of binding, unbinding, state change and diffusion rules to single matching complexes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionBenchmark {
+
+    private static final String MODEL = 
+            "%agent: A(x,s~u~p)\n" +
+            "%agent: B(y)\n" +
+            "%compartment: cytosol [10][10]\n" +
+            "%channel: diffusion Neighbour :cytosol -> :cytosol\n" +
+            "'bind' A(x),B(y) -> A(x!1),B(y!1) @ 1\n" +
+            "'unbind' A(x!1),B(y!1) -> A(x),B(y) @ 1\n" +
+            "'phosphorylate' A(s~u) -> A(s~p) @ 1\n" +
+            "'diffuse' A(x!1),B(y!1) ->:diffusion A(x!1),B(y!1) @ 1\n" +
+            "%init: 1 :cytosol[5][5] A(x,s~u)\n" +
+            "%init: 1 :cytosol[5][5] B(y)\n" +
+            "%init: 1 :cytosol[5][5] A(x!1,s~u),B(y!1)\n";
+
+    @Param({ "bind", "unbind", "phosphorylate", "diffuse" })
+    public String transitionLabel;
+
+    private IKappaModel model;
+    private Transition transition;
+    private TransitionInstance transitionInstance;
+    private RandomSource random;
+
+    @Setup
+    public void setup() throws Exception {
+        model = Utils.createKappaModel(new ByteArrayInputStream(MODEL.getBytes()));
+        ComplexMatcher matcher = new ComplexMatcher();
+        for (Transition current : model.getTransitions()) {
+            if (transitionLabel.equals(current.label)) {
+                transition = current;
+            }
+        }
+        List<ComplexMapping> mappings = new ArrayList<ComplexMapping>();
+        for (Complex component : transition.sourceComplexes) {
+            for (Complex complex : model.getFixedLocatedInitialValuesMap().keySet()) {
+                List<ComplexMapping> matches = matcher.getPartialMatches(component, complex);
+                if (matches.size() > 0) {
+                    mappings.add(matches.get(0));
+                    break;
+                }
+            }
+        }
+        transitionInstance = new TransitionInstance(mappings, 1);
+        random = new SplitMixRandomSource(1);
+    }
+
+    @Benchmark
+    public List<Complex> apply() {
+        return transition.apply(transitionInstance, model.getChannels(), model.getCompartments(), random);
+    }
+}
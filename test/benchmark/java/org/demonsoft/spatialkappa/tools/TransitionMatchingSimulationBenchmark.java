@@ -0,0 +1,62 @@
+package org.demonsoft.spatialkappa.tools;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
+import org.demonsoft.spatialkappa.model.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end simulation events per second for the acceptance test models. Each iteration starts from
+ * a fresh simulation with a fixed seed, so every run replays the same events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransitionMatchingSimulationBenchmark {
+
+    private static final String TEST_DATA_DIRECTORY = "test/acceptance/data/";
+    private static final int EVENTS_PER_INVOCATION = 100;
+
+    @Param({ "test-2-1-input.ka", "test-2-2-1-input.ka", "test-2-2-2-input.ka", "test-2-3-input.ka", "test-2-4-input.ka", 
+        "test-2-5-input.ka", "test-2-6-input.ka", "test-2-7-input.ka", "test-2-8-input.ka", "test-3-3-1-input.ka", 
+        "test-3-3-2-input.ka", "test-3-4-1-input.ka", "test-3-4-2-input.ka", "test-3-5-1-input.ka", "test-3-5-2-input.ka", 
+        "test-3-6-1-input.ka", "test-3-6-2-input.ka", "test-4-1-input.ka", "test-4-2-input.ka", "test-4-3-input.ka" })
+    public String modelFilename;
+
+    private IKappaModel kappaModel;
+    private TransitionMatchingSimulation simulation;
+
+    @Setup(Level.Trial)
+    public void setupModel() throws Exception {
+        kappaModel = Utils.createKappaModel(new File(TEST_DATA_DIRECTORY, modelFilename));
+    }
+
+    @Setup(Level.Iteration)
+    public void setupSimulation() {
+        simulation = new TransitionMatchingSimulation(kappaModel, new SplitMixRandomSource(1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+    public void runByEvent() {
+        simulation.runByEvent(1, EVENTS_PER_INVOCATION);
+    }
+}
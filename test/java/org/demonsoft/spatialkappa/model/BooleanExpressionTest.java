@@ -5,13 +5,18 @@ import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import static org.demonsoft.spatialkappa.model.Location.NOT_LOCATED;
+
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.demonsoft.spatialkappa.model.BooleanExpression.Operator;
 import org.demonsoft.spatialkappa.model.BooleanExpression.RelationalOperator;
 import org.demonsoft.spatialkappa.model.BooleanExpression.Type;
 import org.demonsoft.spatialkappa.model.KappaModel.ModelOnlySimulationState;
+import org.demonsoft.spatialkappa.model.VariableExpression.SimulationToken;
 import org.junit.Test;
 
 public class BooleanExpressionTest {
@@ -188,4 +193,58 @@ public class BooleanExpressionTest {
         assertTrue(new BooleanExpression(RelationalOperator.LESS, expr1, new VariableExpression(6)).evaluate(state));
     }
 
+    @Test
+    public void testAddDependencies() {
+        Map<String, Variable> variables = new HashMap<String, Variable>();
+        Set<Variable> dependencies = new HashSet<Variable>();
+        BooleanExpression exprTrue = new BooleanExpression(true);
+        
+        try {
+            exprTrue.addDependencies(null, dependencies);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        
+        try {
+            exprTrue.addDependencies(variables, null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        
+        Variable observable = new Variable(new Complex(new Agent("A")), NOT_LOCATED, "observable", false);
+        Variable label = new Variable("label");
+        variables.put("observable", observable);
+        variables.put("label", label);
+        variables.put("expression", new Variable(new VariableExpression(new VariableExpression(new VariableReference("observable")), 
+                VariableExpression.Operator.PLUS, new VariableExpression(2)), "expression"));
+        
+        assertFalse(exprTrue.addDependencies(variables, dependencies));
+        assertTrue(dependencies.isEmpty());
+        
+        BooleanExpression expr = new BooleanExpression(RelationalOperator.GREATER, 
+                new VariableExpression(new VariableReference("expression")), new VariableExpression(SimulationToken.MAX_TIME));
+        assertFalse(expr.addDependencies(variables, dependencies));
+        assertEquals(1, dependencies.size());
+        assertTrue(dependencies.contains(observable));
+        
+        expr = new BooleanExpression(Operator.AND, expr, new BooleanExpression(Operator.NOT, new BooleanExpression(RelationalOperator.LESS, 
+                new VariableExpression(new VariableReference("label")), new VariableExpression(3))));
+        dependencies.clear();
+        assertFalse(expr.addDependencies(variables, dependencies));
+        assertEquals(2, dependencies.size());
+        assertTrue(dependencies.contains(label));
+        
+        // Conditions that may change without their variables changing
+        assertTrue(new BooleanExpression(Operator.OR, expr, new BooleanExpression(RelationalOperator.GREATER, 
+                new VariableExpression(SimulationToken.TIME), new VariableExpression(3))).addDependencies(variables, dependencies));
+        assertTrue(new BooleanExpression(RelationalOperator.GREATER, new VariableExpression(SimulationToken.EVENTS), 
+                new VariableExpression(3)).addDependencies(variables, dependencies));
+        assertTrue(new BooleanExpression(RelationalOperator.GREATER, new VariableExpression(new VariableReference("missing")), 
+                new VariableExpression(3)).addDependencies(variables, dependencies));
+    }
+
 }
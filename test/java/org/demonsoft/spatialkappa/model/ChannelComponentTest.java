@@ -13,6 +13,7 @@ import static org.demonsoft.spatialkappa.model.Location.NOT_LOCATED;
 import static org.demonsoft.spatialkappa.model.Utils.getList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -622,6 +623,58 @@ public class ChannelComponentTest {
         assertEquals(expected, component.applyChannel(new Location("a", 0, 0), new Location("b", 1, 1), compartments));
     }
 
+    @Test
+    public void testGetNeighbourTable() {
+        Location locationA = new Location("a");
+        Location locationB = new Location("b");
+        Compartment compartmentA = new Compartment("a", 4, 3);
+        Compartment compartmentB = new OpenRectangle("b", 8, 7, 2);
+        Compartment compartmentC = new SolidSphere("c", 5);
+        checkNeighbourTable(new NeighbourComponent(getList(locationA), getList(locationB)), compartmentA, compartmentB);
+        checkNeighbourTable(new NeighbourComponent(getList(locationB), getList(locationA)), compartmentB, compartmentA);
+        checkNeighbourTable(new HexagonalComponent(getList(locationA), getList(locationA)), compartmentA, compartmentA);
+        checkNeighbourTable(new RadialComponent(getList(locationA), getList(locationA)), compartmentC, compartmentC);
+        checkNeighbourTable(new LateralComponent(getList(locationA), getList(locationA)), compartmentC, compartmentC);
+        checkNeighbourTable(new RadialComponent(getList(locationA), getList(locationB)), compartmentC, new OpenSphere("d", 7, 1));
+    }
+
+    private void checkNeighbourTable(ChannelComponent component, Compartment sourceCompartment, Compartment targetCompartment) {
+        PredefinedChannelComponent predefined = (PredefinedChannelComponent) component;
+        ChannelComponent.NeighbourTable table = predefined.getNeighbourTable(sourceCompartment, targetCompartment);
+        assertSame(table, predefined.getNeighbourTable(sourceCompartment, targetCompartment));
+
+        int[] dimensions = sourceCompartment.getDimensions();
+        List<int[]> voxels = new ArrayList<int[]>();
+        voxels.add(new int[dimensions.length]);
+        for (int dimension = dimensions.length - 1; dimension >= 0; dimension--) {
+            List<int[]> previous = voxels;
+            voxels = new ArrayList<int[]>();
+            for (int[] voxel : previous) {
+                for (int index = 0; index < dimensions[dimension]; index++) {
+                    int[] newVoxel = voxel.clone();
+                    newVoxel[dimension] = index;
+                    voxels.add(newVoxel);
+                }
+            }
+        }
+        
+        for (int[] voxel : voxels) {
+            int voxelIndex = sourceCompartment.getVoxelIndex(voxel);
+            List<Location> expected = new ArrayList<Location>();
+            if (sourceCompartment.isValidVoxel(voxel)) {
+                for (int[] targetVoxel : predefined.getTargetVoxels(voxel.clone(), sourceCompartment, targetCompartment)) {
+                    expected.add(new Location(targetCompartment.getName(), targetVoxel));
+                }
+            }
+            List<Location> actual = new ArrayList<Location>();
+            for (int index = table.offsets[voxelIndex]; index < table.offsets[voxelIndex + 1]; index++) {
+                actual.add(table.locations[index]);
+            }
+            assertEquals(expected, actual);
+        }
+        assertEquals(-1, sourceCompartment.getVoxelIndex(new int[dimensions.length + 1]));
+    }
+
     @Test
     public void testApplyChannel_radial2d_intracompartment() {
         Location location = new Location("a");
@@ -8,7 +8,9 @@ import static org.demonsoft.spatialkappa.model.Utils.getList;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -498,6 +500,47 @@ public class CompartmentTest {
         assertTrue(compartment.isValidVoxel(1, 0));
     }
 
+    @Test
+    public void testGetVoxelIndex() {
+        Compartment compartment = new Compartment("single");
+        assertEquals(0, compartment.getVoxelIndex());
+        assertEquals(-1, compartment.getVoxelIndex(0));
+        
+        compartment = new Compartment("rectangle", 3, 4);
+        assertEquals(-1, compartment.getVoxelIndex());
+        assertEquals(-1, compartment.getVoxelIndex(0, 0, 1));
+        assertEquals(-1, compartment.getVoxelIndex(0, 4));
+        assertEquals(-1, compartment.getVoxelIndex(-1, 0));
+        assertEquals(0, compartment.getVoxelIndex(0, 0));
+        assertEquals(6, compartment.getVoxelIndex(1, 2));
+        assertEquals(11, compartment.getVoxelIndex(2, 3));
+    }
+
+    @Test
+    public void testGetLocation() {
+        Compartment compartment = new Compartment("single");
+        assertEquals(new Location("single"), compartment.getLocation());
+        assertSame(compartment.getLocation(), compartment.getLocation());
+        
+        compartment = new Compartment("rectangle", 3, 4);
+        int[] indices = new int[] {1, 2};
+        Location location = compartment.getLocation(indices);
+        assertEquals(new Location("rectangle", 1, 2), location);
+        assertSame(location, compartment.getLocation(1, 2));
+        
+        // Indices are copied into the shared location
+        indices[0] = 0;
+        assertEquals(new Location("rectangle", 1, 2), location);
+        
+        // Out of bounds indices are not shared
+        location = compartment.getLocation(1, 4);
+        assertEquals(new Location("rectangle", 1, 4), location);
+        assertNotSame(location, compartment.getLocation(1, 4));
+        
+        Location[] locations = compartment.getDistributedCellReferences();
+        assertSame(compartment.getLocation(2, 3), locations[locations.length - 1]);
+    }
+
     @Test
     public void testIsValidVoxel_solidSpine() {
         SolidSpine compartment = new SolidSpine("name", new int[] {7, 5, 4});
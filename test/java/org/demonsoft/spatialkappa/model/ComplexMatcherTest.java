@@ -12,6 +12,7 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -510,6 +511,45 @@ public class ComplexMatcherTest {
         checkPartialMatches(template, new Complex(new Agent("A", new Location("cytosol", INDEX_1, INDEX_1, INDEX_1))));
     }
 
+    @Test
+    public void testGetMatches_chains() {
+        int ringSize = 12;
+        List<Agent> agents = new ArrayList<Agent>();
+        for (int index = 0; index < ringSize; index++) {
+            agents.add(new Agent("A", new AgentSite("l", null, "" + index), new AgentSite("r", null, "" + ((index + 1) % ringSize))));
+        }
+        Complex ring = new Complex(agents);
+
+        Complex template = new Complex(new Agent("A", new AgentSite("r", null, "1")), new Agent("A", new AgentSite("l", null, "1"),
+                new AgentSite("r", null, "2")), new Agent("A", new AgentSite("l", null, "2")));
+        List<ComplexMapping> matches = matcher.getPartialMatches(template, ring);
+        assertEquals(ringSize, matches.size());
+        int previous = -1;
+        for (ComplexMapping match : matches) {
+            // Mappings are ordered by the target of the first template agent
+            int current = ring.agents.indexOf(match.mapping.get(template.agents.get(0)));
+            assertTrue(current > previous);
+            previous = current;
+        }
+
+        template = new Complex(new Agent("A", new AgentSite("r", null, "1")), new Agent("A", new AgentSite("r", null, "1")));
+        checkPartialMatches(template, ring);
+
+        agents.clear();
+        for (int index = 0; index < ringSize; index++) {
+            agents.add(new Agent("A", new AgentSite("l", null, index == 0 ? null : "" + index),
+                    new AgentSite("r", null, index == ringSize - 1 ? null : "" + (index + 1))));
+        }
+        Complex chain = new Complex(agents);
+        assertEquals(ringSize - 2, matcher.getPartialMatches(new Complex(new Agent("A", new AgentSite("r", null, "1")),
+                new Agent("A", new AgentSite("l", null, "1"), new AgentSite("r", null, "2")), new Agent("A", new AgentSite("l", null, "2"))), chain).size());
+
+        checkExactMatch(ring, ring.clone(), true);
+        checkExactMatch(chain, chain.clone(), true);
+        checkExactMatch(ring, chain, false);
+        checkExactMatch(chain, ring, false);
+    }
+
     private void checkPartialMatches(Complex template, Complex target, Map<Agent, Agent>... expectedMaps) {
         checkMatches(matcher.getPartialMatches(template, target), template, target, expectedMaps);
     }
@@ -11,8 +11,10 @@ import static org.demonsoft.spatialkappa.model.CellIndexExpression.WILDCARD;
 import static org.demonsoft.spatialkappa.model.Location.NOT_LOCATED;
 import static org.demonsoft.spatialkappa.model.Utils.getList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
@@ -49,7 +51,6 @@ public class ComplexTest {
         assertEquals(1, complex.agents.size());
         assertEquals(agents, complex.agents);
         assertSame(complex, complex.agents.get(0).getComplex());
-        assertEquals("agent##NOT LOCATED##1", complex.getMatchHash());
 
         agents = new ArrayList<Agent>();
         agents.add(new Agent("agent1"));
@@ -59,7 +60,6 @@ public class ComplexTest {
         assertEquals(agents, complex.agents);
         assertSame(complex, complex.agents.get(0).getComplex());
         assertSame(complex, complex.agents.get(1).getComplex());
-        assertEquals("agent1##NOT LOCATED##1agent2##NOT LOCATED##1", complex.getMatchHash());
 
         agents = new ArrayList<Agent>();
         agents.add(new Agent("dimerAgent"));
@@ -69,7 +69,6 @@ public class ComplexTest {
         assertEquals(agents, complex.agents);
         assertSame(complex, complex.agents.get(0).getComplex());
         assertSame(complex, complex.agents.get(1).getComplex());
-        assertEquals("dimerAgent##NOT LOCATED##2", complex.getMatchHash());
 
         // Test canonical ordering
         agents = new ArrayList<Agent>();
@@ -80,7 +79,7 @@ public class ComplexTest {
         agents.add(new Agent("agent2"));
         agents.add(new Agent("agent1"));
         assertEquals(complex.toString(), new Complex(agents).toString());
-        assertEquals(complex.getMatchHash(), new Complex(agents).getMatchHash());
+        assertEquals(complex.getFingerprint(), new Complex(agents).getFingerprint());
 
     }
 
@@ -111,7 +110,6 @@ public class ComplexTest {
         assertEquals(1, complex.agents.size());
         assertEquals(agents, complex.agents);
         assertSame(complex, complex.agents.get(0).getComplex());
-        assertEquals("agent1##NOT LOCATED##1", complex.getMatchHash());
 
         agents = new ArrayList<Agent>();
         agents.add(agent1);
@@ -121,7 +119,6 @@ public class ComplexTest {
         assertEquals(agents, complex.agents);
         assertSame(complex, complex.agents.get(0).getComplex());
         assertSame(complex, complex.agents.get(1).getComplex());
-        assertEquals("agent1##NOT LOCATED##1agent2##NOT LOCATED##1", complex.getMatchHash());
 
         agents = new ArrayList<Agent>();
         agents.add(agent1);
@@ -130,7 +127,6 @@ public class ComplexTest {
         assertEquals(2, complex.agents.size());
         assertEquals(agents, complex.agents);
         assertSame(complex, complex.agents.get(0).getComplex());
-        assertEquals("agent1##NOT LOCATED##2", complex.getMatchHash());
 
         // Test canonical ordering
         assertEquals(new Complex(agent1, agent2).toString(), new Complex(agent2, agent1).toString());
@@ -141,14 +137,12 @@ public class ComplexTest {
     public void testAgentLinks() {
         Complex complex = new Complex(new Agent("agent1"), new Agent("agent2"), new Agent("agent3"));
         assertEquals(0, complex.agentLinks.size());
-        assertEquals("agent1##NOT LOCATED##1agent2##NOT LOCATED##1agent3##NOT LOCATED##1", complex.getMatchHash());
 
         complex = new Complex(new Agent("agent1", new AgentSite("x", null, "1")), new Agent("agent2", new AgentSite("y", null, "1")));
 
         List<String[]> expected = new ArrayList<String[]>();
         expected.add(new String[] { "agent1", "x", "agent2", "y" });
         checkAgentLinks(complex, expected);
-        assertEquals("agent1##NOT LOCATED##1agent2##NOT LOCATED##1agent1xagent2y1", complex.getMatchHash());
 
         complex = new Complex(new Agent("agent1", new AgentSite("x", null, "1"), new AgentSite("y", null, "2")), new Agent("agent2",
                 new AgentSite("z", null, "2"), new AgentSite("y", null, "1")));
@@ -157,7 +151,6 @@ public class ComplexTest {
         expected.add(new String[] { "agent1", "y", "agent2", "z" });
         expected.add(new String[] { "agent1", "x", "agent2", "y" });
         checkAgentLinks(complex, expected);
-        assertEquals("agent1##NOT LOCATED##1agent2##NOT LOCATED##1agent1xagent2y1agent1yagent2z1", complex.getMatchHash());
 
         // Self binding
         complex = new Complex(new Agent("agent1", new AgentSite("x", null, "1"), new AgentSite("y", null, "1")));
@@ -165,7 +158,6 @@ public class ComplexTest {
         expected = new ArrayList<String[]>();
         expected.add(new String[] { "agent1", "x", "agent1", "y" });
         checkAgentLinks(complex, expected);
-        assertEquals("agent1##NOT LOCATED##1agent1xagent1y1", complex.getMatchHash());
 
         try {
             new Complex(new Agent("agent1", new AgentSite("x", null, "1"), new AgentSite("y", null, "3")), new Agent("agent2", new AgentSite(
@@ -216,6 +208,57 @@ public class ComplexTest {
     }
     
     
+    @Test
+    public void testFingerprint() {
+        // Isomorphic complexes, written in different agent order and link numbering
+        Complex complex1 = new Complex(new Agent("A", new AgentSite("x", null, "1")), 
+                new Agent("B", new AgentSite("y", null, "1"), new AgentSite("z", null, "2")), 
+                new Agent("C", new AgentSite("w", null, "2")));
+        Complex complex2 = new Complex(new Agent("C", new AgentSite("w", null, "5")), 
+                new Agent("A", new AgentSite("x", null, "7")),
+                new Agent("B", new AgentSite("z", null, "5"), new AgentSite("y", null, "7")));
+        assertEquals(complex1.getFingerprint(), complex2.getFingerprint());
+        assertTrue(complex1.isExactMatch(complex2));
+        
+        // Same agents, different link sites
+        complex2 = new Complex(new Agent("A", new AgentSite("x", null, "1")), 
+                new Agent("B", new AgentSite("y", null, "2"), new AgentSite("z", null, "1")), 
+                new Agent("C", new AgentSite("w", null, "2")));
+        assertFalse(complex1.getFingerprint() == complex2.getFingerprint());
+        assertFalse(complex1.isExactMatch(complex2));
+        
+        // Bound versus unbound
+        assertFalse(new Complex(new Agent("A", new AgentSite("x", null, "1")), new Agent("B", new AgentSite("y", null, "1"))).getFingerprint() == 
+                new Complex(new Agent("A", new AgentSite("x", null, null)), new Agent("B", new AgentSite("y", null, null))).getFingerprint());
+        assertFalse(new Complex(new Agent("A", new AgentSite("x", null, "?"))).getFingerprint() == 
+                new Complex(new Agent("A", new AgentSite("x", null, "_"))).getFingerprint());
+
+        // States and locations
+        assertEquals(new Complex(new Agent("A", new AgentSite("s", "u", null))).getFingerprint(), 
+                new Complex(new Agent("A", new AgentSite("s", "u", null))).getFingerprint());
+        assertFalse(new Complex(new Agent("A", new AgentSite("s", "u", null))).getFingerprint() == 
+                new Complex(new Agent("A", new AgentSite("s", "p", null))).getFingerprint());
+        assertEquals(new Complex(new Agent("A", new Location("cytosol", 1, 2))).getFingerprint(), 
+                new Complex(new Agent("A", new Location("cytosol", 1, 2))).getFingerprint());
+        assertFalse(new Complex(new Agent("A", new Location("cytosol", 1, 2))).getFingerprint() == 
+                new Complex(new Agent("A", new Location("cytosol", 2, 1))).getFingerprint());
+
+        // Chain versus ring of identical agents
+        Complex chain = new Complex(new Agent("A", new AgentSite("l", null, null), new AgentSite("r", null, "1")), 
+                new Agent("A", new AgentSite("l", null, "1"), new AgentSite("r", null, "2")), 
+                new Agent("A", new AgentSite("l", null, "2"), new AgentSite("r", null, null)));
+        Complex ring = new Complex(new Agent("A", new AgentSite("l", null, "3"), new AgentSite("r", null, "1")), 
+                new Agent("A", new AgentSite("l", null, "1"), new AgentSite("r", null, "2")), 
+                new Agent("A", new AgentSite("l", null, "2"), new AgentSite("r", null, "3")));
+        assertFalse(chain.getFingerprint() == ring.getFingerprint());
+        
+        // Fingerprint follows changes to the complex
+        Complex clone = ring.clone();
+        assertEquals(ring.getFingerprint(), clone.getFingerprint());
+        clone.deleteLink(clone.agents.get(0), "l");
+        assertFalse(ring.getFingerprint() == clone.getFingerprint());
+    }
+    
     @Test
     public void testGetSingleLocation() {
         Complex complex = new Complex(
@@ -214,6 +214,9 @@ public class KappaModelTest {
                 { "[agent1:cytosol[2](x!1), agent2:cytosol[2](x!1)]", 5 }, 
                 { "[agent3:cytosol[2](x!2), agent4:cytosol[2](x!2)]", 5 }, 
                 { "[agent3:nucleus[2](x!7), agent4:nucleus[2](x!7)]", 7 } });
+        
+        // Referenced quantities are not stored in the shared model
+        assertEquals(0, model.getInitialValues().get(0).quantity);
         checkAggregateAgents(new AgentDeclaration("agent1", new AggregateSite("x", null, "1")), 
                 new AgentDeclaration("agent2", new AggregateSite("x", null, "1")),
                 new AgentDeclaration("agent3", new AggregateSite("x", null, new String[] {"2", "7"})), 
@@ -249,6 +252,56 @@ public class KappaModelTest {
                 });
     }
     
+    @Test
+    public void testGetFixedLocatedInitialValuesMap_largeCompartment() {
+        model.addCompartment(new Compartment("cytosol", 12, 12, 12));
+        model.addAgentDeclaration(new AgentDeclaration("A", new AggregateSite("s", "u", null)));
+        model.addAgentDeclaration(new AgentDeclaration("B"));
+        model.addInitialValue(Utils.getList(new Agent("A")), "1728", new Location("cytosol"));
+        model.addInitialValue(Utils.getList(new Agent("A")), "3456", new Location("cytosol"));
+        model.addInitialValue(Utils.getList(new Agent("B")), "10", new Location("cytosol", INDEX_1, INDEX_1, INDEX_1));
+        
+        Map<Complex, Integer> actual = model.getFixedLocatedInitialValuesMap();
+        assertEquals(12 * 12 * 12 + 1, actual.size());
+        
+        // Expanded and merged in initial value order
+        List<Complex> complexes = new ArrayList<Complex>(actual.keySet());
+        assertEquals("[A:cytosol[0][0][0](s~u)]", complexes.get(0).toString());
+        assertEquals("[A:cytosol[11][11][11](s~u)]", complexes.get(12 * 12 * 12 - 1).toString());
+        assertEquals("[B:cytosol[1][1][1]()]", complexes.get(12 * 12 * 12).toString());
+        for (int index = 0; index < 12 * 12 * 12; index++) {
+            assertEquals(Integer.valueOf(3), actual.get(complexes.get(index)));
+        }
+        assertEquals(Integer.valueOf(10), actual.get(complexes.get(12 * 12 * 12)));
+    }
+    
+    @Test
+    public void testGetFixedLocatedInitialValuesMap_largeCompartmentSingleInitialValue() {
+        model.addCompartment(new Compartment("cytosol", 12, 12, 12));
+        model.addCompartment(new Compartment("membrane", 12, 12));
+        model.addChannel(new Channel("domainLink", 
+                new Location("cytosol", INDEX_X, INDEX_Y, INDEX_0), new Location("membrane", INDEX_X, INDEX_Y)));
+        model.addAgentDeclaration(new AgentDeclaration("A", new AggregateSite("d", (String) null, null)));
+        model.addAgentDeclaration(new AgentDeclaration("B", new AggregateSite("d", (String) null, null)));
+        
+        // Seeds from every cytosol voxel, split across several ranges, but only the base layer links
+        model.addInitialValue(Utils.getList(new Agent("A", new Location("cytosol"), new AgentSite("d", null, "1", "domainLink")), 
+                new Agent("B", new AgentSite("d", null, "1"))), "1441", NOT_LOCATED);
+        
+        Map<Complex, Integer> actual = model.getFixedLocatedInitialValuesMap();
+        assertEquals(12 * 12, actual.size());
+        
+        // Ranges are concatenated in seed order, so the remainder still goes to the first complex
+        List<Complex> complexes = new ArrayList<Complex>(actual.keySet());
+        assertEquals("[A:cytosol[0][0][0](d!1:domainLink), B:membrane[0][0](d!1)]", complexes.get(0).toString());
+        assertEquals("[A:cytosol[1][0][0](d!1:domainLink), B:membrane[1][0](d!1)]", complexes.get(1).toString());
+        assertEquals("[A:cytosol[11][11][0](d!1:domainLink), B:membrane[11][11](d!1)]", complexes.get(12 * 12 - 1).toString());
+        assertEquals(Integer.valueOf(11), actual.get(complexes.get(0)));
+        for (int index = 1; index < 12 * 12; index++) {
+            assertEquals(Integer.valueOf(10), actual.get(complexes.get(index)));
+        }
+    }
+    
     @Test
     public void testGetFixedLocatedInitialValuesMap_multiCompartmentAgents() {
         Map<Complex, Integer> actual = model.getFixedLocatedInitialValuesMap();
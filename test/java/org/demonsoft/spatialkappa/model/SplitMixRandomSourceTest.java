@@ -0,0 +1,85 @@
+package org.demonsoft.spatialkappa.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SplitMixRandomSourceTest {
+
+    @Test
+    public void testSeededSequence() {
+        RandomSource source1 = new SplitMixRandomSource(42);
+        RandomSource source2 = new SplitMixRandomSource(42);
+        for (int index = 0; index < 100; index++) {
+            assertEquals(source1.nextLong(), source2.nextLong());
+        }
+        // Reference values from java.util.SplittableRandom(0)
+        RandomSource source = new SplitMixRandomSource(0);
+        assertEquals(-2152535657050944081L, source.nextLong());
+        assertEquals(7960286522194355700L, source.nextLong());
+    }
+
+    @Test
+    public void testDefaultSourcesIndependent() {
+        RandomSource source1 = new SplitMixRandomSource();
+        RandomSource source2 = new SplitMixRandomSource();
+        Set<Long> values = new HashSet<Long>();
+        for (int index = 0; index < 1000; index++) {
+            values.add(source1.nextLong());
+        }
+        for (int index = 0; index < 1000; index++) {
+            assertFalse(values.contains(source2.nextLong()));
+        }
+    }
+
+    @Test
+    public void testNextDouble() {
+        RandomSource source = new SplitMixRandomSource(1);
+        double total = 0;
+        for (int index = 0; index < 10000; index++) {
+            double value = source.nextDouble();
+            assertTrue(value >= 0 && value < 1);
+            total += value;
+        }
+        assertEquals(0.5, total / 10000, 0.02);
+    }
+
+    @Test
+    public void testNextInt() {
+        RandomSource source = new SplitMixRandomSource(1);
+        try {
+            source.nextInt(0);
+            fail("invalid bound should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+        int[] counts = new int[3];
+        for (int index = 0; index < 9000; index++) {
+            counts[source.nextInt(3)]++;
+        }
+        for (int count : counts) {
+            assertEquals(3000, count, 200);
+        }
+        assertEquals(0, source.nextInt(1));
+    }
+
+    @Test
+    public void testSplit() {
+        RandomSource source1 = new SplitMixRandomSource(42);
+        RandomSource source2 = new SplitMixRandomSource(42);
+        RandomSource split1 = source1.split();
+        RandomSource split2 = source2.split();
+        for (int index = 0; index < 100; index++) {
+            assertEquals(split1.nextLong(), split2.nextLong());
+        }
+        assertFalse(source1.split().nextLong() == source1.split().nextLong());
+        assertFalse(new SplitMixRandomSource().nextLong() == new SplitMixRandomSource().nextLong());
+    }
+}
@@ -322,7 +322,7 @@ public class TransitionPrimitiveTest {
             targetComplexes.add(realComplex);
         }
         
-        primitive.apply(transformMap, targetComplexes, channels, compartments);
+        primitive.apply(transformMap, targetComplexes, channels, compartments, new SplitMixRandomSource(1));
 
         assertEquals(targetComplexes.toString(), expectedComplexes.length, targetComplexes.size());
         List<String> expected = Arrays.asList(expectedComplexes);
@@ -12,6 +12,7 @@ import static org.demonsoft.spatialkappa.model.Utils.getComplexes;
 import static org.demonsoft.spatialkappa.model.Utils.getList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -390,7 +391,7 @@ public class TransitionTest {
         List<ComplexMapping> sourceComplexMappings = getList(new ComplexMapping(leftTemplateComplex, leftRealComplex, mapping));
         TransitionInstance transitionInstance = new TransitionInstance(sourceComplexMappings, 1);
         
-        List<Complex> result = transition.apply(transitionInstance, channels, compartments);
+        List<Complex> result = transition.apply(transitionInstance, channels, compartments, new SplitMixRandomSource(1));
         assertEquals("[[DNA:B()]]", result.toString());
         // TODO test predefined channel types
 
@@ -435,7 +436,7 @@ public class TransitionTest {
                 new ComplexMapping(leftTemplateAgents.get(2).getComplex(), leftRealAgents.get(2).getComplex(), mapping3));
         TransitionInstance transitionInstance = new TransitionInstance(sourceComplexMappings, 1);
         
-        List<Complex> result = transition.apply(transitionInstance, channels, compartments);
+        List<Complex> result = transition.apply(transitionInstance, channels, compartments, new SplitMixRandomSource(1));
         Collections.sort(result, new Comparator<Complex>() {
             public int compare(Complex o1, Complex o2) {
                 return o1.toString().compareTo(o2.toString());
@@ -482,12 +483,46 @@ public class TransitionTest {
         List<ComplexMapping> sourceComplexMappings = getList(new ComplexMapping(leftTemplateComplex, leftRealComplex, mapping));
         TransitionInstance transitionInstance = new TransitionInstance(sourceComplexMappings, 1);
         
-        List<Complex> result = transition.apply(transitionInstance, channels, compartments);
+        List<Complex> result = transition.apply(transitionInstance, channels, compartments, new SplitMixRandomSource(1));
         assertEquals("[[agent1:B(s!1:channel), agent2:A(s!1:channel)]]", result.toString());
         // TODO test predefined channel types
 
     }
 
+    @Test
+    public void testApply_unchangedComplex() {
+        List<Compartment> compartments = new ArrayList<Compartment>();
+        List<Channel> channels = new ArrayList<Channel>();
+
+        Agent leftTemplateAgent1 = new Agent("A", new AgentSite("s", "u", null)); 
+        Agent leftTemplateAgent2 = new Agent("E"); 
+        Agent rightTemplateAgent1 = new Agent("A", new AgentSite("s", "p", null)); 
+        Agent rightTemplateAgent2 = new Agent("E"); 
+        Transition transition = new Transition("test", getList(leftTemplateAgent1, leftTemplateAgent2), 
+                null, getList(rightTemplateAgent1, rightTemplateAgent2), 10.0f);
+
+        Agent leftRealAgent1 = new Agent("A", new AgentSite("s", "u", null)); 
+        Agent leftRealAgent2 = new Agent("E"); 
+        Complex leftRealComplex1 = new Complex(leftRealAgent1);
+        Complex leftRealComplex2 = new Complex(leftRealAgent2);
+        Map<Agent, Agent> mapping1 = new HashMap<Agent, Agent>();
+        Map<Agent, Agent> mapping2 = new HashMap<Agent, Agent>();
+        mapping1.put(leftTemplateAgent1, leftRealAgent1);
+        mapping2.put(leftTemplateAgent2, leftRealAgent2);
+        List<ComplexMapping> sourceComplexMappings = getList(
+                new ComplexMapping(leftTemplateAgent1.getComplex(), leftRealComplex1, mapping1),
+                new ComplexMapping(leftTemplateAgent2.getComplex(), leftRealComplex2, mapping2));
+        TransitionInstance transitionInstance = new TransitionInstance(sourceComplexMappings, 1);
+        
+        List<Complex> result = transition.apply(transitionInstance, channels, compartments, new SplitMixRandomSource(1));
+        assertEquals("[[A(s~p)], [E()]]", result.toString());
+        
+        // Changed complexes are copied, unchanged ones are returned as they are
+        assertNotSame(leftRealComplex1, result.get(0));
+        assertEquals("[A(s~u)]", leftRealComplex1.toString());
+        assertSame(leftRealComplex2, result.get(1));
+    }
+
     @Test
     public void testTransition_checkPrimitives_locationsOnly() {
         Transition transition = new Transition("test", (Location) null, "channel", null, 10.0f);
@@ -645,6 +680,85 @@ public class TransitionTest {
         transition.bestPrimitives = null;
         transition.createTransitionMap(leftAgents, rightAgents);
     }
+    
+    @Test
+    public void testCreateTransitionMap_interchangeableAgents() {
+        List<Agent> leftAgents = new ArrayList<Agent>();
+        List<Agent> rightAgents = new ArrayList<Agent>();
+        List<TransitionPrimitive> expected = new ArrayList<TransitionPrimitive>();
+        Map<Agent, Agent> expectedAgentMap = new HashMap<Agent, Agent>();
+        for (int index = 0; index < 12; index++) {
+            leftAgents.add(new Agent("A", new AgentSite("s", "u", null)));
+            rightAgents.add(new Agent("A", new AgentSite("s", "p", null)));
+            expected.add(TransitionPrimitive.getChangeState(leftAgents.get(index), leftAgents.get(index).getSite("s"), "p"));
+            expectedAgentMap.put(leftAgents.get(index), rightAgents.get(index));
+        }
+        leftAgents.add(new Agent("A", new AgentSite("s", "u", null)));
+        rightAgents.add(new Agent("B"));
+
+        Transition transition = new Transition(null, leftAgents, null, rightAgents, 0.1f);
+        expected.add(TransitionPrimitive.getDeleteAgent(leftAgents.get(12)));
+        expected.add(TransitionPrimitive.getCreateComplex(rightAgents.get(12).getComplex()));
+        checkPrimitives(expected, transition.bestPrimitives);
+        assertEquals(expectedAgentMap, transition.getLeftRightAgentMap());
+        
+        // Located variant reuses the template agent map
+        List<Agent> locatedLeftAgents = new ArrayList<Agent>();
+        for (int index = 0; index < leftAgents.size(); index++) {
+            locatedLeftAgents.add(new Agent("A", new Location("cytosol"), new AgentSite("s", "u", null)));
+        }
+        List<Agent> locatedRightAgents = new ArrayList<Agent>();
+        for (int index = 0; index < 12; index++) {
+            locatedRightAgents.add(new Agent("A", new Location("cytosol"), new AgentSite("s", "p", null)));
+        }
+        locatedRightAgents.add(new Agent("B", new Location("cytosol")));
+        Transition locatedTransition = new Transition(null, locatedLeftAgents, locatedRightAgents, new VariableExpression(0.1f), transition);
+        expectedAgentMap.clear();
+        for (int index = 0; index < 12; index++) {
+            expectedAgentMap.put(locatedLeftAgents.get(index), locatedRightAgents.get(index));
+        }
+        assertEquals(expectedAgentMap, locatedTransition.getLeftRightAgentMap());
+        assertEquals(transition.bestPrimitives.size(), locatedTransition.bestPrimitives.size());
+    }
+    
+    @Test
+    public void testCreateTransitionMap_interchangeableLinkedComplexes() {
+        List<Agent> leftAgents = new ArrayList<Agent>();
+        List<Agent> rightAgents = new ArrayList<Agent>();
+        for (int index = 0; index < 5; index++) {
+            String link = String.valueOf(index + 1);
+            leftAgents.add(new Agent("A", new AgentSite("s", "u", null), new AgentSite("x", null, link)));
+            leftAgents.add(new Agent("B", new AgentSite("x", null, link)));
+            rightAgents.add(new Agent("B", new AgentSite("x", null, link)));
+            rightAgents.add(new Agent("A", new AgentSite("s", "p", null), new AgentSite("x", null, link)));
+        }
+        leftAgents.add(new Agent("A", new AgentSite("s", "u", null), new AgentSite("x", null, "6")));
+        leftAgents.add(new Agent("B", new AgentSite("x", null, "6")));
+
+        Transition transition = new Transition(null, leftAgents, null, rightAgents, 0.1f);
+        
+        // Each remaining dimer is mapped whole onto a dimer, keeping its link
+        List<TransitionPrimitive> expected = new ArrayList<TransitionPrimitive>();
+        Map<Agent, Agent> agentMap = transition.getLeftRightAgentMap();
+        assertEquals(10, agentMap.size());
+        for (int index = 0; index < leftAgents.size(); index += 2) {
+            Agent leftA = leftAgents.get(index);
+            Agent leftB = leftAgents.get(index + 1);
+            if (agentMap.containsKey(leftA)) {
+                Agent rightA = agentMap.get(leftA);
+                assertEquals("A", rightA.name);
+                assertSame(rightA.getLink("x").getLinkedAgent(rightA), agentMap.get(leftB));
+                expected.add(TransitionPrimitive.getChangeState(leftA, leftA.getSite("s"), "p"));
+            }
+            else {
+                expected.add(TransitionPrimitive.getDeleteAgent(leftA));
+                expected.add(TransitionPrimitive.getDeleteAgent(leftB));
+            }
+        }
+        checkPrimitives(expected, transition.bestPrimitives);
+        assertEquals(0, transition.bestPrimitivesCost);
+    }
+    
     @Test
     public void testGetApplicationCount() {
         List<Compartment> compartments = getList(new Compartment("A"), new Compartment("B"), new Compartment("C"));
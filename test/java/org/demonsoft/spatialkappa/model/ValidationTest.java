@@ -0,0 +1,162 @@
+package org.demonsoft.spatialkappa.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.demonsoft.spatialkappa.model.Validation.Level;
+import org.junit.After;
+import org.junit.Test;
+
+public class ValidationTest {
+
+    @After
+    public void tearDown() {
+        Validation.setLevel(Level.FULL);
+        Validation.resetCounts();
+    }
+
+    @Test
+    public void testSetLevel() {
+        assertEquals(Level.FULL, Validation.getLevel());
+        try {
+            Validation.setLevel(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        Validation.setLevel(Level.OFF);
+        assertEquals(Level.OFF, Validation.getLevel());
+    }
+
+    @Test
+    public void testIsCheckRequired() {
+        Validation.resetCounts();
+        for (int index = 0; index < Validation.SAMPLE_INTERVAL * 2; index++) {
+            assertTrue(Validation.isCheckRequired());
+        }
+        assertEquals(Validation.SAMPLE_INTERVAL * 2, Validation.getPerformedCount(Level.FULL));
+        assertEquals(0, Validation.getSkippedCount(Level.FULL));
+
+        Validation.setLevel(Level.SAMPLED);
+        for (int index = 0; index < Validation.SAMPLE_INTERVAL * 2; index++) {
+            assertEquals(index % Validation.SAMPLE_INTERVAL == 0, Validation.isCheckRequired());
+        }
+        assertEquals(2, Validation.getPerformedCount(Level.SAMPLED));
+        assertEquals(Validation.SAMPLE_INTERVAL * 2 - 2, Validation.getSkippedCount(Level.SAMPLED));
+
+        // Checks are not counted when off
+        Validation.setLevel(Level.OFF);
+        for (int index = 0; index < 10; index++) {
+            assertEquals(false, Validation.isCheckRequired());
+        }
+        assertEquals(0, Validation.getPerformedCount(Level.OFF));
+        assertEquals(0, Validation.getSkippedCount(Level.OFF));
+        assertEquals(Validation.SAMPLE_INTERVAL * 2, Validation.getPerformedCount(Level.FULL));
+
+        Validation.resetCounts();
+        assertEquals(0, Validation.getPerformedCount(Level.FULL));
+        assertEquals(0, Validation.getSkippedCount(Level.OFF));
+    }
+
+    @Test
+    public void testCountsPerThread() throws Exception {
+        Validation.resetCounts();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                for (int index = 0; index < 5; index++) {
+                    Validation.isCheckRequired();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        Validation.isCheckRequired();
+        assertEquals(6, Validation.getPerformedCount(Level.FULL));
+    }
+
+    @Test
+    public void testFinishedThreadsReleased() throws Exception {
+        Validation.resetCounts();
+        Validation.isCheckRequired();
+        int threadCount = Validation.getThreadCount();
+        for (int count = 0; count < 20; count++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Validation.isCheckRequired();
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        // Counts of finished threads are kept, but their counters are not
+        assertTrue(Validation.getThreadCount() <= threadCount);
+        assertEquals(21, Validation.getPerformedCount(Level.FULL));
+    }
+
+    @Test
+    public void testComplexVerification() {
+        Complex complex = new Complex(new Agent("A"));
+        complex.agents.get(0).setComplex(null);
+        try {
+            complex.update();
+            fail("mismatched agent should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+
+        Validation.setLevel(Level.OFF);
+        complex.update();
+
+        // Explicit verification always runs
+        try {
+            complex.verify();
+            fail("mismatched agent should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testAgentVerification() {
+        Agent agent = new Agent("A", new AgentSite("s", "u", null));
+        agent.verify();
+        
+        agent = new Agent("A");
+        agent.sites.put("s", new AgentSite(new Agent("B"), "s", null, null));
+        try {
+            agent.verify();
+            fail("mismatched site should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+
+        agent = new Agent("A", new AgentSite("s", "u", null));
+        agent.sites.put("s", new AgentSite(agent, "s", "p", null));
+        try {
+            agent.verify();
+            fail("stale state hash should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+        assertEquals("s~u,", agent.getStateHash());
+
+        // Agent checks only run on explicit verification
+        Complex complex = new Complex(agent);
+        complex.update();
+        try {
+            complex.verify();
+            fail("stale state hash should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+    }
+}
@@ -814,6 +814,90 @@ public class VariableExpressionTest {
         verify(state);
     }
 
+    @Test
+    public void testCompile() {
+        VariableReference referenceX = new VariableReference("x");
+        VariableReference referenceY = new VariableReference("y");
+        Map<String, Variable> variables = new HashMap<String, Variable>();
+        SimulationState state = new ModelOnlySimulationState(variables);
+        Complex complex1 = new Complex(new Agent("agent1"));
+        TransitionInstance instance = new TransitionInstance(getList(new ComplexMapping(complex1)), 1);
+        
+        try {
+            new VariableExpression(referenceX).compile(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        
+        // Failures are deferred to evaluation
+        CompiledExpression compiled = new VariableExpression(referenceX).compile(variables);
+        try {
+            compiled.evaluate(state, instance);
+            fail("missing variable should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+        
+        compiled = new VariableExpression(Constant.INFINITY).compile(variables);
+        try {
+            compiled.evaluate(state, instance);
+            fail("evaluating infinity should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+
+        // Constant folding
+        variables.put("x", new Variable(new VariableExpression(12), "x"));
+        variables.put("y", new Variable(new VariableExpression(new VariableExpression(referenceX), Operator.MULTIPLY, new VariableExpression(3)), "y"));
+        
+        compiled = new VariableExpression(new VariableExpression(referenceY), Operator.DIVIDE, new VariableExpression(Constant.PI)).compile(variables);
+        assertTrue(compiled.isConstant());
+        assertEquals(11.46f, compiled.evaluate(state, instance), 0.01f);
+        
+        compiled = new VariableExpression(UnaryOperator.SQRT, new VariableExpression(new VariableExpression(referenceX), Operator.POWER, 
+                new VariableExpression(2))).compile(variables);
+        assertTrue(compiled.isConstant());
+        assertEquals(12f, compiled.evaluate(state, instance), 0.01f);
+        
+        // Variables are resolved at compile time
+        variables.put("x", new Variable(new VariableExpression(1), "x"));
+        assertEquals(12f, compiled.evaluate(state, instance), 0.01f);
+        
+        // Simulation state dependent
+        SimulationState mockState = EasyMock.createMock(SimulationState.class);
+        compiled = new VariableExpression(new VariableExpression(SimulationToken.TIME), Operator.PLUS, 
+                new VariableExpression(new VariableExpression(referenceX), Operator.PLUS, new VariableExpression(2))).compile(variables);
+        assertFalse(compiled.isConstant());
+        reset(mockState);
+        expect(mockState.getTime()).andReturn(5f);
+        replay(mockState);
+        assertEquals(8f, compiled.evaluate(mockState, instance));
+        verify(mockState);
+        
+        Variable observable = new Variable(new Complex(new Agent("A")), NOT_LOCATED, "observable", false);
+        variables.put("observable", observable);
+        compiled = new VariableExpression(new VariableExpression(new VariableReference("observable")), Operator.MINUS, 
+                new VariableExpression(1)).compile(variables);
+        assertFalse(compiled.isConstant());
+        reset(mockState);
+        expect(mockState.getComplexQuantityValue(observable)).andReturn(7f);
+        replay(mockState);
+        assertEquals(6f, compiled.evaluate(mockState, instance));
+        verify(mockState);
+        
+        // Agent based rates
+        compiled = new VariableExpression(new VariableExpression(4), Operator.DIVIDE, 
+                new VariableExpression(getList(new Agent("A")), NOT_LOCATED)).compile(variables);
+        assertFalse(compiled.isConstant());
+        instance = new TransitionInstance(getList(new ComplexMapping(new Complex(new Agent("A"))), 
+                new ComplexMapping(new Complex(new Agent("A")))), 1);
+        assertEquals(2f, compiled.evaluate(state, instance), 0.01f);
+    }
+
     private void checkEvaluate_TransitionInstance(VariableExpression expression, SimulationState state, List<Complex> instanceComplexes, float expectedRate) {
         List<ComplexMapping> complexMappings = new ArrayList<ComplexMapping>();
         for (Complex complex : instanceComplexes) {
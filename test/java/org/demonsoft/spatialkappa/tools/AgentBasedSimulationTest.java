@@ -0,0 +1,247 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
+import org.demonsoft.spatialkappa.model.TestUtils;
+import org.junit.Test;
+
+public class AgentBasedSimulationTest {
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() throws Exception {
+        try {
+            new AgentBasedSimulation(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(s~u~p)\n" +
+                "%compartment: cytosol [2]\n" +
+                "%channel: diffusion :cytosol[x] -> :cytosol[x+1]\n" +
+                "A(s~u) ->:diffusion A(s~u) @ 1\n" +
+                "%init: 10 :cytosol[0] A(s~u)\n");
+        try {
+            new AgentBasedSimulation(model);
+            fail("channel should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("channel transitions"));
+        }
+        assertEquals(1, AgentBasedSimulation.getChannelTransitions(model).size());
+    }
+
+    @Test
+    public void testStateChanges() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(s~u~p)\n" +
+                "A(s~u) -> A(s~p) @ 1\n" +
+                "%init: 100 A(s~u)\n" +
+                "%obs: 'Au' A(s~u)\n" +
+                "%obs: 'Ap' A(s~p)\n");
+        AgentBasedSimulation simulation = new AgentBasedSimulation(model);
+        checkObservation(simulation.getCurrentObservation(), 0, 100, 0);
+
+        simulation.runByEvent(1, 40);
+        checkObservation(simulation.getCurrentObservation(), 40, 60, 40);
+
+        simulation.runByEvent(10, 10);
+        checkObservation(simulation.getCurrentObservation(), 100, 0, 100);
+        assertTrue(simulation.getTime() > 0);
+    }
+
+    @Test
+    public void testBindingAndUnbinding() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(x)\n" +
+                "%agent: B(y)\n" +
+                "'bind' A(x),B(y) -> A(x!1),B(y!1) @ 1\n" +
+                "'unbind' A(x!1),B(y!1) -> A(x),B(y) @ 1\n" +
+                "%init: 50 A(x)\n" +
+                "%init: 30 B(y)\n" +
+                "%obs: 'AB' A(x!1),B(y!1)\n" +
+                "%obs: 'A' A(x)\n" +
+                "%obs: 'B' B(y)\n");
+        AgentBasedSimulation simulation = new AgentBasedSimulation(model);
+        assertEquals(80, simulation.getAgentCount());
+
+        for (int step = 0; step < 20; step++) {
+            simulation.runByEvent(1, 50);
+            Observation observation = simulation.getCurrentObservation();
+            float bound = observation.observables.get("AB").value;
+            assertEquals(50, bound + observation.observables.get("A").value, 0.01f);
+            assertEquals(30, bound + observation.observables.get("B").value, 0.01f);
+        }
+        assertEquals(80, simulation.getAgentCount());
+    }
+
+    @Test
+    public void testPolymerisation() throws Exception {
+        // Every chain length is a distinct species - agent count and observables stay exact
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(l,r)\n" +
+                "A(r),A(l) -> A(r!1),A(l!1) @ 1\n" +
+                "A(r!1),A(l!1) -> A(r),A(l) @ 0.1\n" +
+                "%init: 200 A(l,r)\n" +
+                "%obs: 'link' A(r!1),A(l!1)\n" +
+                "%obs: 'freeR' A(r)\n" +
+                "%obs: 'freeL' A(l)\n");
+        AgentBasedSimulation simulation = new AgentBasedSimulation(model);
+
+        for (int step = 0; step < 10; step++) {
+            simulation.runByEvent(1, 200);
+            Observation observation = simulation.getCurrentObservation();
+            float links = observation.observables.get("link").value;
+            assertEquals(200, links + observation.observables.get("freeR").value, 0.01f);
+            assertEquals(200, links + observation.observables.get("freeL").value, 0.01f);
+        }
+        assertEquals(200, simulation.getAgentCount());
+    }
+
+    @Test
+    public void testCreateAndDeleteAgents() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(x)\n" +
+                "%agent: B(y)\n" +
+                "A(x) -> A(x!1),B(y!1) @ 1\n" +
+                "%init: 20 A(x)\n" +
+                "%obs: 'AB' A(x!1),B(y!1)\n" +
+                "%obs: 'B' B(y!_)\n");
+        AgentBasedSimulation simulation = new AgentBasedSimulation(model);
+        simulation.runByEvent(1, 100);
+        Observation observation = simulation.getCurrentObservation();
+        assertEquals(20, observation.observables.get("AB").value, 0.01f);
+        assertEquals(20, observation.observables.get("B").value, 0.01f);
+        assertEquals(40, simulation.getAgentCount());
+
+        model = TestUtils.createKappaModel(
+                "%agent: A(x)\n" +
+                "%agent: B(y)\n" +
+                "A(x!1),B(y!1) -> A(x) @ 1\n" +
+                "%init: 20 A(x!1),B(y!1)\n" +
+                "%obs: 'A' A(x)\n" +
+                "%obs: 'B' B()\n");
+        simulation = new AgentBasedSimulation(model);
+        simulation.runByEvent(1, 100);
+        observation = simulation.getCurrentObservation();
+        assertEquals(20, observation.observables.get("A").value, 0.01f);
+        assertEquals(0, observation.observables.get("B").value, 0.01f);
+        assertEquals(20, simulation.getAgentCount());
+    }
+
+    @Test
+    public void testDisconnectedObservables() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(x)\n" +
+                "%agent: B(y,z)\n" +
+                "%agent: C()\n" +
+                "A(x) -> A(x) @ 1\n" +
+                "%init: 5 A(x)\n" +
+                "%init: 3 B(y,z)\n" +
+                "%init: 2 A(x!1),B(y!1,z!2),A(x!2)\n" +
+                "%obs: 'AB' A(),B()\n" +
+                "%obs: 'AA' A(),A()\n" +
+                "%obs: 'AC' A(),C()\n" +
+                "%obs: 'AxB' A(x),B()\n");
+        Observation observation = new AgentBasedSimulation(model).getCurrentObservation();
+        Observation expected = new TransitionMatchingSimulation(model).getCurrentObservation();
+        // Components match distinct agents of a single complex
+        assertEquals(4, observation.observables.get("AB").value, 0.01f);
+        assertEquals(4, observation.observables.get("AA").value, 0.01f);
+        assertEquals(0, observation.observables.get("AC").value, 0.01f);
+        assertEquals(0, observation.observables.get("AxB").value, 0.01f);
+        for (String name : new String[] {"AB", "AA", "AC", "AxB"}) {
+            assertEquals(name, expected.observables.get(name).value, observation.observables.get(name).value, 0.01f);
+        }
+    }
+
+    @Test
+    public void testStopWhenOnlyClashesRemain() throws Exception {
+        // After the first link, the only candidates are the two ends of the same dimer
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(l,r)\n" +
+                "A(r),A(l) -> A(r!1),A(l!1) @ 1\n" +
+                "%init: 2 A(l,r)\n" +
+                "%obs: 'link' A(r!1),A(l!1)\n");
+        AgentBasedSimulation simulation = new AgentBasedSimulation(model, new SplitMixRandomSource(1));
+        simulation.runByEvent(1, 10);
+        assertEquals(1, simulation.getEventCount());
+        assertEquals(1, simulation.getCurrentObservation().observables.get("link").value, 0.01f);
+        float time = simulation.getTime();
+        assertTrue(time > 0);
+
+        simulation.runByTime(100, 10);
+        assertEquals(1, simulation.getEventCount());
+        assertEquals(time, simulation.getTime(), 0);
+    }
+
+    @Test
+    public void testKineticsMatchTransitionMatchingSimulation() throws Exception {
+        // Reversible binding with equilibrium 0.01 * (100 - AB)^2 = AB, ie AB = 38.2
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(x)\n" +
+                "%agent: B(y)\n" +
+                "'bind' A(x),B(y) -> A(x!1),B(y!1) @ 0.01\n" +
+                "'unbind' A(x!1),B(y!1) -> A(x),B(y) @ 1\n" +
+                "%init: 100 A(x)\n" +
+                "%init: 100 B(y)\n" +
+                "%obs: 'AB' A(x!1),B(y!1)\n");
+        int replicates = 200;
+        float[] times = {0.25f, 5};
+        double[][] agentSamples = new double[times.length][replicates];
+        double[][] matchingSamples = new double[times.length][replicates];
+        for (int replicate = 0; replicate < replicates; replicate++) {
+            sampleBound(new AgentBasedSimulation(model, new SplitMixRandomSource(replicate)), 
+                    times, agentSamples, replicate);
+            sampleBound(new TransitionMatchingSimulation(model, new SplitMixRandomSource(replicate + replicates)), 
+                    times, matchingSamples, replicate);
+        }
+
+        for (int index = 0; index < times.length; index++) {
+            double agentMean = getMean(agentSamples[index]);
+            double matchingMean = getMean(matchingSamples[index]);
+            double standardError = Math.sqrt(getVariance(agentSamples[index], agentMean) / replicates 
+                    + getVariance(matchingSamples[index], matchingMean) / replicates);
+            assertEquals("time " + times[index], matchingMean, agentMean, 4 * standardError);
+        }
+        assertEquals(38.2, getMean(agentSamples[1]), 1.5);
+        assertEquals(38.2, getMean(matchingSamples[1]), 1.5);
+    }
+
+    private void sampleBound(Simulation simulation, float[] times, double[][] samples, int replicate) {
+        for (int index = 0; index < times.length; index++) {
+            simulation.runByTime(times[index], times[0]);
+            samples[index][replicate] = simulation.getCurrentObservation().observables.get("AB").value;
+        }
+    }
+
+    private double getMean(double[] samples) {
+        double total = 0;
+        for (double sample : samples) {
+            total += sample;
+        }
+        return total / samples.length;
+    }
+
+    private double getVariance(double[] samples, double mean) {
+        double total = 0;
+        for (double sample : samples) {
+            total += (sample - mean) * (sample - mean);
+        }
+        return total / (samples.length - 1);
+    }
+
+    private void checkObservation(Observation observation, int event, float unphosphorylated, float phosphorylated) {
+        assertEquals(event, observation.event);
+        assertEquals(unphosphorylated, observation.observables.get("Au").value, 0.01f);
+        assertEquals(phosphorylated, observation.observables.get("Ap").value, 0.01f);
+    }
+}
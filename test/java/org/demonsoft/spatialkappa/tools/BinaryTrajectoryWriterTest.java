@@ -0,0 +1,183 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationElement;
+import org.demonsoft.spatialkappa.model.Utils;
+import org.junit.Test;
+
+public class BinaryTrajectoryWriterTest {
+
+    private static final List<String> OBSERVABLES = Utils.getList("Red", "Green");
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() {
+        try {
+            new BinaryTrajectoryWriter(null, true);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new BinaryTrajectoryWriter(new ByteArrayOutputStream(), true, 0);
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkRoundTrip(false);
+        checkRoundTrip(true);
+    }
+
+    private void checkRoundTrip(boolean compressed) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(output, compressed, 16);
+        for (int index = 0; index < 100; index++) {
+            writer.writeObservation(createObservation(index, index == 99));
+        }
+        writer.close();
+        // Closing again has no effect
+        writer.close();
+
+        BinaryTrajectoryReader reader = new BinaryTrajectoryReader(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(OBSERVABLES, reader.getOrderedObservables());
+        for (int index = 0; index < 100; index++) {
+            Observation expected = createObservation(index, index == 99);
+            Observation actual = reader.readObservation();
+            assertEquals(expected.time, actual.time, 0);
+            assertEquals(expected.event, actual.event);
+            assertEquals(expected.finalObservation, actual.finalObservation);
+            assertEquals(OBSERVABLES, actual.orderedObservables);
+            assertEquals(expected.observables.get("Green"), actual.observables.get("Green"));
+            ObservationElement element = actual.observables.get("Red");
+            assertEquals(expected.observables.get("Red").value, element.value, 0);
+            assertEquals("cytosol", element.compartmentName);
+            for (int x = 0; x < 3; x++) {
+                for (int y = 0; y < 2; y++) {
+                    assertEquals(expected.observables.get("Red").getCellValue(x, y), element.getCellValue(x, y));
+                }
+            }
+        }
+        assertNull(reader.readObservation());
+        reader.close();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        ByteArrayOutputStream uncompressedOutput = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressedOutput = new ByteArrayOutputStream();
+        BinaryTrajectoryWriter uncompressedWriter = new BinaryTrajectoryWriter(uncompressedOutput, false);
+        BinaryTrajectoryWriter compressedWriter = new BinaryTrajectoryWriter(compressedOutput, true);
+        StringWriter textOutput = new StringWriter();
+        KaSimTrajectoryWriter textWriter = new KaSimTrajectoryWriter(textOutput);
+        for (int index = 0; index < 1000; index++) {
+            Observation observation = createObservation(index, index == 999);
+            uncompressedWriter.writeObservation(observation);
+            compressedWriter.writeObservation(observation);
+            textWriter.writeObservation(observation);
+        }
+        uncompressedWriter.close();
+        compressedWriter.close();
+        textWriter.close();
+
+        assertTrue(uncompressedOutput.size() < textOutput.toString().length() / 2);
+        assertTrue(compressedOutput.size() < uncompressedOutput.size());
+    }
+
+    @Test
+    public void testRecordingCutShort() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(output, true);
+        writer.writeObservation(createObservation(0, false));
+        writer.writeObservation(createObservation(1, false));
+        writer.close();
+
+        BinaryTrajectoryReader reader = new BinaryTrajectoryReader(new ByteArrayInputStream(output.toByteArray()));
+        assertFalse(reader.readObservation().finalObservation);
+        assertTrue(reader.readObservation().finalObservation);
+        assertNull(reader.readObservation());
+    }
+
+    @Test
+    public void testMismatchedObservation() throws Exception {
+        BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(new ByteArrayOutputStream(), true);
+        writer.writeObservation(createObservation(0, false));
+
+        Map<String, ObservationElement> observables = new HashMap<String, ObservationElement>();
+        observables.put("Red", new ObservationElement(1));
+        observables.put("Green", new ObservationElement(1));
+        try {
+            writer.writeObservation(new Observation(1, 1, OBSERVABLES, observables, false, 0, 0));
+            fail("mismatch should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+        writer.close();
+        try {
+            writer.writeObservation(createObservation(1, false));
+            fail("closed should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testIsBinaryTrajectory() throws Exception {
+        File file = File.createTempFile("trajectory", ".kareplay");
+        try {
+            BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(new FileOutputStream(file), true);
+            writer.writeObservation(createObservation(0, true));
+            writer.close();
+            assertTrue(BinaryTrajectoryReader.isBinaryTrajectory(file));
+
+            StringWriter textOutput = new StringWriter();
+            KaSimTrajectoryWriter textWriter = new KaSimTrajectoryWriter(textOutput);
+            textWriter.writeObservation(createObservation(0, true));
+            textWriter.close();
+            FileUtils.writeStringToFile(file, textOutput.toString());
+            assertFalse(BinaryTrajectoryReader.isBinaryTrajectory(file));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private Observation createObservation(int index, boolean finalObservation) {
+        Map<String, ObservationElement> observables = new HashMap<String, ObservationElement>();
+        Serializable[][] cells = new Serializable[3][2];
+        int total = 0;
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 2; y++) {
+                cells[x][y] = index + x * 2 + y;
+                total += index + x * 2 + y;
+            }
+        }
+        observables.put("Red", new ObservationElement(total, new int[] { 3, 2 }, "cytosol", cells));
+        observables.put("Green", new ObservationElement(index * 0.5f));
+        return new Observation(index * 0.25f, index * 10, OBSERVABLES, observables, finalObservation, 0, 0);
+    }
+}
@@ -0,0 +1,134 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.TestUtils;
+import org.junit.Test;
+
+public class HeadlessSimulatorTest {
+
+    private static final String MODEL =
+            "%agent: A(s~u~p)\n" +
+            "A(s~u) -> A(s~p) @ 1\n" +
+            "%init: 100 A(s~u)\n" +
+            "%obs: 'Au' A(s~u)\n" +
+            "%obs: 'Ap' A(s~p)\n";
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        try {
+            new HeadlessSimulator(null, 1L, new StringWriter());
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new HeadlessSimulator(model, 1L, (Writer) null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new HeadlessSimulator(model, 1L, (TrajectoryWriter) null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new HeadlessSimulator(model, 1L, null, new KaSimTrajectoryWriter(new StringWriter()));
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+
+        IKappaModel channelModel = TestUtils.createKappaModel(
+                "%agent: A(s~u~p)\n" +
+                "%compartment: cytosol [2]\n" +
+                "%channel: diffusion :cytosol[x] -> :cytosol[x+1]\n" +
+                "A(s~u) ->:diffusion A(s~u) @ 1\n" +
+                "%init: 10 :cytosol[0] A(s~u)\n");
+        try {
+            new HeadlessSimulator(channelModel, 1L, HeadlessSimulator.Engine.AGENT, 
+                    new KaSimTrajectoryWriter(new StringWriter()));
+            fail("channel should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testAgentEngine() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        TestWriter writer = new TestWriter();
+        new HeadlessSimulator(model, 3L, HeadlessSimulator.Engine.AGENT, new KaSimTrajectoryWriter(writer))
+                .runByEvent(5, 20);
+
+        assertTrue(writer.closed);
+        String[] lines = writer.toString().split("\n");
+        assertEquals(7, lines.length);
+        assertEquals("# time E 'Au' 'Ap'", lines[0]);
+        assertTrue(lines[6].endsWith(" 100 0.000000E00 1.000000E02"));
+    }
+
+    @Test
+    public void testRunByEvent() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        TestWriter writer = new TestWriter();
+        new HeadlessSimulator(model, null, writer).runByEvent(5, 20);
+
+        assertTrue(writer.closed);
+        String[] lines = writer.toString().split("\n");
+        assertEquals(7, lines.length);
+        assertEquals("# time E 'Au' 'Ap'", lines[0]);
+        assertTrue(lines[6].endsWith(" 100 0.000000E00 1.000000E02"));
+    }
+
+    @Test
+    public void testRunByTime() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        TestWriter writer = new TestWriter();
+        new HeadlessSimulator(model, null, writer).runByTime(2, 0.5f);
+
+        assertTrue(writer.closed);
+        String[] lines = writer.toString().split("\n");
+        // Observations are timestamped with the last event of each step, and repeated as the final observation
+        assertEquals(6, lines.length);
+        assertEquals("# time E 'Au' 'Ap'", lines[0]);
+        assertEquals(lines[4], lines[5]);
+    }
+
+    @Test
+    public void testSeededRunsAreRepeatable() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        StringWriter writer1 = new StringWriter();
+        new HeadlessSimulator(model, 3L, writer1).runByTime(2, 0.5f);
+        StringWriter writer2 = new StringWriter();
+        new HeadlessSimulator(model, 3L, writer2).runByTime(2, 0.5f);
+
+        assertEquals(writer1.toString(), writer2.toString());
+    }
+
+    private static class TestWriter extends StringWriter {
+        boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
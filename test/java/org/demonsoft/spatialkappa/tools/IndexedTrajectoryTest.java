@@ -0,0 +1,189 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationElement;
+import org.demonsoft.spatialkappa.model.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedTrajectoryTest {
+
+    private static final List<String> OBSERVABLES = Utils.getList("Red", "Green");
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("trajectory", ".kareplay");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() throws Exception {
+        try {
+            new IndexedTrajectory(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        FileUtils.writeStringToFile(file, "# time E 'Red' 'Green'\n");
+        try {
+            new IndexedTrajectory(file);
+            fail("text trajectory should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testGetObservation() throws Exception {
+        checkGetObservation(false);
+        checkGetObservation(true);
+    }
+
+    private void checkGetObservation(boolean compressed) throws Exception {
+        writeTrajectory(100, compressed);
+        IndexedTrajectory trajectory = new IndexedTrajectory(file);
+        assertEquals(OBSERVABLES, trajectory.getOrderedObservables());
+        assertEquals(100, trajectory.getFrameCount());
+
+        // Out of order access across blocks
+        for (int frame : new int[] {50, 3, 99, 0, 51, 17, 16, 15}) {
+            checkObservation(frame, trajectory.getObservation(frame));
+            assertEquals(frame * 0.25f, trajectory.getTime(frame), 0);
+            assertEquals(frame * 10, trajectory.getEvent(frame));
+        }
+        assertTrue(trajectory.getObservation(99).finalObservation);
+        assertFalse(trajectory.getObservation(98).finalObservation);
+
+        try {
+            trajectory.getObservation(100);
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+        try {
+            trajectory.getObservation(-1);
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testFindFrame() throws Exception {
+        writeTrajectory(100, true);
+        IndexedTrajectory trajectory = new IndexedTrajectory(file);
+
+        assertEquals(0, trajectory.findFrameAtTime(-1));
+        assertEquals(0, trajectory.findFrameAtTime(0));
+        assertEquals(0, trajectory.findFrameAtTime(0.1f));
+        assertEquals(16, trajectory.findFrameAtTime(4));
+        assertEquals(15, trajectory.findFrameAtTime(3.99f));
+        assertEquals(40, trajectory.findFrameAtTime(10.1f));
+        assertEquals(99, trajectory.findFrameAtTime(24.75f));
+        assertEquals(99, trajectory.findFrameAtTime(1000));
+
+        assertEquals(0, trajectory.findFrameAtEvent(-1));
+        assertEquals(0, trajectory.findFrameAtEvent(9));
+        assertEquals(1, trajectory.findFrameAtEvent(10));
+        assertEquals(47, trajectory.findFrameAtEvent(479));
+        assertEquals(48, trajectory.findFrameAtEvent(480));
+        assertEquals(99, trajectory.findFrameAtEvent(100000));
+    }
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testEmptyTrajectory() throws Exception {
+        // No header is written without an observation
+        writeTrajectory(0, true);
+        try {
+            new IndexedTrajectory(file);
+            fail("empty should have failed");
+        }
+        catch (EOFException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testInterruptedRecording() throws Exception {
+        writeTrajectory(40, true);
+        // Cut the last block short
+        RandomAccessFile input = new RandomAccessFile(file, "rw");
+        input.setLength(input.length() - 5);
+        input.close();
+
+        IndexedTrajectory trajectory = new IndexedTrajectory(file);
+        assertEquals(32, trajectory.getFrameCount());
+        checkObservation(31, trajectory.getObservation(31));
+        assertTrue(trajectory.getObservation(31).finalObservation);
+    }
+
+    private void checkObservation(int frame, Observation actual) {
+        Observation expected = createObservation(frame, false);
+        assertEquals(expected.time, actual.time, 0);
+        assertEquals(expected.event, actual.event);
+        assertEquals(OBSERVABLES, actual.orderedObservables);
+        assertEquals(expected.observables.get("Green"), actual.observables.get("Green"));
+        ObservationElement element = actual.observables.get("Red");
+        assertEquals(expected.observables.get("Red").value, element.value, 0);
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 2; y++) {
+                assertEquals(expected.observables.get("Red").getCellValue(x, y), element.getCellValue(x, y));
+            }
+        }
+    }
+
+    private void writeTrajectory(int frameCount, boolean compressed) throws Exception {
+        writeTrajectory(file, frameCount, compressed);
+    }
+
+    static void writeTrajectory(File file, int frameCount, boolean compressed) throws Exception {
+        BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(new FileOutputStream(file), compressed, 16);
+        for (int index = 0; index < frameCount; index++) {
+            writer.writeObservation(createObservation(index, false));
+        }
+        writer.close();
+    }
+
+    private static Observation createObservation(int index, boolean finalObservation) {
+        Map<String, ObservationElement> observables = new HashMap<String, ObservationElement>();
+        Serializable[][] cells = new Serializable[3][2];
+        int total = 0;
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 2; y++) {
+                cells[x][y] = index + x * 2 + y;
+                total += index + x * 2 + y;
+            }
+        }
+        observables.put("Red", new ObservationElement(total, new int[] { 3, 2 }, "cytosol", cells));
+        observables.put("Green", new ObservationElement(index * 0.5f));
+        return new Observation(index * 0.25f, index * 10, OBSERVABLES, observables, finalObservation, 0, 0);
+    }
+}
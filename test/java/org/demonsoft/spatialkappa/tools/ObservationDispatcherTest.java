@@ -0,0 +1,198 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.demonsoft.spatialkappa.model.Observation;
+import org.demonsoft.spatialkappa.model.ObservationElement;
+import org.demonsoft.spatialkappa.model.ObservationListener;
+import org.demonsoft.spatialkappa.tools.ObservationDispatcher.Backpressure;
+import org.junit.Test;
+
+public class ObservationDispatcherTest {
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() {
+        TestListener listener = new TestListener(null);
+        try {
+            new ObservationDispatcher(null, Backpressure.BLOCK);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new ObservationDispatcher(listener, null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new ObservationDispatcher(listener, Backpressure.BLOCK, 0);
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+
+        ObservationDispatcher dispatcher = new ObservationDispatcher(listener, Backpressure.BLOCK);
+        assertEquals(listener, dispatcher.getListener());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        TestListener listener = new TestListener(null);
+        listener.delay = 1;
+        ObservationDispatcher dispatcher = new ObservationDispatcher(listener, Backpressure.BLOCK, 2);
+        for (int index = 0; index < 20; index++) {
+            dispatcher.observation(createObservation(index, index == 19));
+        }
+        dispatcher.awaitDelivery();
+
+        assertEquals(20, listener.events.size());
+        for (int index = 0; index < 20; index++) {
+            assertEquals(index, listener.events.get(index).intValue());
+        }
+        assertEquals(0, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TestListener listener = new TestListener(release);
+        ObservationDispatcher dispatcher = new ObservationDispatcher(listener, Backpressure.DROP_OLDEST, 3);
+        dispatcher.observation(createObservation(0, false));
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+        // Listener is held on the first observation, so the queue fills
+        for (int index = 1; index < 10; index++) {
+            dispatcher.observation(createObservation(index, index == 9));
+        }
+        release.countDown();
+        dispatcher.awaitDelivery();
+
+        assertEquals("[0, 7, 8, 9]", listener.events.toString());
+        assertEquals(6, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TestListener listener = new TestListener(release);
+        ObservationDispatcher dispatcher = new ObservationDispatcher(listener, Backpressure.COALESCE, 3);
+        dispatcher.observation(createObservation(0, false));
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+        for (int index = 1; index < 10; index++) {
+            dispatcher.observation(createObservation(index, false));
+        }
+        release.countDown();
+        dispatcher.awaitDelivery();
+
+        assertEquals("[0, 1, 2, 9]", listener.events.toString());
+        assertEquals(6, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testFinalObservationKept() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TestListener listener = new TestListener(release);
+        ObservationDispatcher dispatcher = new ObservationDispatcher(listener, Backpressure.COALESCE, 1);
+        dispatcher.observation(createObservation(0, false));
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+        dispatcher.observation(createObservation(1, true));
+        dispatcher.observation(createObservation(2, false));
+        release.countDown();
+        dispatcher.awaitDelivery();
+
+        assertEquals("[0, 1, 2]", listener.events.toString());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        TestListener listener = new TestListener(null);
+        listener.delay = 1;
+        ObservationDispatcher dispatcher = new ObservationDispatcher(listener, Backpressure.BLOCK);
+        for (int index = 0; index < 5; index++) {
+            dispatcher.observation(createObservation(index, false));
+        }
+        dispatcher.close();
+        dispatcher.awaitDelivery();
+        // Observations queued before closing are still delivered
+        assertEquals(5, listener.events.size());
+
+        try {
+            dispatcher.observation(createObservation(5, false));
+            fail("closed should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testListenerException() throws Exception {
+        final List<Integer> events = new ArrayList<Integer>();
+        ObservationDispatcher dispatcher = new ObservationDispatcher(new ObservationListener() {
+            public void observation(Observation observation) {
+                if (observation.event == 1) {
+                    throw new RuntimeException("Expected test exception");
+                }
+                events.add(observation.event);
+            }
+        }, Backpressure.BLOCK);
+        for (int index = 0; index < 3; index++) {
+            dispatcher.observation(createObservation(index, false));
+        }
+        dispatcher.awaitDelivery();
+        assertEquals("[0, 2]", events.toString());
+        dispatcher.close();
+    }
+
+    private Observation createObservation(int event, boolean finalObservation) {
+        return new Observation(event, event, new ArrayList<String>(), new HashMap<String, ObservationElement>(), finalObservation, 0, 0);
+    }
+
+    private static class TestListener implements ObservationListener {
+
+        final List<Integer> events = new ArrayList<Integer>();
+        final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release;
+        int delay = 0;
+
+        TestListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public void observation(Observation observation) {
+            started.countDown();
+            try {
+                if (release != null) {
+                    release.await();
+                }
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            events.add(observation.event);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class PropensityTreeTest {
+
+    @Test
+    public void testSetAndRemove() {
+        PropensityTree<String> tree = new PropensityTree<String>();
+        assertEquals(0, tree.size());
+        assertEquals(0f, tree.getTotal(), 0.0001f);
+
+        try {
+            tree.set(null, 1);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            tree.set("a", -1);
+            fail("negative should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+
+        tree.set("a", 1);
+        tree.set("b", 2);
+        tree.set("c", 4);
+        assertEquals(3, tree.size());
+        assertEquals(7f, tree.getTotal(), 0.0001f);
+        assertEquals(2f, tree.get("b"), 0.0001f);
+        assertEquals(0f, tree.get("x"), 0.0001f);
+
+        tree.set("b", 8);
+        assertEquals(13f, tree.getTotal(), 0.0001f);
+
+        tree.remove("a");
+        assertFalse(tree.contains("a"));
+        assertTrue(tree.contains("c"));
+        assertEquals(2, tree.size());
+        assertEquals(12f, tree.getTotal(), 0.0001f);
+        assertEquals(4f, tree.get("c"), 0.0001f);
+
+        tree.remove("x");
+        assertEquals(2, tree.size());
+
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertEquals(0f, tree.getTotal(), 0.0001f);
+    }
+
+    @Test
+    public void testGrow() {
+        PropensityTree<Integer> tree = new PropensityTree<Integer>();
+        for (int index = 0; index < 100; index++) {
+            tree.set(index, index);
+        }
+        assertEquals(100, tree.size());
+        assertEquals(4950f, tree.getTotal(), 0.0001f);
+        for (int index = 0; index < 100; index++) {
+            assertEquals(index, tree.get(index), 0.0001f);
+        }
+        for (int index = 0; index < 100; index += 2) {
+            tree.remove(index);
+        }
+        assertEquals(2500f, tree.getTotal(), 0.0001f);
+    }
+
+    @Test
+    public void testPick() {
+        PropensityTree<String> tree = new PropensityTree<String>();
+        assertNull(tree.pick(0.5));
+
+        tree.set("a", 0);
+        assertNull(tree.pick(0.5));
+
+        tree.set("b", 1);
+        tree.set("c", 3);
+        tree.set("d", 0);
+        assertEquals("b", tree.pick(0));
+        assertEquals("b", tree.pick(0.2));
+        assertEquals("c", tree.pick(0.25));
+        assertEquals("c", tree.pick(0.99));
+        // Rounding past the total must still return a non-empty item
+        assertEquals("c", tree.pick(1));
+    }
+
+    @Test
+    public void testPickDistribution() {
+        PropensityTree<String> tree = new PropensityTree<String>();
+        tree.set("a", 1);
+        tree.set("b", 0);
+        tree.set("c", 2);
+        tree.set("d", 7);
+
+        int[] counts = new int[4];
+        for (int index = 0; index < 10000; index++) {
+            counts[tree.pick(Math.random()).charAt(0) - 'a']++;
+        }
+        assertEquals(1000, counts[0], 200);
+        assertEquals(0, counts[1]);
+        assertEquals(2000, counts[2], 200);
+        assertEquals(7000, counts[3], 200);
+    }
+}
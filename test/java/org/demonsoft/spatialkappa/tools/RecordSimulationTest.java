@@ -34,6 +34,15 @@ public class RecordSimulationTest {
         assertEquals(COMPARTMENT_OUTPUT, writer.toString());
     }
 
+    @Test
+    public void testAsynchronousSimulation() {
+        StringWriter writer = new StringWriter();
+        RecordSimulation simulation = new RecordSimulation(new TestSimulation(COMPARTMENT_INPUT), new KaSimTrajectoryWriter(writer), true);
+        simulation.runByEvent(0, 0);
+        // All observations are written before the run returns
+        assertEquals(COMPARTMENT_OUTPUT, writer.toString());
+    }
+
     private static final String NO_COMPARTMENT_OUTPUT = 
         "# time E 'Red_cytosol' 'Green_cytosol'\n" + 
         " 0.000000E00 0 0.000000E00 0.000000E00\n" + 
@@ -2,9 +2,15 @@ package org.demonsoft.spatialkappa.tools;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.util.ArrayList;
@@ -15,6 +21,7 @@ import java.util.Map;
 
 import org.demonsoft.spatialkappa.model.Observation;
 import org.demonsoft.spatialkappa.model.ObservationElement;
+import org.demonsoft.spatialkappa.model.ObservationListener;
 import org.demonsoft.spatialkappa.model.Utils;
 import org.demonsoft.spatialkappa.tools.ReplaySimulation.CompartmentElementDefinition;
 import org.junit.Test;
@@ -52,6 +59,111 @@ public class ReplaySimulationTest {
         checkSimulation(BAD_NUMBER_INPUT, BAD_NUMBER_OUTPUT);
     }
     
+    @Test
+    public void testBinaryNoCompartmentSimulation() throws Exception {
+        checkBinarySimulation(NO_COMPARTMENT_OUTPUT, false);
+    }
+
+    @Test
+    public void testBinaryCompartmentSimulation() throws Exception {
+        checkBinarySimulation(COMPARTMENT_OUTPUT, true);
+    }
+
+    private void checkBinarySimulation(Observation[] observations, boolean compressed) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(output, compressed, 2);
+        for (Observation observation : observations) {
+            writer.writeObservation(observation);
+        }
+        writer.close();
+
+        ReplaySimulation simulation = new ReplaySimulation(new BinaryTrajectoryReader(new ByteArrayInputStream(output.toByteArray())), 0);
+        checkObservationEquals(observations[0], simulation.getCurrentObservation());
+        for (int index = 1; index < observations.length; index++) {
+            checkObservationEquals(observations[index], simulation.readObservation());
+        }
+        assertNull(simulation.readObservation());
+    }
+
+    @Test
+    public void testIndexedSimulation() throws Exception {
+        File file = File.createTempFile("trajectory", ".kareplay");
+        try {
+            IndexedTrajectoryTest.writeTrajectory(file, 100, true);
+            ReplaySimulation simulation = new ReplaySimulation(new IndexedTrajectory(file), 0);
+            assertTrue(simulation.isIndexed());
+            assertEquals(100, simulation.getFrameCount());
+            assertEquals(0, simulation.getCurrentObservation().event);
+
+            final List<Observation> observations = new ArrayList<Observation>();
+            simulation.addObservationListener(new ObservationListener() {
+                public void observation(Observation observation) {
+                    observations.add(observation);
+                }
+            });
+
+            assertEquals(500, simulation.seekToEvent(505).event);
+            assertEquals(50, simulation.getFrameIndex());
+            assertEquals(40, simulation.seekToTime(10.1f).event / 10);
+            assertEquals(simulation.getCurrentObservation(), observations.get(observations.size() - 1));
+            assertEquals(99, simulation.seekToFrame(1000).event / 10);
+            assertTrue(simulation.getCurrentObservation().finalObservation);
+            assertEquals(0, simulation.seekToFrame(-5).event);
+
+            // Subsampled playback stops on the final frame
+            simulation.setStride(30);
+            assertEquals(30, simulation.readObservation().event / 10);
+            assertEquals(60, simulation.readObservation().event / 10);
+            assertEquals(90, simulation.readObservation().event / 10);
+            Observation observation = simulation.readObservation();
+            assertEquals(99, observation.event / 10);
+            assertTrue(observation.finalObservation);
+            assertNull(simulation.readObservation());
+
+            // Reverse playback
+            simulation.setStride(-40);
+            observation = simulation.readObservation();
+            assertEquals(59, observation.event / 10);
+            assertFalse(observation.finalObservation);
+            assertEquals(19, simulation.readObservation().event / 10);
+            observation = simulation.readObservation();
+            assertEquals(0, observation.event);
+            assertTrue(observation.finalObservation);
+            assertNull(simulation.readObservation());
+
+            simulation.setStride(3);
+            assertEquals(3, simulation.stepForward().event / 10);
+            assertEquals(6, simulation.stepForward().event / 10);
+            assertEquals(3, simulation.stepBackward().event / 10);
+            assertEquals(0, simulation.stepBackward().event / 10);
+            assertEquals(0, simulation.stepBackward().event / 10);
+
+            try {
+                simulation.setStride(0);
+                fail("invalid should have failed");
+            }
+            catch (IllegalArgumentException ex) {
+                // Expected exception
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNonIndexedSimulation() {
+        ReplaySimulation simulation = new ReplaySimulation(new StringReader(NO_COMPARTMENT_INPUT), 0);
+        assertFalse(simulation.isIndexed());
+        try {
+            simulation.seekToFrame(1);
+            fail("not indexed should have failed");
+        }
+        catch (IllegalStateException ex) {
+            // Expected exception
+        }
+    }
+
     private void checkSimulation(String simulationInput, Observation[] simulationOutput) {
         ReplaySimulation simulation = new ReplaySimulation(new StringReader(simulationInput), 0);
         checkObservationEquals(simulationOutput[0], simulation.getCurrentObservation());
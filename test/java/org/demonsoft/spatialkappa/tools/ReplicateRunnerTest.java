@@ -0,0 +1,173 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.demonsoft.spatialkappa.model.IKappaModel;
+import org.demonsoft.spatialkappa.model.TestUtils;
+import org.demonsoft.spatialkappa.tools.ReplicateObservation.ObservableStatistics;
+import org.junit.Test;
+
+public class ReplicateRunnerTest {
+
+    private static final String MODEL =
+            "%agent: A(s~u~p)\n" +
+            "A(s~u) -> A(s~p) @ 1\n" +
+            "%init: 100 A(s~u)\n" +
+            "%obs: 'Au' A(s~u)\n" +
+            "%obs: 'Ap' A(s~p)\n";
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        try {
+            new ReplicateRunner(null, 2, 1);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new ReplicateRunner(model, 2, 1, 2, null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            new ReplicateRunner(model, 0, 1);
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+        try {
+            new ReplicateRunner(model, 2, 1, 0, ReplicateRunner.DEFAULT_QUANTILE_LEVELS);
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+        try {
+            new ReplicateRunner(model, 2, 1, 2, new float[] {0.5f, 1.5f});
+            fail("invalid should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testRunByEvent() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        ReplicateRunner runner = new ReplicateRunner(model, 8, 1, 4, new float[] {0, 0.5f, 1});
+        List<ReplicateObservation> observations = new ArrayList<ReplicateObservation>();
+        runner.addObservationListener(createListener(observations));
+        runner.runByEvent(5, 20);
+
+        assertEquals(6, observations.size());
+        for (int timepoint = 0; timepoint <= 5; timepoint++) {
+            ReplicateObservation observation = observations.get(timepoint);
+            assertEquals(timepoint, observation.timepoint);
+            assertEquals(8, observation.replicateCount);
+            assertEquals(timepoint == 5, observation.finalObservation);
+
+            // Event counts are exact, so every replicate agrees
+            ObservableStatistics statistics = observation.observables.get("Ap");
+            assertEquals(20f * timepoint, statistics.mean, 0.01f);
+            assertEquals(0f, statistics.variance, 0.01f);
+            assertEquals(20f * timepoint, statistics.quantiles[0], 0.01f);
+            assertEquals(20f * timepoint, statistics.quantiles[2], 0.01f);
+            assertEquals(100 - 20f * timepoint, observation.observables.get("Au").mean, 0.01f);
+        }
+        assertTrue(observations.get(5).time > observations.get(1).time);
+    }
+
+    @Test
+    public void testRunByTime() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        ReplicateRunner runner = new ReplicateRunner(model, 20, 1);
+        List<ReplicateObservation> observations = new ArrayList<ReplicateObservation>();
+        runner.addObservationListener(createListener(observations));
+        runner.runByTime(2, 0.5f);
+
+        assertEquals(5, observations.size());
+        for (int timepoint = 0; timepoint <= 4; timepoint++) {
+            ReplicateObservation observation = observations.get(timepoint);
+            assertEquals(timepoint, observation.timepoint);
+            assertEquals(0.5f * timepoint, observation.time, 0.01f);
+            assertEquals(100, observation.observables.get("Au").mean + observation.observables.get("Ap").mean, 0.01f);
+        }
+        assertFalse(observations.get(3).finalObservation);
+        assertTrue(observations.get(4).finalObservation);
+
+        // Exponential decay of Au, 100 * exp(-2) ~ 13.5
+        ObservableStatistics statistics = observations.get(4).observables.get("Au");
+        assertEquals(13.5f, statistics.mean, 5f);
+        assertTrue(statistics.variance > 0);
+        assertTrue(statistics.quantiles[0] <= statistics.quantiles[1]);
+        assertTrue(statistics.quantiles[1] <= statistics.quantiles[2]);
+    }
+
+    @Test
+    public void testSeededRunsAreRepeatable() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(MODEL);
+        List<ReplicateObservation> observations1 = new ArrayList<ReplicateObservation>();
+        ReplicateRunner runner = new ReplicateRunner(model, 6, 5, 3, ReplicateRunner.DEFAULT_QUANTILE_LEVELS);
+        runner.addObservationListener(createListener(observations1));
+        runner.runByTime(1, 0.25f);
+
+        List<ReplicateObservation> observations2 = new ArrayList<ReplicateObservation>();
+        runner = new ReplicateRunner(model, 6, 5, 2, ReplicateRunner.DEFAULT_QUANTILE_LEVELS);
+        runner.addObservationListener(createListener(observations2));
+        runner.runByTime(1, 0.25f);
+
+        assertEquals(observations1.toString(), observations2.toString());
+    }
+
+    @Test
+    public void testObservableStatistics() {
+        try {
+            ObservableStatistics.create(null, new float[0]);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+        try {
+            ObservableStatistics.create(new float[0], new float[0]);
+            fail("empty should have failed");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected exception
+        }
+
+        ObservableStatistics statistics = ObservableStatistics.create(new float[] {3}, new float[] {0, 0.5f, 1});
+        assertEquals(3f, statistics.mean, 0.01f);
+        assertEquals(0f, statistics.variance, 0.01f);
+        assertEquals(3f, statistics.quantiles[0], 0.01f);
+        assertEquals(3f, statistics.quantiles[2], 0.01f);
+
+        statistics = ObservableStatistics.create(new float[] {4, 1, 3, 2}, new float[] {0, 0.25f, 0.5f, 1});
+        assertEquals(2.5f, statistics.mean, 0.01f);
+        assertEquals(1.667f, statistics.variance, 0.01f);
+        assertEquals(1f, statistics.quantiles[0], 0.01f);
+        assertEquals(1.75f, statistics.quantiles[1], 0.01f);
+        assertEquals(2.5f, statistics.quantiles[2], 0.01f);
+        assertEquals(4f, statistics.quantiles[3], 0.01f);
+    }
+
+    private ReplicateObservationListener createListener(final List<ReplicateObservation> observations) {
+        return new ReplicateObservationListener() {
+            public void observation(ReplicateObservation observation) {
+                observations.add(observation);
+            }
+        };
+    }
+}
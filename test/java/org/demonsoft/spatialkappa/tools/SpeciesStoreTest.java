@@ -0,0 +1,83 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.demonsoft.spatialkappa.model.Utils.getList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.demonsoft.spatialkappa.model.Agent;
+import org.demonsoft.spatialkappa.model.Complex;
+import org.junit.Test;
+
+public class SpeciesStoreTest {
+
+    @Test
+    public void testPutAndGet() {
+        SpeciesStore store = new SpeciesStore();
+        Complex complex1 = new Complex(new Agent("agent1"));
+        Complex complex2 = new Complex(new Agent("agent1"));
+
+        try {
+            store.getId(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+
+        assertEquals(SpeciesStore.NO_SPECIES, store.getId(complex1));
+        assertEquals(0, store.get(complex1));
+        assertFalse(store.contains(complex1));
+
+        assertEquals(0, store.put(complex1, 3));
+        assertEquals(3, store.put(complex1, 5));
+        assertEquals(0, store.put(complex2, 7));
+
+        // Species are distinguished by instance
+        assertEquals(2, store.size());
+        assertEquals(5, store.get(complex1));
+        assertEquals(7, store.get(complex2));
+        int id = store.getId(complex1);
+        assertSame(complex1, store.getComplex(id));
+        assertEquals(5, store.getCount(id));
+        assertEquals(5, store.setCount(id, 4));
+        assertEquals(4, store.get(complex1));
+        assertEquals(id, store.intern(complex1));
+        assertEquals(getList(complex1, complex2), store.getComplexes());
+    }
+
+    @Test
+    public void testRemove() {
+        SpeciesStore store = new SpeciesStore();
+        List<Complex> complexes = new ArrayList<Complex>();
+        for (int index = 0; index < 100; index++) {
+            Complex complex = new Complex(new Agent("agent" + index));
+            complexes.add(complex);
+            store.put(complex, index);
+        }
+        assertEquals(100, store.size());
+
+        for (int index = 0; index < 100; index += 2) {
+            store.remove(complexes.get(index));
+        }
+        store.remove(new Complex(new Agent("other")));
+        assertEquals(50, store.size());
+        for (int index = 0; index < 100; index++) {
+            assertEquals(index % 2 == 1, store.contains(complexes.get(index)));
+            assertEquals(index % 2 == 1 ? index : 0, store.get(complexes.get(index)));
+        }
+
+        // Ids of removed species are reused
+        Complex complex = new Complex(new Agent("new"));
+        int id = store.intern(complex);
+        assertTrue(id < 100);
+        assertEquals(0, store.getCount(id));
+        assertSame(complex, store.getComplex(id));
+        assertEquals(51, store.getComplexes().size());
+    }
+}
@@ -0,0 +1,90 @@
+package org.demonsoft.spatialkappa.tools;
+
+import static org.demonsoft.spatialkappa.model.Utils.getList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.demonsoft.spatialkappa.model.Agent;
+import org.demonsoft.spatialkappa.model.AgentSite;
+import org.demonsoft.spatialkappa.model.Complex;
+import org.demonsoft.spatialkappa.model.Location;
+import org.demonsoft.spatialkappa.model.Transition;
+import org.junit.Test;
+
+public class TransitionDependencyIndexTest {
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testConstructor() {
+        try {
+            new TransitionDependencyIndex(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+    }
+
+    @Test
+    public void testGetAffectedTransitions() {
+        Transition bind = new Transition("bind", getList(new Agent("A", new AgentSite("x", null, null)), new Agent("B", new AgentSite("y", null, null))),
+                null, getList(new Agent("A", new AgentSite("x", null, "1")), new Agent("B", new AgentSite("y", null, "1"))), 1f);
+        Transition phosphorylate = new Transition("phos", getList(new Agent("A", new AgentSite("s", "u", null))),
+                null, getList(new Agent("A", new AgentSite("s", "p", null))), 1f);
+        Transition dimerise = new Transition("dimer", getList(new Agent("C", new AgentSite("x", null, "1")), new Agent("C", new AgentSite("x", null, "1"))),
+                null, getList(new Agent("C")), 1f);
+        Transition moveAny = new Transition("move", (Location) null, "channel", null, 1f);
+        Transition create = new Transition("create", null, null, getList(new Agent("A")), 1f);
+
+        List<Transition> transitions = new ArrayList<Transition>();
+        transitions.add(bind);
+        transitions.add(phosphorylate);
+        transitions.add(dimerise);
+        transitions.add(moveAny);
+        transitions.add(create);
+        TransitionDependencyIndex index = new TransitionDependencyIndex(transitions);
+
+        try {
+            index.getAffectedTransitions(null);
+            fail("null should have failed");
+        }
+        catch (NullPointerException ex) {
+            // Expected exception
+        }
+
+        Map<Transition, List<Complex>> affected = index.getAffectedTransitions(new Complex(new Agent("A", new AgentSite("x", null, null), new AgentSite("s", "u", null))));
+        assertEquals("[bind, phos, move]", getLabels(affected));
+        assertEquals(getList(bind.sourceComplexes.get(0)), affected.get(bind));
+        assertEquals(getList(phosphorylate.sourceComplexes.get(0)), affected.get(phosphorylate));
+        assertEquals(0, affected.get(moveAny).size());
+
+        // Missing site
+        affected = index.getAffectedTransitions(new Complex(new Agent("A", new AgentSite("x", null, null))));
+        assertEquals("[bind, move]", getLabels(affected));
+
+        affected = index.getAffectedTransitions(new Complex(new Agent("B", new AgentSite("y", null, null))));
+        assertEquals("[bind, move]", getLabels(affected));
+        assertEquals(getList(bind.sourceComplexes.get(1)), affected.get(bind));
+
+        // Agent counts
+        affected = index.getAffectedTransitions(new Complex(new Agent("C", new AgentSite("x", null, null))));
+        assertEquals("[move]", getLabels(affected));
+        affected = index.getAffectedTransitions(new Complex(new Agent("C", new AgentSite("x", null, "1")), new Agent("C", new AgentSite("x", null, "1"))));
+        assertEquals("[dimer, move]", getLabels(affected));
+
+        affected = index.getAffectedTransitions(new Complex(new Agent("D")));
+        assertEquals("[move]", getLabels(affected));
+    }
+
+    private String getLabels(Map<Transition, List<Complex>> affected) {
+        List<String> result = new ArrayList<String>();
+        for (Transition transition : affected.keySet()) {
+            result.add(transition.label);
+        }
+        return result.toString();
+    }
+}
@@ -26,15 +26,23 @@ import org.demonsoft.spatialkappa.model.Agent;
 import org.demonsoft.spatialkappa.model.AgentDeclaration;
 import org.demonsoft.spatialkappa.model.AgentSite;
 import org.demonsoft.spatialkappa.model.AggregateSite;
+import org.demonsoft.spatialkappa.model.BooleanExpression;
+import org.demonsoft.spatialkappa.model.BooleanExpression.RelationalOperator;
 import org.demonsoft.spatialkappa.model.CellIndexExpression;
 import org.demonsoft.spatialkappa.model.Channel;
 import org.demonsoft.spatialkappa.model.Compartment;
 import org.demonsoft.spatialkappa.model.Complex;
 import org.demonsoft.spatialkappa.model.ComplexMapping;
+import org.demonsoft.spatialkappa.model.IKappaModel;
 import org.demonsoft.spatialkappa.model.KappaModel;
 import org.demonsoft.spatialkappa.model.Location;
 import org.demonsoft.spatialkappa.model.Observation;
 import org.demonsoft.spatialkappa.model.ObservationElement;
+import org.demonsoft.spatialkappa.model.ObservationListener;
+import org.demonsoft.spatialkappa.model.Perturbation;
+import org.demonsoft.spatialkappa.model.PerturbationEffect;
+import org.demonsoft.spatialkappa.model.SplitMixRandomSource;
+import org.demonsoft.spatialkappa.model.TestUtils;
 import org.demonsoft.spatialkappa.model.Transition;
 import org.demonsoft.spatialkappa.model.TransitionInstance;
 import org.demonsoft.spatialkappa.model.Variable;
@@ -231,11 +239,11 @@ public class TransitionMatchingSimulationTest {
         
         simulation = new TransitionMatchingSimulation(kappaModel);
         
-        assertEquals(1f, rule1.getRate().evaluate(NO_VARIABLES), 0.01f);
-        assertTrue(rule2.hasSimpleRate);
-        assertEquals(4f, rule2.simpleRate, 0.01f);
-        assertEquals(4f, rule2.getRate().evaluate(kappaModel.getVariables()), 0.01f);
-        assertEquals(2f, kappaModel.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
+        assertEquals(1f, simulation.transitionRates.getRate(rule1).evaluate(NO_VARIABLES), 0.01f);
+        assertTrue(simulation.transitionRates.hasSimpleRate(rule2));
+        assertEquals(4f, simulation.transitionRates.getSimpleRate(rule2), 0.01f);
+        assertEquals(4f, simulation.transitionRates.getRate(rule2).evaluate(simulation.getVariables()), 0.01f);
+        assertEquals(2f, simulation.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
         
         try {
             simulation.setTransitionRateOrVariable(null, new VariableExpression(3));
@@ -261,19 +269,23 @@ public class TransitionMatchingSimulationTest {
 
         simulation.setTransitionRateOrVariable("variable1", new VariableExpression(3));
         
-        assertEquals(1f, rule1.getRate().evaluate(NO_VARIABLES), 0.01f);
-        assertTrue(rule2.hasSimpleRate);
-        assertEquals(6f, rule2.simpleRate, 0.01f);
-        assertEquals(6f, rule2.getRate().evaluate(kappaModel.getVariables()), 0.01f);
-        assertEquals(3f, kappaModel.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
+        assertEquals(1f, simulation.transitionRates.getRate(rule1).evaluate(NO_VARIABLES), 0.01f);
+        assertTrue(simulation.transitionRates.hasSimpleRate(rule2));
+        assertEquals(6f, simulation.transitionRates.getSimpleRate(rule2), 0.01f);
+        assertEquals(6f, simulation.transitionRates.getRate(rule2).evaluate(simulation.getVariables()), 0.01f);
+        assertEquals(3f, simulation.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
         
         simulation.setTransitionRateOrVariable("rule1", new VariableExpression(5));
         
-        assertEquals(5f, rule1.getRate().evaluate(NO_VARIABLES), 0.01f);
-        assertTrue(rule2.hasSimpleRate);
-        assertEquals(6f, rule2.simpleRate, 0.01f);
-        assertEquals(6f, rule2.getRate().evaluate(kappaModel.getVariables()), 0.01f);
-        assertEquals(3f, kappaModel.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
+        assertEquals(5f, simulation.transitionRates.getRate(rule1).evaluate(NO_VARIABLES), 0.01f);
+        assertTrue(simulation.transitionRates.hasSimpleRate(rule2));
+        assertEquals(6f, simulation.transitionRates.getSimpleRate(rule2), 0.01f);
+        assertEquals(6f, simulation.transitionRates.getRate(rule2).evaluate(simulation.getVariables()), 0.01f);
+        assertEquals(3f, simulation.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
+        
+        // Shared model is unchanged
+        assertEquals(1f, rule1.getRate().evaluate(NO_VARIABLES), 0.01f);
+        assertEquals(2f, kappaModel.getVariables().get("variable1").evaluate(NO_VARIABLES), 0.01f);
     }
 
     @Test
@@ -298,6 +310,35 @@ public class TransitionMatchingSimulationTest {
         checkObservation("observable2", new ObservationElement(5));
     }
 
+    @Test
+    public void testGetCurrentObservation_2DCompartmentAfterChanges() {
+        kappaModel.addAgentDeclaration(new AgentDeclaration("agent1"));
+        List<Integer> dimensions = getList(3, 2);
+        kappaModel.addCompartment("cytosol", null, dimensions);
+        
+        kappaModel.addVariable(getList(new Agent("agent1")), "observable1", new Location("cytosol"), true);
+        kappaModel.addPlot("observable1");
+        kappaModel.addVariable(getList(new Agent("agent1")), "observable2", new Location("cytosol", 0, 0), false);
+        kappaModel.addPlot("observable2");
+        kappaModel.addInitialValue(getList(new Agent("agent1")), "5", new Location("cytosol", 0, 0));
+        kappaModel.addInitialValue(getList(new Agent("agent1")), "7", new Location("cytosol", 2, 1));
+        kappaModel.addTransition("delete", new Location("cytosol", 2, 1), getList(new Agent("agent1")), null, null, null, new VariableExpression(1f));
+        
+        simulation = new TransitionMatchingSimulation(kappaModel);
+        
+        simulation.addComplexInstances(getList(new Agent("agent1", new Location("cytosol", 1, 0))), 4);
+        simulation.addComplexInstances(getList(new Agent("agent1", new Location("cytosol", 0, 0))), -3);
+        simulation.runByEvent(1, 3);
+        
+        checkObservation("observable1", new ObservationElement(10, new int[] {3, 2}, "cytosol", new Serializable[][] {{2, 0}, {4, 0}, {0, 4}}));
+        checkObservation("observable2", new ObservationElement(2));
+        
+        simulation.addComplexInstances(getList(new Agent("agent1", new Location("cytosol", 0, 0))), -5);
+        
+        checkObservation("observable1", new ObservationElement(8, new int[] {3, 2}, "cytosol", new Serializable[][] {{0, 0}, {4, 0}, {0, 4}}));
+        checkObservation("observable2", new ObservationElement(0));
+    }
+
     // TODO add grid observations for shapes
     
     private void checkObservation(String observableName, ObservationElement element) {
@@ -329,6 +370,31 @@ public class TransitionMatchingSimulationTest {
         assertEquals(new ObservationElement(expected), simulation.getComplexQuantity(variable));
     }
 
+    @Test
+    public void testPerturbationOnObservableChange() {
+        kappaModel = new KappaModel();
+        kappaModel.addAgentDeclaration(new AgentDeclaration("A"));
+        kappaModel.addAgentDeclaration(new AgentDeclaration("B"));
+        kappaModel.addTransition("decay", NOT_LOCATED, getList(new Agent("A")), null, null, null, new VariableExpression(1f));
+        kappaModel.addInitialValue(getList(new Agent("A")), "10", NOT_LOCATED);
+        kappaModel.addVariable(getList(new Agent("A")), "A", NOT_LOCATED, false);
+        kappaModel.addVariable(getList(new Agent("B")), "B", NOT_LOCATED, false);
+        kappaModel.addPerturbation(new Perturbation(
+                new BooleanExpression(RelationalOperator.LESS, new VariableExpression(new VariableReference("A")), new VariableExpression(5)), 
+                getList(new PerturbationEffect(PerturbationEffect.Type.ADD, new VariableExpression(2), getList(new Agent("B")))), null));
+        
+        simulation = new TransitionMatchingSimulation(kappaModel);
+        
+        simulation.runByEvent(1, 6);
+        assertEquals(4f, simulation.getComplexQuantity(simulation.getVariable("A")).value, 0.01f);
+        assertEquals(0f, simulation.getComplexQuantity(simulation.getVariable("B")).value, 0.01f);
+        
+        // Applied once at the next event, then removed
+        simulation.runByEvent(1, 3);
+        assertEquals(1f, simulation.getComplexQuantity(simulation.getVariable("A")).value, 0.01f);
+        assertEquals(2f, simulation.getComplexQuantity(simulation.getVariable("B")).value, 0.01f);
+    }
+
     @Test
     public void testGetNextEndTime() {
         assertEquals(2.0, simulation.getNextEndTime(1.01f, 1f), 0.05f);
@@ -467,6 +533,8 @@ public class TransitionMatchingSimulationTest {
         
         assertEquals(new ObservationElement(55), simulation.getTransitionFiredCount(new Variable("label")));
         assertEquals(new ObservationElement(0), simulation.getTransitionFiredCount(new Variable("other")));
+        assertEquals(55f, simulation.getTransitionFiredCountValue(new Variable("label")), 0.01f);
+        assertEquals(0f, simulation.getTransitionFiredCountValue(new Variable("other")), 0.01f);
     }
 
     @Test
@@ -480,7 +548,7 @@ public class TransitionMatchingSimulationTest {
         Map<Agent, Agent> agentMap = new HashMap<Agent, Agent>();
         List<Compartment> compartments = new ArrayList<Compartment>();
         List<Channel> channels = new ArrayList<Channel>();
-        Map<Complex, Integer> complexCounts = new HashMap<Complex, Integer>();
+        SpeciesStore complexCounts = new SpeciesStore();
         complexCounts.put(complex, 1);
         
         try {
@@ -677,6 +745,7 @@ public class TransitionMatchingSimulationTest {
         assertEquals(10f, simulation.getComplexQuantity(variableA).value, 0.01f);
         assertEquals(10f, simulation.getComplexQuantity(variableB).value, 0.01f);
         assertEquals(10f, simulation.getComplexQuantity(variableC).value, 0.01f);
+        assertEquals(10f, simulation.getComplexQuantityValue(variableA), 0.01f);
         
         simulation.addComplexInstances(getList(new Agent("B")), -8);
         
@@ -830,6 +899,13 @@ public class TransitionMatchingSimulationTest {
         instance = new TransitionInstance(getList(new ComplexMapping(complex1)), 2);
         simulation.updateTransitionInstanceActivity(instance);
         assertEquals(6, simulation.getTransitionInstanceActivity(instance));
+        
+        // Products beyond the int range
+        simulation.complexStore.put(complex3, 1200000);
+        simulation.complexStore.put(complex4, 180000);
+        instance = new TransitionInstance(getList(new ComplexMapping(complex3), new ComplexMapping(complex4)), 1);
+        simulation.updateTransitionInstanceActivity(instance);
+        assertEquals(1200000L * 180000, simulation.getTransitionInstanceActivity(instance));
     }
     
     @Test
@@ -1021,6 +1097,127 @@ public class TransitionMatchingSimulationTest {
         }
     }
     
+    @Test
+    public void testSeededRunsAreRepeatable() throws Exception {
+        String input = 
+                "%agent: A(x,s~u~p)\n" +
+                "%agent: B(y)\n" +
+                "%compartment: cytosol [4]\n" +
+                "%channel: diffusion (:cytosol[x] -> :cytosol[x + 1]) + (:cytosol[x] -> :cytosol[x - 1])\n" +
+                "A(x),B(y) -> A(x!1),B(y!1) @ 0.1\n" + 
+                "A(x!1),B(y!1) -> A(x),B(y) @ 1\n" + 
+                "A(s~u) -> A(s~p) @ 0.5\n" + 
+                "A(s~p) -> A(s~u) @ 0.5\n" + 
+                "->:diffusion @ 0.5\n" + 
+                "%init: 50 :cytosol[0] A(x,s~u),B(y)\n" +
+                "%obs: 'AB' A(x!1),B(y!1)\n" +
+                "%obs: voxel 'Ap' :cytosol A(s~p)\n";
+        assertEquals(getObservations(input, 7), getObservations(input, 7));
+    }
+
+    private List<String> getObservations(String input, long seed) throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(input);
+        TransitionMatchingSimulation seededSimulation = new TransitionMatchingSimulation(model, new SplitMixRandomSource(seed));
+        final List<String> result = new ArrayList<String>();
+        seededSimulation.addObservationListener(new ObservationListener() {
+            public void observation(Observation observation) {
+                result.add(observation.time + " " + observation.toKaSimString());
+            }
+        });
+        seededSimulation.runByEvent(10, 100);
+        return result;
+    }
+
+    @Test
+    public void testIncrementalTransitionActivities() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(x,s~u~p)\n" +
+                "%agent: B(y)\n" +
+                "A(x),B(y) -> A(x!1),B(y!1) @ 0.1\n" + 
+                "A(x!1),B(y!1) -> A(x),B(y) @ 1\n" + 
+                "A(s~u) -> A(s~p) @ 0.5\n" + 
+                "A(s~p) -> A(s~u) @ 0.5\n" + 
+                "%init: 50 A(x,s~u),B(y)\n");
+        simulation = new TransitionMatchingSimulation(model);
+        simulation.runByEvent(1, 500);
+        
+        // Activities maintained per changed instance must match a full recalculation
+        for (Transition transition : model.getTransitions()) {
+            float incrementalActivity = simulation.finiteRateTransitionActivityMap.get(transition);
+            simulation.updateTransitionActivity(transition, false);
+            assertEquals(simulation.finiteRateTransitionActivityMap.get(transition), incrementalActivity, 0.01f);
+        }
+    }
+
+    @Test
+    public void testVoxelMoveInstances() throws Exception {
+        IKappaModel model = TestUtils.createKappaModel(
+                "%agent: A(s~u~p)\n" +
+                "%compartment: cytosol [4]\n" + 
+                "%channel: intra-cytosol (:cytosol [x] -> :cytosol [x +1]) + (:cytosol [x] -> :cytosol [x -1])\n" + 
+                "'diffusion-all' ->:intra-cytosol @ 0.1\n" + 
+                "%init: 10 :cytosol[1] A(s~u) \n" + 
+                "%init: 5 :cytosol[1] A(s~p) \n" + 
+                "%init: 3 :cytosol[0] A(s~u) \n");
+        simulation = new TransitionMatchingSimulation(model);
+        Transition transition = model.getTransitions().get(0);
+
+        // One instance per occupied voxel, covering all species in the voxel
+        List<TransitionInstance> transitionInstances = simulation.transitionInstanceMap.get(transition);
+        assertEquals(2, transitionInstances.size());
+        long totalActivity = 0;
+        for (TransitionInstance transitionInstance : transitionInstances) {
+            totalActivity += simulation.getTransitionInstanceActivity(transitionInstance);
+        }
+        assertEquals(15 * 2 + 3, totalActivity);
+        assertEquals(3.3f, simulation.finiteRateTransitionActivityMap.get(transition), 0.01f);
+        
+        simulation.runByEvent(200, 200);
+        assertTrue(simulation.transitionInstanceMap.get(transition).size() <= 4);
+        float incrementalActivity = simulation.finiteRateTransitionActivityMap.get(transition);
+        simulation.updateTransitionActivity(transition, false);
+        assertEquals(simulation.finiteRateTransitionActivityMap.get(transition), incrementalActivity, 0.01f);
+    }
+
+    @Test
+    public void testVoxelMoveInstance_pickComplexInstance() {
+        TransitionMatchingSimulation.VoxelMoveInstance voxelInstance = 
+                new TransitionMatchingSimulation.VoxelMoveInstance(new Location("cytosol", 1), 2);
+        assertEquals(null, voxelInstance.pickComplexInstance(0.5));
+        
+        Complex complex1 = new Complex(new Agent("A"));
+        Complex complex2 = new Complex(new Agent("B"));
+        Complex complex3 = new Complex(new Agent("C"));
+        voxelInstance.add(complex1);
+        voxelInstance.add(complex2);
+        voxelInstance.add(complex3);
+        voxelInstance.setCount(complex1, 1);
+        voxelInstance.setCount(complex2, 3);
+        voxelInstance.setCount(complex3, 4);
+        assertEquals(8, voxelInstance.totalCount);
+        assertEquals(16, voxelInstance.getActivity());
+        
+        // Chosen in proportion to the counts, reusing one instance per complex
+        TransitionInstance instance1 = voxelInstance.pickComplexInstance(0.1);
+        assertTrue(complex1 == instance1.requiredComplexes[0]);
+        assertEquals(2, instance1.targetLocationCount);
+        assertTrue(complex2 == voxelInstance.pickComplexInstance(0.2).requiredComplexes[0]);
+        assertTrue(complex2 == voxelInstance.pickComplexInstance(0.45).requiredComplexes[0]);
+        assertTrue(complex3 == voxelInstance.pickComplexInstance(0.55).requiredComplexes[0]);
+        assertTrue(instance1 == voxelInstance.pickComplexInstance(0.05));
+        
+        voxelInstance.remove(complex2);
+        assertEquals(2, voxelInstance.size());
+        assertEquals(5, voxelInstance.totalCount);
+        assertTrue(complex1 == voxelInstance.pickComplexInstance(0.1).requiredComplexes[0]);
+        assertTrue(complex3 == voxelInstance.pickComplexInstance(0.3).requiredComplexes[0]);
+        
+        // Activity is exact rather than wrapping
+        voxelInstance.setCount(complex1, Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE + 4L, voxelInstance.totalCount);
+        assertEquals((Integer.MAX_VALUE + 4L) * 2, voxelInstance.getActivity());
+    }
+
     @Test
     public void testIsTransitionMappingComponentCompatible_invalidParameters() {
         Agent templateAgent = new Agent("A");